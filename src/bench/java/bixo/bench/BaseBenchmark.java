@@ -0,0 +1,28 @@
+package bixo.bench;
+
+/**
+ * A single benchmark, which the BenchmarkRunner calls over and over (first to warm up
+ * the JVM, then to measure throughput).
+ *
+ * Each call to run() should do a fixed amount of work, typically processing every entry
+ * in the corpus, with getOpsPerInvocation() returning how many operations that is.
+ * The value returned by run() gets consumed by the runner, so the JIT can't decide that
+ * the work isn't needed.
+ *
+ */
+public abstract class BaseBenchmark {
+
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    public void setup(BenchmarkCorpus corpus) throws Exception {
+    }
+
+    public abstract int run() throws Exception;
+
+    public abstract int getOpsPerInvocation();
+
+    public void teardown() throws Exception {
+    }
+}
@@ -0,0 +1,75 @@
+package bixo.bench;
+
+import java.util.List;
+
+import bixo.cascading.BaseDatum;
+import bixo.cascading.DatumCodec;
+import bixo.utils.DiskQueue;
+import bixo.utils.IDiskQueueCodec;
+import bixo.utils.SerializableCodec;
+
+/**
+ * Spill datums through a DiskQueue, using either Java serialization or the DatumCodec
+ * for the backing store, so we can see what each codec costs for the datums that
+ * actually get queued up during a crawl.
+ *
+ */
+public abstract class BaseDatumDiskQueueBenchmark<T extends BaseDatum> extends BaseBenchmark {
+
+    private Class<T> _datumClass;
+    private boolean _useDatumCodec;
+    private int _maxInMemory;
+
+    private List<T> _datums;
+    private IDiskQueueCodec<T> _codec;
+
+    /**
+     * @param datumClass class of the datums we queue up
+     * @param useDatumCodec true to use the DatumCodec, false to use Java serialization
+     * @param maxInMemory max number of datums to keep in memory, which should be a
+     *        small fraction of the datums in the corpus so most of them get spilled.
+     */
+    protected BaseDatumDiskQueueBenchmark(Class<T> datumClass, boolean useDatumCodec, int maxInMemory) {
+        _datumClass = datumClass;
+        _useDatumCodec = useDatumCodec;
+        _maxInMemory = maxInMemory;
+    }
+
+    protected abstract List<T> makeDatums(BenchmarkCorpus corpus);
+
+    @Override
+    public String getName() {
+        return super.getName() + (_useDatumCodec ? "-DatumCodec" : "-SerializableCodec");
+    }
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _datums = makeDatums(corpus);
+
+        if (_useDatumCodec) {
+            _codec = new DatumCodec<T>(_datumClass);
+        } else {
+            _codec = new SerializableCodec<T>();
+        }
+    }
+
+    @Override
+    public int run() {
+        DiskQueue<T> queue = new DiskQueue<T>(_maxInMemory, _codec);
+        for (T datum : _datums) {
+            queue.offer(datum);
+        }
+
+        int result = 0;
+        while (queue.poll() != null) {
+            result += 1;
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _datums.size();
+    }
+}
@@ -0,0 +1,103 @@
+package bixo.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import bixo.utils.DmozLinks;
+
+/**
+ * Data used by the benchmarks - a list of real URLs (either from a text file, or a
+ * random sample of DMOZ links) and a set of real robots.txt files.
+ *
+ */
+public class BenchmarkCorpus {
+
+    private static final String EXPECTED_RESULTS_FILENAME = "corpus-expected.txt";
+
+    private List<String> _urls;
+    private List<byte[]> _robotsFiles;
+
+    public BenchmarkCorpus(List<String> urls, List<byte[]> robotsFiles) {
+        _urls = Collections.unmodifiableList(urls);
+        _robotsFiles = Collections.unmodifiableList(robotsFiles);
+    }
+
+    public List<String> getUrls() {
+        return _urls;
+    }
+
+    public List<byte[]> getRobotsFiles() {
+        return _robotsFiles;
+    }
+
+    /**
+     * Load URLs (one per line) from <urlsFile>, and every robots.txt file in <robotsDir>.
+     *
+     * @param urlsFile text file with one URL per line
+     * @param robotsDir directory containing robots.txt files
+     * @return corpus
+     * @throws IOException
+     */
+    public static BenchmarkCorpus load(File urlsFile, File robotsDir) throws IOException {
+        List<String> urls = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(urlsFile), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() > 0) && !line.startsWith("#")) {
+                    urls.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new BenchmarkCorpus(urls, loadRobotsFiles(robotsDir));
+    }
+
+    /**
+     * Load a random sample of <numUrls> URLs from the DMOZ links zip file, plus every
+     * robots.txt file in <robotsDir>.
+     *
+     * @param dmozZipFile zip file created by ExtractDmozLinks
+     * @param numUrls number of URLs to sample
+     * @param robotsDir directory containing robots.txt files
+     * @return corpus
+     * @throws IOException
+     */
+    public static BenchmarkCorpus loadDmoz(File dmozZipFile, int numUrls, File robotsDir) throws IOException {
+        List<String> urls = new DmozLinks(dmozZipFile).getRandomLinks(numUrls);
+        return new BenchmarkCorpus(urls, loadRobotsFiles(robotsDir));
+    }
+
+    private static List<byte[]> loadRobotsFiles(File robotsDir) throws IOException {
+        File[] files = robotsDir.listFiles();
+        if (files == null) {
+            throw new IOException("Robots directory doesn't exist: " + robotsDir);
+        }
+
+        // Sort so that every run uses the files in the same order.
+        Arrays.sort(files);
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (File file : files) {
+            // Skip the file of expected parse results that lives next to the test robots files.
+            if (file.getName().endsWith(".txt") && !file.getName().equals(EXPECTED_RESULTS_FILENAME)) {
+                result.add(FileUtils.readFileToByteArray(file));
+            }
+        }
+
+        return result;
+    }
+}
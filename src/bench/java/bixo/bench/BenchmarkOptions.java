@@ -0,0 +1,123 @@
+package bixo.bench;
+
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.kohsuke.args4j.Option;
+
+public class BenchmarkOptions {
+    private int _warmupIterations = 5;
+    private int _iterations = 10;
+    private long _iterationTime = 1000;
+    private String _urlsFile = "src/test/resources/sample-urls.txt";
+    private String _dmozFile;
+    private int _numDmozUrls = 10000;
+    private String _robotsDir = "src/test/resources/robots";
+    private String _outputFile;
+    private String _baselineFile;
+    private double _maxRegression = 10.0;
+    private String _filter;
+
+    @Option(name = "-warmup", usage = "Number of warmup iterations", required = false)
+    public void setWarmupIterations(int warmupIterations) {
+        _warmupIterations = warmupIterations;
+    }
+
+    public int getWarmupIterations() {
+        return _warmupIterations;
+    }
+
+    @Option(name = "-iterations", usage = "Number of measured iterations", required = false)
+    public void setIterations(int iterations) {
+        _iterations = iterations;
+    }
+
+    public int getIterations() {
+        return _iterations;
+    }
+
+    @Option(name = "-time", usage = "Length of each iteration, in milliseconds", required = false)
+    public void setIterationTime(long iterationTime) {
+        _iterationTime = iterationTime;
+    }
+
+    public long getIterationTime() {
+        return _iterationTime;
+    }
+
+    @Option(name = "-urls", usage = "Text file with one URL per line", required = false)
+    public void setUrlsFile(String urlsFile) {
+        _urlsFile = urlsFile;
+    }
+
+    public String getUrlsFile() {
+        return _urlsFile;
+    }
+
+    @Option(name = "-dmoz", usage = "DMOZ links zip file to sample URLs from (instead of -urls)", required = false)
+    public void setDmozFile(String dmozFile) {
+        _dmozFile = dmozFile;
+    }
+
+    public String getDmozFile() {
+        return _dmozFile;
+    }
+
+    @Option(name = "-numdmozurls", usage = "Number of URLs to sample from the DMOZ links", required = false)
+    public void setNumDmozUrls(int numDmozUrls) {
+        _numDmozUrls = numDmozUrls;
+    }
+
+    public int getNumDmozUrls() {
+        return _numDmozUrls;
+    }
+
+    @Option(name = "-robots", usage = "Directory of robots.txt files", required = false)
+    public void setRobotsDir(String robotsDir) {
+        _robotsDir = robotsDir;
+    }
+
+    public String getRobotsDir() {
+        return _robotsDir;
+    }
+
+    @Option(name = "-output", usage = "File for tab-separated results", required = false)
+    public void setOutputFile(String outputFile) {
+        _outputFile = outputFile;
+    }
+
+    public String getOutputFile() {
+        return _outputFile;
+    }
+
+    @Option(name = "-baseline", usage = "Tab-separated results from a previous run, to compare against", required = false)
+    public void setBaselineFile(String baselineFile) {
+        _baselineFile = baselineFile;
+    }
+
+    public String getBaselineFile() {
+        return _baselineFile;
+    }
+
+    @Option(name = "-maxregression", usage = "Max percent slowdown versus the baseline before failing", required = false)
+    public void setMaxRegression(double maxRegression) {
+        _maxRegression = maxRegression;
+    }
+
+    public double getMaxRegression() {
+        return _maxRegression;
+    }
+
+    @Option(name = "-filter", usage = "Only run benchmarks whose name contains this string", required = false)
+    public void setFilter(String filter) {
+        _filter = filter;
+    }
+
+    public String getFilter() {
+        return _filter;
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, ToStringStyle.MULTI_LINE_STYLE);
+    }
+}
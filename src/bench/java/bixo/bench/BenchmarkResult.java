@@ -0,0 +1,99 @@
+package bixo.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Throughput measurements (operations/second) for each measured iteration of one benchmark.
+ *
+ */
+public class BenchmarkResult {
+
+    // Columns in the tab-separated output, so results from different releases can be compared.
+    public static final String TSV_HEADER = "benchmark\titerations\tops_per_sec\terror\tmin\tmax";
+
+    private String _name;
+    private List<Double> _opsPerSec;
+
+    public BenchmarkResult(String name) {
+        _name = name;
+        _opsPerSec = new ArrayList<Double>();
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public void addIteration(double opsPerSec) {
+        _opsPerSec.add(opsPerSec);
+    }
+
+    public int getNumIterations() {
+        return _opsPerSec.size();
+    }
+
+    public double getMean() {
+        double total = 0.0;
+        for (double value : _opsPerSec) {
+            total += value;
+        }
+
+        return _opsPerSec.isEmpty() ? 0.0 : total / _opsPerSec.size();
+    }
+
+    /**
+     * @return half-width of the 99.9% confidence interval for the mean (using a normal
+     *         approximation, so it's only a rough guide for small numbers of iterations).
+     */
+    public double getError() {
+        int n = _opsPerSec.size();
+        if (n < 2) {
+            return 0.0;
+        }
+
+        double mean = getMean();
+        double sumSquares = 0.0;
+        for (double value : _opsPerSec) {
+            sumSquares += (value - mean) * (value - mean);
+        }
+
+        double stdDev = Math.sqrt(sumSquares / (n - 1));
+        return 3.29 * stdDev / Math.sqrt(n);
+    }
+
+    public double getMin() {
+        return _opsPerSec.isEmpty() ? 0.0 : Collections.min(_opsPerSec);
+    }
+
+    public double getMax() {
+        return _opsPerSec.isEmpty() ? 0.0 : Collections.max(_opsPerSec);
+    }
+
+    public String toTsv() {
+        return String.format("%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f", _name, getNumIterations(), getMean(), getError(), getMin(), getMax());
+    }
+
+    /**
+     * Parse a line created by toTsv(). Only the name and mean are available from the
+     * parsed result.
+     *
+     * @param line tab-separated result
+     * @return result with one iteration (the mean)
+     */
+    public static BenchmarkResult fromTsv(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("Invalid benchmark result: " + line);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(fields[0]);
+        result.addIteration(Double.parseDouble(fields[2]));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-28s %14.1f ops/s (+/- %.1f, %d iterations)", _name, getMean(), getError(), getNumIterations());
+    }
+}
@@ -0,0 +1,213 @@
+package bixo.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * Runs throughput benchmarks for Bixo's hot paths, and writes out the results as
+ * tab-separated text. If a baseline file (results from a previous run) is provided,
+ * we exit with an error if any benchmark got slower by more than the max regression.
+ *
+ * Each benchmark gets a number of timed warmup iterations (so the JIT has compiled
+ * the code being measured), followed by the measured iterations.
+ *
+ */
+public class BenchmarkRunner {
+    private static final Logger LOGGER = Logger.getLogger(BenchmarkRunner.class);
+
+    // Where benchmark results end up, so the JIT can't decide the work isn't needed.
+    private static volatile int _sink;
+
+    public static List<BaseBenchmark> getAllBenchmarks() {
+        return Arrays.asList(new BaseBenchmark[] {
+            new UrlNormalizerBenchmark(),
+            new DomainNamesBenchmark(),
+            new RobotRulesParserBenchmark(),
+            new RobotRulesBenchmark(),
+            new HttpHeadersBenchmark(),
+            new DiskQueueBenchmark(),
+            new FetchSetDiskQueueBenchmark(false),
+            new FetchSetDiskQueueBenchmark(true),
+            new GroupedUrlDiskQueueBenchmark(false),
+            new GroupedUrlDiskQueueBenchmark(true),
+            new GroupingKeyBenchmark(),
+            new FetchSetDatumBenchmark(),
+        });
+    }
+
+    public static BenchmarkResult runBenchmark(BaseBenchmark benchmark, BenchmarkCorpus corpus, int warmupIterations,
+                    int iterations, long iterationTime) throws Exception {
+        benchmark.setup(corpus);
+
+        try {
+            BenchmarkResult result = new BenchmarkResult(benchmark.getName());
+
+            for (int i = 0; i < warmupIterations; i++) {
+                runIteration(benchmark, iterationTime);
+            }
+
+            for (int i = 0; i < iterations; i++) {
+                result.addIteration(runIteration(benchmark, iterationTime));
+            }
+
+            return result;
+        } finally {
+            benchmark.teardown();
+        }
+    }
+
+    /**
+     * Call <benchmark> repeatedly for at least <iterationTime> milliseconds.
+     *
+     * @return operations per second
+     */
+    private static double runIteration(BaseBenchmark benchmark, long iterationTime) throws Exception {
+        long startTime = System.nanoTime();
+        long endTime = startTime + (iterationTime * 1000000L);
+        long numInvocations = 0;
+        int sink = 0;
+        long curTime;
+
+        do {
+            sink += benchmark.run();
+            numInvocations += 1;
+            curTime = System.nanoTime();
+        } while (curTime < endTime);
+
+        _sink += sink;
+        return (numInvocations * benchmark.getOpsPerInvocation() * 1000000000.0) / (curTime - startTime);
+    }
+
+    public static Map<String, BenchmarkResult> readResults(File file) throws IOException {
+        Map<String, BenchmarkResult> result = new HashMap<String, BenchmarkResult>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if ((line.length() > 0) && !line.equals(BenchmarkResult.TSV_HEADER)) {
+                    BenchmarkResult benchmarkResult = BenchmarkResult.fromTsv(line);
+                    result.put(benchmarkResult.getName(), benchmarkResult);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return result;
+    }
+
+    public static void writeResults(List<BenchmarkResult> results, File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+        try {
+            writer.println(BenchmarkResult.TSV_HEADER);
+            for (BenchmarkResult result : results) {
+                writer.println(result.toTsv());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Log how each result compares to the baseline.
+     *
+     * @return names of benchmarks that are more than <maxRegression> percent slower than
+     *         the baseline.
+     */
+    public static List<String> compareResults(List<BenchmarkResult> results, Map<String, BenchmarkResult> baseline,
+                    double maxRegression) {
+        List<String> regressions = new ArrayList<String>();
+
+        for (BenchmarkResult result : results) {
+            BenchmarkResult baselineResult = baseline.get(result.getName());
+            if ((baselineResult == null) || (baselineResult.getMean() <= 0.0)) {
+                LOGGER.info(String.format("%s: no baseline", result.getName()));
+                continue;
+            }
+
+            double change = ((result.getMean() - baselineResult.getMean()) * 100.0) / baselineResult.getMean();
+            LOGGER.info(String.format("%s: %+.1f%% versus baseline", result.getName(), change));
+            if (-change > maxRegression) {
+                regressions.add(result.getName());
+            }
+        }
+
+        return regressions;
+    }
+
+    private static void printUsageAndExit(CmdLineParser parser) {
+        parser.printUsage(System.err);
+        System.exit(-1);
+    }
+
+    /**
+     * @param args - options for running benchmarks (see BenchmarkOptions)
+     */
+    public static void main(String[] args) {
+        BenchmarkOptions options = new BenchmarkOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            printUsageAndExit(parser);
+        }
+
+        try {
+            BenchmarkCorpus corpus;
+            if (options.getDmozFile() != null) {
+                corpus = BenchmarkCorpus.loadDmoz(new File(options.getDmozFile()), options.getNumDmozUrls(), new File(options.getRobotsDir()));
+            } else {
+                corpus = BenchmarkCorpus.load(new File(options.getUrlsFile()), new File(options.getRobotsDir()));
+            }
+
+            LOGGER.info(String.format("Running benchmarks with %d URLs and %d robots.txt files", corpus.getUrls().size(), corpus.getRobotsFiles().size()));
+
+            List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+            for (BaseBenchmark benchmark : getAllBenchmarks()) {
+                if ((options.getFilter() != null) && !benchmark.getName().contains(options.getFilter())) {
+                    continue;
+                }
+
+                BenchmarkResult result = runBenchmark(benchmark, corpus, options.getWarmupIterations(), options.getIterations(), options.getIterationTime());
+                LOGGER.info(result.toString());
+                results.add(result);
+            }
+
+            if (options.getOutputFile() != null) {
+                writeResults(results, new File(options.getOutputFile()));
+            }
+
+            if (options.getBaselineFile() != null) {
+                Map<String, BenchmarkResult> baseline = readResults(new File(options.getBaselineFile()));
+                List<String> regressions = compareResults(results, baseline, options.getMaxRegression());
+                if (!regressions.isEmpty()) {
+                    LOGGER.error("Benchmarks slower than baseline: " + regressions);
+                    System.exit(-1);
+                }
+            }
+        } catch (Throwable t) {
+            System.err.println("Exception running benchmarks: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package bixo.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import bixo.cascading.NullSinkTap;
+import bixo.config.DefaultFetchJobPolicy;
+import bixo.config.FetcherPolicy;
+import bixo.datum.ParsedDatum;
+import bixo.datum.StatusDatum;
+import bixo.datum.UrlDatum;
+import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.NioHttpFetcher;
+import bixo.fetcher.SimpleHttpFetcher;
+import bixo.hadoop.ExecutorCounters;
+import bixo.hadoop.FetchCounters;
+import bixo.operations.FixedScoreGenerator;
+import bixo.parser.ParserCounters;
+import bixo.pipes.FetchPipe;
+import bixo.pipes.ParsePipe;
+import bixo.robots.SimpleRobotRulesParser;
+import bixo.utils.ConfigUtils;
+import cascading.flow.Flow;
+import cascading.flow.FlowConnector;
+import cascading.pipe.Pipe;
+import cascading.scheme.SequenceFile;
+import cascading.stats.FlowStats;
+import cascading.tap.Lfs;
+import cascading.tap.Tap;
+import cascading.tuple.TupleEntryCollector;
+
+/**
+ * End-to-end crawl benchmark, which runs the FetchPipe (and optionally the ParsePipe) in
+ * local mode against a SimulatedWeb. Since no real sites are involved, the results only
+ * depend on the simulated hosts and on our code, which makes this useful for evaluating
+ * changes to how we group, schedule and fetch URLs.
+ *
+ * By default pages are "fetched" by the SimulatedWebFetcher, which just sleeps. With the
+ * -http option, a local SimulatedWebServer serves all of the hosts, and the real
+ * SimpleHttpFetcher fetches from it via sockets (using the server as its proxy), so the
+ * HTTP stack and connection handling are measured too. Adding the -nio option uses the
+ * NioHttpFetcher instead.
+ *
+ */
+public class CrawlBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(CrawlBenchmark.class);
+
+    // FUTURE - make this an option, to see how sets of URLs per connection affect throughput.
+    private static final int MAX_URLS_PER_SET = 50;
+
+    // Extra server threads beyond the fetch threads, for robots.txt requests.
+    private static final int EXTRA_SERVER_THREADS = 100;
+
+    public static SimulatedWeb makeWeb(CrawlBenchmarkOptions options) throws IOException {
+        SimulatedWeb web = new SimulatedWeb(options.getNumHosts(), options.getPagesPerHost(), options.getSeed());
+        web.setHostsPerServer(options.getHostsPerServer());
+        web.setLatency(options.getLatency());
+        web.setBytesPerSecond(options.getBytesPerSecond());
+        web.setPageSize(options.getPageSize());
+        web.setErrorRate(options.getErrorRate());
+        web.setRobotsFractions(options.getDisallowSome(), options.getDisallowAll(), options.getMissingRobots(), options.getRobotsErrors());
+
+        if (options.getHostsFile() != null) {
+            web.addHosts(new File(options.getHostsFile()));
+        }
+
+        return web;
+    }
+
+    public static CrawlBenchmarkResult run(CrawlBenchmarkOptions options) throws Exception {
+        SimulatedWeb web = makeWeb(options);
+        if (!options.isHttp()) {
+            return run(options, web, new SimulatedWebFetcher(web, options.getMaxThreads(), makeFetcherPolicy(options), ConfigUtils.BIXO_TEST_AGENT));
+        }
+
+        SimulatedWebServer server = new SimulatedWebServer(web, options.getPort(), options.getMaxThreads() + EXTRA_SERVER_THREADS);
+        server.start();
+
+        try {
+            if (options.isNio()) {
+                NioHttpFetcher fetcher = new NioHttpFetcher(options.getMaxThreads(), makeFetcherPolicy(options), ConfigUtils.BIXO_TEST_AGENT);
+                fetcher.setProxy("localhost", server.getPort());
+                return run(options, web, fetcher);
+            } else {
+                SimpleHttpFetcher fetcher = new SimpleHttpFetcher(options.getMaxThreads(), makeFetcherPolicy(options), ConfigUtils.BIXO_TEST_AGENT);
+                fetcher.setProxy("localhost", server.getPort());
+                return run(options, web, fetcher);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static FetcherPolicy makeFetcherPolicy(CrawlBenchmarkOptions options) {
+        FetcherPolicy fetcherPolicy = new FetcherPolicy();
+        fetcherPolicy.setCrawlDelay(options.getCrawlDelay());
+        return fetcherPolicy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CrawlBenchmarkResult run(CrawlBenchmarkOptions options, SimulatedWeb web, BaseFetcher fetcher) throws IOException {
+        List<String> urls = web.getUrls();
+
+        Lfs in = new Lfs(new SequenceFile(UrlDatum.FIELDS), options.getWorkingDir() + "/in", true);
+        TupleEntryCollector write = in.openForWrite(new JobConf());
+        for (String url : urls) {
+            write.add(new UrlDatum(url).getTuple());
+        }
+
+        write.close();
+
+        DefaultFetchJobPolicy fetchJobPolicy = new DefaultFetchJobPolicy(MAX_URLS_PER_SET, Integer.MAX_VALUE, options.getCrawlDelay());
+
+        Pipe importPipe = new Pipe("url importer");
+        FetchPipe fetchPipe = new FetchPipe(importPipe, new FixedScoreGenerator(), fetcher, fetcher, new SimpleRobotRulesParser(),
+                        fetchJobPolicy, new SimulatedHostResolver(web), 1);
+
+        // We don't care about the results, only how long it takes to get them.
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow;
+        if (options.isParse()) {
+            ParsePipe parsePipe = new ParsePipe(fetchPipe.getContentTailPipe());
+
+            Map<String, Tap> sinks = new HashMap<String, Tap>();
+            sinks.put(FetchPipe.STATUS_PIPE_NAME, new NullSinkTap(StatusDatum.FIELDS));
+            sinks.put(ParsePipe.PARSE_PIPE_NAME, new NullSinkTap(ParsedDatum.FIELDS));
+            flow = flowConnector.connect(in, sinks, fetchPipe.getStatusTailPipe(), parsePipe.getTailPipe());
+        } else {
+            flow = flowConnector.connect(in, FetchPipe.makeSinkMap(null, null), fetchPipe);
+        }
+
+        LOGGER.info(String.format("Crawling %d URLs from %d hosts", urls.size(), options.getNumHosts()));
+        long startTime = System.currentTimeMillis();
+        flow.complete();
+        long elapsedTime = System.currentTimeMillis() - startTime;
+
+        FlowStats stats = flow.getFlowStats();
+        CrawlBenchmarkResult result = new CrawlBenchmarkResult(options.getNumHosts(), urls.size(), options.getMaxThreads());
+        result.setElapsedTime(elapsedTime);
+        result.setUrlsFetched(stats.getCounterValue(FetchCounters.URLS_FETCHED));
+        result.setUrlsFailed(stats.getCounterValue(FetchCounters.URLS_FAILED));
+        result.setUrlsBlocked(stats.getCounterValue(FetchCounters.URLS_BLOCKED));
+        result.setUrlsSkipped(stats.getCounterValue(FetchCounters.URLS_SKIPPED));
+        result.setDocsParsed(stats.getCounterValue(ParserCounters.DOCUMENTS_PARSED));
+        result.setBytesFetched(stats.getCounterValue(FetchCounters.FETCHED_BYTES));
+        result.setThreadTimes(stats.getCounterValue(ExecutorCounters.BUSY_TIME), stats.getCounterValue(ExecutorCounters.THREAD_TIME));
+
+        if (options.isHttp()) {
+            LOGGER.info(String.format("Opened %d connections, reused %d", stats.getCounterValue(FetchCounters.CONNECTIONS_OPENED),
+                            stats.getCounterValue(FetchCounters.CONNECTIONS_REUSED)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Append <result> to <file>, adding the header if the file is new.
+     */
+    public static void writeResult(CrawlBenchmarkResult result, File file) throws IOException {
+        boolean newFile = !file.exists();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+
+        try {
+            if (newFile) {
+                writer.println(CrawlBenchmarkResult.TSV_HEADER);
+            }
+
+            writer.println(result.toTsv());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void printUsageAndExit(CmdLineParser parser) {
+        parser.printUsage(System.err);
+        System.exit(-1);
+    }
+
+    /**
+     * @param args - options for the simulated web and crawl (see CrawlBenchmarkOptions)
+     */
+    public static void main(String[] args) {
+        CrawlBenchmarkOptions options = new CrawlBenchmarkOptions();
+        CmdLineParser parser = new CmdLineParser(options);
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            printUsageAndExit(parser);
+        }
+
+        try {
+            CrawlBenchmarkResult result = run(options);
+            LOGGER.info(result.toString());
+
+            if (options.getOutputFile() != null) {
+                writeResult(result, new File(options.getOutputFile()));
+            }
+        } catch (Throwable t) {
+            System.err.println("Exception running crawl benchmark: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package bixo.bench;
+
+import org.apache.commons.lang.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.kohsuke.args4j.Option;
+
+public class CrawlBenchmarkOptions {
+    private int _numHosts = 1000;
+    private int _pagesPerHost = 10;
+    private int _hostsPerServer = 1;
+    private long _seed = 1L;
+    private int _maxThreads = 100;
+    private long _crawlDelay = 0;
+    private long _latency = 100;
+    private int _bytesPerSecond = 100000;
+    private int _pageSize = 10000;
+    private double _errorRate = 0.01;
+    private double _disallowSome = 0.1;
+    private double _disallowAll = 0.02;
+    private double _missingRobots = 0.3;
+    private double _robotsErrors = 0.01;
+    private String _hostsFile;
+    private boolean _parse = false;
+    private boolean _http = false;
+    private boolean _nio = false;
+    private int _port = 8089;
+    private String _workingDir = "build/bench/crawl";
+    private String _outputFile;
+
+    @Option(name = "-hosts", usage = "Number of simulated hosts", required = false)
+    public void setNumHosts(int numHosts) {
+        _numHosts = numHosts;
+    }
+
+    public int getNumHosts() {
+        return _numHosts;
+    }
+
+    @Option(name = "-pages", usage = "Number of pages to fetch from each host", required = false)
+    public void setPagesPerHost(int pagesPerHost) {
+        _pagesPerHost = pagesPerHost;
+    }
+
+    public int getPagesPerHost() {
+        return _pagesPerHost;
+    }
+
+    @Option(name = "-hostsperserver", usage = "Number of hosts sharing each IP address", required = false)
+    public void setHostsPerServer(int hostsPerServer) {
+        _hostsPerServer = hostsPerServer;
+    }
+
+    public int getHostsPerServer() {
+        return _hostsPerServer;
+    }
+
+    @Option(name = "-seed", usage = "Seed for generating hosts and errors", required = false)
+    public void setSeed(long seed) {
+        _seed = seed;
+    }
+
+    public long getSeed() {
+        return _seed;
+    }
+
+    @Option(name = "-threads", usage = "Number of fetch threads", required = false)
+    public void setMaxThreads(int maxThreads) {
+        _maxThreads = maxThreads;
+    }
+
+    public int getMaxThreads() {
+        return _maxThreads;
+    }
+
+    @Option(name = "-crawldelay", usage = "Delay between requests to the same server, in milliseconds", required = false)
+    public void setCrawlDelay(long crawlDelay) {
+        _crawlDelay = crawlDelay;
+    }
+
+    public long getCrawlDelay() {
+        return _crawlDelay;
+    }
+
+    @Option(name = "-latency", usage = "Average host latency, in milliseconds", required = false)
+    public void setLatency(long latency) {
+        _latency = latency;
+    }
+
+    public long getLatency() {
+        return _latency;
+    }
+
+    @Option(name = "-bandwidth", usage = "Average host bandwidth, in bytes/second", required = false)
+    public void setBytesPerSecond(int bytesPerSecond) {
+        _bytesPerSecond = bytesPerSecond;
+    }
+
+    public int getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+    @Option(name = "-pagesize", usage = "Average page size, in bytes", required = false)
+    public void setPageSize(int pageSize) {
+        _pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return _pageSize;
+    }
+
+    @Option(name = "-errorrate", usage = "Fraction of page requests that fail", required = false)
+    public void setErrorRate(double errorRate) {
+        _errorRate = errorRate;
+    }
+
+    public double getErrorRate() {
+        return _errorRate;
+    }
+
+    @Option(name = "-disallowsome", usage = "Fraction of hosts whose robots.txt blocks some pages", required = false)
+    public void setDisallowSome(double disallowSome) {
+        _disallowSome = disallowSome;
+    }
+
+    public double getDisallowSome() {
+        return _disallowSome;
+    }
+
+    @Option(name = "-disallowall", usage = "Fraction of hosts whose robots.txt blocks everything", required = false)
+    public void setDisallowAll(double disallowAll) {
+        _disallowAll = disallowAll;
+    }
+
+    public double getDisallowAll() {
+        return _disallowAll;
+    }
+
+    @Option(name = "-missingrobots", usage = "Fraction of hosts without a robots.txt", required = false)
+    public void setMissingRobots(double missingRobots) {
+        _missingRobots = missingRobots;
+    }
+
+    public double getMissingRobots() {
+        return _missingRobots;
+    }
+
+    @Option(name = "-robotserrors", usage = "Fraction of hosts where fetching robots.txt gets a server error", required = false)
+    public void setRobotsErrors(double robotsErrors) {
+        _robotsErrors = robotsErrors;
+    }
+
+    public double getRobotsErrors() {
+        return _robotsErrors;
+    }
+
+    @Option(name = "-hostsfile", usage = "Tab-separated file with settings for specific hosts", required = false)
+    public void setHostsFile(String hostsFile) {
+        _hostsFile = hostsFile;
+    }
+
+    public String getHostsFile() {
+        return _hostsFile;
+    }
+
+    @Option(name = "-parse", usage = "Also parse the fetched content", required = false)
+    public void setParse(boolean parse) {
+        _parse = parse;
+    }
+
+    public boolean isParse() {
+        return _parse;
+    }
+
+    @Option(name = "-http", usage = "Fetch over HTTP from a local server for the simulated web, using the SimpleHttpFetcher", required = false)
+    public void setHttp(boolean http) {
+        _http = http;
+    }
+
+    public boolean isHttp() {
+        return _http;
+    }
+
+    @Option(name = "-nio", usage = "With -http, use the NioHttpFetcher versus the SimpleHttpFetcher", required = false)
+    public void setNio(boolean nio) {
+        _nio = nio;
+    }
+
+    public boolean isNio() {
+        return _nio;
+    }
+
+    @Option(name = "-port", usage = "Port for the local server used with -http", required = false)
+    public void setPort(int port) {
+        _port = port;
+    }
+
+    public int getPort() {
+        return _port;
+    }
+
+    @Option(name = "-workingdir", usage = "Directory for the input URLs", required = false)
+    public void setWorkingDir(String workingDir) {
+        _workingDir = workingDir;
+    }
+
+    public String getWorkingDir() {
+        return _workingDir;
+    }
+
+    @Option(name = "-output", usage = "File to append tab-separated results to", required = false)
+    public void setOutputFile(String outputFile) {
+        _outputFile = outputFile;
+    }
+
+    public String getOutputFile() {
+        return _outputFile;
+    }
+
+    @Override
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, ToStringStyle.MULTI_LINE_STYLE);
+    }
+}
@@ -0,0 +1,134 @@
+package bixo.bench;
+
+/**
+ * Throughput and thread usage for one run of the CrawlBenchmark.
+ *
+ */
+public class CrawlBenchmarkResult {
+
+    // Columns in the tab-separated output, so results from different runs can be compared.
+    public static final String TSV_HEADER = "hosts\turls\tthreads\telapsed_ms\tfetched\tfailed\tblocked\tskipped\tparsed"
+                    + "\turls_per_sec\tbytes_per_sec\tthread_utilization\tidle_thread_ms";
+
+    private int _numHosts;
+    private int _numUrls;
+    private int _maxThreads;
+    private long _elapsedTime;
+    private long _urlsFetched;
+    private long _urlsFailed;
+    private long _urlsBlocked;
+    private long _urlsSkipped;
+    private long _docsParsed;
+    private long _bytesFetched;
+    private long _busyTime;
+    private long _threadTime;
+
+    public CrawlBenchmarkResult(int numHosts, int numUrls, int maxThreads) {
+        _numHosts = numHosts;
+        _numUrls = numUrls;
+        _maxThreads = maxThreads;
+    }
+
+    public long getElapsedTime() {
+        return _elapsedTime;
+    }
+
+    public void setElapsedTime(long elapsedTime) {
+        _elapsedTime = elapsedTime;
+    }
+
+    public long getUrlsFetched() {
+        return _urlsFetched;
+    }
+
+    public void setUrlsFetched(long urlsFetched) {
+        _urlsFetched = urlsFetched;
+    }
+
+    public long getUrlsFailed() {
+        return _urlsFailed;
+    }
+
+    public void setUrlsFailed(long urlsFailed) {
+        _urlsFailed = urlsFailed;
+    }
+
+    public long getUrlsBlocked() {
+        return _urlsBlocked;
+    }
+
+    public void setUrlsBlocked(long urlsBlocked) {
+        _urlsBlocked = urlsBlocked;
+    }
+
+    public long getUrlsSkipped() {
+        return _urlsSkipped;
+    }
+
+    public void setUrlsSkipped(long urlsSkipped) {
+        _urlsSkipped = urlsSkipped;
+    }
+
+    public long getDocsParsed() {
+        return _docsParsed;
+    }
+
+    public void setDocsParsed(long docsParsed) {
+        _docsParsed = docsParsed;
+    }
+
+    public long getBytesFetched() {
+        return _bytesFetched;
+    }
+
+    public void setBytesFetched(long bytesFetched) {
+        _bytesFetched = bytesFetched;
+    }
+
+    /**
+     * Set how long fetch threads were busy, and how much thread time was available.
+     *
+     * @param busyTime total milliseconds that fetch threads spent running fetch tasks
+     * @param threadTime max threads * milliseconds that the fetch thread pools were running
+     */
+    public void setThreadTimes(long busyTime, long threadTime) {
+        _busyTime = busyTime;
+        _threadTime = threadTime;
+    }
+
+    public double getUrlsPerSecond() {
+        return _elapsedTime == 0 ? 0.0 : (_urlsFetched * 1000.0) / _elapsedTime;
+    }
+
+    public double getBytesPerSecond() {
+        return _elapsedTime == 0 ? 0.0 : (_bytesFetched * 1000.0) / _elapsedTime;
+    }
+
+    /**
+     * @return fraction (0.0 to 1.0) of available fetch thread time spent fetching.
+     */
+    public double getThreadUtilization() {
+        return _threadTime == 0 ? 0.0 : (double)_busyTime / (double)_threadTime;
+    }
+
+    /**
+     * @return total milliseconds that fetch threads were idle (or never got created).
+     */
+    public long getIdleThreadTime() {
+        return Math.max(0, _threadTime - _busyTime);
+    }
+
+    public String toTsv() {
+        return String.format("%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f\t%.1f\t%.3f\t%d", _numHosts, _numUrls, _maxThreads,
+                        _elapsedTime, _urlsFetched, _urlsFailed, _urlsBlocked, _urlsSkipped, _docsParsed,
+                        getUrlsPerSecond(), getBytesPerSecond(), getThreadUtilization(), getIdleThreadTime());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d URLs from %d hosts with %d threads in %dms: %d fetched, %d failed, %d blocked, %d skipped, %d parsed; "
+                        + "%.1f URLs/sec, %.1f bytes/sec, %.1f%% thread utilization, %dms idle thread time",
+                        _numUrls, _numHosts, _maxThreads, _elapsedTime, _urlsFetched, _urlsFailed, _urlsBlocked, _urlsSkipped,
+                        _docsParsed, getUrlsPerSecond(), getBytesPerSecond(), getThreadUtilization() * 100.0, getIdleThreadTime());
+    }
+}
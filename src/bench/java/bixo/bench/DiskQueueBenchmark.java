@@ -0,0 +1,39 @@
+package bixo.bench;
+
+import java.util.List;
+
+import bixo.utils.DiskQueue;
+
+public class DiskQueueBenchmark extends BaseBenchmark {
+
+    // Keep only a fraction of the URLs in memory, so most of them get spilled to disk.
+    private static final int MAX_IN_MEMORY = 500;
+
+    private List<String> _urls;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _urls = corpus.getUrls();
+    }
+
+    @Override
+    public int run() {
+        DiskQueue<String> queue = new DiskQueue<String>(MAX_IN_MEMORY);
+        for (String url : _urls) {
+            queue.offer(url);
+        }
+
+        int result = 0;
+        String url;
+        while ((url = queue.poll()) != null) {
+            result += url.length();
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _urls.size();
+    }
+}
@@ -0,0 +1,40 @@
+package bixo.bench;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.utils.DomainNames;
+
+public class DomainNamesBenchmark extends BaseBenchmark {
+
+    private List<String> _hostnames;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _hostnames = new ArrayList<String>();
+        for (String url : corpus.getUrls()) {
+            try {
+                _hostnames.add(new URL(url).getHost());
+            } catch (MalformedURLException e) {
+                // Ignore invalid URLs in the corpus.
+            }
+        }
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (String hostname : _hostnames) {
+            result += DomainNames.getPLD(hostname).length();
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _hostnames.size();
+    }
+}
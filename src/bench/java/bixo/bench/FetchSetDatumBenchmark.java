@@ -0,0 +1,58 @@
+package bixo.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+
+public class FetchSetDatumBenchmark extends BaseBenchmark {
+
+    // Typical number of URLs we'd fetch from one server using a single connection.
+    private static final int URLS_PER_SET = 100;
+
+    private List<FetchSetDatum> _fetchSets;
+    private int _numUrls;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _fetchSets = new ArrayList<FetchSetDatum>();
+        _numUrls = 0;
+
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        for (String url : corpus.getUrls()) {
+            urls.add(new ScoredUrlDatum(url, "groupingKey", UrlStatus.UNFETCHED, 1.0));
+            if (urls.size() == URLS_PER_SET) {
+                addFetchSet(urls);
+                urls = new ArrayList<ScoredUrlDatum>();
+            }
+        }
+
+        if (!urls.isEmpty()) {
+            addFetchSet(urls);
+        }
+    }
+
+    private void addFetchSet(List<ScoredUrlDatum> urls) {
+        _fetchSets.add(new FetchSetDatum(urls, 0, 0, _fetchSets.size(), "ref-" + _fetchSets.size()));
+        _numUrls += urls.size();
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (FetchSetDatum fetchSet : _fetchSets) {
+            for (ScoredUrlDatum url : fetchSet.getUrls()) {
+                result += url.getUrl().length();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _numUrls;
+    }
+}
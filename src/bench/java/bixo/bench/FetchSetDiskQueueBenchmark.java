@@ -0,0 +1,41 @@
+package bixo.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+
+public class FetchSetDiskQueueBenchmark extends BaseDatumDiskQueueBenchmark<FetchSetDatum> {
+
+    // Typical number of URLs we'd fetch from one server using a single connection.
+    private static final int URLS_PER_SET = 100;
+
+    // FetchBuffer only keeps a small fraction of the fetch sets in memory.
+    private static final int MAX_IN_MEMORY = 10;
+
+    public FetchSetDiskQueueBenchmark(boolean useDatumCodec) {
+        super(FetchSetDatum.class, useDatumCodec, MAX_IN_MEMORY);
+    }
+
+    @Override
+    protected List<FetchSetDatum> makeDatums(BenchmarkCorpus corpus) {
+        List<FetchSetDatum> result = new ArrayList<FetchSetDatum>();
+
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        for (String url : corpus.getUrls()) {
+            urls.add(new ScoredUrlDatum(url, "groupingKey", UrlStatus.UNFETCHED, 1.0));
+            if (urls.size() == URLS_PER_SET) {
+                result.add(new FetchSetDatum(urls, 0, 0, result.size(), "ref-" + result.size()));
+                urls = new ArrayList<ScoredUrlDatum>();
+            }
+        }
+
+        if (!urls.isEmpty()) {
+            result.add(new FetchSetDatum(urls, 0, 0, result.size(), "ref-" + result.size()));
+        }
+
+        return result;
+    }
+}
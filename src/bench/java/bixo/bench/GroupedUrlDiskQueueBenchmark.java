@@ -0,0 +1,26 @@
+package bixo.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.datum.GroupedUrlDatum;
+
+public class GroupedUrlDiskQueueBenchmark extends BaseDatumDiskQueueBenchmark<GroupedUrlDatum> {
+
+    // Keep only a fraction of the URLs in memory, so most of them get spilled to disk.
+    private static final int MAX_IN_MEMORY = 500;
+
+    public GroupedUrlDiskQueueBenchmark(boolean useDatumCodec) {
+        super(GroupedUrlDatum.class, useDatumCodec, MAX_IN_MEMORY);
+    }
+
+    @Override
+    protected List<GroupedUrlDatum> makeDatums(BenchmarkCorpus corpus) {
+        List<GroupedUrlDatum> result = new ArrayList<GroupedUrlDatum>();
+        for (String url : corpus.getUrls()) {
+            result.add(new GroupedUrlDatum(url, "groupKey-" + (result.size() % 100)));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,46 @@
+package bixo.bench;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.utils.GroupingKey;
+
+public class GroupingKeyBenchmark extends BaseBenchmark {
+
+    private List<String> _keys;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _keys = new ArrayList<String>();
+        for (String url : corpus.getUrls()) {
+            try {
+                String host = new URL(url).getHost();
+                long crawlDelay = (_keys.size() % 4 == 0) ? BaseFetchJobPolicy.UNSET_CRAWL_DELAY : BaseFetchJobPolicy.DEFAULT_CRAWL_DELAY;
+                _keys.add(GroupingKey.makeGroupingKey(host, crawlDelay));
+            } catch (MalformedURLException e) {
+                // Ignore invalid URLs in the corpus.
+            }
+        }
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (String key : _keys) {
+            if (GroupingKey.hasCrawlDelay(key)) {
+                result += GroupingKey.getDomainFromKey(key).length();
+                result += (int)GroupingKey.getCrawlDelayFromKey(key);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _keys.size();
+    }
+}
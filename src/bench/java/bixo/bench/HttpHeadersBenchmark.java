@@ -0,0 +1,48 @@
+package bixo.bench;
+
+import bixo.datum.HttpHeaders;
+import cascading.tuple.Tuple;
+
+public class HttpHeadersBenchmark extends BaseBenchmark {
+
+    // A typical set of response headers, including values with characters that need
+    // to be escaped when the headers are encoded.
+    private static final String[][] HEADERS = {
+        { "Date", "Tue, 15 Nov 1994 08:12:31 GMT" },
+        { "Server", "Apache/2.2.14 (Unix) mod_ssl/2.2.14 OpenSSL/0.9.8l" },
+        { "Last-Modified", "Mon, 14 Nov 1994 21:01:07 GMT" },
+        { "ETag", "\"3f80f-1b6-3e1cb03b\"" },
+        { "Accept-Ranges", "bytes" },
+        { "Content-Length", "43857" },
+        { "Cache-Control", "max-age=3600, must-revalidate" },
+        { "Set-Cookie", "session=a8f5f167f44f4964e6c998dee827110c; path=/; HttpOnly" },
+        { "Set-Cookie", "prefs=lang\ten\nregion\tus; path=/" },
+        { "Connection", "Keep-Alive" },
+        { "Keep-Alive", "timeout=15, max=100" },
+        { "Content-Type", "text/html; charset=UTF-8" },
+    };
+
+    private HttpHeaders _headers;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _headers = new HttpHeaders();
+        for (String[] header : HEADERS) {
+            _headers.add(header[0], header[1]);
+        }
+    }
+
+    @Override
+    public int run() {
+        // Encode to a tuple (what happens when a FetchedDatum is written) and decode
+        // again (when it's read back in).
+        Tuple tuple = _headers.toTuple();
+        HttpHeaders decoded = new HttpHeaders(tuple);
+        return decoded.getFirst("content-type").length();
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return 1;
+    }
+}
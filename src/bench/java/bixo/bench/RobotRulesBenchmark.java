@@ -0,0 +1,43 @@
+package bixo.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bixo.robots.BaseRobotRules;
+import bixo.robots.SimpleRobotRulesParser;
+
+public class RobotRulesBenchmark extends BaseBenchmark {
+
+    private List<BaseRobotRules> _rules;
+    private List<String> _urls;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _rules = new ArrayList<BaseRobotRules>();
+        for (byte[] content : corpus.getRobotsFiles()) {
+            SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+            _rules.add(parser.parseContent(RobotRulesParserBenchmark.ROBOTS_URL, content, "text/plain", RobotRulesParserBenchmark.ROBOT_NAME));
+        }
+
+        _urls = corpus.getUrls();
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (BaseRobotRules rules : _rules) {
+            for (String url : _urls) {
+                if (rules.isAllowed(url)) {
+                    result += 1;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _rules.size() * _urls.size();
+    }
+}
@@ -0,0 +1,36 @@
+package bixo.bench;
+
+import java.util.List;
+
+import bixo.robots.SimpleRobotRulesParser;
+
+public class RobotRulesParserBenchmark extends BaseBenchmark {
+
+    public static final String ROBOTS_URL = "http://www.domain.com/robots.txt";
+    public static final String ROBOT_NAME = "bixo";
+
+    private List<byte[]> _robotsFiles;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _robotsFiles = corpus.getRobotsFiles();
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (byte[] content : _robotsFiles) {
+            // The parser keeps state (e.g. warning counts), so we use a new one for
+            // each file, the same as when processing robots.txt during a crawl.
+            SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+            result += (int)parser.parseContent(ROBOTS_URL, content, "text/plain", ROBOT_NAME).getCrawlDelay();
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _robotsFiles.size();
+    }
+}
@@ -0,0 +1,97 @@
+package bixo.bench;
+
+import java.io.Serializable;
+
+/**
+ * Behavior of one host in a SimulatedWeb - how slow it is to respond, how fast it
+ * sends data, how often requests fail, and what its robots.txt looks like.
+ *
+ */
+@SuppressWarnings("serial")
+public class SimulatedHost implements Serializable {
+
+    public enum RobotsMode {
+        ALLOW_ALL,          // robots.txt that allows everything
+        DISALLOW_SOME,      // robots.txt that blocks the /private/ directory
+        DISALLOW_ALL,       // robots.txt that blocks everything
+        MISSING,            // No robots.txt (404)
+        SERVER_ERROR,       // Requests for robots.txt get a 500 error
+    }
+
+    private String _hostname;
+    private String _ipAddress;
+    private long _latency;
+    private int _bytesPerSecond;
+    private int _pageSize;
+    private double _errorRate;
+    private RobotsMode _robotsMode;
+
+    public SimulatedHost(String hostname, String ipAddress, long latency, int bytesPerSecond, int pageSize, double errorRate, RobotsMode robotsMode) {
+        _hostname = hostname;
+        _ipAddress = ipAddress;
+        _latency = latency;
+        _bytesPerSecond = bytesPerSecond;
+        _pageSize = pageSize;
+        _errorRate = errorRate;
+        _robotsMode = robotsMode;
+    }
+
+    public String getHostname() {
+        return _hostname;
+    }
+
+    public String getIpAddress() {
+        return _ipAddress;
+    }
+
+    /**
+     * @return milliseconds between sending a request and getting the first byte back.
+     */
+    public long getLatency() {
+        return _latency;
+    }
+
+    public int getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+    public int getPageSize() {
+        return _pageSize;
+    }
+
+    /**
+     * @return fraction (0.0 to 1.0) of page requests that fail.
+     */
+    public double getErrorRate() {
+        return _errorRate;
+    }
+
+    public RobotsMode getRobotsMode() {
+        return _robotsMode;
+    }
+
+    /**
+     * @return content of the host's robots.txt file, or null if it doesn't have one.
+     */
+    public String getRobotsTxt() {
+        switch (_robotsMode) {
+            case ALLOW_ALL:
+                return "User-agent: *\nDisallow:\n";
+
+            case DISALLOW_SOME:
+                return "User-agent: *\nDisallow: /private/\n";
+
+            case DISALLOW_ALL:
+                return "User-agent: *\nDisallow: /\n";
+
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s): %dms, %d bytes/sec, %d bytes, %.3f errors, robots %s", _hostname, _ipAddress,
+                        _latency, _bytesPerSecond, _pageSize, _errorRate, _robotsMode);
+    }
+}
@@ -0,0 +1,32 @@
+package bixo.bench;
+
+import java.net.UnknownHostException;
+
+import bixo.dns.BaseHostResolver;
+
+/**
+ * Host resolver for a SimulatedWeb, so that we don't do DNS lookups for hosts that
+ * don't exist.
+ *
+ */
+@SuppressWarnings("serial")
+public class SimulatedHostResolver extends BaseHostResolver {
+
+    private SimulatedWeb _web;
+
+    public SimulatedHostResolver(SimulatedWeb web) {
+        super();
+
+        _web = web;
+    }
+
+    @Override
+    public String resolve(String hostname) throws UnknownHostException {
+        SimulatedHost host = _web.getHost(hostname);
+        if (host == null) {
+            throw new UnknownHostException(hostname);
+        }
+
+        return host.getIpAddress();
+    }
+}
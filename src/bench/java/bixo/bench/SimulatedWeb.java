@@ -0,0 +1,258 @@
+package bixo.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import bixo.bench.SimulatedHost.RobotsMode;
+
+/**
+ * A set of virtual hosts, each with its own latency, bandwidth, error rate and robots.txt
+ * behavior. Hosts are generated from a seed, so every run with the same settings sees
+ * the same web, and only the settings get serialized (versus thousands of hosts).
+ *
+ * Hosts can also be explicitly configured (see addHosts()), which overrides what would
+ * have been generated for that host name.
+ *
+ */
+@SuppressWarnings("serial")
+public class SimulatedWeb implements Serializable {
+
+    public static final String PRIVATE_DIR = "/private/";
+
+    private static final String HOSTNAME_PREFIX = "www.simhost-";
+    private static final String HOSTNAME_SUFFIX = ".com";
+
+    private int _numHosts;
+    private int _pagesPerHost;
+    private long _seed;
+
+    private int _hostsPerServer = 1;
+    private long _latency = 100;
+    private int _bytesPerSecond = 100000;
+    private int _pageSize = 10000;
+    private double _errorRate = 0.01;
+    private double _disallowSomeFraction = 0.1;
+    private double _disallowAllFraction = 0.02;
+    private double _missingRobotsFraction = 0.3;
+    private double _robotsErrorFraction = 0.01;
+
+    private Map<String, SimulatedHost> _hosts;
+
+    public SimulatedWeb(int numHosts, int pagesPerHost, long seed) {
+        _numHosts = numHosts;
+        _pagesPerHost = pagesPerHost;
+        _seed = seed;
+
+        _hosts = new HashMap<String, SimulatedHost>();
+    }
+
+    public int getNumHosts() {
+        return _numHosts;
+    }
+
+    public int getPagesPerHost() {
+        return _pagesPerHost;
+    }
+
+    /**
+     * Set how many virtual hosts share each IP address.
+     */
+    public void setHostsPerServer(int hostsPerServer) {
+        _hostsPerServer = hostsPerServer;
+    }
+
+    /**
+     * Set the average latency (in milliseconds) of hosts.
+     */
+    public void setLatency(long latency) {
+        _latency = latency;
+    }
+
+    public void setBytesPerSecond(int bytesPerSecond) {
+        _bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setPageSize(int pageSize) {
+        _pageSize = pageSize;
+    }
+
+    public void setErrorRate(double errorRate) {
+        _errorRate = errorRate;
+    }
+
+    /**
+     * Set the fraction of hosts with each type of robots.txt behavior. Whatever is left
+     * over gets a robots.txt that allows everything.
+     */
+    public void setRobotsFractions(double disallowSome, double disallowAll, double missing, double serverError) {
+        if ((disallowSome + disallowAll + missing + serverError) > 1.0) {
+            throw new IllegalArgumentException("Robots fractions add up to more than 1.0");
+        }
+
+        _disallowSomeFraction = disallowSome;
+        _disallowAllFraction = disallowAll;
+        _missingRobotsFraction = missing;
+        _robotsErrorFraction = serverError;
+    }
+
+    public void addHost(SimulatedHost host) {
+        _hosts.put(host.getHostname(), host);
+    }
+
+    /**
+     * Load explicitly configured hosts from <hostsFile>, which has one host per line with
+     * tab-separated hostname, IP address, latency (ms), bytes/second, page size, error rate and
+     * robots mode (e.g. DISALLOW_ALL). Hosts that aren't one of our generated hosts get
+     * URLs from getUrls(), after the generated hosts.
+     *
+     * @param hostsFile file with host settings
+     * @throws IOException
+     */
+    public void addHosts(File hostsFile) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(hostsFile), "UTF-8"));
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length != 7) {
+                    throw new IOException("Invalid host line: " + line);
+                }
+
+                addHost(new SimulatedHost(fields[0], fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]),
+                                Integer.parseInt(fields[4]), Double.parseDouble(fields[5]), RobotsMode.valueOf(fields[6])));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public String getHostname(int hostIndex) {
+        return String.format("%s%05d%s", HOSTNAME_PREFIX, hostIndex, HOSTNAME_SUFFIX);
+    }
+
+    /**
+     * Return the host for <hostname>, or null if it's not part of this web.
+     *
+     * @param hostname name of host
+     * @return settings for the host
+     */
+    public SimulatedHost getHost(String hostname) {
+        SimulatedHost result = _hosts.get(hostname);
+        if (result != null) {
+            return result;
+        }
+
+        if (!hostname.startsWith(HOSTNAME_PREFIX) || !hostname.endsWith(HOSTNAME_SUFFIX)) {
+            return null;
+        }
+
+        int hostIndex;
+        try {
+            hostIndex = Integer.parseInt(hostname.substring(HOSTNAME_PREFIX.length(), hostname.length() - HOSTNAME_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if ((hostIndex < 0) || (hostIndex >= _numHosts)) {
+            return null;
+        }
+
+        return makeHost(hostIndex);
+    }
+
+    /**
+     * @return all of the URLs in the web, for all hosts.
+     */
+    public List<String> getUrls() {
+        List<String> result = new ArrayList<String>(_pagesPerHost * (_numHosts + _hosts.size()));
+
+        for (int i = 0; i < _numHosts; i++) {
+            addUrls(getHostname(i), result);
+        }
+
+        for (String hostname : _hosts.keySet()) {
+            if (getHost(hostname) == null) {
+                addUrls(hostname, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Decide whether the request for <url> fails. This is based on the URL and our seed,
+     * so the same URLs fail each time.
+     *
+     * @param url URL being fetched
+     * @param host host for the URL
+     * @return true if the request should fail
+     */
+    public boolean isError(String url, SimulatedHost host) {
+        if (host.getErrorRate() <= 0.0) {
+            return false;
+        }
+
+        return new Random(mixSeed(_seed ^ url.hashCode())).nextDouble() < host.getErrorRate();
+    }
+
+    /**
+     * Scramble <seed>, since Random returns very similar first values for similar seeds.
+     */
+    private static long mixSeed(long seed) {
+        seed = (seed ^ (seed >>> 33)) * 0xff51afd7ed558ccdL;
+        seed = (seed ^ (seed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return seed ^ (seed >>> 33);
+    }
+
+    private void addUrls(String hostname, List<String> urls) {
+        for (int i = 0; i < _pagesPerHost; i++) {
+            // Every fourth page is in a directory that some robots.txt files block.
+            String dir = ((i % 4) == 3 ? PRIVATE_DIR : "/");
+            urls.add(String.format("http://%s%spage-%d.html", hostname, dir, i));
+        }
+    }
+
+    private SimulatedHost makeHost(int hostIndex) {
+        Random rand = new Random(mixSeed((_seed * 31) + hostIndex));
+
+        // Vary settings by +/- 50% around the average.
+        long latency = Math.round(_latency * (0.5 + rand.nextDouble()));
+        int bytesPerSecond = Math.max(1, (int)Math.round(_bytesPerSecond * (0.5 + rand.nextDouble())));
+        int pageSize = (int)Math.round(_pageSize * (0.5 + rand.nextDouble()));
+
+        RobotsMode robotsMode;
+        double robotsChoice = rand.nextDouble();
+        if ((robotsChoice -= _disallowSomeFraction) < 0.0) {
+            robotsMode = RobotsMode.DISALLOW_SOME;
+        } else if ((robotsChoice -= _disallowAllFraction) < 0.0) {
+            robotsMode = RobotsMode.DISALLOW_ALL;
+        } else if ((robotsChoice -= _missingRobotsFraction) < 0.0) {
+            robotsMode = RobotsMode.MISSING;
+        } else if ((robotsChoice -= _robotsErrorFraction) < 0.0) {
+            robotsMode = RobotsMode.SERVER_ERROR;
+        } else {
+            robotsMode = RobotsMode.ALLOW_ALL;
+        }
+
+        // Use private (10.x.x.x) addresses, with _hostsPerServer hosts on each one.
+        int serverIndex = (hostIndex / Math.max(1, _hostsPerServer)) + 1;
+        String ipAddress = String.format("10.%d.%d.%d", (serverIndex >> 16) & 0xFF, (serverIndex >> 8) & 0xFF, serverIndex & 0xFF);
+
+        return new SimulatedHost(getHostname(hostIndex), ipAddress, latency, bytesPerSecond, pageSize, _errorRate, robotsMode);
+    }
+}
@@ -0,0 +1,148 @@
+package bixo.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.UrlFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.HttpHeaderNames;
+
+/**
+ * Fetcher that "fetches" pages from a SimulatedWeb, by sleeping for as long as the host's
+ * latency and bandwidth say the request would take, and then returning generated content.
+ *
+ * This lets us run the real fetch pipeline (grouping, robots, fetch sets, FetchBuffer)
+ * against thousands of hosts without any network traffic.
+ *
+ */
+@SuppressWarnings("serial")
+public class SimulatedWebFetcher extends BaseFetcher {
+    private static final Logger LOGGER = Logger.getLogger(SimulatedWebFetcher.class);
+
+    static final String ROBOTS_PATH = "/robots.txt";
+    private static final int LINKS_PER_PAGE = 10;
+
+    private SimulatedWeb _web;
+
+    public SimulatedWebFetcher(SimulatedWeb web, int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        _web = web;
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        String url = scoredUrl.getUrl();
+
+        URL theUrl;
+        try {
+            theUrl = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new UrlFetchException(url, e.getMessage());
+        }
+
+        SimulatedHost host = _web.getHost(theUrl.getHost());
+        if (host == null) {
+            throw new IOFetchException(url, new UnknownHostException(theUrl.getHost()));
+        }
+
+        delay(url, host.getLatency());
+
+        String contentType;
+        byte[] content;
+        if (theUrl.getPath().equals(ROBOTS_PATH)) {
+            switch (host.getRobotsMode()) {
+                case MISSING:
+                    throw new HttpFetchException(url, "Simulated missing robots.txt", HttpStatus.SC_NOT_FOUND, null);
+
+                case SERVER_ERROR:
+                    throw new HttpFetchException(url, "Simulated server error", HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+
+                default:
+                    contentType = "text/plain";
+                    content = getBytes(host.getRobotsTxt());
+                    break;
+            }
+        } else if (_web.isError(url, host)) {
+            throw new HttpFetchException(url, "Simulated server error", HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+        } else {
+            contentType = "text/html";
+            content = makePage(host, Math.min(host.getPageSize(), getMaxContentSize(contentType)));
+        }
+
+        delay(url, (content.length * 1000L) / host.getBytesPerSecond());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        headers.add(HttpHeaderNames.CONTENT_LENGTH, Integer.toString(content.length));
+
+        LOGGER.trace(String.format("Simulated fetch of %d bytes from %s", content.length, url));
+        FetchedDatum result = new FetchedDatum(url, url, System.currentTimeMillis(), headers, new ContentBytes(content), contentType, host.getBytesPerSecond());
+        result.setPayload(scoredUrl.getPayload());
+        return result;
+    }
+
+    @Override
+    public void abort() {
+        // Nothing to abort, as we don't have any connections.
+    }
+
+    private void delay(String url, long duration) throws AbortedFetchException {
+        if (duration <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        }
+    }
+
+    /**
+     * Generate a page with links to other pages on the same host, padded out to <size> bytes.
+     */
+    static byte[] makePage(SimulatedHost host, int size) {
+        StringBuilder page = new StringBuilder(size + 100);
+        page.append("<html><head><title>");
+        page.append(host.getHostname());
+        page.append("</title></head><body>\n");
+
+        for (int i = 0; i < LINKS_PER_PAGE; i++) {
+            page.append(String.format("<a href=\"http://%s/page-%d.html\">Page %d</a>\n", host.getHostname(), i, i));
+        }
+
+        page.append("<p>");
+        while (page.length() < size - 20) {
+            page.append("simulated web page text ");
+        }
+
+        page.append("</p></body></html>");
+        return getBytes(page.toString());
+    }
+
+    static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+    }
+}
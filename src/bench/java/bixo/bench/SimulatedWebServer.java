@@ -0,0 +1,143 @@
+package bixo.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+import org.mortbay.http.HttpContext;
+import org.mortbay.http.HttpException;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.HttpServer;
+import org.mortbay.http.SocketListener;
+import org.mortbay.http.handler.AbstractHttpHandler;
+
+/**
+ * Local web server that serves all of the hosts in a SimulatedWeb, using the Host header
+ * to decide which virtual host a request is for. Responses are delayed and throttled
+ * based on each host's latency and bandwidth, and use the same content and errors as
+ * the SimulatedWebFetcher.
+ *
+ * Fetchers reach it by using it as their HTTP proxy (see SimpleHttpFetcher.setProxy()),
+ * so that we exercise real sockets, HTTP parsing and connection reuse without any DNS
+ * lookups or traffic leaving the machine.
+ *
+ */
+public class SimulatedWebServer {
+    private static final Logger LOGGER = Logger.getLogger(SimulatedWebServer.class);
+
+    // Write throttled content in chunks of roughly this many milliseconds worth of data.
+    private static final long CHUNK_DURATION = 100;
+
+    @SuppressWarnings("serial")
+    private class SimulatedWebHandler extends AbstractHttpHandler {
+
+        @Override
+        public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+            SimulatedHost host = _web.getHost(request.getHost());
+            if (host == null) {
+                throw new HttpException(HttpStatus.SC_NOT_FOUND, "Unknown host: " + request.getHost());
+            }
+
+            String url = "http://" + host.getHostname() + pathInContext;
+
+            try {
+                Thread.sleep(host.getLatency());
+
+                String contentType;
+                byte[] content;
+                if (pathInContext.equals(SimulatedWebFetcher.ROBOTS_PATH)) {
+                    switch (host.getRobotsMode()) {
+                        case MISSING:
+                            throw new HttpException(HttpStatus.SC_NOT_FOUND, "Simulated missing robots.txt");
+
+                        case SERVER_ERROR:
+                            throw new HttpException(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Simulated server error");
+
+                        default:
+                            contentType = "text/plain";
+                            content = SimulatedWebFetcher.getBytes(host.getRobotsTxt());
+                            break;
+                    }
+                } else if (_web.isError(url, host)) {
+                    throw new HttpException(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Simulated server error");
+                } else {
+                    contentType = "text/html";
+                    content = SimulatedWebFetcher.makePage(host, host.getPageSize());
+                }
+
+                response.setStatus(HttpStatus.SC_OK);
+                response.setContentType(contentType);
+                response.setContentLength(content.length);
+                writeThrottled(response.getOutputStream(), content, host.getBytesPerSecond());
+                LOGGER.trace(String.format("Served %d bytes for %s", content.length, url));
+            } catch (InterruptedException e) {
+                throw new HttpException(HttpStatus.SC_INTERNAL_SERVER_ERROR, "Simulated web server interrupted");
+            }
+        }
+    }
+
+    private SimulatedWeb _web;
+    private int _port;
+    private int _maxThreads;
+
+    private HttpServer _server;
+
+    /**
+     * @param web hosts to serve
+     * @param port port to listen on
+     * @param maxThreads max number of requests we can handle at the same time, which
+     *        should be more than the number of fetch threads (plus robots threads).
+     */
+    public SimulatedWebServer(SimulatedWeb web, int port, int maxThreads) {
+        _web = web;
+        _port = port;
+        _maxThreads = maxThreads;
+    }
+
+    public int getPort() {
+        return _port;
+    }
+
+    public void start() throws Exception {
+        _server = new HttpServer();
+
+        SocketListener listener = new SocketListener();
+        listener.setPort(_port);
+        listener.setMaxThreads(_maxThreads);
+        _server.addListener(listener);
+
+        HttpContext context = _server.getContext("/");
+        context.addHandler(new SimulatedWebHandler());
+        _server.start();
+    }
+
+    public void stop() throws InterruptedException {
+        if (_server != null) {
+            _server.stop();
+            _server = null;
+        }
+    }
+
+    /**
+     * Write <content> to <out> at roughly <bytesPerSecond>.
+     */
+    private static void writeThrottled(OutputStream out, byte[] content, int bytesPerSecond) throws IOException, InterruptedException {
+        int chunkSize = (int)Math.max(1, (bytesPerSecond * CHUNK_DURATION) / 1000L);
+        long startTime = System.currentTimeMillis();
+
+        for (int offset = 0; offset < content.length; offset += chunkSize) {
+            int numBytes = Math.min(chunkSize, content.length - offset);
+            out.write(content, offset, numBytes);
+
+            long targetTime = startTime + (((offset + numBytes) * 1000L) / bytesPerSecond);
+            long sleepTime = targetTime - System.currentTimeMillis();
+            if (sleepTime > 0) {
+                Thread.sleep(sleepTime);
+            }
+        }
+
+        out.flush();
+    }
+}
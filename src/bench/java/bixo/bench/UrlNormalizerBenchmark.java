@@ -0,0 +1,32 @@
+package bixo.bench;
+
+import java.util.List;
+
+import bixo.urls.SimpleUrlNormalizer;
+
+public class UrlNormalizerBenchmark extends BaseBenchmark {
+
+    private SimpleUrlNormalizer _normalizer;
+    private List<String> _urls;
+
+    @Override
+    public void setup(BenchmarkCorpus corpus) {
+        _normalizer = new SimpleUrlNormalizer();
+        _urls = corpus.getUrls();
+    }
+
+    @Override
+    public int run() {
+        int result = 0;
+        for (String url : _urls) {
+            result += _normalizer.normalize(url).length();
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getOpsPerInvocation() {
+        return _urls.size();
+    }
+}
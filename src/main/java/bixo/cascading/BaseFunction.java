@@ -63,6 +63,9 @@ public abstract class BaseFunction<INDATUM extends BaseDatum, OUTDATUM extends B
                     throw new RuntimeException(t);
                 }
             }
+        } finally {
+            // Counters are buffered when running on a cluster.
+            _flowProcess.flushCounters();
         }
     }
     
@@ -5,7 +5,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Reporter;
@@ -14,6 +15,8 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import bixo.hadoop.HadoopUtils;
+import bixo.utils.LatencyHistogram;
+import bixo.utils.StripedCounter;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.tap.Tap;
@@ -109,12 +112,28 @@ public class BixoFlowProcess extends FlowProcess {
                 _reporter.setStatus("Cascading " + Level.ERROR + ": " + msg);
             }
         }
+
+        @Override
+        public void reportLatency(Enum key, LatencyHistogram histogram) {
+            // FUTURE - push bucket counts to Hadoop, so histograms can be merged across tasks.
+        }
     }
 
+    // How often we push counter changes to Hadoop, when we're not running locally.
+    private static final long COUNTER_FLUSH_INTERVAL = 1000L;
+    
     private FlowProcess _baseProcess;
     private boolean _isLocal;
     private List<IFlowReporter> _reporters;
-    private Map<Enum, AtomicInteger> _localCounters;
+    private ConcurrentHashMap<Enum, StripedCounter> _localCounters;
+    private ConcurrentHashMap<Enum, LatencyHistogram> _latencies;
+    
+    // When running on a cluster, counters are accumulated locally and flushed to
+    // the Reporter, versus every increment going through Hadoop's synchronized counters.
+    private Reporter _counterReporter;
+    private Map<Enum, Long> _reportedCounts;
+    private AtomicBoolean _flushing;
+    private volatile long _nextFlushTime;
 
     public BixoFlowProcess(FlowProcess baseProcess, IFlowReporter reporter) {
         init(baseProcess, reporter);
@@ -147,9 +166,18 @@ public class BixoFlowProcess extends FlowProcess {
                         || ((HadoopFlowProcess) baseProcess).getJobConf().get("mapred.job.tracker")
                                         .equalsIgnoreCase("local");
 
-        _localCounters = new HashMap<Enum, AtomicInteger>();
+        _localCounters = new ConcurrentHashMap<Enum, StripedCounter>();
+        _latencies = new ConcurrentHashMap<Enum, LatencyHistogram>();
         _reporters = new ArrayList<IFlowReporter>();
         addReporter(reporter);
+        
+        if (!_isLocal) {
+            _counterReporter = ((HadoopFlowProcess)baseProcess).getReporter();
+        }
+        
+        _reportedCounts = new HashMap<Enum, Long>();
+        _flushing = new AtomicBoolean(false);
+        _nextFlushTime = System.currentTimeMillis() + COUNTER_FLUSH_INTERVAL;
     }
 
     public void addReporter(IFlowReporter reporter) {
@@ -185,25 +213,91 @@ public class BixoFlowProcess extends FlowProcess {
 
     @Override
     public void increment(Enum counter, int amount) {
-        _baseProcess.increment(counter, amount);
+        increment(counter, (long)amount);
+    }
 
-        // TODO KKr - decide if I really want to track stuff locally
-        if (true || _isLocal) {
-            synchronized (_localCounters) {
-                if (_localCounters.get(counter) == null) {
-                    _localCounters.put(counter, new AtomicInteger());
-                }
+    /**
+     * Add <amount> to <counter>. When running locally this goes straight through to the
+     * base process, otherwise it's accumulated in a striped counter, and the change gets
+     * sent to Hadoop by the next flushCounters() call (which happens at least once every
+     * COUNTER_FLUSH_INTERVAL milliseconds, if counters are being incremented).
+     * 
+     * @param counter counter to update
+     * @param amount amount to add, which can be more than an int (e.g. bytes fetched)
+     */
+    public void increment(Enum counter, long amount) {
+        StripedCounter localCount = getLocalCounter(counter);
+        localCount.add(amount);
+
+        if (_counterReporter == null) {
+            incrementBaseProcess(counter, amount);
+        } else if ((System.currentTimeMillis() >= _nextFlushTime) && _flushing.compareAndSet(false, true)) {
+            // Only one thread does the periodic flush, everyone else keeps going.
+            try {
+                flushCounters();
+            } finally {
+                _flushing.set(false);
             }
+        }
 
-            AtomicInteger curCount = _localCounters.get(counter);
-            int newValue = curCount.addAndGet(amount);
-
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("Cascading counter: " + counter + (amount > 0 ? " + " : " - ")
-                                + Math.abs(amount) + " = " + newValue);
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Cascading counter: " + counter + (amount > 0 ? " + " : " - ")
+                            + Math.abs(amount) + " = " + localCount.sum());
+        }
+    }
+    
+    /**
+     * Send all counter changes since the last flush to Hadoop's reporter. This is a no-op
+     * when running locally, as then counters aren't buffered.
+     */
+    public void flushCounters() {
+        if (_counterReporter == null) {
+            return;
+        }
+        
+        synchronized (_reportedCounts) {
+            _nextFlushTime = System.currentTimeMillis() + COUNTER_FLUSH_INTERVAL;
+            
+            for (Map.Entry<Enum, StripedCounter> entry : _localCounters.entrySet()) {
+                Enum counter = entry.getKey();
+                long curCount = entry.getValue().sum();
+                Long reportedCount = _reportedCounts.get(counter);
+                long delta = curCount - (reportedCount == null ? 0 : reportedCount);
+                if (delta != 0) {
+                    _counterReporter.incrCounter(counter, delta);
+                    _reportedCounts.put(counter, curCount);
+                }
             }
         }
     }
+    
+    private StripedCounter getLocalCounter(Enum counter) {
+        StripedCounter result = _localCounters.get(counter);
+        if (result == null) {
+            StripedCounter newCounter = new StripedCounter();
+            result = _localCounters.putIfAbsent(counter, newCounter);
+            if (result == null) {
+                result = newCounter;
+            }
+        }
+        
+        return result;
+    }
+    
+    private void incrementBaseProcess(Enum counter, long amount) {
+        // Cascading only takes int amounts, so split up anything bigger.
+        while (amount > Integer.MAX_VALUE) {
+            _baseProcess.increment(counter, Integer.MAX_VALUE);
+            amount -= Integer.MAX_VALUE;
+        }
+        
+        while (amount < Integer.MIN_VALUE) {
+            _baseProcess.increment(counter, Integer.MIN_VALUE);
+            amount -= Integer.MIN_VALUE;
+        }
+        
+        _baseProcess.increment(counter, (int)amount);
+    }
 
     @Override
     public void increment(String group, String counter, int amount) {
@@ -216,12 +310,50 @@ public class BixoFlowProcess extends FlowProcess {
         increment(counter, -amount);
     }
 
-    public int getCounter(Enum counter) {
+    /**
+     * Return a snapshot of all of our (local) counter values.
+     * 
+     * @return map from counter to current value
+     */
+    public Map<Enum, Long> getCounters() {
+        Map<Enum, Long> result = new HashMap<Enum, Long>();
+        for (Map.Entry<Enum, StripedCounter> entry : _localCounters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Merge <histogram> into the task's latency histogram for <key>. These get sent to
+     * all of the reporters by dumpCounters().
+     * 
+     * @param key what's being timed (e.g. a FetchPhase)
+     * @param histogram latencies to add
+     */
+    public void addLatencies(Enum key, LatencyHistogram histogram) {
+        LatencyHistogram result = _latencies.get(key);
+        if (result == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            result = _latencies.putIfAbsent(key, newHistogram);
+            if (result == null) {
+                result = newHistogram;
+            }
+        }
+        
+        result.merge(histogram);
+    }
+    
+    public LatencyHistogram getLatencies(Enum key) {
+        return _latencies.get(key);
+    }
+    
+    public long getCounter(Enum counter) {
         // TODO KKr - figure out if I want to use my local counter here
         if (true || _isLocal) {
-            AtomicInteger count = _localCounters.get(counter);
+            StripedCounter count = _localCounters.get(counter);
             if (count != null) {
-                return count.get();
+                return count.sum();
             } else {
                 return 0;
             }
@@ -243,7 +375,7 @@ public class BixoFlowProcess extends FlowProcess {
                                           // reporter.getCounter(counter.getDeclaringClass().getName(),
                                           // counter.toString());
             if (hadoopCounter != null) {
-                return (int)hadoopCounter.getCounter();
+                return hadoopCounter.getCounter();
             } else {
                 return 0;
             }
@@ -251,13 +383,22 @@ public class BixoFlowProcess extends FlowProcess {
     }
 
     /**
-     * If we're running in local mode, log current counter values.
+     * Make sure Hadoop has our latest counter values, and if we're running in local
+     * mode, log current counter values. Then send any latency histograms to our reporters.
      */
     public void dumpCounters() {
+        flushCounters();
+        
         if (_isLocal) {
             for (Enum theEnum : _localCounters.keySet()) {
                 LOGGER.info(String.format("Cascading counter: %s = %d", theEnum, _localCounters
-                                .get(theEnum).get()));
+                                .get(theEnum).sum()));
+            }
+        }
+        
+        for (Map.Entry<Enum, LatencyHistogram> entry : _latencies.entrySet()) {
+            for (IFlowReporter reporter : _reporters) {
+                reporter.reportLatency(entry.getKey(), entry.getValue());
             }
         }
 
@@ -0,0 +1,135 @@
+package bixo.cascading;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.JobConf;
+
+import bixo.utils.IDiskQueueCodec;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.hadoop.TupleSerialization;
+
+/**
+ * DiskQueue codec for datums that uses Cascading's binary Tuple serialization (the same
+ * as what's used between map & reduce), versus Java serialization. The datum's Fields
+ * are only written out when they change, which typically means once per segment file,
+ * versus the Fields + Tuple that get written for every element with Java serialization.
+ * 
+ * On read we create a new datum of class <T> from a TupleEntry, so <T> must have a
+ * public constructor that takes a TupleEntry (as all of the Bixo datums do).
+ *
+ * @param <T> type of datum stored in the queue
+ */
+public class DatumCodec<T extends BaseDatum> implements IDiskQueueCodec<T> {
+
+    private Constructor<T> _constructor;
+    private SerializationFactory _factory;
+    
+    public DatumCodec(Class<T> datumClass) {
+        try {
+            _constructor = datumClass.getConstructor(TupleEntry.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Datum class must have a TupleEntry constructor: " + datumClass.getName());
+        }
+        
+        JobConf conf = new JobConf();
+        TupleSerialization.setSerializations(conf);
+        _factory = new SerializationFactory(conf);
+    }
+    
+    @Override
+    public ElementWriter<T> openWriter(final OutputStream out) throws IOException {
+        final Serializer<Tuple> serializer = _factory.getSerializer(Tuple.class);
+        serializer.open(out);
+        
+        return new ElementWriter<T>() {
+            private Fields _fields = null;
+            
+            @Override
+            public void write(T datum) throws IOException {
+                TupleEntry te = datum.getTupleEntry();
+                
+                // We write out (fields, tuple) when the fields change, otherwise just (tuple).
+                // Note we can't use new Tuple(tuple), as that's a copy constructor.
+                Tuple wrapper = new Tuple();
+                if (!te.getFields().equals(_fields)) {
+                    _fields = te.getFields();
+                    wrapper.add(fieldsToTuple(_fields));
+                }
+                
+                wrapper.add(te.getTuple());
+                
+                serializer.serialize(wrapper);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serializer.close();
+            }
+        };
+    }
+
+    @Override
+    public ElementReader<T> openReader(InputStream in) throws IOException {
+        final Deserializer<Tuple> deserializer = _factory.getDeserializer(Tuple.class);
+        deserializer.open(in);
+        
+        return new ElementReader<T>() {
+            private Fields _fields = null;
+            
+            @Override
+            public T read() throws IOException {
+                Tuple wrapper = deserializer.deserialize(new Tuple());
+                if (wrapper.size() == 2) {
+                    _fields = tupleToFields((Tuple)wrapper.getObject(0));
+                } else if (_fields == null) {
+                    throw new IOException("Missing fields for first datum in DiskQueue backing store");
+                }
+                
+                Tuple tuple = (Tuple)wrapper.getObject(wrapper.size() - 1);
+                
+                try {
+                    return _constructor.newInstance(new TupleEntry(_fields, tuple));
+                } catch (Exception e) {
+                    throw new RuntimeException("Can't create datum using " + _constructor, e);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                deserializer.close();
+            }
+        };
+    }
+    
+    private static Tuple fieldsToTuple(Fields fields) {
+        Tuple result = new Tuple();
+        for (int i = 0; i < fields.size(); i++) {
+            result.add(fields.get(i));
+        }
+        
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Fields tupleToFields(Tuple tuple) {
+        Comparable[] names = new Comparable[tuple.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = tuple.get(i);
+        }
+        
+        return new Fields(names);
+    }
+}
@@ -1,32 +1,103 @@
 package bixo.cascading;
 
 import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.metrics.ContextFactory;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import bixo.hadoop.FetchCounters;
 import bixo.hadoop.HadoopUtils;
 import bixo.utils.GMetric2;
+import bixo.utils.LatencyHistogram;
 
+/**
+ * Reporter that sends status messages and latencies to Ganglia, and (once
+ * startCounterSnapshots() has been called) regularly sends the values of all of
+ * our counters, plus per-second rates for counters like URLs and bytes fetched.
+ *
+ * All metrics go out through the same UDP socket, versus opening a new socket
+ * for each metric.
+ *
+ */
+@SuppressWarnings("unchecked")
 public class GangliaFlowReporter implements IFlowReporter {
 
     private static final Logger LOGGER = Logger.getLogger(GangliaFlowReporter.class);
 
     private static final int DEFAULT_PORT = 8649;
     
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 10 * 1000L;
+
+    public static final String METRIC_PREFIX = "bixo.";
+    public static final String RATE_SUFFIX = "_per_sec";
+
+    // Counters that we also report as a per-second rate.
+    public static final Set<Enum> DEFAULT_RATE_COUNTERS = Collections.unmodifiableSet(new HashSet<Enum>(Arrays.asList(new Enum[] {
+        FetchCounters.URLS_FETCHED,
+        FetchCounters.URLS_FAILED,
+        FetchCounters.FETCHED_BYTES,
+    })));
+
+    private class SnapshotThread extends Thread {
+        private BixoFlowProcess _process;
+        private long _interval;
+
+        public SnapshotThread(BixoFlowProcess process, long interval) {
+            super(GangliaFlowReporter.class.getSimpleName());
+
+            _process = process;
+            _interval = interval;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(_interval);
+                    reportCounters(_process.getCounters(), System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                // We're done.
+            }
+        }
+    }
+
     private InetAddress _address;
     private int _port;
     
+    private DatagramSocket _socket;
+    private Set<Enum> _rateCounters;
+    private int _tmax;
+    private SnapshotThread _snapshotThread;
+
+    private Map<Enum, Long> _lastCounts;
+    private long _lastSnapshotTime;
+
     public GangliaFlowReporter(){
        String serverPort = getDefaultServerPort();
        if (serverPort != null ) {
+           // We might get a list of servers, but we only talk to the first one.
+           serverPort = serverPort.split("[, ]+")[0];
+
            String server = null;
             int index = serverPort.indexOf(":");
             if (index != -1) { // we assume the string is of the type name:port
+                server = serverPort.substring(0, index);
                 String portStr = serverPort.substring(index+1);
                 _port = Integer.parseInt(portStr);
             } else {
@@ -40,24 +111,156 @@ public class GangliaFlowReporter implements IFlowReporter {
                 _address = null;
             }
        }
+
+       init();
     }
     
     public GangliaFlowReporter(InetAddress address, int port) {
         _address = address;
         _port = port;
+
+        init();
     }
-    
+
+    private void init() {
+        _rateCounters = DEFAULT_RATE_COUNTERS;
+        _tmax = (int)(DEFAULT_SNAPSHOT_INTERVAL / 1000L);
+        _lastCounts = new HashMap<Enum, Long>();
+        _lastSnapshotTime = 0;
+    }
+
+    /**
+     * @return true if we've got a Ganglia server to send metrics to.
+     */
+    public boolean isEnabled() {
+        return _address != null;
+    }
+
+    public void setRateCounters(Set<Enum> rateCounters) {
+        _rateCounters = rateCounters;
+    }
+
+    /**
+     * Start a background thread that sends all of <process>'s counters to Ganglia
+     * every <interval> milliseconds.
+     *
+     * @param process source of counter values
+     * @param interval time between snapshots
+     */
+    public synchronized void startCounterSnapshots(BixoFlowProcess process, long interval) {
+        if (_snapshotThread != null) {
+            throw new IllegalStateException("Counter snapshots have already been started");
+        }
+
+        _tmax = (int)Math.max(1, interval / 1000L);
+
+        if (isEnabled()) {
+            _snapshotThread = new SnapshotThread(process, interval);
+            _snapshotThread.start();
+        }
+    }
+
+    /**
+     * Stop sending counter snapshots, and close our socket.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        SnapshotThread snapshotThread;
+        synchronized (this) {
+            snapshotThread = _snapshotThread;
+            _snapshotThread = null;
+        }
+
+        if (snapshotThread != null) {
+            snapshotThread.interrupt();
+            snapshotThread.join();
+
+            // Send the final values, so Ganglia isn't left with whatever we had at the
+            // last snapshot.
+            reportCounters(snapshotThread._process.getCounters(), System.currentTimeMillis());
+        }
+
+        synchronized (this) {
+            if (_socket != null) {
+                _socket.close();
+                _socket = null;
+            }
+        }
+    }
+
+    /**
+     * Send the current value of each counter in <counts> to Ganglia, along with the rate
+     * (change per second since the previous call) for the rate counters.
+     *
+     * @param counts current counter values
+     * @param time when the counts were taken, in milliseconds
+     */
+    public synchronized void reportCounters(Map<Enum, Long> counts, long time) {
+        List<byte[]> metrics = new ArrayList<byte[]>(counts.size() + _rateCounters.size());
+        double elapsedSeconds = (_lastSnapshotTime == 0 ? 0.0 : (time - _lastSnapshotTime) / 1000.0);
+
+        for (Map.Entry<Enum, Long> entry : counts.entrySet()) {
+            Enum counter = entry.getKey();
+            long count = entry.getValue();
+            String name = METRIC_PREFIX + counter;
+            metrics.add(GMetric2.write(name, Long.toString(count), GMetric2.VALUE_DOUBLE, "", GMetric2.SLOPE_BOTH, _tmax, 0));
+
+            Long lastCount = _lastCounts.put(counter, count);
+            if ((elapsedSeconds > 0.0) && _rateCounters.contains(counter)) {
+                double rate = (count - (lastCount == null ? 0 : lastCount)) / elapsedSeconds;
+                metrics.add(GMetric2.write(name + RATE_SUFFIX, Double.toString(rate), GMetric2.VALUE_DOUBLE, "/sec", GMetric2.SLOPE_BOTH, _tmax, 0));
+            }
+        }
+
+        _lastSnapshotTime = time;
+        send(metrics);
+    }
+
     @Override
     public void setStatus(Level level, String msg) {
         if (_address != null) {
-            GMetric2.send(_address, _port, level.toString(), msg, GMetric2.VALUE_STRING, "", GMetric2.SLOPE_UNSPECIFIED, 100, 100);
+            send(GMetric2.write(level.toString(), msg, GMetric2.VALUE_STRING, "", GMetric2.SLOPE_UNSPECIFIED, 100, 100));
         }
     }
 
     @Override
     public void setStatus(String msg, Throwable t) {
         if (_address != null){
-            GMetric2.send(_address, _port, "Throwable", msg, GMetric2.VALUE_STRING, "", GMetric2.SLOPE_UNSPECIFIED, 100, 100);
+            send(GMetric2.write("Throwable", msg, GMetric2.VALUE_STRING, "", GMetric2.SLOPE_UNSPECIFIED, 100, 100));
+        }
+    }
+
+    @Override
+    public void reportLatency(Enum key, LatencyHistogram histogram) {
+        if (_address != null) {
+            List<byte[]> metrics = new ArrayList<byte[]>(2);
+            metrics.add(GMetric2.write(METRIC_PREFIX + key + "-p50", Double.toString(histogram.getPercentile(50.0) / 1000.0), GMetric2.VALUE_DOUBLE, "ms", GMetric2.SLOPE_BOTH, 100, 100));
+            metrics.add(GMetric2.write(METRIC_PREFIX + key + "-p99", Double.toString(histogram.getPercentile(99.0) / 1000.0), GMetric2.VALUE_DOUBLE, "ms", GMetric2.SLOPE_BOTH, 100, 100));
+            send(metrics);
+        }
+    }
+
+    private void send(byte[] metric) {
+        send(Collections.singletonList(metric));
+    }
+
+    private synchronized void send(List<byte[]> metrics) {
+        if ((_address == null) || metrics.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (_socket == null) {
+                _socket = new DatagramSocket();
+            }
+
+            GMetric2.send(_socket, _address, _port, metrics);
+        } catch (SocketException e) {
+            LOGGER.debug("Unable to open socket for Ganglia metrics", e);
+        } catch (IOException e) {
+            // Metrics are best-effort, so don't fail the task because of them.
+            LOGGER.debug("Unable to send Ganglia metrics", e);
         }
     }
 
@@ -2,7 +2,10 @@ package bixo.cascading;
 
 import org.apache.log4j.Level;
 
+import bixo.utils.LatencyHistogram;
+
 public interface IFlowReporter {
     void setStatus(Level level, String msg);
     void setStatus(String msg, Throwable t);
+    void reportLatency(Enum key, LatencyHistogram histogram);
 }
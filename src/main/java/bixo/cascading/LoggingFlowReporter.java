@@ -3,6 +3,8 @@ package bixo.cascading;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import bixo.utils.LatencyHistogram;
+
 public class LoggingFlowReporter implements IFlowReporter {
     private static Logger LOGGER = Logger.getLogger(LoggingFlowReporter.class);
 
@@ -15,4 +17,9 @@ public class LoggingFlowReporter implements IFlowReporter {
     public void setStatus(String msg, Throwable t) {
         LOGGER.error(msg, t);
     }
+
+    @Override
+    public void reportLatency(Enum key, LatencyHistogram histogram) {
+        LOGGER.info(String.format("Latency for %s: %s", key, histogram));
+    }
 }
@@ -0,0 +1,321 @@
+package bixo.cascading;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import bixo.hadoop.CollectorCounters;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+/**
+ * Single writer thread for output tuples that are generated by lots of worker threads.
+ *
+ * Cascading's TupleEntryCollector isn't thread safe, so without this every worker has to
+ * lock the collector while its tuple gets serialized. Here workers just add the tuple to a
+ * queue, and one writer thread drains the queue to the collector(s).
+ *
+ * The queue is bounded, so if the collector can't keep up then workers block in add() until
+ * there's space, rather than running us out of memory.
+ *
+ * Once terminate() returns, every tuple that was accepted by add() has been written, the
+ * writer thread is no longer using the collector(s), and any later calls to add() return
+ * false. Tuples must not be modified after they've been added.
+ *
+ */
+public class TupleCollectorThread {
+    private static final Logger LOGGER = Logger.getLogger(TupleCollectorThread.class);
+
+    // Max time the writer sleeps when the queue is empty, in case it misses a wakeup.
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // Max time a worker waits for space in the queue before checking that the writer is
+    // still alive.
+    private static final long MAX_ADD_WAIT_MILLIS = 100;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static class QueuedTuple {
+        private TupleEntryCollector _collector;
+        private Tuple _tuple;
+
+        public QueuedTuple(TupleEntryCollector collector, Tuple tuple) {
+            _collector = collector;
+            _tuple = tuple;
+        }
+    }
+
+    /**
+     * A collector that can be safely shared by worker threads, which hands its tuples to
+     * our writer thread.
+     */
+    private class QueuingCollector extends TupleEntryCollector {
+        private TupleEntryCollector _collector;
+
+        public QueuingCollector(TupleEntryCollector collector) {
+            _collector = collector;
+        }
+
+        @Override
+        protected void collect(Tuple tuple) {
+            if (!TupleCollectorThread.this.add(_collector, tuple)) {
+                LOGGER.warn("Losing an entry: " + tuple);
+            }
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            while (!_handingOff) {
+                if (drainQueue() > 0) {
+                    continue;
+                }
+
+                if (_stopping) {
+                    // Nobody can be adding anything now, but we might have raced with the
+                    // last producer, so do one more drain.
+                    drainQueue();
+                    break;
+                }
+
+                _waiting = true;
+                if (_queue.isEmpty() && !_stopping) {
+                    LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+                }
+
+                _waiting = false;
+            }
+        }
+    }
+
+    private BixoFlowProcess _flowProcess;
+    private Thread _writer;
+
+    private final BlockingQueue<QueuedTuple> _queue;
+    private final AtomicInteger _peakQueueDepth;
+    private final AtomicInteger _activeProducers;
+    private final AtomicInteger _numLost;
+    private final AtomicLong _blockedNanos;
+
+    private volatile boolean _closed;
+    private volatile boolean _stopping;
+    private volatile boolean _handingOff;
+    private volatile boolean _waiting;
+
+    // Only updated by the writer thread, or by terminate() once the writer has stopped.
+    private volatile long _numWritten;
+    private volatile long _numBatches;
+    private volatile long _stallNanos;
+
+    public TupleCollectorThread(BixoFlowProcess flowProcess) {
+        this(flowProcess, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity max number of tuples waiting to be written, before add() blocks.
+     */
+    public TupleCollectorThread(BixoFlowProcess flowProcess, int queueCapacity) {
+        _flowProcess = flowProcess;
+
+        _queue = new LinkedBlockingQueue<QueuedTuple>(queueCapacity);
+        _peakQueueDepth = new AtomicInteger();
+        _activeProducers = new AtomicInteger();
+        _numLost = new AtomicInteger();
+        _blockedNanos = new AtomicLong();
+    }
+
+    public void start() {
+        _writer = new Thread(new Writer(), TupleCollectorThread.class.getSimpleName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Queue up <tuple> to be written to <collector> by the writer thread. If the queue is
+     * full, this blocks until the writer has made space.
+     *
+     * @param collector target collector
+     * @param tuple tuple to write
+     * @return true if the tuple will be written, false if we've been terminated (or the
+     *         writer thread has died).
+     */
+    public boolean add(TupleEntryCollector collector, Tuple tuple) {
+        // Let terminate() know that we're in the middle of adding, so that it
+        // doesn't stop the writer until we're done.
+        _activeProducers.incrementAndGet();
+
+        boolean interrupted = false;
+        try {
+            if (_closed) {
+                _numLost.incrementAndGet();
+                return false;
+            }
+
+            QueuedTuple queued = new QueuedTuple(collector, tuple);
+            if (!_queue.offer(queued)) {
+                long startTime = System.nanoTime();
+
+                // Keep waiting even if we get interrupted, as otherwise the tuple would be
+                // lost. The writer is still draining the queue, so we'll get in eventually.
+                while (true) {
+                    try {
+                        if (_queue.offer(queued, MAX_ADD_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+
+                    if ((_writer == null) || !_writer.isAlive()) {
+                        LOGGER.error("Writer thread isn't running, losing tuple: " + tuple);
+                        _numLost.incrementAndGet();
+                        return false;
+                    }
+                }
+
+                _blockedNanos.addAndGet(System.nanoTime() - startTime);
+            }
+
+            updatePeak(_queue.size());
+        } finally {
+            _activeProducers.decrementAndGet();
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (_waiting) {
+            LockSupport.unpark(_writer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Return a collector that queues up tuples for <collector>. Unlike <collector>,
+     * this can be used by multiple threads at the same time.
+     *
+     * @param collector target collector
+     * @return thread-safe collector
+     */
+    public TupleEntryCollector getCollector(TupleEntryCollector collector) {
+        return new QueuingCollector(collector);
+    }
+
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    /**
+     * Stop accepting tuples, write out everything in the queue, and report our counters.
+     * 
+     * If the writer thread hasn't drained the queue within <timeout>, we stop it once it's
+     * done with its current tuple, and write out the rest of the queue using the calling
+     * thread. Either way, everything has been written when this returns.
+     *
+     * @param timeout max time to wait for the writer thread to drain the queue
+     * @return true if the writer thread drained the queue, false if we had to take over.
+     */
+    public boolean terminate(long timeout) {
+        long startTime = System.currentTimeMillis();
+        _closed = true;
+
+        // Wait for anyone who got in before we closed to finish adding their tuple. This
+        // can take a while if they're waiting for space in the queue.
+        while (_activeProducers.get() > 0) {
+            Thread.yield();
+        }
+
+        _stopping = true;
+        boolean result = true;
+        boolean interrupted = false;
+        if (_writer != null) {
+            LockSupport.unpark(_writer);
+
+            try {
+                _writer.join(timeout);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+
+            if (_writer.isAlive()) {
+                result = false;
+                LOGGER.warn(String.format("Writer thread still running, with %d tuples in queue - taking over", _queue.size()));
+
+                // We can't use the collector(s) until the writer is done with them, and it
+                // might be in the middle of writing a tuple.
+                _handingOff = true;
+                LockSupport.unpark(_writer);
+                while (_writer.isAlive()) {
+                    try {
+                        _writer.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+
+        // Write whatever the writer left behind (or everything, if it was never started).
+        _handingOff = false;
+        drainQueue();
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        _flowProcess.increment(CollectorCounters.TUPLES_WRITTEN, _numWritten);
+        _flowProcess.increment(CollectorCounters.TUPLES_LOST, _numLost.get());
+        _flowProcess.increment(CollectorCounters.BATCHES_WRITTEN, _numBatches);
+        _flowProcess.increment(CollectorCounters.PEAK_QUEUE_DEPTH, _peakQueueDepth.get());
+        _flowProcess.increment(CollectorCounters.STALL_TIME, TimeUnit.NANOSECONDS.toMillis(_stallNanos));
+        _flowProcess.increment(CollectorCounters.BLOCKED_TIME, TimeUnit.NANOSECONDS.toMillis(_blockedNanos.get()));
+        _flowProcess.increment(CollectorCounters.DRAIN_TIME, System.currentTimeMillis() - startTime);
+
+        return result;
+    }
+
+    /**
+     * Write everything that's currently in the queue.
+     *
+     * @return number of tuples written
+     */
+    private int drainQueue() {
+        long startTime = System.nanoTime();
+        int numWritten = 0;
+
+        QueuedTuple queued;
+        while (!_handingOff && ((queued = _queue.poll()) != null)) {
+            try {
+                queued._collector.add(queued._tuple);
+                numWritten += 1;
+            } catch (RuntimeException e) {
+                LOGGER.error("Exception writing tuple: " + queued._tuple, e);
+                _numLost.incrementAndGet();
+            }
+        }
+
+        if (numWritten > 0) {
+            _numWritten += numWritten;
+            _numBatches += 1;
+            _stallNanos += System.nanoTime() - startTime;
+        }
+
+        return numWritten;
+    }
+
+    private void updatePeak(int depth) {
+        int peak;
+        while ((depth > (peak = _peakQueueDepth.get())) && !_peakQueueDepth.compareAndSet(peak, depth)) {
+            // Somebody else changed the peak, so try again.
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Random;
 
 import bixo.datum.ScoredUrlDatum;
+import bixo.utils.GroupingKey;
 
 @SuppressWarnings("serial")
 public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
@@ -29,6 +30,12 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
     private transient int _totalUrls;
     private transient boolean _skipping;
     private transient long _curSortKey;
+    private transient long _curFetchDelay;
+    
+    // Last URL grouping key we parsed, and the resulting crawl delay. URLs from the
+    // same virtual host are typically next to each other, so this saves a lot of parsing.
+    private transient String _lastGroupKey;
+    private transient long _lastCrawlDelay;
 
     public DefaultFetchJobPolicy() {
         this(new FetcherPolicy());
@@ -58,6 +65,8 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
         _targetUrlCount = 0;
         
         _curSortKey = 0;
+        _curFetchDelay = 0;
+        _lastGroupKey = null;
     }
 
     @Override
@@ -70,6 +79,7 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
         // See if we need to figure out how many URLs for this this next set.
         if (_targetUrlCount == 0) {
             _curUrls.clear();
+            _curFetchDelay = 0;
             
              if (_skipping) {
                 _targetUrlCount = URLS_PER_SKIPPED_SET;
@@ -82,6 +92,7 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
         }
         
         _curUrls.add(scoredDatum);
+        _curFetchDelay += getCrawlDelay(scoredDatum);
         _totalUrls += 1;
  
         if (_curUrls.size() >= _targetUrlCount) {
@@ -110,8 +121,34 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
         // Trigger re-calc of target size if we do get called again.
         _targetUrlCount = 0;
         _curSortKey = nextSortKey(_rand, TIME_RANGE_DIVISOR, _curSortKey);
-        long fetchDelay = _crawlDelay * _curUrls.size();
-        return new FetchSetInfo(_curUrls, _curSortKey, fetchDelay, _skipping);
+        return new FetchSetInfo(_curUrls, _curSortKey, _curFetchDelay, _skipping);
+    }
+    
+    /**
+     * Return the crawl delay for the server indicated by the URL in <scoredDatum>. When
+     * the fetch set is for an IP address shared by several virtual hosts, each URL's
+     * grouping key has the crawl delay from that host's robots.txt, so a set's delay is
+     * the sum of the delays for the URLs in it.
+     * 
+     * @param scoredDatum datum containing URL to server
+     * @return crawl delay to use after fetching the URL, in milliseconds
+     */
+    protected long getCrawlDelay(ScoredUrlDatum scoredDatum) {
+        String groupKey = scoredDatum.getGroupKey();
+        if ((groupKey != null) && groupKey.equals(_lastGroupKey)) {
+            return _lastCrawlDelay;
+        } else if ((groupKey == null) || !GroupingKey.hasCrawlDelay(groupKey)) {
+            return _crawlDelay;
+        }
+        
+        long crawlDelay = GroupingKey.getCrawlDelayFromKey(groupKey);
+        if (crawlDelay == UNSET_CRAWL_DELAY) {
+            crawlDelay = getDefaultCrawlDelay();
+        }
+        
+        _lastGroupKey = groupKey;
+        _lastCrawlDelay = crawlDelay;
+        return crawlDelay;
     }
     
     /**
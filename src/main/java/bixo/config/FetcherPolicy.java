@@ -27,6 +27,8 @@ import java.security.InvalidParameterException;
 import java.util.HashSet;
 import java.util.Set;
 
+import bixo.utils.ThreadedExecutor.ExecutorMode;
+
 /**
  * Definition of policy for fetches.
  * 
@@ -88,6 +90,7 @@ public class FetcherPolicy implements Serializable {
     private FetcherMode _fetcherMode;       // Should we skip URLs when they back up for a domain?
     private long _crawlEndTime;          // When we want the crawl to end
     private RedirectMode _redirectMode;     // What to do about redirects?
+    private ExecutorMode _executorMode;     // How fetch tasks get run by the fetch thread pool
 
     // =========================================================
 
@@ -126,6 +129,7 @@ public class FetcherPolicy implements Serializable {
         _maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
         _fetcherMode = FetcherMode.COMPLETE;
         _redirectMode = _maxRedirects > 0 ? RedirectMode.FOLLOW_ALL : RedirectMode.FOLLOW_NONE;
+        _executorMode = ExecutorMode.HANDOFF;
         
         _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
     }
@@ -229,6 +233,14 @@ public class FetcherPolicy implements Serializable {
         _redirectMode = mode;
     }
 
+    public ExecutorMode getExecutorMode() {
+        return _executorMode;
+    }
+    
+    public void setExecutorMode(ExecutorMode mode) {
+        _executorMode = mode;
+    }
+
     public long getRequestTimeout() {
         return _requestTimeout;
     }
@@ -289,6 +301,7 @@ public class FetcherPolicy implements Serializable {
         result = prime * result + ((_acceptLanguage == null) ? 0 : _acceptLanguage.hashCode());
         result = prime * result + (int) (_crawlDelay ^ (_crawlDelay >>> 32));
         result = prime * result + (int) (_crawlEndTime ^ (_crawlEndTime >>> 32));
+        result = prime * result + ((_executorMode == null) ? 0 : _executorMode.hashCode());
         result = prime * result + ((_fetcherMode == null) ? 0 : _fetcherMode.hashCode());
         result = prime * result + _maxConnectionsPerHost;
         result = prime * result + _maxContentSize;
@@ -319,6 +332,11 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_crawlEndTime != other._crawlEndTime)
             return false;
+        if (_executorMode == null) {
+            if (other._executorMode != null)
+                return false;
+        } else if (!_executorMode.equals(other._executorMode))
+            return false;
         if (_fetcherMode == null) {
             if (other._fetcherMode != null)
                 return false;
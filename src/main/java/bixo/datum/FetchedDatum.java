@@ -41,11 +41,12 @@ public class FetchedDatum extends UrlDatum implements Serializable {
     public static final String NUM_REDIRECTS_FN = fieldName(FetchedDatum.class, "numRedirects");
     public static final String HOST_ADDRESS_FN = fieldName(FetchedDatum.class, "hostAddress");
     public static final String HTTP_HEADERS_FN = fieldName(FetchedDatum.class, "httpHeaders");
+    public static final String TRUNCATED_FN = fieldName(FetchedDatum.class, "truncated");
 
     public static final Fields FIELDS = new Fields(NEW_BASE_URL_FN,
                     FETCHED_URL_FN, FETCH_TIME_FN, CONTENT_FN, CONTENT_TYPE_FN,
                     RESPONSE_RATE_FN, NUM_REDIRECTS_FN, HOST_ADDRESS_FN,
-                    HTTP_HEADERS_FN).append(getSuperFields(FetchedDatum.class));
+                    HTTP_HEADERS_FN, TRUNCATED_FN).append(getSuperFields(FetchedDatum.class));
 
     public FetchedDatum(Tuple tuple) {
         super(FIELDS, tuple);
@@ -70,6 +71,7 @@ public class FetchedDatum extends UrlDatum implements Serializable {
         
         setNumRedirects(0);
         setNewBaseUrl(null);
+        setTruncated(false);
     }
 
     /**
@@ -207,6 +209,17 @@ public class FetchedDatum extends UrlDatum implements Serializable {
         _tupleEntry.set(HTTP_HEADERS_FN, headers.toTuple());
     }
 
+    /**
+     * @return true if the content was cut off at the max content size.
+     */
+    public boolean isTruncated() {
+        return _tupleEntry.getBoolean(TRUNCATED_FN);
+    }
+
+    public void setTruncated(boolean truncated) {
+        _tupleEntry.set(TRUNCATED_FN, truncated);
+    }
+
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder("[base URL] ");
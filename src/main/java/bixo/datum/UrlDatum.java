@@ -32,6 +32,12 @@ public class UrlDatum extends PayloadDatum {
     public static final String URL_FN = fieldName(UrlDatum.class, "url");
     public static final Fields FIELDS = new Fields(URL_FN).append(getSuperFields(UrlDatum.class));
     
+    // Optional payload values from a previous fetch of the URL (the Last-Modified and ETag
+    // response headers). If set, the fetcher makes a conditional request, and a page that
+    // hasn't changed is returned as UrlStatus.NOT_MODIFIED without downloading the content.
+    public static final String LAST_MODIFIED_PAYLOAD_KEY = fieldName(UrlDatum.class, "last-modified");
+    public static final String ETAG_PAYLOAD_KEY = fieldName(UrlDatum.class, "etag");
+    
     public UrlDatum() {
         super(FIELDS);
     }
@@ -37,6 +37,11 @@ public enum UrlStatus {
     ERROR_INVALID_URL,
     ERROR_IOEXCEPTION,
     
-    FETCHED;    // Successfully fetched
+    FETCHED,    // Successfully fetched
+    
+    // Not downloaded, as the server says the content hasn't changed since the
+    // last time we fetched it (HTTP 304). This is last so that the ordinals of
+    // the other statuses don't change.
+    NOT_MODIFIED;
 
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.dns;
+
+import java.io.Serializable;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to IP addresses. Subclasses let us plug in caching, or a stub
+ * resolver for testing, versus always going to the system's DNS.
+ *
+ */
+@SuppressWarnings("serial")
+public abstract class BaseHostResolver implements Serializable {
+
+    public static final int DEFAULT_MAX_THREADS = 20;
+    
+    protected int _maxThreads;
+    
+    public BaseHostResolver() {
+        this(DEFAULT_MAX_THREADS);
+    }
+    
+    public BaseHostResolver(int maxThreads) {
+        _maxThreads = maxThreads;
+    }
+    
+    /**
+     * @return number of lookups that can be in progress at the same time.
+     */
+    public int getMaxThreads() {
+        return _maxThreads;
+    }
+    
+    /**
+     * Return the IP address for <hostname>, in text form (e.g. "192.168.1.1").
+     * 
+     * @param hostname name of host to resolve
+     * @return IP address for the host
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    public abstract String resolve(String hostname) throws UnknownHostException;
+}
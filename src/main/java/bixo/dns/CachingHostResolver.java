@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.dns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import bixo.utils.IoUtils;
+
+/**
+ * Host resolver that caches the results of another resolver, including failures
+ * (with a separate, typically shorter, time to live). So we only do one lookup
+ * per host, even when it's unknown.
+ * 
+ * The cache can be saved to, and loaded from, a directory, so that the next loop
+ * of a crawl doesn't have to resolve the same hosts all over again. Each task writes
+ * its own file to the directory, and all of the files get loaded. A task only saves the
+ * entries it resolved itself (or loaded from its own file), so entries don't get copied
+ * into every task's file on each loop.
+ *
+ */
+@SuppressWarnings("serial")
+public class CachingHostResolver extends BaseHostResolver {
+    private static final Logger LOGGER = Logger.getLogger(CachingHostResolver.class);
+    
+    public static final long DEFAULT_POSITIVE_TTL = 6 * 60 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 60 * 60 * 1000L;
+    
+    private static final String CACHE_FILE_PREFIX = "dns-";
+    private static final String UNKNOWN_HOST_ADDRESS = "";
+    
+    private static class CacheEntry {
+        private String _address;
+        private long _expiration;
+        private boolean _isOwned;
+        
+        public CacheEntry(String address, long expiration, boolean isOwned) {
+            _address = address;
+            _expiration = expiration;
+            _isOwned = isOwned;
+        }
+        
+        public String getAddress() {
+            return _address;
+        }
+        
+        public long getExpiration() {
+            return _expiration;
+        }
+        
+        public boolean isUnknownHost() {
+            return _address == null;
+        }
+        
+        public boolean isOwned() {
+            return _isOwned;
+        }
+    }
+    
+    private BaseHostResolver _resolver;
+    private long _positiveTtl;
+    private long _negativeTtl;
+    private String _cacheDir;
+    
+    private transient Map<String, CacheEntry> _cache;
+    private transient AtomicInteger _numHits;
+    private transient AtomicInteger _numNegativeHits;
+    private transient AtomicInteger _numMisses;
+    
+    public CachingHostResolver(BaseHostResolver resolver) {
+        this(resolver, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+    
+    /**
+     * @param resolver resolver to use for hosts that aren't in the cache
+     * @param positiveTtl milliseconds to keep a resolved address, or 0 to not cache them
+     * @param negativeTtl milliseconds to remember that a host is unknown, or 0 to not cache them
+     */
+    public CachingHostResolver(BaseHostResolver resolver, long positiveTtl, long negativeTtl) {
+        super(resolver.getMaxThreads());
+        
+        _resolver = resolver;
+        _positiveTtl = positiveTtl;
+        _negativeTtl = negativeTtl;
+        
+        init();
+    }
+    
+    private void init() {
+        _cache = new ConcurrentHashMap<String, CacheEntry>();
+        _numHits = new AtomicInteger();
+        _numNegativeHits = new AtomicInteger();
+        _numMisses = new AtomicInteger();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+    
+    /**
+     * @param cacheDir directory (as a Hadoop path) to use with loadCache() and saveCache(),
+     *        or null to not persist the cache.
+     */
+    public void setCacheDir(String cacheDir) {
+        _cacheDir = cacheDir;
+    }
+    
+    public String getCacheDir() {
+        return _cacheDir;
+    }
+    
+    public long getPositiveTtl() {
+        return _positiveTtl;
+    }
+    
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+    
+    @Override
+    public String resolve(String hostname) throws UnknownHostException {
+        String key = hostname.toLowerCase();
+        long now = System.currentTimeMillis();
+        
+        CacheEntry entry = _cache.get(key);
+        if ((entry != null) && (entry.getExpiration() > now)) {
+            if (entry.isUnknownHost()) {
+                _numNegativeHits.incrementAndGet();
+                throw new UnknownHostException(hostname);
+            } else {
+                _numHits.incrementAndGet();
+                return entry.getAddress();
+            }
+        }
+        
+        _numMisses.incrementAndGet();
+        
+        try {
+            String address = _resolver.resolve(hostname);
+            if (_positiveTtl > 0) {
+                _cache.put(key, new CacheEntry(address, now + _positiveTtl, true));
+            }
+            
+            return address;
+        } catch (UnknownHostException e) {
+            if (_negativeTtl > 0) {
+                _cache.put(key, new CacheEntry(null, now + _negativeTtl, true));
+            }
+            
+            throw e;
+        }
+    }
+    
+    /**
+     * @return number of lookups that we returned from the cache (including unknown hosts).
+     */
+    public int getNumHits() {
+        return _numHits.get() + _numNegativeHits.get();
+    }
+    
+    /**
+     * @return number of lookups where the cache told us the host was unknown.
+     */
+    public int getNumNegativeHits() {
+        return _numNegativeHits.get();
+    }
+    
+    /**
+     * @return number of lookups that we had to pass on to the real resolver.
+     */
+    public int getNumMisses() {
+        return _numMisses.get();
+    }
+    
+    public int getCacheSize() {
+        return _cache.size();
+    }
+    
+    /**
+     * Add entries from <in> to the cache. Each line has the host name, address (empty for
+     * an unknown host) and expiration time, separated by tabs. Expired entries are skipped.
+     * 
+     * @param in stream to read from (not closed)
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int readCache(InputStream in) throws IOException {
+        return readCache(in, true);
+    }
+    
+    /**
+     * Add entries from <in> to the cache, as per readCache(InputStream).
+     * 
+     * @param in stream to read from (not closed)
+     * @param isOwned true if the entries should be written out again by writeCache(), false
+     *        if they belong to some other task's cache file.
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int readCache(InputStream in, boolean isOwned) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        long now = System.currentTimeMillis();
+        int numLoaded = 0;
+        
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 3) {
+                LOGGER.warn("Invalid DNS cache entry: " + line);
+                continue;
+            }
+            
+            long expiration;
+            try {
+                expiration = Long.parseLong(fields[2]);
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid DNS cache entry: " + line);
+                continue;
+            }
+            
+            if (expiration <= now) {
+                continue;
+            }
+            
+            String address = fields[1].equals(UNKNOWN_HOST_ADDRESS) ? null : fields[1];
+            _cache.put(fields[0], new CacheEntry(address, expiration, isOwned));
+            numLoaded += 1;
+        }
+        
+        return numLoaded;
+    }
+    
+    /**
+     * Write the entries in the cache that haven't expired to <out>, in the format expected
+     * by readCache(). Entries that were read as not being owned by us are skipped.
+     * 
+     * @param out stream to write to (not closed)
+     * @return number of entries written
+     * @throws IOException
+     */
+    public int writeCache(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        long now = System.currentTimeMillis();
+        int numWritten = 0;
+        
+        for (Map.Entry<String, CacheEntry> mapEntry : _cache.entrySet()) {
+            CacheEntry entry = mapEntry.getValue();
+            if (!entry.isOwned() || (entry.getExpiration() <= now)) {
+                continue;
+            }
+            
+            writer.write(mapEntry.getKey());
+            writer.write('\t');
+            writer.write(entry.isUnknownHost() ? UNKNOWN_HOST_ADDRESS : entry.getAddress());
+            writer.write('\t');
+            writer.write(Long.toString(entry.getExpiration()));
+            writer.write('\n');
+            numWritten += 1;
+        }
+        
+        writer.flush();
+        return numWritten;
+    }
+    
+    /**
+     * Load all of the cache files in the cache directory, if it's been set and exists.
+     * 
+     * @param conf configuration used to get the file system
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int loadCache(JobConf conf) throws IOException {
+        if (_cacheDir == null) {
+            return 0;
+        }
+        
+        Path cachePath = new Path(_cacheDir);
+        FileSystem fs = cachePath.getFileSystem(conf);
+        if (!fs.exists(cachePath)) {
+            return 0;
+        }
+        
+        // Protect against earlier versions of Hadoop returning null for an empty directory.
+        FileStatus[] files = fs.listStatus(cachePath);
+        if (files == null) {
+            return 0;
+        }
+        
+        // Entries from our own file are ours to save again, since saveCache() overwrites it.
+        String ownFileName = getCacheFileName(conf);
+        int numLoaded = 0;
+        for (FileStatus status : files) {
+            String fileName = status.getPath().getName();
+            if (status.isDir() || !fileName.startsWith(CACHE_FILE_PREFIX)) {
+                continue;
+            }
+            
+            InputStream in = fs.open(status.getPath());
+            try {
+                numLoaded += readCache(in, fileName.equals(ownFileName));
+            } finally {
+                IoUtils.safeClose(in);
+            }
+        }
+        
+        LOGGER.info(String.format("Loaded %d DNS cache entries from %s", numLoaded, _cacheDir));
+        return numLoaded;
+    }
+    
+    /**
+     * Save the cache to a file in the cache directory (if it's been set), named using the
+     * task's partition so that parallel tasks don't overwrite each other's files. Entries
+     * that were loaded from other tasks' files aren't saved, since they're still there.
+     * 
+     * @param conf configuration used to get the file system and task partition
+     * @return number of entries saved
+     * @throws IOException
+     */
+    public int saveCache(JobConf conf) throws IOException {
+        if (_cacheDir == null) {
+            return 0;
+        }
+        
+        Path cacheFile = new Path(_cacheDir, getCacheFileName(conf));
+        FileSystem fs = cacheFile.getFileSystem(conf);
+        OutputStream out = fs.create(cacheFile, true);
+        
+        try {
+            int numSaved = writeCache(out);
+            LOGGER.info(String.format("Saved %d DNS cache entries to %s", numSaved, cacheFile));
+            return numSaved;
+        } finally {
+            IoUtils.safeClose(out);
+        }
+    }
+    
+    private static String getCacheFileName(JobConf conf) {
+        return CACHE_FILE_PREFIX + conf.getInt("mapred.task.partition", 0);
+    }
+}
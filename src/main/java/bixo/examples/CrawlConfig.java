@@ -28,6 +28,10 @@ public class CrawlConfig {
     public static final String CONTENT_SUBDIR_NAME = "content";
     public static final String STATUS_SUBDIR_NAME = "status";
     public static final String PARSE_SUBDIR_NAME = "parse";
+    
+    // Shared by all loops, versus being inside of each loop directory.
+    public static final String DNS_CACHE_SUBDIR_NAME = "dns-cache";
+    public static final String ROBOTS_CACHE_SUBDIR_NAME = "robots-cache";
 
 
 
@@ -37,8 +37,14 @@ public class CrawlDbDatum extends BaseDatum {
     public static final String LAST_STATUS_FIELD = fieldName(CrawlDbDatum.class, "lastStatus");
     public static final String CRAWL_DEPTH = fieldName(CrawlDbDatum.class, "crawlDepth");
     
+    // Last-Modified and ETag response headers from the last successful fetch, which
+    // we use to make a conditional request when re-fetching the URL. If the server
+    // didn't send a Last-Modified header, we use the time of the last fetch.
+    public static final String LAST_MODIFIED_FIELD = fieldName(CrawlDbDatum.class, "lastModified");
+    public static final String ETAG_FIELD = fieldName(CrawlDbDatum.class, "etag");
     
-    public static final Fields FIELDS = new Fields(URL_FIELD, LAST_FETCHED_FIELD, LAST_UPDATED_FIELD, LAST_STATUS_FIELD, CRAWL_DEPTH);
+    public static final Fields FIELDS = new Fields(URL_FIELD, LAST_FETCHED_FIELD, LAST_UPDATED_FIELD, LAST_STATUS_FIELD, CRAWL_DEPTH,
+                    LAST_MODIFIED_FIELD, ETAG_FIELD);
 
     public CrawlDbDatum () {
         super(FIELDS);
@@ -50,13 +56,19 @@ public class CrawlDbDatum extends BaseDatum {
     }
     
     public CrawlDbDatum(String url, long lastFetched, long lastUpdated, UrlStatus lastStatus, int crawlDepth) {
+        this(url, lastFetched, lastUpdated, lastStatus, crawlDepth, null, null);
+    }
+
+    public CrawlDbDatum(String url, long lastFetched, long lastUpdated, UrlStatus lastStatus, int crawlDepth, String lastModified, String etag) {
         super(FIELDS);
         setUrl(url);
         setLastFetched(lastFetched);
         setLastUpdated(lastUpdated);
         setLastStatus(lastStatus);
         setCrawlDepth(crawlDepth);
-       }
+        setLastModified(lastModified);
+        setEtag(etag);
+    }
 
     public String getUrl() {
         return _tupleEntry.getString(URL_FIELD);
@@ -98,8 +110,31 @@ public class CrawlDbDatum extends BaseDatum {
         _tupleEntry.set(CRAWL_DEPTH, crawlDepth);
     }
     
+    /**
+     * @return Last-Modified header value from the last fetch, or null if we don't have one.
+     */
+    public String getLastModified() {
+        return _tupleEntry.getString(LAST_MODIFIED_FIELD);
+    }
+
+    public void setLastModified(String lastModified) {
+        _tupleEntry.set(LAST_MODIFIED_FIELD, lastModified);
+    }
+
+    /**
+     * @return ETag header value from the last fetch, or null if we don't have one.
+     */
+    public String getEtag() {
+        return _tupleEntry.getString(ETAG_FIELD);
+    }
+
+    public void setEtag(String etag) {
+        _tupleEntry.set(ETAG_FIELD, etag);
+    }
+    
 
     public String toString() {
-        return getUrl() + "\t" + getLastFetched() + "\t" + getLastUpdated() + "\t" + getLastStatus() + "\t" + getCrawlDepth();
+        return getUrl() + "\t" + getLastFetched() + "\t" + getLastUpdated() + "\t" + getLastStatus() + "\t" + getCrawlDepth()
+                        + "\t" + getLastModified() + "\t" + getEtag();
     }
 }
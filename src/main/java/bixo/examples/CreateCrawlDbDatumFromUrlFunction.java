@@ -63,7 +63,10 @@ public class CreateCrawlDbDatumFromUrlFunction extends BaseOperation<NullContext
         UrlStatus status = UrlStatus.valueOf((String) (datum.getPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD)));
         Integer crawlDepth = (Integer) datum.getPayloadValue(CrawlDbDatum.CRAWL_DEPTH);
 
-        CrawlDbDatum crawldbDatum = new CrawlDbDatum(datum.getUrl(), lastFetched, lastUpdated, status, crawlDepth);
+        String lastModified = (String) datum.getPayloadValue(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY);
+        String etag = (String) datum.getPayloadValue(UrlDatum.ETAG_PAYLOAD_KEY);
+
+        CrawlDbDatum crawldbDatum = new CrawlDbDatum(datum.getUrl(), lastFetched, lastUpdated, status, crawlDepth, lastModified, etag);
 
         funcCall.getOutputCollector().add(crawldbDatum.getTuple());
         _numCreated++;
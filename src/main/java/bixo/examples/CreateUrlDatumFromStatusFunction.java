@@ -28,6 +28,7 @@ import bixo.cascading.NullContext;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.HttpHeaderNames;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
@@ -65,7 +66,7 @@ public class CreateUrlDatumFromStatusFunction extends BaseOperation<NullContext>
         long statusTime = datum.getStatusTime();
         long fetchTime;
 
-        if (status == UrlStatus.FETCHED) {
+        if ((status == UrlStatus.FETCHED) || (status == UrlStatus.NOT_MODIFIED)) {
             fetchTime = statusTime;
         } else if (status == UrlStatus.SKIPPED_BY_SCORER) {
             status = UrlStatus.FETCHED;
@@ -94,6 +95,23 @@ public class CreateUrlDatumFromStatusFunction extends BaseOperation<NullContext>
         // successful parse
         urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, datum.getPayloadValue(CrawlDbDatum.CRAWL_DEPTH));
 
+        // Keep track of what we need to make a conditional request the next time around. If
+        // the page wasn't modified, we still want the values from the previous fetch.
+        Object lastModified = datum.getPayloadValue(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY);
+        Object etag = datum.getPayloadValue(UrlDatum.ETAG_PAYLOAD_KEY);
+        if (datum.getStatus() == UrlStatus.FETCHED) {
+            lastModified = datum.getHeaders().getFirst(HttpHeaderNames.LAST_MODIFIED);
+            etag = datum.getHeaders().getFirst(HttpHeaderNames.ETAG);
+        }
+        
+        if (lastModified != null) {
+            urlDatum.setPayloadValue(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY, lastModified);
+        }
+        
+        if (etag != null) {
+            urlDatum.setPayloadValue(UrlDatum.ETAG_PAYLOAD_KEY, etag);
+        }
+
         funcCall.getOutputCollector().add(urlDatum.getTuple());
     }
 }
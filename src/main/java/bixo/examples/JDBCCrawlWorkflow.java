@@ -32,11 +32,14 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
 import bixo.cascading.NullContext;
+import bixo.config.DefaultFetchJobPolicy;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
+import bixo.dns.CachingHostResolver;
+import bixo.dns.SimpleHostResolver;
 import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.hadoop.HadoopUtils;
@@ -47,6 +50,9 @@ import bixo.operations.UrlFilter;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.robots.RobotRulesCache;
+import bixo.robots.RobotUtils;
+import bixo.robots.SimpleRobotRulesParser;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import cascading.flow.Flow;
@@ -153,7 +159,16 @@ public class JDBCCrawlWorkflow {
         // Create the sub-assembly that runs the fetch job
         BaseFetcher fetcher = new SimpleHttpFetcher(maxThreads, fetcherPolicy, userAgent);
         BaseScoreGenerator scorer = new FixedScoreGenerator();
-        FetchPipe fetchPipe = new FetchPipe(importPipe, scorer, fetcher, numReducers);
+        
+        // Keep the DNS and robots.txt caches in the crawl's output directory, so that the next
+        // loop can reuse them.
+        CachingHostResolver resolver = new CachingHostResolver(new SimpleHostResolver());
+        resolver.setCacheDir(new Path(curLoopDirPath.getParent(), CrawlConfig.DNS_CACHE_SUBDIR_NAME).toString());
+        RobotRulesCache robotsCache = new RobotRulesCache();
+        robotsCache.setCacheDir(new Path(curLoopDirPath.getParent(), CrawlConfig.ROBOTS_CACHE_SUBDIR_NAME).toString());
+        
+        FetchPipe fetchPipe = new FetchPipe(importPipe, scorer, fetcher, RobotUtils.createFetcher(fetcher),
+                        new SimpleRobotRulesParser(), new DefaultFetchJobPolicy(fetcherPolicy), resolver, robotsCache, numReducers);
 
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
 
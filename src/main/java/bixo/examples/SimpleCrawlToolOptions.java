@@ -42,6 +42,8 @@ public class SimpleCrawlToolOptions {
     private int _crawlDuration = NO_CRAWL_DURATION;
     private int _maxThreads = DEFAULT_MAX_THREADS;
     private int _numLoops = DEFAULT_NUM_LOOPS;
+    private boolean _refetch = false;
+    private boolean _nio = false;
 
     
     @Option(name = "-domain", usage = "domain to crawl (e.g. cnn.com)", required = true)
@@ -84,6 +86,16 @@ public class SimpleCrawlToolOptions {
         _crawlDuration = crawlDuration;
     }
 
+    @Option(name = "-refetch", usage = "re-fetch pages that have already been fetched, if they've changed", required = false)
+    public void setRefetch(boolean refetch) {
+        _refetch = refetch;
+    }
+
+    @Option(name = "-nio", usage = "fetch pages with the NioHttpFetcher, versus the SimpleHttpFetcher", required = false)
+    public void setNio(boolean nio) {
+        _nio = nio;
+    }
+
     public String getOutputDir() {
         return _outputDir;
     }
@@ -108,6 +120,14 @@ public class SimpleCrawlToolOptions {
         return _crawlDuration;
     }
 
+    public boolean isRefetch() {
+        return _refetch;
+    }
+
+    public boolean isNio() {
+        return _nio;
+    }
+
     public boolean isDebugLogging() {
         return _debugLogging;
     }
@@ -22,6 +22,7 @@
  */
 package bixo.examples;
 
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -31,18 +32,24 @@ import java.util.Set;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.log4j.Logger;
 
 import bixo.cascading.BaseSplitter;
 import bixo.cascading.NullContext;
 import bixo.cascading.SplitterAssembly;
 import bixo.cascading.TupleLogger;
+import bixo.config.DefaultFetchJobPolicy;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.dns.CachingHostResolver;
+import bixo.dns.SimpleHostResolver;
+import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.NioHttpFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.hadoop.HadoopUtils;
 import bixo.operations.BaseScoreGenerator;
@@ -52,6 +59,9 @@ import bixo.operations.UrlFilter;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.robots.RobotRulesCache;
+import bixo.robots.RobotUtils;
+import bixo.robots.SimpleRobotRulesParser;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import cascading.flow.Flow;
@@ -81,6 +91,16 @@ public class SimpleCrawlWorkflow {
     @SuppressWarnings("serial")
     private static class SplitFetchedUnfetchedCrawlDatums extends BaseSplitter {
 
+        private boolean _refetch;
+        
+        /**
+         * @param refetch true if URLs we've already fetched should be fetched again. These
+         *        are conditional requests, so we only get back content that has changed.
+         */
+        public SplitFetchedUnfetchedCrawlDatums(boolean refetch) {
+            _refetch = refetch;
+        }
+        
         @Override
         public String getLHSName() {
             return "fetched unfetched UrlDatums";
@@ -102,6 +122,11 @@ public class SimpleCrawlWorkflow {
                 || status == UrlStatus.ERROR_IOEXCEPTION) {
                 return true;
             }
+            
+            if (_refetch && ((status == UrlStatus.FETCHED) || (status == UrlStatus.NOT_MODIFIED))) {
+                return true;
+            }
+            
             return false;
         }
     }
@@ -132,6 +157,22 @@ public class SimpleCrawlWorkflow {
             urlDatum.setPayloadValue(CrawlDbDatum.LAST_STATUS_FIELD, datum.getLastStatus().name());
             urlDatum.setPayloadValue(CrawlDbDatum.CRAWL_DEPTH, datum.getCrawlDepth());
             
+            // Set up the payload so that the fetcher makes a conditional request for pages
+            // we've already got. If the server didn't give us a Last-Modified date, we can
+            // still ask whether it has changed since the last time we fetched it.
+            String lastModified = datum.getLastModified();
+            if ((lastModified == null) && (datum.getLastFetched() > 0)) {
+                lastModified = DateUtils.formatDate(new Date(datum.getLastFetched()));
+            }
+            
+            if (lastModified != null) {
+                urlDatum.setPayloadValue(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY, lastModified);
+            }
+            
+            if (datum.getEtag() != null) {
+                urlDatum.setPayloadValue(UrlDatum.ETAG_PAYLOAD_KEY, datum.getEtag());
+            }
+            
             funcCall.getOutputCollector().add(urlDatum.getTuple());
         }
     }
@@ -153,7 +194,7 @@ public class SimpleCrawlWorkflow {
         Pipe importPipe = new Pipe("import pipe");
 
         // Split into tuples that are to be fetched and that have already been fetched
-        SplitterAssembly splitter = new SplitterAssembly(importPipe, new SplitFetchedUnfetchedCrawlDatums());
+        SplitterAssembly splitter = new SplitterAssembly(importPipe, new SplitFetchedUnfetchedCrawlDatums(options.isRefetch()));
 
         Pipe finishedDatumsFromDb = splitter.getRHSPipe();
         Pipe urlsToFetchPipe = new Pipe("urls to Fetch", splitter.getLHSPipe());
@@ -182,10 +223,29 @@ public class SimpleCrawlWorkflow {
         Tap statusSink = new Hfs(new TextLine(), statusDirPath.toString());
 
         // Create the sub-assembly that runs the fetch job
-        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(options.getMaxThreads(), fetcherPolicy, userAgent);
-        fetcher.setMaxRetryCount(CrawlConfig.MAX_RETRIES);
-        fetcher.setSocketTimeout(CrawlConfig.SOCKET_TIMEOUT);
-        fetcher.setConnectionTimeout(CrawlConfig.CONNECTION_TIMEOUT);
+        // Keep the DNS and robots.txt caches in the crawl's output directory, so that the next
+        // loop can reuse them.
+        CachingHostResolver resolver = new CachingHostResolver(new SimpleHostResolver());
+        resolver.setCacheDir(new Path(curWorkingDirPath.getParent(), CrawlConfig.DNS_CACHE_SUBDIR_NAME).toString());
+        RobotRulesCache robotsCache = new RobotRulesCache();
+        robotsCache.setCacheDir(new Path(curWorkingDirPath.getParent(), CrawlConfig.ROBOTS_CACHE_SUBDIR_NAME).toString());
+        
+        BaseFetcher fetcher;
+        if (options.isNio()) {
+            // The NIO fetcher doesn't tie up a thread per server, and looks up hosts using
+            // the same (cached) resolver as the FetchPipe.
+            NioHttpFetcher nioFetcher = new NioHttpFetcher(options.getMaxThreads(), fetcherPolicy, userAgent);
+            nioFetcher.setSocketTimeout(CrawlConfig.SOCKET_TIMEOUT);
+            nioFetcher.setConnectionTimeout(CrawlConfig.CONNECTION_TIMEOUT);
+            nioFetcher.setHostResolver(resolver);
+            fetcher = nioFetcher;
+        } else {
+            SimpleHttpFetcher simpleFetcher = new SimpleHttpFetcher(options.getMaxThreads(), fetcherPolicy, userAgent);
+            simpleFetcher.setMaxRetryCount(CrawlConfig.MAX_RETRIES);
+            simpleFetcher.setSocketTimeout(CrawlConfig.SOCKET_TIMEOUT);
+            simpleFetcher.setConnectionTimeout(CrawlConfig.CONNECTION_TIMEOUT);
+            fetcher = simpleFetcher;
+        }
 
         // You can also provide a set of mime types you want to restrict what content type you 
         // want to deal with - for now keep it simple.
@@ -199,7 +259,8 @@ public class SimpleCrawlWorkflow {
         // are fetched first. If URLs are skipped for any reason(s) lower scoring URLs are skipped.
         BaseScoreGenerator scorer = new FixedScoreGenerator();
 
-        FetchPipe fetchPipe = new FetchPipe(urlsToFetchPipe, scorer, fetcher, numReducers);
+        FetchPipe fetchPipe = new FetchPipe(urlsToFetchPipe, scorer, fetcher, RobotUtils.createFetcher(fetcher),
+                        new SimpleRobotRulesParser(), new DefaultFetchJobPolicy(fetcherPolicy), resolver, robotsCache, numReducers);
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
         Pipe contentPipe = new Pipe("content pipe", fetchPipe.getContentTailPipe());
         contentPipe = TupleLogger.makePipe(contentPipe, true);
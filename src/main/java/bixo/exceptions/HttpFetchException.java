@@ -71,6 +71,9 @@ public class HttpFetchException extends BaseFetchException implements WritableCo
         case HttpStatus.SC_MOVED_PERMANENTLY:
             return UrlStatus.HTTP_MOVED_PERMANENTLY;
             
+        case HttpStatus.SC_NOT_MODIFIED:
+            return UrlStatus.NOT_MODIFIED;
+            
         default:
             if (_httpStatus < 300) {
                 LOGGER.warn("Invalid HTTP status for exception: " + _httpStatus);
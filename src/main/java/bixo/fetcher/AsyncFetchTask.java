@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import bixo.cascading.BixoFlowProcess;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.hadoop.FetchCounters;
+import cascading.tuple.Tuple;
+
+/**
+ * Fetches a set of URLs from the same server, one after the other, using the fetcher's
+ * getAsync() method. Unlike FetchTask, no thread is tied up while a fetch is in progress,
+ * since the next URL is fetched from the callback for the previous one.
+ *
+ * The results (and counters) are the same as for a FetchTask.
+ *
+ */
+public class AsyncFetchTask implements IFetchCallback {
+    private static final Logger LOGGER = Logger.getLogger(AsyncFetchTask.class);
+
+    private IFetchMgr _fetchMgr;
+    private BaseFetcher _httpFetcher;
+    private List<ScoredUrlDatum> _items;
+    private String _ref;
+    private boolean _lastList;
+
+    private Iterator<ScoredUrlDatum> _iter;
+    private ScoredUrlDatum _curItem;
+    private long _startTime;
+    private volatile boolean _aborted;
+    private boolean _finished;
+
+    // The fetcher can call us back before getAsync() returns (or even in the same thread),
+    // so we loop in fetchNext() versus recursing.
+    private boolean _fetching;
+    private boolean _fetchNext;
+
+    /**
+     * @param lastList true if <items> is the last set of URLs we'll be fetching from this
+     *        server, so the connection can be closed after the last item.
+     */
+    public AsyncFetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref, boolean lastList) {
+        _fetchMgr = fetchMgr;
+        _httpFetcher = httpFetcher;
+        _items = items;
+        _ref = ref;
+        _lastList = lastList;
+    }
+
+    /**
+     * Start fetching the first URL. When all of the URLs are done, we tell the fetch
+     * manager that <ref> is finished.
+     */
+    public void start() {
+        _fetchMgr.getProcess().increment(FetchCounters.DOMAINS_PROCESSING, 1);
+        _iter = _items.iterator();
+        _finished = false;
+        fetchNext();
+    }
+
+    /**
+     * Don't fetch any more URLs once the current fetch is done. The remaining URLs are
+     * output as aborted fetches.
+     */
+    public void abort() {
+        _aborted = true;
+    }
+
+    @Override
+    public void fetched(FetchedDatum result) {
+        BixoFlowProcess process = _fetchMgr.getProcess();
+        process.increment(FetchCounters.FETCHED_TIME, System.currentTimeMillis() - _startTime);
+        process.increment(FetchCounters.URLS_FETCHED, 1);
+        process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+        if (result.isTruncated()) {
+            process.increment(FetchCounters.URLS_TRUNCATED, 1);
+        }
+        process.setStatus(Level.TRACE, "Fetched " + result);
+
+        collect(result, UrlStatus.FETCHED.toString());
+        fetchNext();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void failed(BaseFetchException e) {
+        BixoFlowProcess process = _fetchMgr.getProcess();
+        if (e.mapToUrlStatus() == UrlStatus.NOT_MODIFIED) {
+            // Not a failure - we just didn't need to download it again.
+            process.increment(FetchCounters.URLS_NOT_MODIFIED, 1);
+        } else {
+            process.increment(FetchCounters.URLS_FAILED, 1);
+        }
+
+        // An interrupted fetch means we're being shut down, so don't start another one.
+        if ((e instanceof AbortedFetchException) && (((AbortedFetchException)e).getAbortReason() == AbortedFetchReason.INTERRUPTED)) {
+            _aborted = true;
+        }
+
+        // We can do this because each of the concrete subclasses of BaseFetchException implements
+        // WritableComparable
+        collect(new FetchedDatum(_curItem), (Comparable)e);
+        fetchNext();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(FetchedDatum result, Comparable status) {
+        _fetchMgr.getProcess().decrement(FetchCounters.URLS_FETCHING, 1);
+
+        Tuple tuple = result.getTuple();
+        tuple.add(status);
+        _fetchMgr.collect(tuple);
+    }
+
+    private void fetchNext() {
+        synchronized (this) {
+            _fetchNext = true;
+            if (_fetching) {
+                // Whoever is already in the loop below will start the next fetch.
+                return;
+            }
+
+            _fetching = true;
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (!_fetchNext) {
+                    _fetching = false;
+                    return;
+                }
+
+                _fetchNext = false;
+            }
+
+            startNextFetch();
+        }
+    }
+
+    private void startNextFetch() {
+        if (_finished) {
+            return;
+        }
+
+        if (_aborted || !_iter.hasNext()) {
+            finish();
+            return;
+        }
+
+        _curItem = _iter.next();
+        _fetchMgr.getProcess().increment(FetchCounters.URLS_FETCHING, 1);
+        _startTime = System.currentTimeMillis();
+
+        try {
+            // If this is the last item we'll fetch from the server, let the fetcher
+            // close the connection versus keeping it alive for the next set.
+            _httpFetcher.getAsync(_curItem, _lastList && !_iter.hasNext(), this);
+        } catch (Exception e) {
+            LOGGER.warn("Unexpected exception while fetching " + _curItem.getUrl(), e);
+            failed(new IOFetchException(_curItem.getUrl(), new IOException(e)));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish() {
+        _finished = true;
+        BixoFlowProcess process = _fetchMgr.getProcess();
+
+        try {
+            // While we still have entries, we need to write them out to avoid losing them.
+            while (_iter.hasNext()) {
+                ScoredUrlDatum item = _iter.next();
+                FetchedDatum result = new FetchedDatum(item);
+                process.increment(FetchCounters.URLS_SKIPPED, 1);
+                AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
+
+                Tuple tuple = result.getTuple();
+                tuple.add(status);
+                _fetchMgr.collect(tuple);
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+        } finally {
+            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            _fetchMgr.finished(_ref);
+        }
+    }
+}
@@ -24,6 +24,7 @@ package bixo.fetcher;
 
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,6 +33,7 @@ import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.BaseFetchException;
+import bixo.utils.LatencyHistogram;
 
 @SuppressWarnings("serial")
 public abstract class BaseFetcher implements Serializable {
@@ -92,5 +94,58 @@ public abstract class BaseFetcher implements Serializable {
     // Return results of HTTP GET request
     public abstract FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException;
     
+    // Return results of HTTP GET request. If lastRequest is true, then we won't be fetching
+    // anything else from this server soon, so there's no point in keeping the connection alive.
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean lastRequest) throws BaseFetchException {
+        return get(scoredUrl);
+    }
+
+    // True if getAsync() starts the fetch and returns right away, versus doing the fetch in
+    // the calling thread. If so, the caller doesn't need a thread per active fetch.
+    public boolean isAsync() {
+        return false;
+    }
+
+    // Start an HTTP GET request, and call <callback> with the result. The default is to
+    // call get() and then <callback> in the calling thread.
+    public void getAsync(ScoredUrlDatum scoredUrl, boolean lastRequest, IFetchCallback callback) {
+        FetchedDatum result;
+        try {
+            result = get(scoredUrl, lastRequest);
+        } catch (BaseFetchException e) {
+            callback.failed(e);
+            return;
+        }
+
+        callback.fetched(result);
+    }
+
+    // Number of requests that needed a new connection, versus reusing a kept-alive connection.
+    // Fetchers that don't track connections return 0 for both.
+    public int getNumConnectionsOpened() {
+        return 0;
+    }
+    
+    public int getNumConnectionsReused() {
+        return 0;
+    }
+    
+    // Number of bytes allocated while reading in content, so we can see how that compares
+    // to the number of bytes fetched. Fetchers that don't track this return 0.
+    public long getNumContentBytesAllocated() {
+        return 0;
+    }
+
+    // Latency histograms for the phases of a fetch. Fetchers that don't track this
+    // return an empty map.
+    public Map<FetchPhase, LatencyHistogram> getLatencyHistograms() {
+        return Collections.emptyMap();
+    }
+
     public abstract void abort();
+
+    // Release threads and connections held by the fetcher, once all fetches are done. The
+    // fetcher can still be used afterwards, in which case it sets them up again.
+    public void close() {
+    }
 }
@@ -0,0 +1,14 @@
+package bixo.fetcher;
+
+/**
+ * The parts of a fetch that we keep latency histograms for.
+ *
+ */
+public enum FetchPhase {
+    DNS,            // Resolving the host name, when opening a new connection
+    CONNECT,        // Opening the TCP connection
+    TLS,            // SSL/TLS handshake, for https connections
+    FIRST_BYTE,     // Sending the request until we've got the response headers
+    DOWNLOAD,       // Reading the response body
+    TOTAL,          // Entire request, including redirects
+}
@@ -51,12 +51,22 @@ public class FetchTask implements Runnable {
     private BaseFetcher _httpFetcher;
     private List<ScoredUrlDatum> _items;
     private String _ref;
+    private boolean _lastList;
     
     public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref) {
+        this(fetchMgr, httpFetcher, items, ref, false);
+    }
+    
+    /**
+     * @param lastList true if <items> is the last set of URLs we'll be fetching from this
+     *        server, so the connection can be closed after the last item.
+     */
+    public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref, boolean lastList) {
         _fetchMgr = fetchMgr;
         _httpFetcher = httpFetcher;
         _items = items;
         _ref = ref;
+        _lastList = lastList;
     }
 
     @SuppressWarnings("unchecked")
@@ -66,8 +76,6 @@ public class FetchTask implements Runnable {
         process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
         try {
-            // TODO KKr - when fetching the last item, send a Connection: close
-            // header to let the server know it doesn't need to keep the socket open.
             Iterator<ScoredUrlDatum> iter = _items.iterator();
             while (!Thread.interrupted() && iter.hasNext()) {
                 ScoredUrlDatum item = iter.next();
@@ -77,12 +85,17 @@ public class FetchTask implements Runnable {
                 try {
                     process.increment(FetchCounters.URLS_FETCHING, 1);
                     long startTime = System.currentTimeMillis();
-                    result = _httpFetcher.get(item);
+                    // If this is the last item we'll fetch from the server, let the fetcher
+                    // close the connection versus keeping it alive for the next set.
+                    result = _httpFetcher.get(item, _lastList && !iter.hasNext());
                     long deltaTime = System.currentTimeMillis() - startTime;
 
-                    process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
+                    process.increment(FetchCounters.FETCHED_TIME, deltaTime);
                     process.increment(FetchCounters.URLS_FETCHED, 1);
                     process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+                    if (result.isTruncated()) {
+                        process.increment(FetchCounters.URLS_TRUNCATED, 1);
+                    }
                     process.setStatus(Level.TRACE, "Fetched " + result);
 
                     status = UrlStatus.FETCHED.toString();
@@ -90,7 +103,12 @@ public class FetchTask implements Runnable {
                     // TODO KKr - we'd have to do something special here for AbortedFetchException with
                     // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
                     // and we'd want to bail out of this loop (or set the interrupted flag)
-                    process.increment(FetchCounters.URLS_FAILED, 1);
+                    if (e.mapToUrlStatus() == UrlStatus.NOT_MODIFIED) {
+                        // Not a failure - we just didn't need to download it again.
+                        process.increment(FetchCounters.URLS_NOT_MODIFIED, 1);
+                    } else {
+                        process.increment(FetchCounters.URLS_FAILED, 1);
+                    }
 
                     // We can do this because each of the concrete subclasses of BaseFetchException implements
                     // WritableComparable
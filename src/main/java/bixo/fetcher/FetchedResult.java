@@ -16,6 +16,7 @@ public class FetchedResult {
     private final String _newBaseUrl;
     private final int _numRedirects;
     private final String _hostAddress;
+    private final boolean _truncated;
 
     private Payload _payload;
     
@@ -30,6 +31,22 @@ public class FetchedResult {
 	                        String newBaseUrl,
 	                        int numRedirects,
 	                        String hostAddress){
+        this(baseUrl, redirectedUrl, fetchTime, headers, content, contentType, responseRate, payload,
+             newBaseUrl, numRedirects, hostAddress, false);
+    }
+    
+    public FetchedResult(   String baseUrl,
+                            String redirectedUrl,
+                            long fetchTime,
+                            HttpHeaders headers, 
+                            byte[] content,
+                            String contentType,
+                            int responseRate,
+                            Payload payload,
+                            String newBaseUrl,
+                            int numRedirects,
+                            String hostAddress,
+                            boolean truncated){
         _payload = payload;
 		
 		if (baseUrl == null) {
@@ -66,6 +83,7 @@ public class FetchedResult {
         _newBaseUrl = newBaseUrl;
         _numRedirects = numRedirects;
         _hostAddress = hostAddress;
+        _truncated = truncated;
 	}
 
 	public Payload getPayload() {
@@ -115,4 +133,11 @@ public class FetchedResult {
 	public String getHostAddress() {
         return _hostAddress;
     }
+	
+	/**
+	 * @return true if we didn't get all of the content, due to the max content size.
+	 */
+	public boolean isTruncated() {
+	    return _truncated;
+	}
 }
@@ -46,6 +46,12 @@ public interface HttpHeaderNames {
 
     public final static String LOCATION = "Location";
 
+    public final static String ETAG = "ETag";
+
+    public final static String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public final static String IF_NONE_MATCH = "If-None-Match";
+
     public static final String ACCEPT_LANGUAGE = "Accept-Language";
 
     public static final String ACCEPT_CHARSET = "Accept-Charset";
@@ -53,6 +59,14 @@ public interface HttpHeaderNames {
     public static final String ACCEPT_ENCODING = "Accept-Encoding";
 
     public static final String ACCEPT = "Accept";
+
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    public static final String HOST = "Host";
+
+    public static final String USER_AGENT = "User-Agent";
+
+    public static final String CONNECTION = "Connection";
     
 
 }
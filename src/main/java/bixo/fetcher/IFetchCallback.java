@@ -0,0 +1,17 @@
+package bixo.fetcher;
+
+import bixo.datum.FetchedDatum;
+import bixo.exceptions.BaseFetchException;
+
+/**
+ * Gets the result of a fetch started with BaseFetcher.getAsync(). Exactly one of the
+ * methods is called for each fetch, on whatever thread the fetcher uses to finish it.
+ *
+ */
+public interface IFetchCallback {
+
+    public void fetched(FetchedDatum result);
+
+    public void failed(BaseFetchException e);
+
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs HTTP requests on a small number of I/O threads, using non-blocking sockets
+ * and a Selector per thread. So thousands of requests can be in flight, without
+ * a thread (and its stack) for each one.
+ *
+ * Requests are assigned to I/O threads using their connection key (host and address).
+ * Each thread handles connecting, writing the request, and reading the response for all
+ * of its requests, and also periodically checks them for timeouts and slow response rates.
+ *
+ * Any request can use an idle connection to the same host, but only connections for
+ * keep-alive requests are kept after the response has been read. Idle connections are closed
+ * when the server closes them, after the idle timeout, or to stay under the max number
+ * of idle connections. If a request on a reused connection fails before we get any of
+ * the response, the server probably closed the connection as we were reusing it, so the
+ * request is retried once with a new connection.
+ *
+ * If an I/O thread dies, all of its requests fail, as do any requests that get
+ * handed to it afterwards.
+ *
+ */
+class NioHttpEngine {
+    private static final Logger LOGGER = Logger.getLogger(NioHttpEngine.class);
+
+    // How often we wake up to check for timeouts, cancelled requests, etc.
+    private static final long SELECT_TIMEOUT = 100;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * A kept-alive connection that's waiting for the next request to its host. It stays
+     * registered for reads, so we notice when the server closes it.
+     */
+    private static class IdleConnection {
+        private SelectionKey _key;
+        private String _connectionKey;
+        private long _idleTime;
+
+        public IdleConnection(SelectionKey key, String connectionKey, long idleTime) {
+            _key = key;
+            _connectionKey = connectionKey;
+            _idleTime = idleTime;
+        }
+
+        public SelectionKey getKey() {
+            return _key;
+        }
+
+        public String getConnectionKey() {
+            return _connectionKey;
+        }
+
+        public long getIdleTime() {
+            return _idleTime;
+        }
+    }
+
+    private class IoThread extends Thread {
+        private Selector _selector;
+        private ConcurrentLinkedQueue<NioHttpRequest> _newRequests;
+        private Set<NioHttpRequest> _requests;
+        private ByteBuffer _readBuffer;
+
+        // Idle connections by connection key (most recently used last), and in the order
+        // that they became idle.
+        private Map<String, LinkedList<IdleConnection>> _idleConnections;
+        private Set<IdleConnection> _idleOrder;
+        private volatile boolean _abortRequested;
+        private volatile boolean _dead;
+
+        public IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+
+            _selector = Selector.open();
+            _newRequests = new ConcurrentLinkedQueue<NioHttpRequest>();
+            _requests = new HashSet<NioHttpRequest>();
+            _readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            _idleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+            _idleOrder = new LinkedHashSet<IdleConnection>();
+        }
+
+        public void add(NioHttpRequest request) {
+            _newRequests.add(request);
+
+            // If we've died, nobody else is going to take the request off the queue. We
+            // check after adding, since run() sets _dead before its final drain.
+            if (_dead) {
+                failNewRequests(new IOException("HTTP I/O thread has died"));
+            } else {
+                _selector.wakeup();
+            }
+        }
+
+        public void abortAll() {
+            _abortRequested = true;
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!_closed) {
+                    _selector.select(SELECT_TIMEOUT);
+
+                    long now = System.currentTimeMillis();
+                    startNewRequests(now);
+
+                    Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        handleKey(key, now);
+                    }
+
+                    if (_abortRequested) {
+                        _abortRequested = false;
+                        failAll(new NioHttpRequest.CancelledException());
+                    }
+
+                    now = System.currentTimeMillis();
+                    checkRequests(now);
+                    closeIdleConnections(now - _idleConnectionTimeout);
+                }
+            } catch (Throwable t) {
+                LOGGER.error("Unexpected exception in HTTP I/O thread", t);
+            } finally {
+                _dead = true;
+                failAll(new IOException(_closed ? "HTTP engine has been closed" : "HTTP I/O thread has died"));
+                closeIdleConnections(Long.MAX_VALUE);
+
+                try {
+                    _selector.close();
+                } catch (IOException e) {
+                    LOGGER.warn("IOException closing selector", e);
+                }
+            }
+        }
+
+        private void startNewRequests(long now) {
+            NioHttpRequest request;
+            while ((request = _newRequests.poll()) != null) {
+                request.start(now);
+                _requests.add(request);
+
+                SelectionKey idleKey = takeIdleConnection(request.getConnectionKey());
+                if (idleKey != null) {
+                    _numConnectionsReused.incrementAndGet();
+                    request.setReusedConnection(true);
+                    request.onConnected(now);
+                    request.setKey(idleKey);
+                    idleKey.attach(request);
+                    idleKey.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    connect(request, now);
+                }
+            }
+        }
+
+        private void connect(NioHttpRequest request, long now) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+
+                Socket socket = channel.socket();
+                socket.setTcpNoDelay(true);
+
+                _numConnectionsOpened.incrementAndGet();
+                if (channel.connect(request.getAddress())) {
+                    request.onConnected(now);
+                    request.setKey(channel.register(_selector, SelectionKey.OP_WRITE, request));
+                } else {
+                    request.setKey(channel.register(_selector, SelectionKey.OP_CONNECT, request));
+                }
+            } catch (Exception e) {
+                if (channel != null) {
+                    closeChannel(channel);
+                }
+
+                finish(request, e);
+            }
+        }
+
+        private void handleKey(SelectionKey key, long now) {
+            if (key.attachment() instanceof IdleConnection) {
+                // The server closed the connection (or sent us something we didn't ask for),
+                // so we can't use it again.
+                IdleConnection idleConnection = (IdleConnection)key.attachment();
+                removeIdleConnection(idleConnection);
+                closeConnection(key);
+                return;
+            }
+
+            NioHttpRequest request = (NioHttpRequest)key.attachment();
+            SocketChannel channel = (SocketChannel)key.channel();
+
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        request.onConnected(now);
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(request.getRequestBuffer());
+                    if (request.onWritten(now)) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    _readBuffer.clear();
+                    int bytesRead = channel.read(_readBuffer);
+                    if (bytesRead == -1) {
+                        request.onEndOfStream();
+                    } else if (bytesRead > 0) {
+                        request.onData(_readBuffer.array(), 0, bytesRead, now);
+                    }
+                }
+
+                if (request.isDone()) {
+                    finish(request, null);
+                }
+            } catch (CancelledKeyException e) {
+                finish(request, new NioHttpRequest.CancelledException());
+            } catch (Exception e) {
+                if (!retryWithNewConnection(request, e, now)) {
+                    finish(request, e);
+                }
+            }
+        }
+
+        /**
+         * If <request> failed on a reused connection before we got any response, then
+         * the server probably closed the connection while it was idle, so try again with a
+         * new connection.
+         *
+         * @return true if the request is being retried.
+         */
+        private boolean retryWithNewConnection(NioHttpRequest request, Exception e, long now) {
+            if (!request.isReusedConnection() || request.hasResponseData() || !(e instanceof IOException)
+                || (e instanceof SocketTimeoutException) || (e instanceof NioHttpRequest.CancelledException)) {
+                return false;
+            }
+
+            SelectionKey key = request.getKey();
+            if (!request.resetForRetry()) {
+                return false;
+            }
+
+            LOGGER.debug("Retrying request with a new connection: " + request.getUrl());
+            closeConnection(key);
+            connect(request, now);
+            return true;
+        }
+
+        private void checkRequests(long now) {
+            List<NioHttpRequest> failed = null;
+            List<Exception> reasons = null;
+
+            for (NioHttpRequest request : _requests) {
+                Exception e = request.checkStatus(now);
+                if (e != null) {
+                    if (failed == null) {
+                        failed = new ArrayList<NioHttpRequest>();
+                        reasons = new ArrayList<Exception>();
+                    }
+
+                    failed.add(request);
+                    reasons.add(e);
+                }
+            }
+
+            if (failed != null) {
+                for (int i = 0; i < failed.size(); i++) {
+                    finish(failed.get(i), reasons.get(i));
+                }
+            }
+        }
+
+        private void failAll(Exception e) {
+            NioHttpRequest request;
+            while ((request = _newRequests.poll()) != null) {
+                _requests.add(request);
+            }
+
+            for (NioHttpRequest activeRequest : new ArrayList<NioHttpRequest>(_requests)) {
+                finish(activeRequest, e);
+            }
+        }
+
+        /**
+         * Fail requests that were added after we died. This can be called by any thread, since
+         * these requests never got to the I/O thread (so they don't have a connection).
+         *
+         * @param e reason for failure
+         */
+        private void failNewRequests(Exception e) {
+            NioHttpRequest request;
+            while ((request = _newRequests.poll()) != null) {
+                _numRequests.decrementAndGet();
+                request.fail(e);
+            }
+        }
+
+        /**
+         * We're done with <request>, so close its connection (or keep it for the next
+         * request, if we can) and wake up whoever is waiting for it.
+         *
+         * @param request request that's done
+         * @param e reason for failure, or null if it completed
+         */
+        private void finish(NioHttpRequest request, Exception e) {
+            if (_requests.remove(request)) {
+                _numRequests.decrementAndGet();
+            }
+
+            SelectionKey key = request.getKey();
+            if (key != null) {
+                boolean keepConnection = (e == null) && !_closed && key.isValid() && request.isReusable()
+                    && addIdleConnection(key, request.getConnectionKey());
+                if (!keepConnection) {
+                    closeConnection(key);
+                }
+            }
+
+            // This just wakes up the waiting thread if the request has already completed.
+            request.fail(e == null ? new IOException("Request ended without a response") : e);
+        }
+
+        /**
+         * Keep the connection for <key> around, so the next request with the same
+         * <connectionKey> can use it.
+         *
+         * @return false if we can't keep any more idle connections.
+         */
+        private boolean addIdleConnection(SelectionKey key, String connectionKey) {
+            if (_numIdleConnections.get() >= _maxIdleConnections) {
+                // Make room by closing our oldest idle connection, if we have one.
+                Iterator<IdleConnection> iter = _idleOrder.iterator();
+                if (!iter.hasNext()) {
+                    return false;
+                }
+
+                IdleConnection oldest = iter.next();
+                removeIdleConnection(oldest);
+                closeConnection(oldest.getKey());
+            }
+
+            IdleConnection idleConnection = new IdleConnection(key, connectionKey, System.currentTimeMillis());
+            key.attach(idleConnection);
+            key.interestOps(SelectionKey.OP_READ);
+
+            LinkedList<IdleConnection> connections = _idleConnections.get(connectionKey);
+            if (connections == null) {
+                connections = new LinkedList<IdleConnection>();
+                _idleConnections.put(connectionKey, connections);
+            }
+
+            connections.addLast(idleConnection);
+            _idleOrder.add(idleConnection);
+            _numIdleConnections.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * @return key for the most recently used idle connection with <connectionKey>, or
+         *         null if there aren't any.
+         */
+        private SelectionKey takeIdleConnection(String connectionKey) {
+            LinkedList<IdleConnection> connections = _idleConnections.get(connectionKey);
+            while ((connections != null) && !connections.isEmpty()) {
+                IdleConnection idleConnection = connections.getLast();
+                removeIdleConnection(idleConnection);
+
+                SelectionKey key = idleConnection.getKey();
+                if (key.isValid() && key.channel().isOpen()) {
+                    return key;
+                }
+
+                closeConnection(key);
+            }
+
+            return null;
+        }
+
+        private void removeIdleConnection(IdleConnection idleConnection) {
+            if (!_idleOrder.remove(idleConnection)) {
+                return;
+            }
+
+            _numIdleConnections.decrementAndGet();
+
+            LinkedList<IdleConnection> connections = _idleConnections.get(idleConnection.getConnectionKey());
+            connections.remove(idleConnection);
+            if (connections.isEmpty()) {
+                _idleConnections.remove(idleConnection.getConnectionKey());
+            }
+        }
+
+        /**
+         * Close idle connections that have been idle since before <idleTime>.
+         */
+        private void closeIdleConnections(long idleTime) {
+            while (!_idleOrder.isEmpty()) {
+                IdleConnection oldest = _idleOrder.iterator().next();
+                if (oldest.getIdleTime() >= idleTime) {
+                    break;
+                }
+
+                removeIdleConnection(oldest);
+                closeConnection(oldest.getKey());
+            }
+        }
+
+        private void closeConnection(SelectionKey key) {
+            key.cancel();
+            closeChannel((SocketChannel)key.channel());
+        }
+
+        private void closeChannel(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore any errors
+            }
+        }
+    }
+
+    private IoThread[] _ioThreads;
+    private int _maxIdleConnections;
+    private long _idleConnectionTimeout;
+    private AtomicInteger _numRequests;
+    private AtomicInteger _numIdleConnections;
+    private AtomicInteger _numConnectionsOpened;
+    private AtomicInteger _numConnectionsReused;
+    private volatile boolean _closed;
+
+    public NioHttpEngine(int numIoThreads) throws IOException {
+        this(numIoThreads, 0, 0);
+    }
+
+    /**
+     * @param numIoThreads number of threads (each with its own Selector) doing socket I/O
+     * @param maxIdleConnections max number of kept-alive connections waiting to be reused,
+     *        or 0 to always close connections after the response
+     * @param idleConnectionTimeout max milliseconds to keep an idle connection
+     * @throws IOException
+     */
+    public NioHttpEngine(int numIoThreads, int maxIdleConnections, long idleConnectionTimeout) throws IOException {
+        if (numIoThreads < 1) {
+            throw new IllegalArgumentException("Number of I/O threads must be at least one");
+        }
+
+        _maxIdleConnections = maxIdleConnections;
+        _idleConnectionTimeout = idleConnectionTimeout;
+        _numRequests = new AtomicInteger();
+        _numIdleConnections = new AtomicInteger();
+        _numConnectionsOpened = new AtomicInteger();
+        _numConnectionsReused = new AtomicInteger();
+        _closed = false;
+
+        _ioThreads = new IoThread[numIoThreads];
+        for (int i = 0; i < numIoThreads; i++) {
+            _ioThreads[i] = new IoThread("NioHttpEngine-" + i);
+        }
+
+        for (IoThread ioThread : _ioThreads) {
+            ioThread.start();
+        }
+    }
+
+    /**
+     * Start processing <request>. The caller uses request.waitForCompletion() (or overrides
+     * request.done()) to get the result.
+     *
+     * @param request request to execute
+     */
+    public void execute(NioHttpRequest request) {
+        if (_closed) {
+            request.fail(new IOException("HTTP engine has been closed"));
+            return;
+        }
+
+        // Requests for the same host always go to the same thread, since that's where
+        // its idle connections are.
+        _numRequests.incrementAndGet();
+        int threadIndex = (request.getConnectionKey().hashCode() & Integer.MAX_VALUE) % _ioThreads.length;
+        _ioThreads[threadIndex].add(request);
+    }
+
+    /**
+     * @return number of requests currently being processed.
+     */
+    public int getNumRequests() {
+        return _numRequests.get();
+    }
+
+    public int getNumIdleConnections() {
+        return _numIdleConnections.get();
+    }
+
+    public int getNumConnectionsOpened() {
+        return _numConnectionsOpened.get();
+    }
+
+    public int getNumConnectionsReused() {
+        return _numConnectionsReused.get();
+    }
+
+    /**
+     * Fail all in-flight requests with a CancelledException.
+     */
+    public void abortAll() {
+        for (IoThread ioThread : _ioThreads) {
+            ioThread.abortAll();
+        }
+    }
+
+    /**
+     * Shut down the I/O threads. Any in-flight requests fail, and idle connections are closed.
+     */
+    public void close() {
+        _closed = true;
+
+        for (IoThread ioThread : _ioThreads) {
+            ioThread._selector.wakeup();
+        }
+    }
+}
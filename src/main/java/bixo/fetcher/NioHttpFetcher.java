@@ -0,0 +1,881 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.log4j.Logger;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Payload;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlDatum;
+import bixo.dns.BaseHostResolver;
+import bixo.dns.CachingHostResolver;
+import bixo.dns.SimpleHostResolver;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.UrlFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.utils.EncodingUtils;
+import bixo.utils.HttpUtils;
+import bixo.utils.IoUtils;
+
+/**
+ * Fetcher that uses non-blocking sockets, via NioHttpEngine, for the actual
+ * socket I/O. Connections are multiplexed on a few I/O threads, so an in-flight
+ * request doesn't tie up a thread that's blocked in a socket read.
+ *
+ * Fetches are started with getAsync(), which returns right away and calls back once
+ * the fetch is done, so the FetchBuffer doesn't need a thread for each server that it's
+ * fetching from. DNS lookups, https fetches, following redirects and decoding content
+ * happen on a pool of worker threads, which are only busy while doing that work. The
+ * get() methods just wait for the callback.
+ *
+ * The fetcher honors the same FetcherPolicy settings as SimpleHttpFetcher (min
+ * response rate, request timeout, max content size by mime-type, valid mime-types,
+ * and redirect mode/count), and throws the same exceptions.
+ *
+ * As with SimpleHttpFetcher, connections are kept alive unless it's the last request
+ * to the server, and reused for the next request to the same host. https URLs (including
+ * redirects to https) are handed off to a SimpleHttpFetcher.
+ *
+ * Host names are resolved using a BaseHostResolver, which by default caches the
+ * results, so fetching lots of URLs from one host only does one DNS lookup.
+ *
+ * Call close() once fetching is done, to stop the I/O and worker threads and close
+ * idle connections.
+ *
+ */
+@SuppressWarnings("serial")
+public class NioHttpFetcher extends BaseFetcher {
+    private static Logger LOGGER = Logger.getLogger(NioHttpFetcher.class);
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+
+    // Same as SimpleHttpFetcher - keep idle connections around for a bit longer than the
+    // default crawl delay, so they're still there when the next fetch set is ready.
+    private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = BaseFetchJobPolicy.DEFAULT_CRAWL_DELAY + (5 * 1000L);
+
+    private static final int DEFAULT_MAX_THREADS = 1;
+    private static final int DEFAULT_IO_THREADS = 1;
+    private static final int DECODE_BUFFER_SIZE = 8 * 1024;
+
+    private int _numIoThreads;
+    private int _socketTimeout;
+    private int _connectionTimeout;
+    private int _maxIdleConnections;
+    private long _idleConnectionTimeout;
+    private String _proxyHost;
+    private int _proxyPort;
+    private BaseHostResolver _resolver;
+
+    transient private NioHttpEngine _engine;
+    transient private ExecutorService _workerExecutor;
+    transient private SimpleHttpFetcher _sslFetcher;
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private AtomicInteger _threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "NioHttpFetcher-worker-" + _threadNumber.getAndIncrement());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    /**
+     * Callback used by get(), which waits for the result.
+     */
+    private static class WaitingCallback implements IFetchCallback {
+        private CountDownLatch _done = new CountDownLatch(1);
+        private FetchedDatum _result;
+        private BaseFetchException _failure;
+
+        @Override
+        public void fetched(FetchedDatum result) {
+            _result = result;
+            _done.countDown();
+        }
+
+        @Override
+        public void failed(BaseFetchException e) {
+            _failure = e;
+            _done.countDown();
+        }
+
+        public FetchedDatum waitForResult() throws BaseFetchException, InterruptedException {
+            _done.await();
+            if (_failure != null) {
+                throw _failure;
+            }
+
+            return _result;
+        }
+    }
+
+    /**
+     * Request that checks the mime-type and figures out the max content size,
+     * once we know the Content-Type, and hands the response back to its fetch.
+     */
+    private class FetcherRequest extends NioHttpRequest {
+        private AsyncFetch _fetch;
+
+        public FetcherRequest(AsyncFetch fetch, InetSocketAddress address, String host, byte[] request) {
+            super(fetch.getUrl(), address, host, request, _fetcherPolicy.getMinResponseRate(), _socketTimeout, _connectionTimeout);
+            _fetch = fetch;
+        }
+
+        @Override
+        protected int getTargetLength(String contentType) throws Exception {
+            String mimeType = "";
+
+            // Same logic as SimpleHttpFetcher - if the server doesn't report a mime-type, that's
+            // treated as "", which has to be in the set of valid mime-types.
+            Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
+            if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+                mimeType = HttpUtils.getMimeTypeFromContentType(contentType);
+                if (!mimeTypes.contains(mimeType)) {
+                    throw new AbortedFetchException(getUrl(), "Invalid mime-type: " + mimeType, AbortedFetchReason.INVALID_MIMETYPE);
+                }
+            }
+
+            return getMaxContentSize(mimeType);
+        }
+
+        @Override
+        protected void done() {
+            _fetch.requestDone(this);
+        }
+    }
+
+    /**
+     * One fetch, which can take several requests if we follow redirects. Each step runs
+     * on a worker thread, so nothing that blocks (DNS lookups, https fetches) or takes a
+     * while (decoding content) happens on the engine's I/O threads or the caller's thread.
+     */
+    private class AsyncFetch {
+        private String _url;
+        private Payload _payload;
+        private boolean _lastRequest;
+        private IFetchCallback _callback;
+        private ExecutorService _executor;
+
+        private String _curUrl;
+        private String _newBaseUrl;
+        private int _numRedirects;
+        private URL _targetUrl;
+        private InetAddress _hostAddress;
+
+        private volatile boolean _cancelled;
+        private volatile NioHttpRequest _request;
+
+        public AsyncFetch(ScoredUrlDatum scoredUrl, boolean lastRequest, IFetchCallback callback, ExecutorService executor) {
+            _url = scoredUrl.getUrl();
+            _payload = scoredUrl.getPayload();
+            _lastRequest = lastRequest;
+            _callback = callback;
+            _executor = executor;
+
+            _curUrl = _url;
+            _newBaseUrl = null;
+            _numRedirects = 0;
+        }
+
+        public String getUrl() {
+            return _url;
+        }
+
+        public void start() {
+            LOGGER.trace("Fetching " + _url);
+
+            submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    startRequest();
+                }
+            });
+        }
+
+        /**
+         * Give up on the fetch. The callback gets an AbortedFetchException.
+         */
+        public void cancel() {
+            _cancelled = true;
+
+            NioHttpRequest request = _request;
+            if (request != null) {
+                request.cancel();
+            }
+        }
+
+        public void requestDone(final FetcherRequest request) {
+            submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    processResponse(request);
+                }
+            });
+        }
+
+        private void submit(Runnable step) {
+            try {
+                _executor.execute(step);
+            } catch (RejectedExecutionException e) {
+                // The fetcher has been closed.
+                failed(new AbortedFetchException(_url, AbortedFetchReason.INTERRUPTED));
+            }
+        }
+
+        private void startRequest() {
+            try {
+                if (_cancelled) {
+                    throw new AbortedFetchException(_url, AbortedFetchReason.INTERRUPTED);
+                }
+
+                if (isHttps(_curUrl)) {
+                    fetched(doSslRequest());
+                    return;
+                }
+
+                try {
+                    _targetUrl = new URI(_curUrl).toURL();
+                } catch (URISyntaxException e) {
+                    throw new UrlFetchException(_url, e.getMessage());
+                } catch (MalformedURLException e) {
+                    throw new UrlFetchException(_url, e.getMessage());
+                } catch (IllegalArgumentException e) {
+                    throw new UrlFetchException(_url, e.getMessage());
+                }
+
+                if (!_targetUrl.getProtocol().equalsIgnoreCase("http")) {
+                    throw new UrlFetchException(_url, "Unsupported protocol: " + _targetUrl.getProtocol());
+                }
+
+                // The resolver gives us an IP address, so creating the InetAddress doesn't do
+                // another lookup. With a proxy, we only need the proxy's address.
+                InetSocketAddress address;
+                try {
+                    if (_proxyHost != null) {
+                        _hostAddress = InetAddress.getByName(_proxyHost);
+                        address = new InetSocketAddress(_hostAddress, _proxyPort);
+                    } else {
+                        _hostAddress = InetAddress.getByName(_resolver.resolve(_targetUrl.getHost()));
+                        int port = _targetUrl.getPort() == -1 ? _targetUrl.getDefaultPort() : _targetUrl.getPort();
+                        address = new InetSocketAddress(_hostAddress, port);
+                    }
+                } catch (UnknownHostException e) {
+                    throw new IOFetchException(_url, e);
+                }
+
+                FetcherRequest request = new FetcherRequest(this, address, _targetUrl.getHost(), makeRequest(_targetUrl, _payload, _lastRequest));
+                request.setKeepAlive(!_lastRequest);
+                request.setRequestTimeout(_fetcherPolicy.getRequestTimeout());
+                _request = request;
+                getEngine(_url).execute(request);
+
+                // We might have been cancelled before the engine had the request.
+                if (_cancelled) {
+                    request.cancel();
+                }
+            } catch (BaseFetchException e) {
+                failed(e);
+            } catch (Exception e) {
+                LOGGER.warn("Unexpected exception while fetching " + _url, e);
+                failed(new IOFetchException(_url, new IOException(e)));
+            }
+        }
+
+        private FetchedResult doSslRequest() throws BaseFetchException {
+            // We got an https URL, so let HttpClient take it from here.
+            HttpGet request = new HttpGet();
+            if (_lastRequest) {
+                request.setHeader(HttpHeaderNames.CONNECTION, "close");
+            }
+
+            FetchedResult sslResult = getSslFetcher().fetch(request, _curUrl, _payload);
+            return new FetchedResult(   _url,
+                                        sslResult.getFetchedUrl(),
+                                        sslResult.getFetchTime(),
+                                        sslResult.getHeaders(),
+                                        sslResult.getContent(),
+                                        sslResult.getContentType(),
+                                        sslResult.getResponseRate(),
+                                        _payload,
+                                        sslResult.getNewBaseUrl() != null ? sslResult.getNewBaseUrl() : _newBaseUrl,
+                                        _numRedirects + sslResult.getNumRedirects(),
+                                        sslResult.getHostAddress(),
+                                        sslResult.isTruncated());
+        }
+
+        private void processResponse(FetcherRequest request) {
+            try {
+                Exception failure = request.getFailure();
+                if (failure != null) {
+                    throw mapException(_url, failure);
+                }
+
+                FetchedResult result = makeResult(request);
+                if (result == null) {
+                    // We're following a redirect.
+                    startRequest();
+                } else {
+                    fetched(result);
+                }
+            } catch (BaseFetchException e) {
+                failed(e);
+            } catch (Exception e) {
+                LOGGER.warn("Unexpected exception while fetching " + _url, e);
+                failed(new IOFetchException(_url, new IOException(e)));
+            }
+        }
+
+        /**
+         * @return result of the fetch, or null if we're following a redirect to _curUrl.
+         */
+        private FetchedResult makeResult(FetcherRequest request) throws BaseFetchException {
+            HttpHeaders headerMap = new HttpHeaders();
+            for (String[] header : request.getHeaders()) {
+                headerMap.add(header[0], header[1]);
+            }
+
+            int httpStatus = request.getStatusCode();
+            String location = headerMap.getFirst(HttpHeaderNames.LOCATION);
+            if (isRedirect(httpStatus) && (location != null) && (_fetcherPolicy.getMaxRedirects() > 0)) {
+                String redirectUrl = makeRedirectUrl(_targetUrl, location);
+                if (redirectUrl == null) {
+                    throw new UrlFetchException(_url, "Invalid redirect location: " + location);
+                }
+
+                // Based on the redirect mode, decide how we want to handle this.
+                boolean isPermRedirect = httpStatus == HttpStatus.SC_MOVED_PERMANENTLY;
+                RedirectMode redirectMode = _fetcherPolicy.getRedirectMode();
+                if ((redirectMode == RedirectMode.FOLLOW_NONE) ||
+                    ((redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+                    RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED :
+                        RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+                    throw new RedirectFetchException(_url, redirectUrl, reason);
+                }
+
+                if (_numRedirects >= _fetcherPolicy.getMaxRedirects()) {
+                    throw new RedirectFetchException(_url, _curUrl, RedirectExceptionReason.TOO_MANY_REDIRECTS);
+                }
+
+                _numRedirects += 1;
+                if (isPermRedirect) {
+                    _newBaseUrl = redirectUrl;
+                }
+
+                _curUrl = redirectUrl;
+                return null;
+            }
+
+            if ((httpStatus < 200) || (httpStatus >= 300)) {
+                // We can't just check against SC_OK, as some wackos return 201, 202, etc
+                throw new HttpFetchException(_url, "Error fetching " + _url, httpStatus, headerMap);
+            }
+
+            String contentType = headerMap.getFirst(HttpHeaderNames.CONTENT_TYPE);
+            if (contentType == null) {
+                contentType = "";
+            }
+
+            byte[] content = request.getContent();
+            boolean truncated = request.isTruncated();
+
+            // Now see if we need to uncompress the content. The max content size applies
+            // to the decoded content, so we check for truncation again here.
+            String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+            if (EncodingUtils.isSupportedEncoding(contentEncoding)) {
+                int maxSize = getMaxContentSize(HttpUtils.getMimeTypeFromContentType(contentType));
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, DECODE_BUFFER_SIZE));
+                InputStream in = null;
+
+                try {
+                    in = EncodingUtils.getDecodingStream(new ByteArrayInputStream(content), contentEncoding);
+                    byte[] buffer = new byte[DECODE_BUFFER_SIZE];
+                    int bytesRead;
+                    while ((out.size() < maxSize) && ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, maxSize - out.size()))) != -1)) {
+                        out.write(buffer, 0, bytesRead);
+                    }
+
+                    truncated = (out.size() == maxSize) && (in.read() != -1);
+                } catch (ZipException e) {
+                    // Keep whatever we were able to decode (e.g. the compressed data was truncated).
+                    truncated = true;
+                } catch (EOFException e) {
+                    truncated = true;
+                } catch (IOException e) {
+                    throw new IOFetchException(_url, e);
+                } finally {
+                    IoUtils.safeClose(in);
+                }
+
+                content = out.toByteArray();
+            }
+
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace(String.format("Fetched url: %s; status code: %d; %d bytes%s", _url, httpStatus,
+                                content.length, truncated ? " (truncated)" : ""));
+            }
+
+            return new FetchedResult(   _url,
+                                        _curUrl,
+                                        System.currentTimeMillis(),
+                                        headerMap,
+                                        content,
+                                        contentType,
+                                        (int)request.getReadRate(),
+                                        _payload,
+                                        _newBaseUrl,
+                                        _numRedirects,
+                                        _hostAddress.getHostAddress(),
+                                        truncated);
+        }
+
+        private void fetched(FetchedResult result) {
+            FetchedDatum datum = SimpleHttpFetcher.convert(result);
+
+            try {
+                _callback.fetched(datum);
+            } catch (Throwable t) {
+                LOGGER.error("Exception in fetch callback for " + _url, t);
+            }
+        }
+
+        private void failed(BaseFetchException e) {
+            if (e instanceof HttpFetchException) {
+                // Don't bother generating a trace for a 404 (not found)
+                if (LOGGER.isTraceEnabled() && (((HttpFetchException)e).getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+                    LOGGER.trace(String.format("Exception fetching %s (%s)", _url, e.getMessage()));
+                }
+            } else if (e instanceof AbortedFetchException) {
+                // Don't bother reporting that we bailed because the mime-type wasn't one that we wanted.
+                if (((AbortedFetchException)e).getAbortReason() != AbortedFetchReason.INVALID_MIMETYPE) {
+                    LOGGER.debug(String.format("Exception fetching %s (%s)", _url, e.getMessage()));
+                }
+            } else {
+                LOGGER.debug(String.format("Exception fetching %s (%s)", _url, e.getMessage()));
+            }
+
+            try {
+                _callback.failed(e);
+            } catch (Throwable t) {
+                LOGGER.error("Exception in fetch callback for " + _url, t);
+            }
+        }
+    }
+
+    public NioHttpFetcher(UserAgent userAgent) {
+        this(DEFAULT_MAX_THREADS, userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, UserAgent userAgent) {
+        this(maxThreads, new FetcherPolicy(), userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        _numIoThreads = DEFAULT_IO_THREADS;
+        _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+        _maxIdleConnections = maxThreads;
+        _idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        _proxyHost = null;
+        _resolver = new CachingHostResolver(new SimpleHostResolver());
+
+        // We rely on lazy initialization of these so that we don't have to worry
+        // about serializing them.
+        _engine = null;
+        _workerExecutor = null;
+        _sslFetcher = null;
+    }
+
+    public int getNumIoThreads() {
+        return _numIoThreads;
+    }
+
+    public void setNumIoThreads(int numIoThreads) {
+        if (_engine == null) {
+            _numIoThreads = numIoThreads;
+        } else {
+            throw new IllegalStateException("Can't change number of I/O threads after engine has been initialized");
+        }
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_engine == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after engine has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_engine == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after engine has been initialized");
+        }
+    }
+
+    public int getMaxIdleConnections() {
+        return _maxIdleConnections;
+    }
+
+    /**
+     * @param maxIdleConnections max number of kept-alive connections waiting for the next
+     *        request to their host, or 0 to close every connection after its response.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        if (_engine == null) {
+            _maxIdleConnections = maxIdleConnections;
+        } else {
+            throw new IllegalStateException("Can't change max idle connections after engine has been initialized");
+        }
+    }
+
+    public long getIdleConnectionTimeout() {
+        return _idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeoutInMs) {
+        if (_engine == null) {
+            _idleConnectionTimeout = idleConnectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change idle connection timeout after engine has been initialized");
+        }
+    }
+
+    public String getProxyHost() {
+        return _proxyHost;
+    }
+
+    public int getProxyPort() {
+        return _proxyPort;
+    }
+
+    /**
+     * Send all http requests via the HTTP proxy at <proxyHost>:<proxyPort>, as per
+     * SimpleHttpFetcher.setProxy(). The host resolver isn't used in that case.
+     *
+     * @param proxyHost name of proxy server, or null to not use a proxy
+     * @param proxyPort port of proxy server
+     */
+    public void setProxy(String proxyHost, int proxyPort) {
+        if (_engine == null) {
+            _proxyHost = proxyHost;
+            _proxyPort = proxyPort;
+        } else {
+            throw new IllegalStateException("Can't change proxy after engine has been initialized");
+        }
+    }
+
+    public BaseHostResolver getHostResolver() {
+        return _resolver;
+    }
+
+    /**
+     * @param resolver resolver to use for the hosts of URLs being fetched (but not https
+     *        URLs, which are handled by a SimpleHttpFetcher).
+     */
+    public void setHostResolver(BaseHostResolver resolver) {
+        _resolver = resolver;
+    }
+
+    @Override
+    public int getNumConnectionsOpened() {
+        NioHttpEngine engine = _engine;
+        return (engine == null ? 0 : engine.getNumConnectionsOpened());
+    }
+
+    @Override
+    public int getNumConnectionsReused() {
+        NioHttpEngine engine = _engine;
+        return (engine == null ? 0 : engine.getNumConnectionsReused());
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public void getAsync(ScoredUrlDatum scoredUrl, boolean lastRequest, IFetchCallback callback) {
+        startFetch(scoredUrl, lastRequest, callback);
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        return get(scoredUrl, false);
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean lastRequest) throws BaseFetchException {
+        WaitingCallback callback = new WaitingCallback();
+        AsyncFetch fetch = startFetch(scoredUrl, lastRequest, callback);
+
+        try {
+            return callback.waitForResult();
+        } catch (InterruptedException e) {
+            fetch.cancel();
+            throw new AbortedFetchException(scoredUrl.getUrl(), AbortedFetchReason.INTERRUPTED);
+        }
+    }
+
+    private AsyncFetch startFetch(ScoredUrlDatum scoredUrl, boolean lastRequest, IFetchCallback callback) {
+        AsyncFetch fetch = new AsyncFetch(scoredUrl, lastRequest, callback, getWorkerExecutor());
+        fetch.start();
+        return fetch;
+    }
+
+    private byte[] makeRequest(URL targetUrl, Payload payload, boolean lastRequest) {
+        String path = targetUrl.getFile();
+        if (path.length() == 0) {
+            path = "/";
+        }
+
+        String host = targetUrl.getHost();
+        if ((targetUrl.getPort() != -1) && (targetUrl.getPort() != targetUrl.getDefaultPort())) {
+            host = host + ":" + targetUrl.getPort();
+        }
+
+        // A proxy needs the full URL.
+        if (_proxyHost != null) {
+            path = targetUrl.getProtocol() + "://" + host + path;
+        }
+
+        StringBuilder request = new StringBuilder();
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        appendHeader(request, HttpHeaderNames.HOST, host);
+        appendHeader(request, HttpHeaderNames.USER_AGENT, _userAgent.getUserAgentString());
+        appendHeader(request, HttpHeaderNames.ACCEPT, SimpleHttpFetcher.DEFAULT_ACCEPT);
+        appendHeader(request, HttpHeaderNames.ACCEPT_CHARSET, SimpleHttpFetcher.DEFAULT_ACCEPT_CHARSET);
+        appendHeader(request, HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage());
+        appendHeader(request, HttpHeaderNames.ACCEPT_ENCODING, SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING);
+
+        // If this is the last request we'll make to the server for a while, let it know that
+        // it doesn't need to keep the connection open for us.
+        if (lastRequest) {
+            appendHeader(request, HttpHeaderNames.CONNECTION, "close");
+        }
+
+        // If we've got history from a previous fetch, let the server tell us (with a 304)
+        // that nothing has changed.
+        Object lastModified = (payload == null) ? null : payload.get(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY);
+        if ((lastModified != null) && (lastModified.toString().length() > 0)) {
+            appendHeader(request, HttpHeaderNames.IF_MODIFIED_SINCE, lastModified.toString());
+        }
+        
+        Object etag = (payload == null) ? null : payload.get(UrlDatum.ETAG_PAYLOAD_KEY);
+        if ((etag != null) && (etag.toString().length() > 0)) {
+            appendHeader(request, HttpHeaderNames.IF_NONE_MATCH, etag.toString());
+        }
+        
+        request.append("\r\n");
+
+        try {
+            return request.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+    }
+
+    private static void appendHeader(StringBuilder request, String name, String value) {
+        request.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private static boolean isRedirect(int httpStatus) {
+        return (httpStatus == HttpStatus.SC_MOVED_PERMANENTLY)
+            || (httpStatus == HttpStatus.SC_MOVED_TEMPORARILY)
+            || (httpStatus == HttpStatus.SC_SEE_OTHER)
+            || (httpStatus == HttpStatus.SC_TEMPORARY_REDIRECT);
+    }
+
+    private static boolean isHttps(String url) {
+        return url.regionMatches(true, 0, "https:", 0, "https:".length());
+    }
+
+    private static String makeRedirectUrl(URL baseUrl, String location) {
+        try {
+            URL result = new URL(baseUrl, location.trim());
+
+            // Same hack as SimpleHttpFetcher - strip out the default port, to avoid
+            // circular redirects from sites that add it.
+            if (result.getProtocol().equalsIgnoreCase("http") && (result.getPort() == 80)) {
+                result = new URL(result.getProtocol(), result.getHost(), -1, result.getFile());
+            }
+
+            return result.toExternalForm();
+        } catch (MalformedURLException e) {
+            LOGGER.warn("Invalid redirect location: " + location);
+            return null;
+        }
+    }
+
+    private static BaseFetchException mapException(String url, Exception e) {
+        if (e instanceof BaseFetchException) {
+            return (BaseFetchException)e;
+        } else if (e instanceof NioHttpRequest.SlowResponseException) {
+            return new AbortedFetchException(url, e.getMessage(), AbortedFetchReason.SLOW_RESPONSE_RATE);
+        } else if (e instanceof NioHttpRequest.CancelledException) {
+            return new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+        } else if (e instanceof IOException) {
+            return new IOFetchException(url, (IOException)e);
+        } else if (e instanceof IllegalArgumentException) {
+            // The channel couldn't use the address (e.g. UnresolvedAddressException or
+            // UnsupportedAddressTypeException), so there's nothing we can do with this URL.
+            return new UrlFetchException(url, "Invalid address for URL: " + e);
+        } else {
+            // Anything else means the engine itself had a problem (e.g. its selector
+            // was closed), which is an I/O failure from our point of view.
+            return new IOFetchException(url, new IOException("HTTP engine failure: " + e));
+        }
+    }
+
+    private synchronized SimpleHttpFetcher getSslFetcher() {
+        if (_sslFetcher == null) {
+            _sslFetcher = new SimpleHttpFetcher(_maxThreads, _fetcherPolicy, _userAgent);
+            _sslFetcher.setSocketTimeout(_socketTimeout);
+            _sslFetcher.setConnectionTimeout(_connectionTimeout);
+
+            for (String mimeType : _maxContentSizes.keySet()) {
+                _sslFetcher.setMaxContentSize(mimeType, _maxContentSizes.get(mimeType));
+            }
+        }
+
+        return _sslFetcher;
+    }
+
+    private synchronized NioHttpEngine getEngine(String url) throws BaseFetchException {
+        if (_engine == null) {
+            try {
+                _engine = new NioHttpEngine(_numIoThreads, _maxIdleConnections, _idleConnectionTimeout);
+            } catch (IOException e) {
+                throw new IOFetchException(url, e);
+            }
+        }
+
+        return _engine;
+    }
+
+    private synchronized ExecutorService getWorkerExecutor() {
+        if (_workerExecutor == null) {
+            // Workers only do short steps (other than https fetches and DNS lookups that miss
+            // the cache), so we don't need many. But the number of active fetches is limited by
+            // the caller, so we don't bother limiting the number of threads.
+            _workerExecutor = Executors.newCachedThreadPool(new WorkerThreadFactory());
+        }
+
+        return _workerExecutor;
+    }
+
+    @Override
+    public void abort() {
+        NioHttpEngine engine;
+        SimpleHttpFetcher sslFetcher;
+        synchronized (this) {
+            engine = _engine;
+            sslFetcher = _sslFetcher;
+        }
+
+        if (engine != null) {
+            engine.abortAll();
+        }
+
+        if (sslFetcher != null) {
+            sslFetcher.abort();
+        }
+    }
+
+    @Override
+    public void close() {
+        NioHttpEngine engine;
+        ExecutorService workerExecutor;
+        synchronized (this) {
+            engine = _engine;
+            workerExecutor = _workerExecutor;
+            _engine = null;
+            _workerExecutor = null;
+        }
+
+        // Any fetches that are still active fail.
+        if (engine != null) {
+            engine.close();
+        }
+
+        if (workerExecutor != null) {
+            workerExecutor.shutdown();
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        close();
+        super.finalize();
+    }
+}
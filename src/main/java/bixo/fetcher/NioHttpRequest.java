@@ -0,0 +1,773 @@
+/*
+ * Copyright (c) 2010-2011 TransPac Software, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State for a single HTTP GET request (no redirects) that's being handled by an
+ * NioHttpEngine I/O thread.
+ *
+ * The I/O thread pushes bytes in via onData(), and the request parses the status line,
+ * headers and body (fixed length, chunked, or read until close). Once the request is
+ * done (or has failed), and the engine is done with its connection, the thread that's
+ * waiting in waitForCompletion() is woken up and done() is called.
+ *
+ * The request can be sent on an idle connection to the same host. If keep-alive is
+ * enabled, its connection can be reused afterwards if the complete response was read
+ * and the server didn't ask for it to be closed.
+ *
+ * Everything other than cancel(), waitForCompletion() and fail() is only called from the
+ * I/O thread. The engine calls fail() from other threads when the I/O thread has died.
+ *
+ */
+class NioHttpRequest {
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    private enum State {
+        CONNECTING,
+        WRITING,
+        READING_HEADERS,
+        READING_BODY,
+        DONE
+    }
+
+    private enum ChunkState {
+        SIZE_LINE,
+        DATA,
+        DATA_END,
+        TRAILER
+    }
+
+    /**
+     * Thrown when the response rate drops below the minimum.
+     */
+    @SuppressWarnings("serial")
+    static class SlowResponseException extends IOException {
+        private long _readRate;
+
+        public SlowResponseException(long readRate) {
+            super("Slow response rate of " + readRate + " bytes/sec");
+            _readRate = readRate;
+        }
+
+        public long getReadRate() {
+            return _readRate;
+        }
+    }
+
+    /**
+     * Thrown when the request has been cancelled, or the engine aborted everything.
+     */
+    @SuppressWarnings("serial")
+    static class CancelledException extends IOException {
+        public CancelledException() {
+            super("Request was cancelled");
+        }
+    }
+
+    private String _url;
+    private InetSocketAddress _address;
+    private String _host;
+    private ByteBuffer _requestBuffer;
+    private int _minResponseRate;
+    private int _socketTimeout;
+    private int _connectionTimeout;
+    private long _requestTimeout;
+    private boolean _keepAlive;
+
+    private SelectionKey _key;
+    private boolean _reusedConnection;
+    private State _state;
+    private long _startTime;
+    private long _lastActivityTime;
+
+    private ByteArrayOutputStream _headerBytes;
+    private String _httpVersion;
+    private int _statusCode;
+    private List<String[]> _headers;
+
+    private ByteArrayOutputStream _content;
+    private int _targetLength;
+    private boolean _truncated;
+    private long _bodyRemaining;
+    private boolean _chunked;
+    private ChunkState _chunkState;
+    private long _chunkRemaining;
+    private StringBuilder _chunkLine;
+    private int _readRequests;
+    private long _readRate;
+    private boolean _bodyComplete;
+    private boolean _extraData;
+
+    private volatile boolean _cancelled;
+    private Exception _failure;
+    private boolean _notified;
+    private CountDownLatch _done;
+
+    /**
+     * Create a request for <url>, which will be sent to <address>.
+     *
+     * @param url URL being fetched (only used for error messages)
+     * @param address resolved address of the server
+     * @param request bytes of the HTTP request (request line and headers)
+     * @param minResponseRate minimum bytes/second we'll accept while reading the body
+     * @param socketTimeout max milliseconds without any activity
+     * @param connectionTimeout max milliseconds to establish the connection
+     */
+    public NioHttpRequest(String url, InetSocketAddress address, byte[] request, int minResponseRate, int socketTimeout, int connectionTimeout) {
+        this(url, address, null, request, minResponseRate, socketTimeout, connectionTimeout);
+    }
+
+    /**
+     * Create a request for <url>, which will be sent to <address>, as per the other
+     * constructor.
+     *
+     * @param host host name from the URL, which is used (with the address) to decide
+     *        which idle connections can be reused for this request, or null if only
+     *        the address matters.
+     */
+    public NioHttpRequest(String url, InetSocketAddress address, String host, byte[] request, int minResponseRate, int socketTimeout, int connectionTimeout) {
+        _url = url;
+        _address = address;
+        _host = host;
+        _requestBuffer = ByteBuffer.wrap(request);
+        _minResponseRate = minResponseRate;
+        _socketTimeout = socketTimeout;
+        _connectionTimeout = connectionTimeout;
+
+        _state = State.CONNECTING;
+        _headerBytes = new ByteArrayOutputStream();
+        _headers = new ArrayList<String[]>();
+        _done = new CountDownLatch(1);
+    }
+
+    /**
+     * Called once the status line and headers for a 2xx response have been read,
+     * to find out how much of the body we want.
+     *
+     * @param contentType value of the Content-Type header, or "" if there isn't one
+     * @return max number of content bytes to read
+     * @throws Exception if the response shouldn't be read (e.g. invalid mime-type)
+     */
+    protected int getTargetLength(String contentType) throws Exception {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Called once the request is done, after the engine has closed its connection (or
+     * made it available for another request). This is called by an I/O thread, or
+     * whichever thread failed the request, so it shouldn't block.
+     */
+    protected void done() {
+    }
+
+    public String getUrl() {
+        return _url;
+    }
+
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * @param keepAlive true if the connection can be kept for the next request to the same
+     *        host. The request bytes shouldn't include a "Connection: close" header in that case.
+     *        Either way, the request can be sent on an idle connection.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        _keepAlive = keepAlive;
+    }
+
+    public boolean isKeepAlive() {
+        return _keepAlive;
+    }
+
+    /**
+     * @param requestTimeout max milliseconds for the entire request, or 0 for no limit
+     *        (other than the socket and connection timeouts).
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        _requestTimeout = requestTimeout;
+    }
+
+    /**
+     * @return key for connections that can be shared with this request.
+     */
+    public String getConnectionKey() {
+        return (_host == null ? "" : _host.toLowerCase()) + "@" + _address;
+    }
+
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    /**
+     * @return list of header name/value pairs, in the order received.
+     */
+    public List<String[]> getHeaders() {
+        return _headers;
+    }
+
+    public String getFirstHeader(String name) {
+        for (String[] header : _headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+
+        return null;
+    }
+
+    public byte[] getContent() {
+        return (_content == null) ? new byte[0] : _content.toByteArray();
+    }
+
+    public boolean isTruncated() {
+        return _truncated;
+    }
+
+    public long getReadRate() {
+        return _readRate;
+    }
+
+    /**
+     * @return reason the request failed, or null if it succeeded (or isn't done yet).
+     */
+    public synchronized Exception getFailure() {
+        return _failure;
+    }
+
+    /**
+     * Ask the I/O thread to give up on this request. The waiting thread will get
+     * a CancelledException.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    /**
+     * Wait for the request to complete. If it takes longer than <timeout>, the request is
+     * cancelled and fails with a SocketTimeoutException. Requests that have a request
+     * timeout will always complete, so they can use a very long <timeout>.
+     *
+     * @param timeout max milliseconds to wait
+     * @return null if the request succeeded, otherwise the reason it failed.
+     * @throws InterruptedException
+     */
+    public Exception waitForCompletion(long timeout) throws InterruptedException {
+        if (!_done.await(timeout, TimeUnit.MILLISECONDS)) {
+            // Fail first, so the I/O thread can't beat us to it with a CancelledException. It
+            // closes the connection when it sees that we've been cancelled.
+            fail(new SocketTimeoutException("Request didn't complete within " + timeout + "ms"));
+            cancel();
+        }
+
+        synchronized (this) {
+            return _failure;
+        }
+    }
+
+    // ===================================================================
+    // Methods below here are only called by the engine's I/O thread.
+    // ===================================================================
+
+    void start(long now) {
+        _startTime = now;
+        _lastActivityTime = now;
+    }
+
+    SelectionKey getKey() {
+        return _key;
+    }
+
+    void setKey(SelectionKey key) {
+        _key = key;
+    }
+
+    boolean isDone() {
+        return _state == State.DONE;
+    }
+
+    boolean isConnecting() {
+        return _state == State.CONNECTING;
+    }
+
+    boolean isReusedConnection() {
+        return _reusedConnection;
+    }
+
+    void setReusedConnection(boolean reusedConnection) {
+        _reusedConnection = reusedConnection;
+    }
+
+    /**
+     * @return true if we've gotten any part of a response.
+     */
+    boolean hasResponseData() {
+        return (_statusCode != 0) || ((_headerBytes != null) && (_headerBytes.size() > 0));
+    }
+
+    /**
+     * Get ready to send the request again, on a new connection. This is used when an idle
+     * connection that we reused turns out to have been closed by the server.
+     *
+     * @return false if the request is already done.
+     */
+    synchronized boolean resetForRetry() {
+        if (_state == State.DONE) {
+            return false;
+        }
+
+        _state = State.CONNECTING;
+        _requestBuffer.rewind();
+        _headerBytes = new ByteArrayOutputStream();
+        _key = null;
+        _reusedConnection = false;
+        return true;
+    }
+
+    /**
+     * @return true if the request completed, and its connection can be used for another
+     *         request to the same host.
+     */
+    synchronized boolean isReusable() {
+        if (!_keepAlive || (_state != State.DONE) || (_failure != null) || !_bodyComplete || _extraData) {
+            return false;
+        }
+
+        String connection = getFirstHeader(HttpHeaderNames.CONNECTION);
+        if ((connection != null) && connection.toLowerCase().contains("close")) {
+            return false;
+        }
+
+        // HTTP/1.0 servers close the connection, unless they tell us otherwise.
+        return "HTTP/1.1".equals(_httpVersion) || ((connection != null) && connection.toLowerCase().contains("keep-alive"));
+    }
+
+    ByteBuffer getRequestBuffer() {
+        return _requestBuffer;
+    }
+
+    void onConnected(long now) {
+        _state = State.WRITING;
+        _lastActivityTime = now;
+    }
+
+    /**
+     * @return true if the complete request has been written.
+     */
+    boolean onWritten(long now) {
+        _lastActivityTime = now;
+        if (_requestBuffer.hasRemaining()) {
+            return false;
+        }
+
+        _state = State.READING_HEADERS;
+        return true;
+    }
+
+    /**
+     * Process bytes read from the connection.
+     *
+     * @return true if the request is now done.
+     */
+    boolean onData(byte[] data, int offset, int length, long now) throws Exception {
+        _lastActivityTime = now;
+
+        if (_state == State.READING_HEADERS) {
+            int headerLength = _headerBytes.size();
+            _headerBytes.write(data, offset, length);
+
+            // Back up a bit in case the end of headers marker got split between reads.
+            int endOfHeaders = findEndOfHeaders(_headerBytes.toByteArray(), Math.max(0, headerLength - 3));
+            if (endOfHeaders == -1) {
+                if (_headerBytes.size() > MAX_HEADER_SIZE) {
+                    throw new IOException("Response headers are too long");
+                }
+
+                return false;
+            }
+
+            byte[] headerBytes = _headerBytes.toByteArray();
+            _headerBytes = null;
+
+            // Anything past the headers is part of the body.
+            int bodyOffset = offset + (endOfHeaders - headerLength);
+            startBody(headerBytes, endOfHeaders);
+            if (_state == State.READING_HEADERS) {
+                // We got an interim (1xx) response, so start over with whatever's left.
+                _headerBytes = new ByteArrayOutputStream();
+                return onData(data, bodyOffset, (offset + length) - bodyOffset, now);
+            }
+
+            offset = bodyOffset;
+            length = headerBytes.length - endOfHeaders;
+
+            // If we don't want the body, then anything after the headers means the connection
+            // is in an unknown state.
+            if ((_state == State.DONE) && (length > 0)) {
+                _extraData = true;
+            }
+        }
+
+        if ((_state == State.READING_BODY) && (length > 0)) {
+            if (_chunked) {
+                processChunked(data, offset, length);
+            } else {
+                processBody(data, offset, length);
+            }
+
+            updateReadRate(now);
+
+            // Don't bail on the first read cycle, as we can get a hiccup starting out.
+            // Also don't bail if we've read everything we need.
+            if ((_state == State.READING_BODY) && (_readRequests > 1) && (_readRate < _minResponseRate)) {
+                throw new SlowResponseException(_readRate);
+            }
+        }
+
+        return _state == State.DONE;
+    }
+
+    /**
+     * The server closed the connection.
+     */
+    void onEndOfStream() throws IOException {
+        if (_state == State.READING_BODY) {
+            if (!_chunked && (_bodyRemaining == -1)) {
+                complete();
+            } else {
+                throw new IOException("Premature end of content received from server");
+            }
+        } else if (_state != State.DONE) {
+            throw new IOException("The target server failed to respond");
+        }
+    }
+
+    /**
+     * Check whether this request has timed out, been cancelled, or is reading
+     * too slowly. This handles the case of a server that stops sending
+     * data, where we'd never get an onData() call.
+     *
+     * @return reason to fail the request, or null if it's OK.
+     */
+    Exception checkStatus(long now) {
+        if (_cancelled) {
+            return new CancelledException();
+        } else if ((_requestTimeout > 0) && ((now - _startTime) > _requestTimeout)) {
+            return new SocketTimeoutException("Request didn't complete within " + _requestTimeout + "ms");
+        } else if (_state == State.CONNECTING) {
+            if ((now - _startTime) > _connectionTimeout) {
+                return new SocketTimeoutException("Connect to " + _address + " timed out");
+            }
+        } else if ((now - _lastActivityTime) > _socketTimeout) {
+            return new SocketTimeoutException("Read timed out");
+        } else if ((_state == State.READING_BODY) && (_readRequests > 1)) {
+            updateReadRate(now);
+            if (_readRate < _minResponseRate) {
+                return new SlowResponseException(_readRate);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Mark the request as failed, if it's not already done, and let the waiting thread
+     * know that it's done. The engine calls this (with a reason that's ignored) for requests
+     * that completed, once it's done with the connection.
+     */
+    void fail(Exception e) {
+        synchronized (this) {
+            if (_notified) {
+                return;
+            }
+
+            if (_state != State.DONE) {
+                _failure = e;
+                _state = State.DONE;
+            }
+
+            _notified = true;
+            _done.countDown();
+        }
+
+        done();
+    }
+
+    private synchronized void complete() {
+        if (_state != State.DONE) {
+            _state = State.DONE;
+        }
+    }
+
+    private void updateReadRate(long now) {
+        // Assume read time is at least one millisecond, to avoid DBZ exception.
+        long totalReadTime = Math.max(1, now - _startTime);
+        int totalRead = (_content == null) ? 0 : _content.size();
+        _readRate = (totalRead * 1000L) / totalReadTime;
+    }
+
+    private void startBody(byte[] headerBytes, int endOfHeaders) throws Exception {
+        parseHeaders(headerBytes, endOfHeaders);
+
+        if ((_statusCode >= 100) && (_statusCode < 200)) {
+            _headers.clear();
+            return;
+        }
+
+        // We don't need the body for redirects and errors, and 204/304 don't have one. We
+        // can only reuse the connection if there's no body that we'd have to skip.
+        // FUTURE KKr - read (and toss) short bodies, so redirects don't close the connection.
+        if ((_statusCode < 200) || (_statusCode >= 300) || (_statusCode == 204) || (_statusCode == 304)) {
+            String contentLength = getFirstHeader(HttpHeaderNames.CONTENT_LENGTH);
+            _bodyComplete = (_statusCode == 204) || (_statusCode == 304)
+                || ((getFirstHeader(HttpHeaderNames.TRANSFER_ENCODING) == null) && (contentLength != null) && contentLength.trim().equals("0"));
+            complete();
+            return;
+        }
+
+        String contentType = getFirstHeader(HttpHeaderNames.CONTENT_TYPE);
+        _targetLength = getTargetLength(contentType == null ? "" : contentType);
+
+        String transferEncoding = getFirstHeader(HttpHeaderNames.TRANSFER_ENCODING);
+        _chunked = (transferEncoding != null) && transferEncoding.toLowerCase().contains("chunked");
+        _chunkState = ChunkState.SIZE_LINE;
+        _chunkLine = new StringBuilder();
+        _bodyRemaining = -1;
+
+        String contentLengthStr = getFirstHeader(HttpHeaderNames.CONTENT_LENGTH);
+        if (!_chunked && (contentLengthStr != null)) {
+            try {
+                _bodyRemaining = Long.parseLong(contentLengthStr.trim());
+                if (_bodyRemaining > _targetLength) {
+                    _truncated = true;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore invalid content length values, and just read until the connection is closed.
+                _bodyRemaining = -1;
+            }
+        }
+
+        int initialSize = DEFAULT_BYTEARRAY_SIZE;
+        if (_bodyRemaining != -1) {
+            initialSize = (int)Math.min(_bodyRemaining, initialSize);
+        }
+
+        _content = new ByteArrayOutputStream(Math.max(0, Math.min(_targetLength, initialSize)));
+        _state = State.READING_BODY;
+
+        if ((_bodyRemaining == 0) || (_targetLength <= 0)) {
+            _bodyComplete = (_bodyRemaining == 0);
+            complete();
+        }
+    }
+
+    private void processBody(byte[] data, int offset, int length) {
+        _readRequests += 1;
+
+        int numBytes = length;
+        if (_bodyRemaining != -1) {
+            numBytes = (int)Math.min(numBytes, _bodyRemaining);
+            _bodyRemaining -= numBytes;
+            _extraData = (numBytes < length);
+        }
+
+        appendContent(data, offset, numBytes);
+
+        if (_bodyRemaining == 0) {
+            _bodyComplete = true;
+            complete();
+        }
+    }
+
+    private void processChunked(byte[] data, int offset, int length) throws IOException {
+        _readRequests += 1;
+
+        int end = offset + length;
+        int i = offset;
+        while ((i < end) && (_state == State.READING_BODY)) {
+            switch (_chunkState) {
+                case SIZE_LINE:
+                case TRAILER:
+                    byte b = data[i++];
+                    if (b == '\n') {
+                        endOfChunkLine();
+                    } else if (b != '\r') {
+                        if (_chunkLine.length() >= MAX_CHUNK_LINE_LENGTH) {
+                            throw new IOException("Chunk header is too long");
+                        }
+
+                        _chunkLine.append((char)(b & 0xFF));
+                    }
+                    break;
+
+                case DATA:
+                    int numBytes = (int)Math.min(end - i, _chunkRemaining);
+                    appendContent(data, i, numBytes);
+                    i += numBytes;
+                    _chunkRemaining -= numBytes;
+                    if (_chunkRemaining == 0) {
+                        _chunkState = ChunkState.DATA_END;
+                    }
+                    break;
+
+                case DATA_END:
+                    // Skip the CRLF after the chunk data.
+                    if (data[i++] == '\n') {
+                        _chunkState = ChunkState.SIZE_LINE;
+                    }
+                    break;
+            }
+        }
+
+        _extraData = (i < end);
+    }
+
+    private void endOfChunkLine() throws IOException {
+        String line = _chunkLine.toString().trim();
+        _chunkLine.setLength(0);
+
+        if (_chunkState == ChunkState.TRAILER) {
+            // An empty line terminates the trailer, and the response.
+            if (line.length() == 0) {
+                _bodyComplete = true;
+                complete();
+            }
+
+            return;
+        }
+
+        // Ignore any chunk extensions.
+        int extensionStart = line.indexOf(';');
+        if (extensionStart != -1) {
+            line = line.substring(0, extensionStart).trim();
+        }
+
+        try {
+            _chunkRemaining = Long.parseLong(line, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+
+        _chunkState = (_chunkRemaining == 0) ? ChunkState.TRAILER : ChunkState.DATA;
+    }
+
+    private void appendContent(byte[] data, int offset, int length) {
+        int numBytes = Math.min(length, _targetLength - _content.size());
+        _content.write(data, offset, numBytes);
+
+        if (_content.size() >= _targetLength) {
+            // We've got as much as we want, so if there's more we're truncating it.
+            if ((numBytes < length) || (_bodyRemaining != 0)) {
+                _truncated = true;
+            }
+
+            complete();
+        }
+    }
+
+    private void parseHeaders(byte[] headerBytes, int endOfHeaders) throws IOException {
+        String headerText;
+        try {
+            headerText = new String(headerBytes, 0, endOfHeaders, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+
+        String[] lines = headerText.split("\r?\n");
+        String statusLine = lines[0];
+        String[] statusParts = statusLine.split(" +", 3);
+        if ((statusParts.length < 2) || !statusParts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+
+        _httpVersion = statusParts[0];
+
+        try {
+            _statusCode = Integer.parseInt(statusParts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+
+        String[] lastHeader = null;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.length() == 0) {
+                continue;
+            }
+
+            if ((line.charAt(0) == ' ') || (line.charAt(0) == '\t')) {
+                // Continuation of the previous header's value.
+                if (lastHeader != null) {
+                    lastHeader[1] = lastHeader[1] + " " + line.trim();
+                }
+
+                continue;
+            }
+
+            int colonPos = line.indexOf(':');
+            if (colonPos <= 0) {
+                // Ignore invalid header lines, same as HttpClient.
+                continue;
+            }
+
+            lastHeader = new String[] { line.substring(0, colonPos).trim(), line.substring(colonPos + 1).trim() };
+            _headers.add(lastHeader);
+        }
+    }
+
+    /**
+     * Find the end of the headers in <data>, starting at <start>.
+     *
+     * @return offset of first byte past the blank line, or -1 if not found.
+     */
+    private static int findEndOfHeaders(byte[] data, int start) {
+        for (int i = start; i < data.length; i++) {
+            if (data[i] == '\n') {
+                if ((i + 1 < data.length) && (data[i + 1] == '\n')) {
+                    return i + 2;
+                } else if ((i + 2 < data.length) && (data[i + 1] == '\r') && (data[i + 2] == '\n')) {
+                    return i + 3;
+                }
+            }
+        }
+
+        return -1;
+    }
+}
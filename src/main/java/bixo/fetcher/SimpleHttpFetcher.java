@@ -22,24 +22,35 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -49,6 +60,7 @@ import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.NoHttpResponseException;
@@ -64,12 +76,16 @@ import org.apache.http.client.params.ClientParamBean;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.conn.ssl.AbstractVerifier;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.params.CookieSpecParamBean;
@@ -87,6 +103,7 @@ import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
+import bixo.config.BaseFetchJobPolicy;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.config.FetcherPolicy.RedirectMode;
@@ -95,6 +112,7 @@ import bixo.datum.FetchedDatum;
 import bixo.datum.HttpHeaders;
 import bixo.datum.Payload;
 import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlDatum;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
@@ -105,6 +123,7 @@ import bixo.exceptions.UrlFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
 import bixo.utils.EncodingUtils;
 import bixo.utils.HttpUtils;
+import bixo.utils.LatencyHistogram;
 
 @SuppressWarnings("serial")
 public class SimpleHttpFetcher extends BaseFetcher {
@@ -123,22 +142,38 @@ public class SimpleHttpFetcher extends BaseFetcher {
     // multiple threads to hit the same domain. So jack the value way up.
     private static final long CONNECTION_POOL_TIMEOUT = 100 * 1000L;
     
+    // Keep idle (kept-alive) connections around for a bit longer than the default crawl delay,
+    // so that the connection is still there when the next fetch set for that server is ready.
+    private static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = BaseFetchJobPolicy.DEFAULT_CRAWL_DELAY + (5 * 1000L);
+    
+    // How often the background thread checks for idle connections that should be closed.
+    private static final long IDLE_CONNECTION_CHECK_INTERVAL = 5 * 1000L;
+    
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final int DEFAULT_MAX_RETRY_COUNT = 10;
     
     private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
     
+    // Don't hang on to per-thread read buffers that have grown bigger than this.
+    private static final int MAX_POOLED_READ_BUFFER_SIZE = 1024 * 1024;
+    
+    // Buffer that each fetch thread uses to read content when we don't know the
+    // length up front, so we're not creating (and then garbage collecting) new
+    // buffers for every request.
+    private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>();
+    
     // Use the same values as Firefox (except that we don't accept deflate,
     // which we're not sure is implemented correctly - see the notes in
     // EncodingUtils/EncodingUtilsTest for more details).
-    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
-    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
-    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+    static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
 
     // Keys used to access data in the Http execution context.
     private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
 	private static final String REDIRECT_COUNT_CONTEXT_KEY = "redirect-count";
 	private static final String HOST_ADDRESS = "host-address";
+	private static final String REQUEST_START_TIME = "request-start-time";
 
     private static final String SSL_CONTEXT_NAMES[] = {
         "TLS",
@@ -151,8 +186,16 @@ public class SimpleHttpFetcher extends BaseFetcher {
     private int _socketTimeout;
     private int _connectionTimeout;
     private int _maxRetryCount;
+    private int _maxIdleConnections;
+    private long _idleConnectionTimeout;
+    private String _proxyHost;
+    private int _proxyPort;
     
     transient private DefaultHttpClient _httpClient;
+    transient private AtomicInteger _connectionsOpened;
+    transient private AtomicInteger _connectionsReused;
+    transient private AtomicLong _contentBytesAllocated;
+    transient private Map<FetchPhase, LatencyHistogram> _latencies;
     
     private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
         private int _maxRetryCount;
@@ -264,11 +307,19 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
     
     /**
-     * Interceptor to record host address in context.
+     * Interceptor to record host address and request start time in context.
      *
      */
     private static class MyRequestInterceptor implements HttpRequestInterceptor {
 
+        private AtomicInteger _connectionsOpened;
+        private AtomicInteger _connectionsReused;
+        
+        public MyRequestInterceptor(AtomicInteger connectionsOpened, AtomicInteger connectionsReused) {
+            _connectionsOpened = connectionsOpened;
+            _connectionsReused = connectionsReused;
+        }
+        
         @Override
         public void process(HttpRequest request,
                             HttpContext context)
@@ -279,6 +330,166 @@ public class SimpleHttpFetcher extends BaseFetcher {
             
             context.setAttribute(   HOST_ADDRESS,
                                     connection.getRemoteAddress().getHostAddress());
+            
+            // The connection is open by the time we get called, so this is when we start
+            // waiting for the first byte of the response.
+            context.setAttribute(REQUEST_START_TIME, System.nanoTime());
+            
+            // The request count doesn't include this request yet, so anything > 0 means
+            // we're using a kept-alive connection.
+            if (connection.getMetrics().getRequestCount() > 0) {
+                _connectionsReused.incrementAndGet();
+            } else {
+                _connectionsOpened.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Interceptor to record time from sending the request to getting the response headers.
+     * This gets called for each redirect, so every request to a server is included.
+     *
+     */
+    private static class MyResponseInterceptor implements HttpResponseInterceptor {
+
+        private LatencyHistogram _firstByteLatency;
+        
+        public MyResponseInterceptor(LatencyHistogram firstByteLatency) {
+            _firstByteLatency = firstByteLatency;
+        }
+        
+        @Override
+        public void process(HttpResponse response,
+                            HttpContext context)
+            throws HttpException, IOException {
+            
+            Long requestStartTime = (Long)context.getAttribute(REQUEST_START_TIME);
+            if (requestStartTime != null) {
+                _firstByteLatency.recordSince(requestStartTime);
+                context.removeAttribute(REQUEST_START_TIME);
+            }
+        }
+    }
+    
+    /**
+     * Socket factory that times how long it takes to resolve the host name and connect,
+     * when HttpClient needs a new connection. We do the DNS lookup here (versus letting
+     * the plain socket factory do it) so that it gets timed separately.
+     *
+     */
+    private static class TimingSocketFactory implements SocketFactory {
+        
+        protected Map<FetchPhase, LatencyHistogram> _latencies;
+        
+        public TimingSocketFactory(Map<FetchPhase, LatencyHistogram> latencies) {
+            _latencies = latencies;
+        }
+        
+        @Override
+        public Socket createSocket() throws IOException {
+            return PlainSocketFactory.getSocketFactory().createSocket();
+        }
+        
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                        HttpParams params) throws IOException {
+            long startTime = System.nanoTime();
+            InetAddress address = InetAddress.getByName(host);
+            _latencies.get(FetchPhase.DNS).recordSince(startTime);
+            
+            startTime = System.nanoTime();
+            Socket result = PlainSocketFactory.getSocketFactory().connectSocket(sock, address.getHostAddress(), port, localAddress, localPort, params);
+            _latencies.get(FetchPhase.CONNECT).recordSince(startTime);
+            return result;
+        }
+        
+        @Override
+        public boolean isSecure(Socket sock) throws IllegalArgumentException {
+            return false;
+        }
+    }
+    
+    /**
+     * Socket factory for https, which opens a plain connection (timing the DNS lookup and
+     * connect) and then layers SSL on top of it, so we can also time the TLS handshake.
+     *
+     */
+    private static class TimingLayeredSocketFactory extends TimingSocketFactory implements LayeredSocketFactory {
+        
+        private LayeredSocketFactory _sslFactory;
+        
+        public TimingLayeredSocketFactory(LayeredSocketFactory sslFactory, Map<FetchPhase, LatencyHistogram> latencies) {
+            super(latencies);
+            
+            _sslFactory = sslFactory;
+        }
+        
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                        HttpParams params) throws IOException {
+            Socket plainSocket = super.connectSocket(sock, host, port, localAddress, localPort, params);
+            
+            // Don't let a server that never finishes the handshake hang us.
+            plainSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            
+            long startTime = System.nanoTime();
+            Socket result = createSocket(plainSocket, host, port, true);
+            
+            // Make sure the handshake has happened, in case the hostname verifier didn't need
+            // the session. This won't start another handshake if one has already been done.
+            ((SSLSocket)result).getSession();
+            _latencies.get(FetchPhase.TLS).recordSince(startTime);
+            return result;
+        }
+        
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return _sslFactory.createSocket(socket, host, port, autoClose);
+        }
+        
+        @Override
+        public boolean isSecure(Socket sock) throws IllegalArgumentException {
+            return _sslFactory.isSecure(sock);
+        }
+    }
+    
+    /**
+     * Background thread that closes connections which have been sitting idle in the pool
+     * for longer than <idleTimeout>. We only hold a weak reference to the connection manager,
+     * so the thread goes away once the fetcher (and thus its HttpClient) is no longer used.
+     *
+     */
+    private static class IdleConnectionMonitor extends Thread {
+        
+        private WeakReference<ClientConnectionManager> _connectionManager;
+        private long _idleTimeout;
+        
+        public IdleConnectionMonitor(ClientConnectionManager connectionManager, long idleTimeout) {
+            super("IdleConnectionMonitor");
+            setDaemon(true);
+            
+            _connectionManager = new WeakReference<ClientConnectionManager>(connectionManager);
+            _idleTimeout = idleTimeout;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(IDLE_CONNECTION_CHECK_INTERVAL);
+                    
+                    ClientConnectionManager cm = _connectionManager.get();
+                    if (cm == null) {
+                        break;
+                    }
+                    
+                    cm.closeIdleConnections(_idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Time to stop.
+            } catch (Exception e) {
+                LOGGER.warn("Exception closing idle connections", e);
+            }
         }
     }
     
@@ -315,6 +526,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
         _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
         _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
         _maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
+        _maxIdleConnections = maxThreads;
+        _idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
 
         // Just to be explicit, we rely on lazy initialization of this so that
         // we don't have to worry about serializing it.
@@ -365,7 +578,87 @@ public class SimpleHttpFetcher extends BaseFetcher {
         _maxRetryCount = maxRetryCount;
     }
     
-    private static FetchedDatum convert(FetchedResult result) {
+    public int getMaxIdleConnections() {
+        return _maxIdleConnections;
+    }
+    
+    /**
+     * Set the number of connections we keep in the pool beyond the number of threads,
+     * so that kept-alive connections to servers we'll be fetching from again don't get
+     * closed to make room for connections to other servers.
+     * 
+     * @param maxIdleConnections extra connections in the pool
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        if (_httpClient == null) {
+            _maxIdleConnections = maxIdleConnections;
+        } else {
+            throw new IllegalStateException("Can't change max idle connections after HttpClient has been initialized");
+        }
+    }
+    
+    public long getIdleConnectionTimeout() {
+        return _idleConnectionTimeout;
+    }
+    
+    public void setIdleConnectionTimeout(long idleConnectionTimeoutInMs) {
+        if (_httpClient == null) {
+            _idleConnectionTimeout = idleConnectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change idle connection timeout after HttpClient has been initialized");
+        }
+    }
+    
+    public String getProxyHost() {
+        return _proxyHost;
+    }
+    
+    public int getProxyPort() {
+        return _proxyPort;
+    }
+    
+    /**
+     * Send all requests via the HTTP proxy at <proxyHost>:<proxyPort>. This also lets us
+     * fetch from a local server that pretends to be lots of different hosts (e.g. for
+     * benchmarking), since the proxy gets the full URL, and the target host isn't resolved.
+     * 
+     * @param proxyHost name of proxy server, or null to not use a proxy
+     * @param proxyPort port of proxy server
+     */
+    public void setProxy(String proxyHost, int proxyPort) {
+        if (_httpClient == null) {
+            _proxyHost = proxyHost;
+            _proxyPort = proxyPort;
+        } else {
+            throw new IllegalStateException("Can't change proxy after HttpClient has been initialized");
+        }
+    }
+    
+    @Override
+    public int getNumConnectionsOpened() {
+        return (_connectionsOpened == null ? 0 : _connectionsOpened.get());
+    }
+    
+    @Override
+    public int getNumConnectionsReused() {
+        return (_connectionsReused == null ? 0 : _connectionsReused.get());
+    }
+    
+    @Override
+    public Map<FetchPhase, LatencyHistogram> getLatencyHistograms() {
+        if (_latencies == null) {
+            return Collections.emptyMap();
+        } else {
+            return Collections.unmodifiableMap(_latencies);
+        }
+    }
+    
+    @Override
+    public long getNumContentBytesAllocated() {
+        return (_contentBytesAllocated == null ? 0 : _contentBytesAllocated.get());
+    }
+    
+    static FetchedDatum convert(FetchedResult result) {
     	FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
     	                result.getHeaders(), new ContentBytes(result.getContent()), result.getContentType(),
     	                result.getResponseRate());
@@ -373,12 +666,25 @@ public class SimpleHttpFetcher extends BaseFetcher {
     	datum.setNumRedirects(result.getNumRedirects());
     	datum.setHostAddress(result.getHostAddress());
     	datum.setPayload(result.getPayload());
+    	datum.setTruncated(result.isTruncated());
     	return datum;
     }
 
     @Override
     public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
-        return convert(request(new HttpGet(), scoredUrl));
+        return get(scoredUrl, false);
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl, boolean lastRequest) throws BaseFetchException {
+        HttpGet request = new HttpGet();
+        if (lastRequest) {
+            // Let the server know that it doesn't need to keep the socket open for us. The
+            // header gets copied to any redirect requests.
+            request.setHeader(HttpHeaderNames.CONNECTION, "close");
+        }
+        
+        return convert(request(request, scoredUrl));
     }
 
     private FetchedResult request(HttpRequestBase request, ScoredUrlDatum scoredUrl) throws BaseFetchException {
@@ -427,6 +733,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
         HttpResponse response;
         long readStartTime;
+        long requestStartNanos;
         HttpHeaders headerMap = new HttpHeaders();
         String redirectedUrl = null;
         String newBaseUrl = null;
@@ -449,8 +756,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
         
         try {
             request.setURI(new URI(url));
+            addConditionalHeaders(request, payload);
             
             readStartTime = System.currentTimeMillis();
+            requestStartNanos = System.nanoTime();
             response = _httpClient.execute(request, localContext);
 
             Header[] headers = response.getAllHeaders();
@@ -470,6 +779,12 @@ public class SimpleHttpFetcher extends BaseFetcher {
                 }
             }
             
+            if (httpStatus == HttpStatus.SC_NOT_MODIFIED) {
+                // A 304 never has a body, so HttpClient has already released the connection
+                // back to the pool for reuse - don't kill it with an abort.
+                needAbort = false;
+            }
+            
             if ((httpStatus < 200) || (httpStatus >= 300)) {
                 // We can't just check against SC_OK, as some wackos return 201, 202, etc
                 throw new HttpFetchException(url, "Error fetching " + url, httpStatus, headerMap);
@@ -560,17 +875,23 @@ public class SimpleHttpFetcher extends BaseFetcher {
             safeAbort(needAbort, request);
         }
         
-        // Figure out how much data we want to try to fetch.
+        // Figure out how much data we want to try to fetch. If the content is compressed then
+        // the Content-Length header is the compressed size, and the limit applies to the
+        // decoded content, so we can't use it to decide up front.
+        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        boolean decoding = EncodingUtils.isSupportedEncoding(contentEncoding);
         int targetLength = getMaxContentSize(mimeType);
         boolean truncated = false;
+        boolean exactLength = false;
         String contentLengthStr = headerMap.getFirst(HttpHeaderNames.CONTENT_LENGTH);
-        if (contentLengthStr != null) {
+        if (!decoding && (contentLengthStr != null)) {
             try {
                 int contentLength = Integer.parseInt(contentLengthStr);
                 if (contentLength > targetLength) {
                     truncated = true;
-                } else {
+                } else if (contentLength >= 0) {
                     targetLength = contentLength;
+                    exactLength = true;
                 }
             } catch (NumberFormatException e) {
                 // Ignore (and log) invalid content length values.
@@ -578,7 +899,12 @@ public class SimpleHttpFetcher extends BaseFetcher {
             }
         }
 
-        // Now finally read in response body, up to targetLength bytes.
+        if (decoding && LOGGER.isTraceEnabled()) {
+            fetchTrace.append("; Content-Encoding: " + contentEncoding);
+        }
+
+        // Now finally read in response body, up to targetLength bytes. Compressed content
+        // gets decoded as we read it, so we never buffer the entire compressed response.
         // Note that entity might be null, for zero length responses.
         byte[] content = new byte[0];
         long readRate = 0;
@@ -586,14 +912,25 @@ public class SimpleHttpFetcher extends BaseFetcher {
         needAbort = true;
 
         if (entity != null) {
+            long downloadStartNanos = System.nanoTime();
+            CountingInputStream rawIn = null;
             InputStream in = null;
 
             try {
-                in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
+                rawIn = new CountingInputStream(entity.getContent());
+                in = EncodingUtils.getDecodingStream(rawIn, contentEncoding);
+                
+                // If we know exactly how much we'll be reading, then read directly into the array
+                // that we return. Otherwise use this thread's read buffer, and copy out what we get.
+                byte[] buffer;
+                if (exactLength) {
+                    buffer = allocateContentBuffer(targetLength);
+                } else {
+                    buffer = getReadBuffer(Math.min(targetLength, DEFAULT_BYTEARRAY_SIZE));
+                }
+                
                 int bytesRead = 0;
                 int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
 
                 int readRequests = 0;
                 int minResponseRate = _fetcherPolicy.getMinResponseRate();
@@ -602,62 +939,72 @@ public class SimpleHttpFetcher extends BaseFetcher {
                 // metrics support for how to do this. Once we fix this, fix
                 // the test to read a smaller (< 20K)
                 // chuck of data.
-                while ((totalRead < targetLength) &&
-                                ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
-                    readRequests += 1;
-                    totalRead += bytesRead;
-                    out.write(buffer, 0, bytesRead);
-
-                    // Assume read time is at least one millisecond, to avoid DBZ exception.
-                    long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
-                    readRate = (totalRead * 1000L) / totalReadTime;
-
-                    // Don't bail on the first read cycle, as we can get a hiccup starting out.
-                    // Also don't bail if we've read everything we need.
-                    if ((readRequests > 1) && (totalRead < targetLength) && (readRate < minResponseRate)) {
-                        throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                try {
+                    while (totalRead < targetLength) {
+                        if (totalRead == buffer.length) {
+                            buffer = growReadBuffer(buffer, targetLength);
+                        }
+                        
+                        int readLength = Math.min(BUFFER_SIZE, Math.min(buffer.length, targetLength) - totalRead);
+                        if ((bytesRead = in.read(buffer, totalRead, readLength)) == -1) {
+                            break;
+                        }
+                        
+                        readRequests += 1;
+                        totalRead += bytesRead;
+
+                        // The response rate is based on what we get from the server, not the
+                        // decoded size. Assume read time is at least one millisecond, to avoid DBZ exception.
+                        long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
+                        readRate = (rawIn.getByteCount() * 1000L) / totalReadTime;
+
+                        // Don't bail on the first read cycle, as we can get a hiccup starting out.
+                        // Also don't bail if we've read everything we need.
+                        if ((readRequests > 1) && (totalRead < targetLength) && (readRate < minResponseRate)) {
+                            throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                        }
+
+                        // Check to see if we got interrupted.
+                        if (Thread.interrupted()) {
+                            throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                        }
                     }
 
-                    // Check to see if we got interrupted.
-                    if (Thread.interrupted()) {
-                        throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                    // If we filled up to the limit without knowing the real length, see if there's more.
+                    if (!truncated && !exactLength && (totalRead == targetLength) && (in.read() != -1)) {
+                        truncated = true;
+                    }
+                } catch (IOException e) {
+                    // As with EncodingUtils.processGzipEncoded(), keep whatever we were able to
+                    // decode from a corrupt or incomplete compressed response.
+                    if (!decoding || !((e instanceof ZipException) || (e instanceof EOFException))) {
+                        throw e;
                     }
+
+                    LOGGER.trace("Exception decoding content from " + url, e);
+                    truncated = true;
                 }
 
-                content = out.toByteArray();
-                needAbort = truncated || (in.available() > 0);
+                if (exactLength && (totalRead == buffer.length)) {
+                    content = buffer;
+                } else {
+                    content = allocateContentBuffer(totalRead);
+                    System.arraycopy(buffer, 0, content, 0, totalRead);
+                }
+                
+                needAbort = truncated || (rawIn.available() > 0);
+                _latencies.get(FetchPhase.DOWNLOAD).recordSince(downloadStartNanos);
             } catch (IOException e) {
                 // We don't need to abort if there's an IOException
                 throw new IOFetchException(url, e);
             } finally {
                 safeAbort(needAbort, request);
-                safeClose(in);
+                safeClose(in == null ? rawIn : in);
             }
         }
 
-
-        // Now see if we need to uncompress the content.
-        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
-        if (contentEncoding != null) {
-            if (LOGGER.isTraceEnabled()) {
-                fetchTrace.append("; Content-Encoding: " + contentEncoding);
-            }
-
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    content = EncodingUtils.processGzipEncoded(content);
-                    if (LOGGER.isTraceEnabled()) {
-                        fetchTrace.append("; unzipped to " + content.length + " bytes");
-                    }
-                } else if ("deflate".equals(contentEncoding)) {
-                    content = EncodingUtils.processDeflateEncoded(content);
-                    if (LOGGER.isTraceEnabled()) {
-                        fetchTrace.append("; inflated to " + content.length + " bytes");
-                    }
-                }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
-            }
+        if (LOGGER.isTraceEnabled()) {
+            fetchTrace.append("; " + content.length + " bytes" + (truncated ? " (truncated)" : ""));
         }
 
         // Finally dump out the trace msg we've been building.
@@ -665,6 +1012,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
             LOGGER.trace(fetchTrace.toString());
         }
         
+        _latencies.get(FetchPhase.TOTAL).recordSince(requestStartNanos);
+        
         return new FetchedResult(   url,
                                     redirectedUrl,
                                     System.currentTimeMillis(), 
@@ -675,7 +1024,50 @@ public class SimpleHttpFetcher extends BaseFetcher {
                                     payload,
                                     newBaseUrl,
                                     numRedirects,
-                                    hostAddress);
+                                    hostAddress,
+                                    truncated);
+    }
+    
+    private byte[] allocateContentBuffer(int size) {
+        _contentBytesAllocated.addAndGet(size);
+        return new byte[size];
+    }
+    
+    /**
+     * Return this thread's read buffer, making sure it's at least <minSize> bytes long.
+     * 
+     * @param minSize minimum size of buffer
+     * @return buffer that can be used until the current request is done.
+     */
+    private byte[] getReadBuffer(int minSize) {
+        byte[] result = READ_BUFFER.get();
+        if ((result == null) || (result.length < minSize)) {
+            result = allocateContentBuffer(minSize);
+            if (minSize <= MAX_POOLED_READ_BUFFER_SIZE) {
+                READ_BUFFER.set(result);
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Double the size of the full read buffer <buffer>, up to <maxSize> bytes.
+     * 
+     * @param buffer full buffer
+     * @param maxSize most data we'll need to read
+     * @return new buffer, containing the same data as <buffer>
+     */
+    private byte[] growReadBuffer(byte[] buffer, int maxSize) {
+        int newSize = (int)Math.min(Math.max(1, buffer.length * 2L), maxSize);
+        byte[] result = allocateContentBuffer(newSize);
+        System.arraycopy(buffer, 0, result, 0, buffer.length);
+        
+        if (newSize <= MAX_POOLED_READ_BUFFER_SIZE) {
+            READ_BUFFER.set(result);
+        }
+        
+        return result;
     }
     
     private String extractRedirectedUrl(String url, HttpContext localContext) {
@@ -695,6 +1087,30 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
+    /**
+     * If <payload> has the Last-Modified/ETag values from a previous fetch, add them to
+     * <request> as conditional headers, so the server can return a 304 (not modified)
+     * versus sending us the same content again.
+     * 
+     * @param request request to be made
+     * @param payload payload for the URL being fetched
+     */
+    private static void addConditionalHeaders(HttpRequestBase request, Payload payload) {
+        if (payload == null) {
+            return;
+        }
+        
+        Object lastModified = payload.get(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY);
+        if ((lastModified != null) && (lastModified.toString().length() > 0)) {
+            request.setHeader(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified.toString());
+        }
+        
+        Object etag = payload.get(UrlDatum.ETAG_PAYLOAD_KEY);
+        if ((etag != null) && (etag.toString().length() > 0)) {
+            request.setHeader(HttpHeaderNames.IF_NONE_MATCH, etag.toString());
+        }
+    }
+    
     private static void safeClose(Closeable o) {
         if (o != null) {
             try {
@@ -723,7 +1139,9 @@ public class SimpleHttpFetcher extends BaseFetcher {
             // TODO KKr - w/4.1, switch to new api (ThreadSafeClientConnManager)
             // cm.setMaxTotalConnections(_maxThreads);
             // cm.setDefaultMaxPerRoute(Math.max(10, _maxThreads/10));
-            ConnManagerParams.setMaxTotalConnections(params, _maxThreads);
+            // We add in slop for idle connections, so that a kept-alive connection to a server we'll
+            // be fetching from again soon doesn't get closed to make room for a new connection.
+            ConnManagerParams.setMaxTotalConnections(params, _maxThreads + _maxIdleConnections);
             
             // Set the maximum time we'll wait for a spare connection in the connection pool. We
             // shouldn't actually hit this, as we make sure (in FetcherManager) that the max number
@@ -750,13 +1168,22 @@ public class SimpleHttpFetcher extends BaseFetcher {
             HttpProtocolParams.setHttpElementCharset(params, "UTF-8");
             HttpProtocolParams.setUseExpectContinue(params, true);
 
+            if (_proxyHost != null) {
+                ConnRouteParams.setDefaultProxy(params, new HttpHost(_proxyHost, _proxyPort));
+            }
+
             // TODO KKr - set on connection manager params, or client params?
             CookieSpecParamBean cookieParams = new CookieSpecParamBean(params);
             cookieParams.setSingleHeader(true);
 
             // Create and initialize scheme registry
             SchemeRegistry schemeRegistry = new SchemeRegistry();
-            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            _latencies = new EnumMap<FetchPhase, LatencyHistogram>(FetchPhase.class);
+            for (FetchPhase phase : FetchPhase.values()) {
+                _latencies.put(phase, new LatencyHistogram());
+            }
+            
+            schemeRegistry.register(new Scheme("http", new TimingSocketFactory(_latencies), 80));
             SSLSocketFactory sf = null;
 
             for (String contextName : SSL_CONTEXT_NAMES) {
@@ -774,7 +1201,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
             
             if (sf != null) {
                 sf.setHostnameVerifier(new DummyX509HostnameVerifier());
-                schemeRegistry.register(new Scheme("https", sf, 443));
+                schemeRegistry.register(new Scheme("https", new TimingLayeredSocketFactory(sf, _latencies), 443));
             } else {
                 LOGGER.warn("No valid SSLContext found for https");
             }
@@ -784,7 +1211,13 @@ public class SimpleHttpFetcher extends BaseFetcher {
             _httpClient = new DefaultHttpClient(cm, params);
             _httpClient.setHttpRequestRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
             _httpClient.setRedirectHandler(new MyRedirectHandler(_fetcherPolicy.getRedirectMode()));
-            _httpClient.addRequestInterceptor(new MyRequestInterceptor());
+            _connectionsOpened = new AtomicInteger();
+            _connectionsReused = new AtomicInteger();
+            _contentBytesAllocated = new AtomicLong();
+            _httpClient.addRequestInterceptor(new MyRequestInterceptor(_connectionsOpened, _connectionsReused));
+            _httpClient.addResponseInterceptor(new MyResponseInterceptor(_latencies.get(FetchPhase.FIRST_BYTE)));
+            
+            new IdleConnectionMonitor(cm, _idleConnectionTimeout).start();
             
             params = _httpClient.getParams();
             // FUTURE KKr - support authentication
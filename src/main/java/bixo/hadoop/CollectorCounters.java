@@ -0,0 +1,11 @@
+package bixo.hadoop;
+
+public enum CollectorCounters {
+    TUPLES_WRITTEN,     // Tuples written to the output collector by the writer thread
+    TUPLES_LOST,        // Tuples that showed up after the writer thread was stopped
+    BATCHES_WRITTEN,    // Times the writer thread woke up and drained the queue
+    PEAK_QUEUE_DEPTH,   // Max tuples waiting in the queue at one time
+    STALL_TIME,         // Total milliseconds the writer thread spent in the collector's add()
+    BLOCKED_TIME,       // Total milliseconds workers spent waiting for space in the queue
+    DRAIN_TIME,         // Milliseconds spent waiting for the queue to drain during shutdown
+}
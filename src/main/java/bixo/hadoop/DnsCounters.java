@@ -0,0 +1,9 @@
+package bixo.hadoop;
+
+public enum DnsCounters {
+    HOSTS_RESOLVED,         // Hosts we had to look up (cache misses)
+    HOSTS_CACHED,           // Lookups answered from the cache
+    HOSTS_UNKNOWN_CACHED,   // Lookups where the cache said the host was unknown
+    RESOLVE_TIME,           // Total milliseconds spent in lookups
+    ENTRIES_LOADED,         // Entries loaded from the DNS cache directory
+}
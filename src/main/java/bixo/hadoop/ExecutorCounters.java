@@ -0,0 +1,11 @@
+package bixo.hadoop;
+
+public enum ExecutorCounters {
+    TASKS_WAITED,       // Times we had to wait for a thread (or queue space) to run a task
+    WAIT_TIME,          // Total milliseconds spent waiting to run tasks
+    TASKS_REJECTED,     // Tasks rejected because we waited too long
+    PEAK_THREADS,       // Max threads in the pool at one time
+    PEAK_QUEUE_SIZE,    // Max tasks waiting in the queue (QUEUED mode only)
+    BUSY_TIME,          // Total milliseconds that threads spent running tasks
+    THREAD_TIME,        // Total thread-milliseconds available (max threads * time executor was running)
+}
@@ -14,16 +14,27 @@ public enum FetchCounters {
     URLS_DEFERRED,      // URLs we deferred, because domain was deferred
     URLS_REJECTED,      // URLS we rejected, because domain was rejected
     URLS_BLOCKED,       // URLS we blocked, because of robots.txt
+    ROBOTS_CACHED,      // Domains where we used cached robots.txt rules
+    ROBOTS_CACHE_LOADED, // Entries loaded from the robots cache directory
+    DOMAINS_BATCHED,    // Domains queued up behind another domain on the same server
+    DOMAINS_UNBATCHED,  // Domains processed on their own, because their server's queue was full
     
     // During URL fetching
     URLS_FETCHING,
     URLS_FETCHED,
     URLS_SKIPPED,           // (incl. URLS_SKIPPED_PER_SERVER_LIMIT)
     URLS_FAILED,
+    URLS_NOT_MODIFIED,      // Conditional fetches where the server said nothing changed (304)
 
     URLS_SKIPPED_PER_SERVER_LIMIT, // UrlStatus.SKIPPED_PER_SERVER_LIMIT
     
     FETCHED_BYTES,          // Total bytes of fetched content.
     FETCHED_TIME,           // Total time in milliseconds spent fetching
+    URLS_TRUNCATED,         // Fetched URLs where content was cut off at the max content size
+    
+    CONNECTIONS_OPENED,     // Requests that needed a new connection
+    CONNECTIONS_REUSED,     // Requests that reused a kept-alive connection
+    
+    CONTENT_BUFFER_KBYTES,  // KBytes allocated for reading in content (compare to FETCHED_BYTES)
 
 }
@@ -0,0 +1,8 @@
+package bixo.hadoop;
+
+public enum SpillCounters {
+    ELEMENTS_FORCED_TO_DISK,    // Elements written to disk because we were over the memory quota
+    PEAK_ELEMENTS_IN_MEMORY,    // Max elements held in memory by all queues at one time
+    PEAK_BLOCKS_IN_USE,         // Max arena blocks in use at one time
+    KBYTES_WRITTEN,             // Total KB written to the arena file
+}
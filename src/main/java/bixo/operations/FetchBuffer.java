@@ -2,27 +2,33 @@ package bixo.operations;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
 import bixo.cascading.BixoFlowProcess;
 import bixo.cascading.BaseDatum;
+import bixo.cascading.DatumCodec;
+import bixo.cascading.GangliaFlowReporter;
 import bixo.cascading.LoggingFlowReporter;
 import bixo.cascading.NullContext;
+import bixo.cascading.TupleCollectorThread;
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
 import bixo.datum.FetchedDatum;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.AsyncFetchTask;
 import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.FetchPhase;
 import bixo.fetcher.FetchTask;
 import bixo.fetcher.IFetchMgr;
+import bixo.hadoop.ExecutorCounters;
 import bixo.hadoop.FetchCounters;
-import bixo.utils.DiskQueue;
+import bixo.utils.LatencyHistogram;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
@@ -39,17 +45,19 @@ import cascading.tuple.TupleEntryCollector;
 public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<NullContext>, IFetchMgr {
     private static Logger LOGGER = Logger.getLogger(FetchBuffer.class);
 
-    private class QueuedValues {
+    private class QueuedValues implements FetchSetQueue.IReadyTimes {
         private static final int MAX_ELEMENTS_IN_MEMORY = 1000;
         
-        private DiskQueue<FetchSetDatum> _queue;
+        private FetchSetQueue _queue;
         private Iterator<TupleEntry> _values;
         private boolean _iteratorDone;
+        private long _nextReadyTime;
         
         public QueuedValues(Iterator<TupleEntry> values) {
             _values = values;
             _iteratorDone = false;
-            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY);
+            _nextReadyTime = Long.MAX_VALUE;
+            _queue = new FetchSetQueue(_codec, this, MAX_ELEMENTS_IN_MEMORY);
         }
         
         /**
@@ -68,37 +76,64 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             return _queue.isEmpty() && !safeHasNext();
         }
         
+        public void close() {
+            _queue.close();
+        }
+        
+        @Override
+        public long getReadyTime(String ref) {
+            return FetchBuffer.this.getReadyTime(ref);
+        }
+        
+        /**
+         * Return the earliest time when one of the queued entries that we looked at during
+         * the last call to nextOrNull() will be ready, or Long.MAX_VALUE if we don't know
+         * (e.g. everything is waiting on an active fetch to finish).
+         * 
+         * @return time in milliseconds
+         */
+        public long getNextReadyTime() {
+            return _nextReadyTime;
+        }
+        
         public FetchSetDatum nextOrNull(FetcherMode mode) {
             
+            // Only scan the queue once per call. Anything we queue up below has just been
+            // checked, so it's not going to be ready.
+            boolean queueScanned = false;
+            _nextReadyTime = Long.MAX_VALUE;
+            
             // Loop until we have something to return, or there's nothing that we can return.
             while (true) {
                 // First see if we've got something in the queue, and if so, then check if it's ready
                 // to be processed.
-                FetchSetDatum datum = _queue.peek();
-                if (datum != null) {
-                    String ref = datum.getGroupingRef();
-                    if (_activeRefs.get(ref) == null) {
-                        Long nextFetchTime = _pendingRefs.get(ref);
-                        if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
-                            return _queue.remove();
+                FetchSetDatum datum = null;
+                if (mode == FetcherMode.COMPLETE) {
+                    if (!queueScanned) {
+                        queueScanned = true;
+                        datum = _queue.removeFirstReady();
+                        updateNextReadyTime(_queue.getNextReadyTime());
+                        if (datum != null) {
+                            return datum;
                         }
+                        
+                        trace("Nothing in queue is ready (domains still active or pending)");
+                    }
+                } else {
+                    datum = _queue.poll();
+                    if ((datum != null) && isReady(datum.getGroupingRef())) {
+                        return datum;
                     }
                 }
 
                 // We have a datum from the queue, but it's not ready to be returned.
                 if (datum != null) {
                     switch (mode) {
-                        case COMPLETE:
-                            trace("Ignoring top queue item %s (domain still active or pending)", datum.getGroupingRef());
-                            break;
-
                         case IMPOLITE:
-                            _queue.remove();
                             return datum;
                             
                         // In efficient fetching, we punt on items that aren't ready.
                         case EFFICIENT:
-                            _queue.remove();
                             List<ScoredUrlDatum> urls = datum.getUrls();
                             trace("Skipping %d urls from %s (e.g. %s)", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
                             skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
@@ -116,48 +151,42 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                         continue;
                     }
                     
-                    String ref = datum.getGroupingRef();
-                    if (_activeRefs.get(ref) == null) {
-                        Long nextFetchTime = _pendingRefs.get(ref);
-                        if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
-                            return datum;
-                        }
+                    if (isReady(datum.getGroupingRef())) {
+                        return datum;
                     }
 
-                    if (datum != null) {
-                        switch (mode) {
-                            case COMPLETE:
-                                trace("Queuing next iter item %s (domain still active or pending)", datum.getGroupingRef());
-                                _queue.add(datum);
-                                break;
-
-                            case IMPOLITE:
-                                return datum;
-                                
-                            // In efficient fetching, we punt on items that aren't ready.
-                            case EFFICIENT:
-                                List<ScoredUrlDatum> urls = datum.getUrls();
-                                trace("Skipping %d urls from %s (e.g. %s)", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
-                                skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
-                                break;
-                        }
+                    switch (mode) {
+                        case COMPLETE:
+                            trace("Queuing next iter item %s (domain still active or pending)", datum.getGroupingRef());
+                            _queue.add(datum);
+                            updateNextReadyTime(getReadyTime(datum.getGroupingRef()));
+                            break;
+
+                        case IMPOLITE:
+                            return datum;
+
+                        // In efficient fetching, we punt on items that aren't ready.
+                        case EFFICIENT:
+                            List<ScoredUrlDatum> urls = datum.getUrls();
+                            trace("Skipping %d urls from %s (e.g. %s)", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
+                            skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
+                            break;
                     }
                 } else {
-                    // TODO KKr - have a peek(index) and a remove(index) call for the DiskQueue,
-                    // where index < number of elements in memory. That way we don't get stuck on having
-                    // a top-most element that's taking a long time, but there are following elements that
-                    // would be ready to go. Or we could just make sure that the DiskQueue orders
-                    // elements by a comparator (for the in memory set), so top-most is always the
-                    // one that's closest to being ready (or biggest, if more than one is ready)
                     return null;
                 }
             }
         }
+        
+        private void updateNextReadyTime(long readyTime) {
+            _nextReadyTime = Math.min(_nextReadyTime, readyTime);
+        }
     }
 
     private static final Fields FETCH_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "fetch-exception"));
 
-    // Time to sleep when we don't have any URLs that can be fetched.
+    // Max time to sleep when we don't have any URLs that can be fetched. We'll wake up
+    // sooner if a pending ref becomes ready, or a FetchTask finishes.
     private static final long NOTHING_TO_FETCH_SLEEP_TIME = 1000;
 
     private static final long HARD_TERMINATION_CLEANUP_DURATION = 10 * 1000L;
@@ -168,12 +197,16 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
     private transient ThreadedExecutor _executor;
     private transient BixoFlowProcess _flowProcess;
     private transient TupleEntryCollector _collector;
+    private transient DatumCodec<FetchSetDatum> _codec;
 
     private transient Object _refLock;
+    private transient int _finishedCount;
     private transient ConcurrentHashMap<String, Long> _activeRefs;
     private transient ConcurrentHashMap<String, Long> _pendingRefs;
+    private transient ConcurrentHashMap<String, AsyncFetchTask> _asyncTasks;
     
-    private transient AtomicBoolean _keepCollecting;
+    private transient TupleCollectorThread _collectorThread;
+    private transient GangliaFlowReporter _gangliaReporter;
     
     public FetchBuffer(BaseFetcher fetcher) {
         // We're going to output a tuple that contains a FetchedDatum, plus meta-data,
@@ -198,14 +231,27 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
         _flowProcess = new BixoFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        
+        // If we've got a Ganglia server, regularly send it our counters so fetch
+        // throughput can be watched while the job is running.
+        _gangliaReporter = new GangliaFlowReporter();
+        if (_gangliaReporter.isEnabled()) {
+            _flowProcess.addReporter(_gangliaReporter);
+            _gangliaReporter.startCounterSnapshots(_flowProcess, GangliaFlowReporter.DEFAULT_SNAPSHOT_INTERVAL);
+        }
 
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout());
+        FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+        _executor = new ThreadedExecutor(fetcherPolicy.getExecutorMode(), _fetcher.getMaxThreads(), fetcherPolicy.getRequestTimeout());
+        _codec = new DatumCodec<FetchSetDatum>(FetchSetDatum.class);
 
         _refLock = new Object();
+        _finishedCount = 0;
         _pendingRefs = new ConcurrentHashMap<String, Long>();
         _activeRefs = new ConcurrentHashMap<String, Long>();
+        _asyncTasks = new ConcurrentHashMap<String, AsyncFetchTask>();
         
-        _keepCollecting = new AtomicBoolean(true);
+        _collectorThread = new TupleCollectorThread(_flowProcess);
+        _collectorThread.start();
     }
 
     @Override
@@ -218,19 +264,26 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         // Each value is a PreFetchedDatum that contains a set of URLs to fetch in one request from
         // a single server, plus other values needed to set state properly.
         while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !values.isEmpty()) {
-            FetchSetDatum datum = values.nextOrNull(_fetcherMode);
+            int finishedCount = getFinishedCount();
             
             try {
+                // With an async fetcher there's no thread pool to limit the number of servers
+                // we're fetching from at once, so we do it here.
+                if (_fetcher.isAsync() && (_activeRefs.size() >= _fetcher.getMaxThreads())) {
+                    process.keepAlive();
+                    waitForReadyRef(finishedCount, Long.MAX_VALUE);
+                    continue;
+                }
+                
+                FetchSetDatum datum = values.nextOrNull(_fetcherMode);
                 if (datum == null) {
-                    trace("Nothing ready to fetch, sleeping...");
                     process.keepAlive();
-                    Thread.sleep(NOTHING_TO_FETCH_SLEEP_TIME);
+                    waitForReadyRef(finishedCount, values.getNextReadyTime());
                 } else {
                     List<ScoredUrlDatum> urls = datum.getUrls();
                     String ref = datum.getGroupingRef();
                     trace("Processing %d URLs for %s", urls.size(), ref);
 
-                    Runnable doFetch = new FetchTask(this, _fetcher, urls, ref);
                     if (datum.isLastList()) {
                         makeActive(ref, 0L);
                         trace("Executing fetch of %d URLs from %s (last batch)", urls.size(), ref);
@@ -242,14 +295,22 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
                     long startTime = System.currentTimeMillis();
 
-                    try {
-                        _executor.execute(doFetch);
-                    } catch (RejectedExecutionException e) {
-                        // should never happen.
-                        LOGGER.error("Fetch pool rejected our fetch list for " + ref);
-
-                        finished(ref);
-                        skipUrls(urls, UrlStatus.SKIPPED_DEFERRED, String.format("Execution rejection skipped %d URLs", urls.size()));
+                    if (_fetcher.isAsync()) {
+                        // The task calls finished() once all of its URLs are done, which can
+                        // happen before start() returns.
+                        AsyncFetchTask task = new AsyncFetchTask(this, _fetcher, urls, ref, datum.isLastList());
+                        _asyncTasks.put(ref, task);
+                        task.start();
+                    } else {
+                        try {
+                            _executor.execute(new FetchTask(this, _fetcher, urls, ref, datum.isLastList()));
+                        } catch (RejectedExecutionException e) {
+                            // should never happen.
+                            LOGGER.error("Fetch pool rejected our fetch list for " + ref);
+
+                            finished(ref);
+                            skipUrls(urls, UrlStatus.SKIPPED_DEFERRED, String.format("Execution rejection skipped %d URLs", urls.size()));
+                        }
                     }
 
                     // Adjust for how long it took to get the request queued.
@@ -274,6 +335,8 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 skipUrls(datum.getUrls(), status, null);
             }
         }
+        
+        values.close();
     }
 
     @Override
@@ -281,11 +344,15 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         try {
             // We don't know worst-case for amount of time a worker thread will effectively
             // "sleep" waiting for a FetchTask to be queued up, but we'll add in a bit of
-            // slop to represent that amount of time.
-            long pollTime = ThreadedExecutor.MAX_POLL_TIME;
-            Thread.sleep(pollTime);
+            // slop to represent that amount of time. If nothing is active then there's
+            // no reason to wait.
+            waitForActiveRefs(ThreadedExecutor.MAX_POLL_TIME);
             
             long requestTimeout = _fetcher.getFetcherPolicy().getRequestTimeout();
+            if (_fetcher.isAsync()) {
+                terminateAsyncFetching(requestTimeout);
+            }
+            
             if (!_executor.terminate(requestTimeout)) {
                 LOGGER.warn("Had to do a hard termination of general fetching");
                 
@@ -298,10 +365,11 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 Thread.sleep(HARD_TERMINATION_CLEANUP_DURATION);
             }
             
-            // Now stop collecting results. If somebody is in the middle of the collect() call,
-            // we want them to finish before we set it to false and drop out of this method.
-            synchronized (_keepCollecting) {
-                _keepCollecting.set(false);
+            // Now stop collecting results. Anything that was collected before this point
+            // gets written out before we drop out of this method, even if the writer thread
+            // can't finish in time and we have to do it ourselves.
+            if (!_collectorThread.terminate(requestTimeout)) {
+                LOGGER.warn("Had to finish writing fetch results in cleanup");
             }
         } catch (InterruptedException e) {
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
@@ -309,13 +377,31 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             LOGGER.warn("Interrupted while waiting for termination");
         }
 
+        reportExecutorCounters();
+        _flowProcess.increment(FetchCounters.CONNECTIONS_OPENED, _fetcher.getNumConnectionsOpened());
+        _flowProcess.increment(FetchCounters.CONNECTIONS_REUSED, _fetcher.getNumConnectionsReused());
+        _flowProcess.increment(FetchCounters.CONTENT_BUFFER_KBYTES, _fetcher.getNumContentBytesAllocated() / 1024L);
+        
+        for (Map.Entry<FetchPhase, LatencyHistogram> entry : _fetcher.getLatencyHistograms().entrySet()) {
+            _flowProcess.addLatencies(entry.getKey(), entry.getValue());
+        }
+        
+        // We're done with the fetcher's threads and connections.
+        _fetcher.close();
         _flowProcess.dumpCounters();
+        
+        try {
+            _gangliaReporter.close();
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while closing Ganglia reporter");
+        }
     }
 
     @Override
     public void finished(String ref) {
         synchronized (_refLock) {
             Long nextFetchTime = _activeRefs.remove(ref);
+            _asyncTasks.remove(ref);
             if (nextFetchTime == null) {
                 throw new RuntimeException("finished called on non-active ref: " + ref);
             }
@@ -327,20 +413,19 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             } else {
                 trace("Finished last batch fetch for %s", ref);
             }
+            
+            // Wake up the operate() loop (or cleanup), since something might now be ready.
+            _finishedCount += 1;
+            _refLock.notifyAll();
         }
     }
 
     @Override
     public void collect(Tuple tuple) {
-        // Prevent two bad things from happening:
-        // 1. Somebody changes _keepCollecting after we've tested that it's true
-        // 2. Two people calling collector.add() at the same time (it's not thread safe)
-        synchronized (_keepCollecting) {
-            if (_keepCollecting.get()) {
-                _collector.add(tuple);
-            } else {
-                LOGGER.warn("Losing an entry: " + tuple);
-            }
+        // The collector isn't thread safe, so we hand off the tuple to our writer thread. This
+        // fails if we've already been through cleanup().
+        if (!_collectorThread.add(_collector, tuple)) {
+            LOGGER.warn("Losing an entry: " + tuple);
         }
     }
 
@@ -349,12 +434,45 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         return _flowProcess;
     }
     
+    /**
+     * Wait for up to <requestTimeout> milliseconds for async fetches to finish. If that
+     * doesn't happen, tell the tasks to stop and abort any active requests, and give the
+     * tasks a chance to write out their remaining URLs.
+     * 
+     * @param requestTimeout
+     * @throws InterruptedException
+     */
+    private void terminateAsyncFetching(long requestTimeout) throws InterruptedException {
+        waitForActiveRefs(requestTimeout);
+        if (_activeRefs.isEmpty()) {
+            return;
+        }
+        
+        LOGGER.warn("Had to do a hard termination of async fetching");
+        for (AsyncFetchTask task : _asyncTasks.values()) {
+            task.abort();
+        }
+        
+        _fetcher.abort();
+        waitForActiveRefs(HARD_TERMINATION_CLEANUP_DURATION);
+    }
+    
+    private void reportExecutorCounters() {
+        _flowProcess.increment(ExecutorCounters.TASKS_WAITED, _executor.getNumWaits());
+        _flowProcess.increment(ExecutorCounters.WAIT_TIME, _executor.getTotalWaitTime());
+        _flowProcess.increment(ExecutorCounters.TASKS_REJECTED, _executor.getNumRejected());
+        _flowProcess.increment(ExecutorCounters.PEAK_THREADS, _executor.getPeakThreadCount());
+        _flowProcess.increment(ExecutorCounters.PEAK_QUEUE_SIZE, _executor.getPeakQueueSize());
+        _flowProcess.increment(ExecutorCounters.BUSY_TIME, _executor.getTotalBusyTime());
+        _flowProcess.increment(ExecutorCounters.THREAD_TIME, _executor.getTotalThreadTime());
+    }
+    
     private void skipUrls(List<ScoredUrlDatum> urls, UrlStatus status, String traceMsg) {
         for (ScoredUrlDatum datum : urls) {
             FetchedDatum result = new FetchedDatum(datum);
             Tuple tuple = result.getTuple();
             tuple.add(status.toString());
-            _collector.add(tuple);
+            collect(tuple);
         }
 
         _flowProcess.increment(FetchCounters.URLS_SKIPPED, urls.size());
@@ -381,6 +499,61 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
     }
 
+    private int getFinishedCount() {
+        synchronized (_refLock) {
+            return _finishedCount;
+        }
+    }
+    
+    /**
+     * Sleep until <nextReadyTime>, or until a FetchTask has finished, whichever
+     * comes first. We never sleep longer than NOTHING_TO_FETCH_SLEEP_TIME, so that
+     * we keep calling keepAlive(), and notice if the fetch has been terminated.
+     * 
+     * @param finishedCount value of _finishedCount before we looked for a ready datum
+     * @param nextReadyTime earliest time something in the queue will be ready
+     * @throws InterruptedException
+     */
+    private void waitForReadyRef(int finishedCount, long nextReadyTime) throws InterruptedException {
+        synchronized (_refLock) {
+            // If a fetch finished after we started looking for something to do, don't wait.
+            if (_finishedCount != finishedCount) {
+                return;
+            }
+            
+            long sleepTime = NOTHING_TO_FETCH_SLEEP_TIME;
+            if (nextReadyTime != Long.MAX_VALUE) {
+                sleepTime = Math.min(sleepTime, nextReadyTime - System.currentTimeMillis());
+            }
+            
+            if (sleepTime > 0) {
+                trace("Nothing ready to fetch, sleeping for %dms...", sleepTime);
+                _refLock.wait(sleepTime);
+            }
+        }
+    }
+    
+    /**
+     * Wait for up to <maxWaitTime> milliseconds for all active refs to finish.
+     * 
+     * @param maxWaitTime
+     * @throws InterruptedException
+     */
+    private void waitForActiveRefs(long maxWaitTime) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + maxWaitTime;
+        
+        synchronized (_refLock) {
+            while (!_activeRefs.isEmpty()) {
+                long sleepTime = endTime - System.currentTimeMillis();
+                if (sleepTime <= 0) {
+                    break;
+                }
+                
+                _refLock.wait(sleepTime);
+            }
+        }
+    }
+    
     private void adjustActive(String ref, long deltaTime) {
         synchronized (_refLock) {
             Long nextFetchTime = _activeRefs.get(ref);
@@ -390,6 +563,27 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
     }
 
+    /**
+     * Return the earliest time when we can start fetching from <ref>. This is
+     * zero if we've never fetched from it, and Long.MAX_VALUE if it's currently
+     * being fetched.
+     * 
+     * @param ref
+     * @return earliest allowed fetch time
+     */
+    private long getReadyTime(String ref) {
+        if (_activeRefs.get(ref) != null) {
+            return Long.MAX_VALUE;
+        }
+        
+        Long nextFetchTime = _pendingRefs.get(ref);
+        return (nextFetchTime == null) ? 0 : nextFetchTime;
+    }
+    
+    private boolean isReady(String ref) {
+        return getReadyTime(ref) <= System.currentTimeMillis();
+    }
+    
     private void trace(String template, Object... params) {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(String.format(template, params));
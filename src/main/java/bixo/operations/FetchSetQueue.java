@@ -0,0 +1,168 @@
+package bixo.operations;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bixo.datum.FetchSetDatum;
+import bixo.utils.DiskQueue;
+import bixo.utils.DiskQueueArena;
+import bixo.utils.IDiskQueueCodec;
+
+/**
+ * Fetch sets that can't be fetched yet, because their ref (server) is still active or
+ * pending, grouped by ref.
+ *
+ * Sets for one ref have to be fetched in order, and they all become ready at the same
+ * time, so we only need to check the first set for each ref to find everything that's
+ * ready. This way a ready set never has to wait behind sets for other servers, even
+ * when lots of them have spilled to disk. Each ref gets its own DiskQueue, and they all
+ * share one arena, which limits the total number of sets in memory.
+ *
+ */
+public class FetchSetQueue {
+
+    /**
+     * Source of the time when a ref can next be fetched.
+     */
+    public interface IReadyTimes {
+
+        /**
+         * @param ref grouping ref for a fetch set
+         * @return time when <ref> can be fetched, 0 if it's never been fetched, or
+         *         Long.MAX_VALUE if we don't know (e.g. it's being fetched now).
+         */
+        long getReadyTime(String ref);
+    }
+
+    private static final int MAX_ELEMENTS_PER_REF = 10;
+
+    private IDiskQueueCodec<FetchSetDatum> _codec;
+    private IReadyTimes _readyTimes;
+    private DiskQueueArena _arena;
+
+    // Sets waiting for each ref, in the order that refs were first queued.
+    private Map<String, DiskQueue<FetchSetDatum>> _queues;
+    private int _size;
+    private long _nextReadyTime;
+
+    /**
+     * @param codec converter for sets that get spilled to disk
+     * @param readyTimes source of the time when each ref can next be fetched
+     * @param maxElementsInMemory max number of sets (for all refs) to keep in memory
+     */
+    public FetchSetQueue(IDiskQueueCodec<FetchSetDatum> codec, IReadyTimes readyTimes, int maxElementsInMemory) {
+        _codec = codec;
+        _readyTimes = readyTimes;
+        _arena = new DiskQueueArena(maxElementsInMemory);
+        _queues = new LinkedHashMap<String, DiskQueue<FetchSetDatum>>();
+        _size = 0;
+        _nextReadyTime = Long.MAX_VALUE;
+    }
+
+    public void add(FetchSetDatum datum) {
+        String ref = datum.getGroupingRef();
+        DiskQueue<FetchSetDatum> queue = _queues.get(ref);
+        if (queue == null) {
+            queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_PER_REF, _codec, _arena);
+            _queues.put(ref, queue);
+        }
+
+        if (!queue.offer(datum)) {
+            throw new RuntimeException("Unable to queue fetch set for " + ref);
+        }
+
+        _size += 1;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /**
+     * Remove and return the first set for the ref that's been allowed to be fetched for
+     * the longest time. This way one slow server doesn't block all of the sets from other
+     * servers that are ready to go.
+     *
+     * @return ready datum, or null if nothing can be fetched yet.
+     */
+    public FetchSetDatum removeFirstReady() {
+        long now = System.currentTimeMillis();
+        String bestRef = null;
+        long bestReadyTime = Long.MAX_VALUE;
+        _nextReadyTime = Long.MAX_VALUE;
+
+        for (String ref : _queues.keySet()) {
+            long readyTime = _readyTimes.getReadyTime(ref);
+            if (readyTime > now) {
+                _nextReadyTime = Math.min(_nextReadyTime, readyTime);
+            } else if (readyTime < bestReadyTime) {
+                bestRef = ref;
+                bestReadyTime = readyTime;
+
+                // Nothing can be ready before a ref that's never been fetched.
+                if (readyTime == 0) {
+                    break;
+                }
+            }
+        }
+
+        if (bestRef == null) {
+            return null;
+        } else {
+            return remove(bestRef);
+        }
+    }
+
+    /**
+     * Return the earliest time when one of the refs we looked at during the last call to
+     * removeFirstReady() will be ready, or Long.MAX_VALUE if we don't know.
+     *
+     * @return time in milliseconds
+     */
+    public long getNextReadyTime() {
+        return _nextReadyTime;
+    }
+
+    /**
+     * Remove and return a set, whether or not it's ready.
+     *
+     * @return datum, or null if the queue is empty.
+     */
+    public FetchSetDatum poll() {
+        Iterator<String> iter = _queues.keySet().iterator();
+        if (iter.hasNext()) {
+            return remove(iter.next());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Toss anything that's still queued, and release the disk space used for spilled sets.
+     */
+    public void close() {
+        for (DiskQueue<FetchSetDatum> queue : _queues.values()) {
+            queue.clear();
+        }
+
+        _queues.clear();
+        _size = 0;
+        _arena.close();
+    }
+
+    private FetchSetDatum remove(String ref) {
+        DiskQueue<FetchSetDatum> queue = _queues.get(ref);
+        FetchSetDatum result = queue.remove();
+        if (queue.isEmpty()) {
+            _queues.remove(ref);
+        }
+
+        _size -= 1;
+        return result;
+    }
+}
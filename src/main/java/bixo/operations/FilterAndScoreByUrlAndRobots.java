@@ -1,22 +1,34 @@
 package bixo.operations;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.log4j.Logger;
 
 import bixo.cascading.BixoFlowProcess;
+import bixo.cascading.DatumCodec;
 import bixo.cascading.LoggingFlowReporter;
 import bixo.cascading.NullContext;
+import bixo.cascading.TupleCollectorThread;
 import bixo.config.UserAgent;
 import bixo.datum.GroupedUrlDatum;
 import bixo.datum.ScoredUrlDatum;
+import bixo.dns.BaseHostResolver;
+import bixo.dns.CachingHostResolver;
+import bixo.dns.SimpleHostResolver;
 import bixo.fetcher.BaseFetcher;
+import bixo.hadoop.DnsCounters;
+import bixo.hadoop.ExecutorCounters;
 import bixo.hadoop.FetchCounters;
+import bixo.hadoop.SpillCounters;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesCache;
 import bixo.robots.RobotUtils;
 import bixo.utils.DiskQueue;
+import bixo.utils.DiskQueueArena;
 import bixo.utils.GroupingKey;
+import bixo.utils.HandOffQueue;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
@@ -24,6 +36,7 @@ import cascading.operation.BaseOperation;
 import cascading.operation.Buffer;
 import cascading.operation.BufferCall;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 /**
  * Filter out URLs by either domain (not popular enough) or if they're blocked by robots.txt
@@ -38,13 +51,25 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     private static final long TERMINATE_TIMEOUT = COMMAND_TIMEOUT;
 
     private static final int MAX_URLS_IN_MEMORY = 100;
+    
+    // Total URLs we'll keep in memory across all of the per-domain queues. Once we hit
+    // this, new URLs go to the shared spill file.
+    private static final int MAX_TOTAL_URLS_IN_MEMORY = 100 * 1000;
 
     private BaseScoreGenerator _scorer;
 	private BaseFetcher _fetcher;
 	private BaseRobotsParser _parser;
+	private BaseHostResolver _resolver;
+	private RobotRulesCache _robotsCache;
 	
     private transient ThreadedExecutor _executor;
+    private transient ThreadedExecutor _dnsExecutor;
+    private transient RobotsBatcher _robotsBatcher;
+    private transient TupleCollectorThread _collectorThread;
+    private transient CachingHostResolver _cachingResolver;
     private transient BixoFlowProcess _flowProcess;
+    private transient DatumCodec<GroupedUrlDatum> _codec;
+    private transient DiskQueueArena _arena;
 
     public FilterAndScoreByUrlAndRobots(UserAgent userAgent, int maxThreads, BaseRobotsParser parser, BaseScoreGenerator scorer) {
         super(ScoredUrlDatum.FIELDS);
@@ -52,40 +77,141 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         _scorer = scorer;
         _parser = parser;
         _fetcher = RobotUtils.createFetcher(userAgent, maxThreads);
+        _resolver = new SimpleHostResolver();
     }
 
     public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer) {
+        this(fetcher, parser, scorer, new SimpleHostResolver());
+    }
+
+    /**
+     * @param resolver resolver for domains. Lookups happen on the resolver's own threads,
+     *        before a domain's URLs get handed off to a robots thread. If <resolver> isn't a
+     *        CachingHostResolver we wrap it in one, so the result can be reused.
+     */
+    public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer, BaseHostResolver resolver) {
+        this(fetcher, parser, scorer, resolver, null);
+    }
+
+    /**
+     * @param robotsCache cache of robots.txt rules that we check before fetching robots.txt,
+     *        or null to always fetch. If it has a cache directory, the cache is loaded from and
+     *        saved to that directory.
+     */
+    public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer, BaseHostResolver resolver,
+                    RobotRulesCache robotsCache) {
         // We're going to output a ScoredUrlDatum (what FetcherBuffer expects).
         super(ScoredUrlDatum.FIELDS);
 
         _scorer = scorer;
         _parser = parser;
         _fetcher = fetcher;
+        _resolver = resolver;
+        _robotsCache = robotsCache;
     }
 
     @Override
     public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_fetcher.getFetcherPolicy().getExecutorMode(), _fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _dnsExecutor = new ThreadedExecutor(_fetcher.getFetcherPolicy().getExecutorMode(), _resolver.getMaxThreads(), COMMAND_TIMEOUT);
+        _codec = new DatumCodec<GroupedUrlDatum>(GroupedUrlDatum.class);
+        _arena = new DiskQueueArena(MAX_TOTAL_URLS_IN_MEMORY);
         
         // FUTURE KKr - use Cascading process vs creating our own, once it
         // supports logging in local mode, and a setStatus() call.
         _flowProcess = new BixoFlowProcess((HadoopFlowProcess)flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        _robotsBatcher = new RobotsBatcher(_executor, _flowProcess);
+        
+        _collectorThread = new TupleCollectorThread(_flowProcess);
+        _collectorThread.start();
+        
+        if (_resolver instanceof CachingHostResolver) {
+            _cachingResolver = (CachingHostResolver)_resolver;
+            
+            try {
+                int numLoaded = _cachingResolver.loadCache(((HadoopFlowProcess)flowProcess).getJobConf());
+                _flowProcess.increment(DnsCounters.ENTRIES_LOADED, numLoaded);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to load DNS cache from " + _cachingResolver.getCacheDir(), e);
+            }
+        } else {
+            _cachingResolver = new CachingHostResolver(_resolver);
+        }
+        
+        if (_robotsCache != null) {
+            try {
+                int numLoaded = _robotsCache.loadCache(((HadoopFlowProcess)flowProcess).getJobConf());
+                _flowProcess.increment(FetchCounters.ROBOTS_CACHE_LOADED, numLoaded);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to load robots cache from " + _robotsCache.getCacheDir(), e);
+            }
+        }
     }
     
     @Override
     public void cleanup(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
         
         try {
+            // Wait for the resolver threads first, as they're still handing off tasks
+            // to the robots executor.
+            if (!_dnsExecutor.terminate(TERMINATE_TIMEOUT)) {
+                LOGGER.warn("Had to do a hard shutdown of DNS resolution");
+            }
+            
+            // Domains can be queued up in the batcher, waiting for another domain on the
+            // same server, so wait for those before shutting down the robots threads.
+            if (!_robotsBatcher.waitForIdle(TERMINATE_TIMEOUT)) {
+                LOGGER.warn(String.format("Deferring %d domains waiting for robots processing", _robotsBatcher.abortPending()));
+            }
+            
             if (!_executor.terminate(TERMINATE_TIMEOUT)) {
                 LOGGER.warn("Had to do a hard shutdown of robots fetching");
             }
+            
+            // Make sure everything the robots threads output has been written.
+            if (!_collectorThread.terminate(TERMINATE_TIMEOUT)) {
+                LOGGER.warn("Had to finish writing robots results in cleanup");
+            }
         } catch (InterruptedException e) {
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
             // losing URLs still to be processed?
             LOGGER.warn("Interrupted while waiting for termination");
         }
         
+        _flowProcess.increment(ExecutorCounters.TASKS_WAITED, _executor.getNumWaits());
+        _flowProcess.increment(ExecutorCounters.WAIT_TIME, _executor.getTotalWaitTime());
+        _flowProcess.increment(ExecutorCounters.TASKS_REJECTED, _executor.getNumRejected());
+        _flowProcess.increment(ExecutorCounters.PEAK_THREADS, _executor.getPeakThreadCount());
+        _flowProcess.increment(ExecutorCounters.PEAK_QUEUE_SIZE, _executor.getPeakQueueSize());
+
+        _flowProcess.increment(DnsCounters.HOSTS_RESOLVED, _cachingResolver.getNumMisses());
+        _flowProcess.increment(DnsCounters.HOSTS_CACHED, _cachingResolver.getNumHits());
+        _flowProcess.increment(DnsCounters.HOSTS_UNKNOWN_CACHED, _cachingResolver.getNumNegativeHits());
+        
+        try {
+            _cachingResolver.saveCache(((HadoopFlowProcess)flowProcess).getJobConf());
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save DNS cache to " + _cachingResolver.getCacheDir(), e);
+        }
+        
+        if (_robotsCache != null) {
+            try {
+                _robotsCache.saveCache(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                LOGGER.warn("Unable to save robots cache to " + _robotsCache.getCacheDir(), e);
+            }
+        }
+
+        _flowProcess.increment(SpillCounters.ELEMENTS_FORCED_TO_DISK, _arena.getMemoryDenied());
+        _flowProcess.increment(SpillCounters.PEAK_ELEMENTS_IN_MEMORY, _arena.getPeakMemoryElements());
+        _flowProcess.increment(SpillCounters.PEAK_BLOCKS_IN_USE, _arena.getPeakBlocksInUse());
+        _flowProcess.increment(SpillCounters.KBYTES_WRITTEN, _arena.getBytesWritten() / 1024L);
+        
+        // After a hard shutdown, robots threads can still be using their URL queues, in
+        // which case the arena file only gets closed once they've all been freed.
+        _arena.close();
+        
         _flowProcess.dumpCounters();
     }
     
@@ -93,22 +219,37 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
 	public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
         TupleEntry group = bufferCall.getGroup();
         String protocolAndDomain = group.getString(0);
+        TupleEntryCollector collector = _collectorThread.getCollector(bufferCall.getOutputCollector());
 
-        DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
-        Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
-        while (values.hasNext()) {
-            urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
-        }
+        // Start processing the domain (DNS, then robots.txt) before we read the URLs, and
+        // stream them to the task. The DiskQueue spills to disk if the task falls behind,
+        // so we never block here, and memory use doesn't depend on the number of URLs.
+        HandOffQueue<GroupedUrlDatum> urls = new HandOffQueue<GroupedUrlDatum>(new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY, _codec, _arena));
         
+        boolean rejected = false;
         try {
-            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, bufferCall.getOutputCollector(), _flowProcess);
-            _executor.execute(doRobots);
+            ProcessRobotsTask doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, collector,
+                            _flowProcess, _cachingResolver, _robotsCache);
+            _dnsExecutor.execute(new ResolveHostTask(protocolAndDomain, _cachingResolver, doRobots, _robotsBatcher, _flowProcess));
         } catch (RejectedExecutionException e) {
             // should never happen.
-            LOGGER.error("Robots handling pool rejected our request for " + protocolAndDomain);
+            LOGGER.error("DNS resolution pool rejected our request for " + protocolAndDomain);
+            rejected = true;
+        }
+        
+        try {
+            Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
+            while (values.hasNext()) {
+                urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
+            }
+        } finally {
+            urls.close();
+        }
+        
+        if (rejected) {
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector());
+            int numUrls = ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, collector);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
         }
 	}
 
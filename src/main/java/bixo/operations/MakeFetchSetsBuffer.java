@@ -23,6 +23,11 @@ import cascading.tuple.TupleEntryCollector;
  * 
  * We need to generate sets of URLs to fetch, using a kept-alive connection.
  * Our output thus is one or more FetchSetDatums.
+ * 
+ * The group key is either a regular <IP address>-<crawl delay> grouping key, or just
+ * the IP address, in which case the URLs can come from many virtual hosts (with different
+ * crawl delays) on that server. Either way we wind up with one fetch plan, and one
+ * politeness slot in the FetchBuffer, per group.
  *
  */
 @SuppressWarnings( { "serial", "unchecked" })
@@ -51,14 +56,19 @@ public class MakeFetchSetsBuffer extends BaseOperation<NullContext> implements B
         _iteratorDone = false;
 
         // <key> is the output of the IGroupingKeyGenerator used. This should
-        // be <IP address>-<crawl delay in ms>
+        // be <IP address>-<crawl delay in ms>, or just the <IP address>, in which
+        // case the policy gets the crawl delay from each URL's grouping key.
         String key = group.getString(0);
 
         if (GroupingKey.isSpecialKey(key)) {
             throw new RuntimeException("Invalid grouping key: " + key);
         }
 
-        long crawlDelay = GroupingKey.getCrawlDelayFromKey(key);
+        long crawlDelay = BaseFetchJobPolicy.UNSET_CRAWL_DELAY;
+        if (GroupingKey.hasCrawlDelay(key)) {
+            crawlDelay = GroupingKey.getCrawlDelayFromKey(key);
+        }
+        
         if (crawlDelay == BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
             crawlDelay = _policy.getDefaultCrawlDelay();
         }
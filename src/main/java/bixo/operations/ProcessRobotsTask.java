@@ -12,10 +12,13 @@ import bixo.cascading.BixoFlowProcess;
 import bixo.datum.GroupedUrlDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.dns.BaseHostResolver;
+import bixo.dns.SimpleHostResolver;
 import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotRules;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesCache;
 import bixo.robots.RobotUtils;
 import bixo.utils.DomainInfo;
 import bixo.utils.DomainNames;
@@ -27,14 +30,38 @@ public class ProcessRobotsTask implements Runnable {
 
     private String _protocolAndDomain;
     private BaseScoreGenerator _scorer;
+    
+    // URLs for the domain. This can be a HandOffQueue that's still being filled, in which
+    // case poll() waits for the next URL, so we score & output URLs as they arrive.
     private Queue<GroupedUrlDatum> _urls;
+    
     private BaseFetcher _fetcher;
     private TupleEntryCollector _collector;
     private BaseRobotsParser _parser;
     private BixoFlowProcess _flowProcess;
+    private BaseHostResolver _resolver;
+    private RobotRulesCache _robotsCache;
 
     public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
                     BaseRobotsParser parser, TupleEntryCollector collector, BixoFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, collector, flowProcess, new SimpleHostResolver());
+    }
+
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, TupleEntryCollector collector, BixoFlowProcess flowProcess, BaseHostResolver resolver) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, collector, flowProcess, resolver, null);
+    }
+
+    /**
+     * @param collector collector for the resulting ScoredUrlDatums. This must be safe to use from
+     *        multiple threads (e.g. from TupleCollectorThread.getCollector()), as lots of tasks
+     *        can be adding to it at the same time.
+     * @param robotsCache cache of robots.txt rules to check before fetching, and to update
+     *        after fetching, or null to always fetch.
+     */
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, TupleEntryCollector collector, BixoFlowProcess flowProcess, BaseHostResolver resolver,
+                    RobotRulesCache robotsCache) {
         _protocolAndDomain = protocolAndDomain;
         _scorer = scorer;
         _urls = urls;
@@ -42,6 +69,8 @@ public class ProcessRobotsTask implements Runnable {
         _parser = parser;
         _collector = collector;
         _flowProcess = flowProcess;
+        _resolver = resolver;
+        _robotsCache = robotsCache;
     }
 
     /**
@@ -51,20 +80,48 @@ public class ProcessRobotsTask implements Runnable {
      * 
      * @param urls Queue of URLs to empty out
      * @param groupingKey grouping key to use for all entries.
-     * @param outputCollector
+     * @param collector thread-safe collector
+     * @return number of URLs that were output
      */
-    public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleEntryCollector collector) {
+    public static int emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleEntryCollector collector) {
+        int result = 0;
         GroupedUrlDatum datum;
         while ((datum = urls.poll()) != null) {
+            result += 1;
             ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), groupingKey, UrlStatus.UNFETCHED, 1.0);
             scoreUrl.setPayload(datum.getPayload());
-            // TODO KKr - move synchronization up, to avoid lots of contention with other threads?
-            synchronized (collector) {
-                collector.add(scoreUrl.getTuple());
-            }
+            collector.add(scoreUrl.getTuple());
         }
+        
+        return result;
     }
 
+    /**
+     * Give up on processing this domain, and output all of its URLs as deferred. This
+     * gets called when the task couldn't be run.
+     */
+    public void defer() {
+        LOGGER.debug("Deferring robots processing for " + _protocolAndDomain);
+        _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+        int numUrls = emptyQueue(_urls, GroupingKey.DEFERRED_GROUPING_KEY, _collector);
+        _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
+    }
+
+    private BaseRobotRules getRobotRules(String protocolAndDomain) throws MalformedURLException {
+        BaseRobotRules result = (_robotsCache == null) ? null : _robotsCache.get(protocolAndDomain);
+        if (result != null) {
+            _flowProcess.increment(FetchCounters.ROBOTS_CACHED, 1);
+            return result;
+        }
+        
+        result = RobotUtils.getRobotRules(_fetcher, _parser, new URL(protocolAndDomain + "/robots.txt"));
+        if (_robotsCache != null) {
+            _robotsCache.put(protocolAndDomain, result);
+        }
+        
+        return result;
+    }
+    
     /* (non-Javadoc)
      * @see java.lang.Runnable#run()
      * 
@@ -77,7 +134,7 @@ public class ProcessRobotsTask implements Runnable {
         _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
         try {
-            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain);
+            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain, _resolver);
             if (!domainInfo.isValidHostAddress()) {
                 throw new UnknownHostException(_protocolAndDomain);
             }
@@ -90,13 +147,13 @@ public class ProcessRobotsTask implements Runnable {
             String pld = DomainNames.getPLD(domain);
             if (!_scorer.isGoodDomain(domain, pld)) {
                 _flowProcess.increment(FetchCounters.DOMAINS_SKIPPED, 1);
-                _flowProcess.increment(FetchCounters.URLS_SKIPPED, _urls.size());
                 
                 LOGGER.debug("Skipping URLs from not-good domain: " + domain);
                 
-                emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector);
+                int numUrls = emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector);
+                _flowProcess.increment(FetchCounters.URLS_SKIPPED, numUrls);
             } else {
-                BaseRobotRules robotRules = RobotUtils.getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"));
+                BaseRobotRules robotRules = getRobotRules(domainInfo.getProtocolAndDomain());
 
                 String validKey = null;
                 boolean isDeferred = robotRules.isDeferVisits();
@@ -130,32 +187,29 @@ public class ProcessRobotsTask implements Runnable {
                     scoreUrl.setPayload(datum.getPayload());
                     _flowProcess.increment(counter, 1);
 
-                    // collectors aren't thread safe
-                    synchronized (_collector) {
-                        _collector.add(scoreUrl.getTuple());
-                    }
+                    _collector.add(scoreUrl.getTuple());
                 }
             }
         } catch (UnknownHostException e) {
             LOGGER.debug("Unknown host: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _collector);
+            int numUrls = emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _collector);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
         } catch (MalformedURLException e) {
             LOGGER.debug("Invalid URL: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            int numUrls = emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
         } catch (URISyntaxException e) {
             LOGGER.debug("Invalid URI: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            int numUrls = emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
         } catch (Exception e) {
             LOGGER.warn("Exception processing " + _protocolAndDomain, e);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            int numUrls = emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            _flowProcess.increment(FetchCounters.URLS_REJECTED, numUrls);
         } finally {
             _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
         }
@@ -0,0 +1,67 @@
+package bixo.operations;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import bixo.cascading.BixoFlowProcess;
+import bixo.dns.BaseHostResolver;
+import bixo.hadoop.DnsCounters;
+import bixo.utils.DomainInfo;
+
+/**
+ * Resolve the host for a domain, and then hand off the domain's ProcessRobotsTask to the
+ * robots batcher. This way a slow DNS lookup ties up one of the resolver threads, versus
+ * a thread that could be fetching robots.txt files.
+ * 
+ * The resolved IP address is what the batcher uses to group together domains that are on
+ * the same server, so that their robots.txt files get processed by one thread.
+ * 
+ * The resolver must cache results (including unknown hosts), as the ProcessRobotsTask
+ * resolves the host again, and also takes care of reporting any errors.
+ *
+ */
+public class ResolveHostTask implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ResolveHostTask.class);
+
+    private String _protocolAndDomain;
+    private BaseHostResolver _resolver;
+    private ProcessRobotsTask _robotsTask;
+    private RobotsBatcher _robotsBatcher;
+    private BixoFlowProcess _flowProcess;
+
+    public ResolveHostTask(String protocolAndDomain, BaseHostResolver resolver, ProcessRobotsTask robotsTask, RobotsBatcher robotsBatcher,
+                    BixoFlowProcess flowProcess) {
+        _protocolAndDomain = protocolAndDomain;
+        _resolver = resolver;
+        _robotsTask = robotsTask;
+        _robotsBatcher = robotsBatcher;
+        _flowProcess = flowProcess;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+        
+        String server = null;
+        try {
+            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain, _resolver);
+            if (domainInfo.isValidHostAddress()) {
+                server = domainInfo.getHostAddress();
+            }
+        } catch (Exception e) {
+            // Ignore - the result (even if it's an unknown host) is now cached, and the
+            // ProcessRobotsTask will handle the error.
+        }
+        
+        _flowProcess.increment(DnsCounters.RESOLVE_TIME, System.currentTimeMillis() - startTime);
+        
+        try {
+            _robotsBatcher.execute(server, _robotsTask);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Robots handling pool rejected our request for " + _protocolAndDomain);
+            _robotsTask.defer();
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+package bixo.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import bixo.cascading.BixoFlowProcess;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.ThreadedExecutor;
+
+/**
+ * Batch up robots.txt processing for domains that resolve to the same server (IP address).
+ *
+ * With shared hosting, hundreds of virtual hosts can live on one IP address. Rather than
+ * having each of these domains tie up a robots thread and hit the server in parallel, the
+ * first domain for a server gets a thread, and domains for the same server that show up while
+ * it's still busy get queued up and then processed by that same thread, one after the other.
+ * So by default a server only ever sees one robots.txt request at a time from us, and the
+ * remaining threads are free for other servers.
+ * 
+ * To keep one server with a huge number of domains from taking forever, more than one thread
+ * can be allowed per server, and the number of tasks waiting for a server is capped. Tasks
+ * past that cap get their own thread, the same as for a domain with an unknown server, so
+ * they aren't stuck behind the queue (or deferred to the next loop).
+ *
+ */
+public class RobotsBatcher {
+    private static final Logger LOGGER = Logger.getLogger(RobotsBatcher.class);
+
+    public static final int DEFAULT_MAX_RUNNERS_PER_SERVER = 1;
+    public static final int DEFAULT_MAX_QUEUED_PER_SERVER = 100;
+
+    private static class ServerState {
+        private Queue<ProcessRobotsTask> _queue = new LinkedList<ProcessRobotsTask>();
+        private int _numRunners = 0;
+    }
+
+    private class ServerRunner implements Runnable {
+        private String _server;
+        private Runnable _task;
+        private boolean _isBatched;
+
+        public ServerRunner(String server, Runnable task, boolean isBatched) {
+            _server = server;
+            _task = task;
+            _isBatched = isBatched;
+        }
+
+        @Override
+        public void run() {
+            Runnable task = _task;
+            while (task != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.error("Exception while processing robots for " + _server, t);
+                } finally {
+                    task = finishTask(_isBatched ? _server : null);
+                }
+            }
+        }
+    }
+
+    private ThreadedExecutor _executor;
+    private BixoFlowProcess _flowProcess;
+    private int _maxRunnersPerServer;
+    private int _maxQueuedPerServer;
+
+    // Servers with at least one running ServerRunner, and the tasks waiting for them.
+    private Map<String, ServerState> _servers;
+
+    // Tasks that have been handed to us, but haven't finished yet.
+    private int _numPending;
+
+    public RobotsBatcher(ThreadedExecutor executor, BixoFlowProcess flowProcess) {
+        this(executor, flowProcess, DEFAULT_MAX_RUNNERS_PER_SERVER, DEFAULT_MAX_QUEUED_PER_SERVER);
+    }
+
+    /**
+     * @param maxRunnersPerServer max number of threads processing domains for one server
+     * @param maxQueuedPerServer max number of tasks waiting for a server's threads. Tasks
+     *        for a server that already has this many waiting aren't batched.
+     */
+    public RobotsBatcher(ThreadedExecutor executor, BixoFlowProcess flowProcess, int maxRunnersPerServer, int maxQueuedPerServer) {
+        if (maxRunnersPerServer < 1) {
+            throw new IllegalArgumentException("maxRunnersPerServer must be at least 1");
+        }
+
+        _executor = executor;
+        _flowProcess = flowProcess;
+        _maxRunnersPerServer = maxRunnersPerServer;
+        _maxQueuedPerServer = maxQueuedPerServer;
+        _servers = new HashMap<String, ServerState>();
+        _numPending = 0;
+    }
+
+    public int getMaxRunnersPerServer() {
+        return _maxRunnersPerServer;
+    }
+
+    public int getMaxQueuedPerServer() {
+        return _maxQueuedPerServer;
+    }
+
+    /**
+     * Process <task> using the robots executor, or queue it up if we're already processing
+     * as many domains on <server> as we're allowed to. If the queue for <server> is full, the
+     * task gets its own thread, without waiting for the other tasks on <server>.
+     *
+     * @param server IP address of the task's domain, or null if it's not known (in which
+     *        case the task isn't batched with anything else).
+     * @param task robots processing for one domain
+     * @throws RejectedExecutionException if the executor won't take a new thread. If that
+     *         leaves <server> without any threads, the tasks queued up for it are deferred.
+     */
+    public void execute(String server, ProcessRobotsTask task) throws RejectedExecutionException {
+        boolean isOverflow = false;
+        synchronized (this) {
+            if (server != null) {
+                ServerState state = _servers.get(server);
+                if (state == null) {
+                    state = new ServerState();
+                    _servers.put(server, state);
+                }
+
+                if (state._numRunners >= _maxRunnersPerServer) {
+                    if (state._queue.size() < _maxQueuedPerServer) {
+                        state._queue.add(task);
+                        _numPending += 1;
+                        _flowProcess.increment(FetchCounters.DOMAINS_BATCHED, 1);
+                        return;
+                    }
+
+                    isOverflow = true;
+                    _flowProcess.increment(FetchCounters.DOMAINS_UNBATCHED, 1);
+                } else {
+                    state._numRunners += 1;
+                }
+            }
+
+            _numPending += 1;
+        }
+
+        if (isOverflow) {
+            LOGGER.debug("Too many domains waiting for robots processing on " + server);
+        }
+
+        // Don't hold our lock here, as the executor can block waiting for space.
+        try {
+            _executor.execute(new ServerRunner(server, task, !isOverflow));
+        } catch (RejectedExecutionException e) {
+            Queue<ProcessRobotsTask> queued = null;
+            synchronized (this) {
+                _numPending -= 1;
+
+                if ((server != null) && !isOverflow) {
+                    ServerState state = _servers.get(server);
+                    state._numRunners -= 1;
+                    if (state._numRunners == 0) {
+                        _servers.remove(server);
+                        queued = state._queue;
+                        _numPending -= queued.size();
+                    }
+                }
+
+                notifyAll();
+            }
+
+            if (queued != null) {
+                for (ProcessRobotsTask queuedTask : queued) {
+                    queuedTask.defer();
+                }
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for all of the tasks we've been given to finish.
+     *
+     * @param maxStallTime max time to wait without any task finishing
+     * @return true if all tasks finished, false if we gave up.
+     * @throws InterruptedException
+     */
+    public synchronized boolean waitForIdle(long maxStallTime) throws InterruptedException {
+        while (_numPending > 0) {
+            int numPending = _numPending;
+            long stallEnd = System.currentTimeMillis() + maxStallTime;
+
+            while (_numPending == numPending) {
+                long waitTime = stallEnd - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+
+                wait(waitTime);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Defer all of the tasks that are still waiting for a server's thread. Tasks that are
+     * currently running aren't touched.
+     *
+     * @return number of tasks that were deferred.
+     */
+    public int abortPending() {
+        List<ProcessRobotsTask> aborted = new ArrayList<ProcessRobotsTask>();
+        synchronized (this) {
+            for (ServerState state : _servers.values()) {
+                aborted.addAll(state._queue);
+                state._queue.clear();
+            }
+
+            _numPending -= aborted.size();
+            notifyAll();
+        }
+
+        for (ProcessRobotsTask task : aborted) {
+            task.defer();
+        }
+
+        return aborted.size();
+    }
+
+    public synchronized int getNumPending() {
+        return _numPending;
+    }
+
+    /**
+     * Called by a ServerRunner when it's done with a task.
+     *
+     * @param server server for the task that just finished
+     * @return next task to run for <server>, or null if there aren't any.
+     */
+    private synchronized Runnable finishTask(String server) {
+        _numPending -= 1;
+        notifyAll();
+
+        if (server == null) {
+            return null;
+        }
+
+        ServerState state = _servers.get(server);
+        if (state == null) {
+            return null;
+        }
+
+        ProcessRobotsTask result = state._queue.poll();
+        if (result == null) {
+            state._numRunners -= 1;
+            if (state._numRunners == 0) {
+                _servers.remove(server);
+            }
+        }
+
+        return result;
+    }
+}
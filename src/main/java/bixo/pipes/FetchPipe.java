@@ -5,6 +5,7 @@ import java.security.InvalidParameterException;
 import java.util.HashMap;
 import java.util.Map;
 
+import bixo.cascading.BaseDatum;
 import bixo.cascading.BaseSplitter;
 import bixo.cascading.NullContext;
 import bixo.cascading.NullSinkTap;
@@ -18,6 +19,8 @@ import bixo.datum.ScoredUrlDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.dns.BaseHostResolver;
+import bixo.dns.SimpleHostResolver;
 import bixo.exceptions.BaseFetchException;
 import bixo.fetcher.BaseFetcher;
 import bixo.operations.BaseGroupGenerator;
@@ -27,6 +30,7 @@ import bixo.operations.FilterAndScoreByUrlAndRobots;
 import bixo.operations.GroupFunction;
 import bixo.operations.MakeFetchSetsBuffer;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesCache;
 import bixo.robots.RobotUtils;
 import bixo.robots.SimpleRobotRulesParser;
 import bixo.utils.GroupingKey;
@@ -54,6 +58,9 @@ public class FetchPipe extends SubAssembly {
     // Pipe that outputs StatusDatum tuples, for all URLs being processed.
     public static final String STATUS_PIPE_NAME = "FetchPipe-status";
     
+    // Field added to ScoredUrlDatum tuples, with the IP address of the server.
+    private static final Fields SERVER_KEY_FIELD = new Fields(BaseDatum.fieldName(FetchPipe.class, "serverKey"));
+    
     /**
      * Generate key using protocol+host+port, which is what we need in order
      * to safely fetch robots.txt files.
@@ -87,6 +94,25 @@ public class FetchPipe extends SubAssembly {
         }
     }
     
+    /**
+     * Add a field with the server (IP address) from the URL's grouping key, so that all
+     * of the virtual hosts on one server (with potentially different crawl delays) get
+     * planned together, as one set of fetches.
+     *
+     */
+    private static class MakeServerKeyFunction extends BaseOperation<NullContext> implements Function<NullContext> {
+
+        public MakeServerKeyFunction() {
+            super(SERVER_KEY_FIELD);
+        }
+
+        @Override
+        public void operate(FlowProcess process, FunctionCall<NullContext> funcCall) {
+            ScoredUrlDatum datum = new ScoredUrlDatum(funcCall.getArguments());
+            funcCall.getOutputCollector().add(new Tuple(GroupingKey.getDomainFromKey(datum.getGroupKey())));
+        }
+    }
+    
     @SuppressWarnings({ "unchecked" })
     private static class FilterErrorsFunction extends BaseOperation implements Function {
         private int _fieldPos;
@@ -209,21 +235,34 @@ public class FetchPipe extends SubAssembly {
     
     public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
                     BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, fetchJobPolicy, new SimpleHostResolver(), numReducers);
+    }
+    
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    BaseFetchJobPolicy fetchJobPolicy, BaseHostResolver resolver, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, fetchJobPolicy, resolver, null, numReducers);
+    }
+    
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    BaseFetchJobPolicy fetchJobPolicy, BaseHostResolver resolver, RobotRulesCache robotsCache, int numReducers) {
         
         Pipe robotsPipe = new Each(urlProvider, new GroupFunction(new GroupByDomain()));
         robotsPipe = new GroupBy("Grouping URLs by IP/delay", robotsPipe, GroupedUrlDatum.getGroupingField());
-        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer), Fields.RESULTS);
+        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer, resolver, robotsCache), Fields.RESULTS);
         
         // Split into records for URLs that are special (not fetchable) and regular
         SplitterAssembly splitter = new SplitterAssembly(robotsPipe, new SplitIntoSpecialAndRegularKeys());
         
-        // Now generate sets of URLs to fetch. We'll wind up with all URLs for the same server & the same crawl delay,
-        // ordered by score, getting passed per list to the PreFetchBuffer. This will generate PreFetchDatums that contain a key
-        // based on the hash of the IP address (with a range of values == number of reducers), plus a list of URLs and a target
-        // crawl time.
-        Pipe prefetchPipe = new GroupBy("Distributing URL sets", splitter.getRHSPipe(), GroupedUrlDatum.getGroupingField(), ScoredUrlDatum.getSortingField(), true);
+        // Now generate sets of URLs to fetch. We'll wind up with all URLs for the same server (from every virtual host
+        // on that IP address), ordered by score, getting passed per list to the MakeFetchSetsBuffer. This will generate
+        // FetchSetDatums that contain a key based on the hash of the IP address (with a range of values == number of reducers),
+        // plus a list of URLs and a target crawl time. So hosts sharing a server get one interleaved fetch plan, versus
+        // lots of tiny sets competing for the same politeness slot.
+        Pipe prefetchPipe = new Each(splitter.getRHSPipe(), new MakeServerKeyFunction(), Fields.ALL);
+        prefetchPipe = new GroupBy("Distributing URL sets", prefetchPipe, SERVER_KEY_FIELD, ScoredUrlDatum.getSortingField(), true);
         
-        prefetchPipe = new Every(prefetchPipe, new MakeFetchSetsBuffer(fetchJobPolicy, numReducers), Fields.RESULTS);
+        // Only pass the ScoredUrlDatum fields, as the FetchSetDatum needs to recreate the original datums.
+        prefetchPipe = new Every(prefetchPipe, ScoredUrlDatum.FIELDS, new MakeFetchSetsBuffer(fetchJobPolicy, numReducers), Fields.RESULTS);
         Pipe fetchPipe = new GroupBy("Fetching URL sets", prefetchPipe, FetchSetDatum.getGroupingField(), FetchSetDatum.getSortingField());
         fetchPipe = new Every(fetchPipe, new FetchBuffer(fetcher), Fields.RESULTS);
 
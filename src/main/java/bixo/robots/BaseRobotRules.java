@@ -1,5 +1,6 @@
 package bixo.robots;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -8,9 +9,12 @@ import bixo.config.BaseFetchJobPolicy;
 /**
  * Result from parsing a single robots.txt file - which means we
  * get a set of rules, and a crawl-delay.
+ * 
+ * Rules are serializable, so that they can be cached across crawl loops.
  */
 
-public abstract class BaseRobotRules {
+@SuppressWarnings("serial")
+public abstract class BaseRobotRules implements Serializable {
     public abstract boolean isAllowed(String url);
     public abstract boolean isAllowAll();
     public abstract boolean isAllowNone();
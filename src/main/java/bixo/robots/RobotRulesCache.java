@@ -0,0 +1,313 @@
+package bixo.robots;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import bixo.utils.IoUtils;
+
+/**
+ * Cache of robots.txt rules, keyed by protocol+domain (e.g. "http://www.domain.com"), so
+ * that we don't have to fetch and parse the same robots.txt file on every loop of a crawl.
+ * 
+ * Rules where visits were deferred (which is what we get when the fetch fails with a
+ * server error, an I/O exception, or too many redirects) expire sooner, so that we try
+ * again in a reasonable amount of time.
+ * 
+ * The cache can be saved to, and loaded from, a directory. Each task writes its own
+ * file to the directory, and all of the files get loaded. A task only saves the rules it
+ * fetched itself (or loaded from its own file), so rules don't get copied into every
+ * task's file on each loop. Note that rules are specific
+ * to the robot name used when parsing, so a cache directory shouldn't be shared by
+ * crawls using different user agents.
+ *
+ */
+@SuppressWarnings("serial")
+public class RobotRulesCache implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(RobotRulesCache.class);
+    
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+    public static final long DEFAULT_DEFERRED_TTL = 60 * 60 * 1000L;
+    
+    private static final String CACHE_FILE_PREFIX = "robots-";
+    
+    private static class CacheEntry {
+        private BaseRobotRules _rules;
+        private long _expiration;
+        private boolean _isOwned;
+        
+        public CacheEntry(BaseRobotRules rules, long expiration, boolean isOwned) {
+            _rules = rules;
+            _expiration = expiration;
+            _isOwned = isOwned;
+        }
+        
+        public BaseRobotRules getRules() {
+            return _rules;
+        }
+        
+        public long getExpiration() {
+            return _expiration;
+        }
+        
+        public boolean isOwned() {
+            return _isOwned;
+        }
+    }
+    
+    private long _ttl;
+    private long _deferredTtl;
+    private String _cacheDir;
+    
+    private transient Map<String, CacheEntry> _cache;
+    private transient AtomicInteger _numHits;
+    private transient AtomicInteger _numMisses;
+    
+    public RobotRulesCache() {
+        this(DEFAULT_TTL, DEFAULT_DEFERRED_TTL);
+    }
+    
+    /**
+     * @param ttl milliseconds to keep rules from a robots.txt file (or lack of one)
+     * @param deferredTtl milliseconds to keep rules that defer visits, or 0 to not cache them
+     */
+    public RobotRulesCache(long ttl, long deferredTtl) {
+        _ttl = ttl;
+        _deferredTtl = deferredTtl;
+        
+        init();
+    }
+    
+    private void init() {
+        _cache = new ConcurrentHashMap<String, CacheEntry>();
+        _numHits = new AtomicInteger();
+        _numMisses = new AtomicInteger();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+    
+    /**
+     * @param cacheDir directory (as a Hadoop path) to use with loadCache() and saveCache(),
+     *        or null to not persist the cache.
+     */
+    public void setCacheDir(String cacheDir) {
+        _cacheDir = cacheDir;
+    }
+    
+    public String getCacheDir() {
+        return _cacheDir;
+    }
+    
+    public long getTtl() {
+        return _ttl;
+    }
+    
+    public long getDeferredTtl() {
+        return _deferredTtl;
+    }
+    
+    /**
+     * @param protocolAndDomain key for the rules (e.g. "http://www.domain.com")
+     * @return cached rules, or null if we don't have rules or they've expired.
+     */
+    public BaseRobotRules get(String protocolAndDomain) {
+        CacheEntry entry = _cache.get(protocolAndDomain);
+        if ((entry != null) && (entry.getExpiration() > System.currentTimeMillis())) {
+            _numHits.incrementAndGet();
+            return entry.getRules();
+        }
+        
+        _numMisses.incrementAndGet();
+        return null;
+    }
+    
+    public void put(String protocolAndDomain, BaseRobotRules rules) {
+        long ttl = rules.isDeferVisits() ? _deferredTtl : _ttl;
+        if (ttl > 0) {
+            _cache.put(protocolAndDomain, new CacheEntry(rules, System.currentTimeMillis() + ttl, true));
+        }
+    }
+    
+    public int getNumHits() {
+        return _numHits.get();
+    }
+    
+    public int getNumMisses() {
+        return _numMisses.get();
+    }
+    
+    public int getCacheSize() {
+        return _cache.size();
+    }
+    
+    /**
+     * Add entries from <in> (as written by writeCache) to the cache, skipping any that
+     * have expired.
+     * 
+     * @param in stream to read from (not closed)
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int readCache(InputStream in) throws IOException {
+        return readCache(in, true);
+    }
+    
+    /**
+     * Add entries from <in> to the cache, as per readCache(InputStream).
+     * 
+     * @param in stream to read from (not closed)
+     * @param isOwned true if the entries should be written out again by writeCache(), false
+     *        if they belong to some other task's cache file.
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int readCache(InputStream in, boolean isOwned) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(in);
+        long now = System.currentTimeMillis();
+        int numLoaded = 0;
+        
+        try {
+            int numEntries = ois.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String key = ois.readUTF();
+                long expiration = ois.readLong();
+                BaseRobotRules rules = (BaseRobotRules)ois.readObject();
+                
+                if (expiration > now) {
+                    _cache.put(key, new CacheEntry(rules, expiration, isOwned));
+                    numLoaded += 1;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid robots cache entry: " + e.getMessage());
+        }
+        
+        return numLoaded;
+    }
+    
+    /**
+     * Write the entries in the cache that haven't expired to <out>. Entries that were read
+     * as not being owned by us are skipped.
+     * 
+     * @param out stream to write to (not closed)
+     * @return number of entries written
+     * @throws IOException
+     */
+    public int writeCache(OutputStream out) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, CacheEntry>> entries = new ArrayList<Map.Entry<String, CacheEntry>>();
+        for (Map.Entry<String, CacheEntry> mapEntry : _cache.entrySet()) {
+            CacheEntry entry = mapEntry.getValue();
+            if (entry.isOwned() && (entry.getExpiration() > now)) {
+                entries.add(mapEntry);
+            }
+        }
+        
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeInt(entries.size());
+        for (Map.Entry<String, CacheEntry> mapEntry : entries) {
+            oos.writeUTF(mapEntry.getKey());
+            oos.writeLong(mapEntry.getValue().getExpiration());
+            oos.writeObject(mapEntry.getValue().getRules());
+            
+            // Don't hang onto references to every object we've written.
+            oos.reset();
+        }
+        
+        oos.flush();
+        return entries.size();
+    }
+    
+    /**
+     * Load all of the cache files in the cache directory, if it's been set and exists.
+     * 
+     * @param conf configuration used to get the file system
+     * @return number of entries added to the cache
+     * @throws IOException
+     */
+    public int loadCache(JobConf conf) throws IOException {
+        if (_cacheDir == null) {
+            return 0;
+        }
+        
+        Path cachePath = new Path(_cacheDir);
+        FileSystem fs = cachePath.getFileSystem(conf);
+        if (!fs.exists(cachePath)) {
+            return 0;
+        }
+        
+        // Protect against earlier versions of Hadoop returning null for an empty directory.
+        FileStatus[] files = fs.listStatus(cachePath);
+        if (files == null) {
+            return 0;
+        }
+        
+        // Entries from our own file are ours to save again, since saveCache() overwrites it.
+        String ownFileName = getCacheFileName(conf);
+        int numLoaded = 0;
+        for (FileStatus status : files) {
+            String fileName = status.getPath().getName();
+            if (status.isDir() || !fileName.startsWith(CACHE_FILE_PREFIX)) {
+                continue;
+            }
+            
+            InputStream in = fs.open(status.getPath());
+            try {
+                numLoaded += readCache(in, fileName.equals(ownFileName));
+            } finally {
+                IoUtils.safeClose(in);
+            }
+        }
+        
+        LOGGER.info(String.format("Loaded %d robots cache entries from %s", numLoaded, _cacheDir));
+        return numLoaded;
+    }
+    
+    /**
+     * Save the cache to a file in the cache directory (if it's been set), named using the
+     * task's partition so that parallel tasks don't overwrite each other's files. Entries
+     * that were loaded from other tasks' files aren't saved, since they're still there.
+     * 
+     * @param conf configuration used to get the file system and task partition
+     * @return number of entries saved
+     * @throws IOException
+     */
+    public int saveCache(JobConf conf) throws IOException {
+        if (_cacheDir == null) {
+            return 0;
+        }
+        
+        Path cacheFile = new Path(_cacheDir, getCacheFileName(conf));
+        FileSystem fs = cacheFile.getFileSystem(conf);
+        OutputStream out = fs.create(cacheFile, true);
+        
+        try {
+            int numSaved = writeCache(out);
+            LOGGER.info(String.format("Saved %d robots cache entries to %s", numSaved, cacheFile));
+            return numSaved;
+        } finally {
+            IoUtils.safeClose(out);
+        }
+    }
+    
+    private static String getCacheFileName(JobConf conf) {
+        return CACHE_FILE_PREFIX + conf.getInt("mapred.task.partition", 0);
+    }
+}
@@ -0,0 +1,271 @@
+package bixo.robots;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Allow/disallow rules from a robots.txt file, compiled into a form that can be
+ * quickly matched against many paths.
+ *
+ * Plain prefix rules go into a character trie, so matching a path is a single walk
+ * down the trie. Rules with wildcards ('*' matches any sequence of characters, and a
+ * trailing '$' anchors the pattern to the end of the path) are kept in a list sorted
+ * by length, and only checked if they could beat the best prefix match.
+ *
+ * The longest matching rule wins (ignoring any trailing '*'), and if an allow and a
+ * disallow rule of the same length both match, the allow rule wins. This is what
+ * Google and Bing do, and it means that the order of rules in the robots.txt file
+ * doesn't matter.
+ *
+ * Matching doesn't allocate any objects, and a matcher is safe to use from multiple
+ * threads once it has been created.
+ */
+public class RobotRulesMatcher {
+
+    private static final byte NO_RULE = 0;
+    private static final byte ALLOW_RULE = 1;
+    private static final byte DISALLOW_RULE = 2;
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    private static class TrieNode {
+        private char[] _chars = NO_CHARS;
+        private TrieNode[] _children = NO_CHILDREN;
+        private byte _rule = NO_RULE;
+
+        public TrieNode getChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            return index < 0 ? null : _children[index];
+        }
+    }
+
+    /**
+     * Mutable version of a trie node, used while we're adding rules.
+     */
+    private static class TrieBuilder {
+        private Map<Character, TrieBuilder> _children = new TreeMap<Character, TrieBuilder>();
+        private byte _rule = NO_RULE;
+
+        public void add(String prefix, boolean allow) {
+            TrieBuilder node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = prefix.charAt(i);
+                TrieBuilder child = node._children.get(c);
+                if (child == null) {
+                    child = new TrieBuilder();
+                    node._children.put(c, child);
+                }
+
+                node = child;
+            }
+
+            // If we have both allow & disallow for the same prefix, allow wins.
+            if (allow || (node._rule == NO_RULE)) {
+                node._rule = allow ? ALLOW_RULE : DISALLOW_RULE;
+            }
+        }
+
+        public TrieNode build() {
+            TrieNode result = new TrieNode();
+            result._rule = _rule;
+
+            int numChildren = _children.size();
+            if (numChildren > 0) {
+                result._chars = new char[numChildren];
+                result._children = new TrieNode[numChildren];
+
+                // TreeMap gives us the chars in sorted order, for the binary search.
+                int index = 0;
+                for (Map.Entry<Character, TrieBuilder> entry : _children.entrySet()) {
+                    result._chars[index] = entry.getKey();
+                    result._children[index] = entry.getValue().build();
+                    index += 1;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    private static class WildcardRule {
+        private String[] _segments;
+        private boolean _anchored;
+        private boolean _allow;
+        private int _length;
+
+        public WildcardRule(String[] segments, boolean anchored, boolean allow, int length) {
+            _segments = segments;
+            _anchored = anchored;
+            _allow = allow;
+            _length = length;
+        }
+
+        /**
+         * The first segment has to match at the start of the path. Each following
+         * segment has to be found after the previous one, and if we're anchored then
+         * the last segment has to match at the end of the path. Using the leftmost
+         * match for each segment is always safe, since a '*' can absorb anything
+         * between segments.
+         *
+         * @param path path to check
+         * @return true if the rule matches <path>
+         */
+        public boolean matches(String path) {
+            String first = _segments[0];
+            if (!path.startsWith(first)) {
+                return false;
+            }
+
+            int numSegments = _segments.length;
+            if (numSegments == 1) {
+                return !_anchored || (path.length() == first.length());
+            }
+
+            int pos = first.length();
+            for (int i = 1; i < numSegments - 1; i++) {
+                String segment = _segments[i];
+                int index = path.indexOf(segment, pos);
+                if (index == -1) {
+                    return false;
+                }
+
+                pos = index + segment.length();
+            }
+
+            String last = _segments[numSegments - 1];
+            if (_anchored) {
+                int lastStart = path.length() - last.length();
+                return (lastStart >= pos) && path.startsWith(last, lastStart);
+            } else {
+                return path.indexOf(last, pos) != -1;
+            }
+        }
+    }
+
+    private static final Comparator<WildcardRule> LONGEST_FIRST = new Comparator<WildcardRule>() {
+
+        @Override
+        public int compare(WildcardRule o1, WildcardRule o2) {
+            return o2._length - o1._length;
+        }
+    };
+
+    private TrieNode _root;
+    private WildcardRule[] _wildcardRules;
+
+    /**
+     * Compile a set of rules. Each rule is a path pattern, which can contain '*'
+     * wildcards and a trailing '$'.
+     *
+     * @param patterns path patterns
+     * @param allows allow flag for each pattern in <patterns>
+     */
+    public RobotRulesMatcher(List<String> patterns, List<Boolean> allows) {
+        if (patterns.size() != allows.size()) {
+            throw new IllegalArgumentException("Must have one allow flag per pattern");
+        }
+
+        TrieBuilder trie = new TrieBuilder();
+        List<WildcardRule> wildcardRules = new ArrayList<WildcardRule>();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            String pattern = patterns.get(i);
+            boolean allow = allows.get(i);
+
+            int end = pattern.length();
+            boolean anchored = pattern.endsWith("$");
+            if (anchored) {
+                end -= 1;
+            }
+
+            // A trailing '*' matches anything, including the end of the path, so
+            // it's the same as not having the '*' (or the '$').
+            while ((end > 0) && (pattern.charAt(end - 1) == '*')) {
+                end -= 1;
+                anchored = false;
+            }
+
+            String body = pattern.substring(0, end);
+            if (!anchored && (body.indexOf('*') == -1)) {
+                trie.add(body, allow);
+            } else {
+                int length = body.length() + (anchored ? 1 : 0);
+                wildcardRules.add(new WildcardRule(splitOnWildcards(body), anchored, allow, length));
+            }
+        }
+
+        Collections.sort(wildcardRules, LONGEST_FIRST);
+
+        _root = trie.build();
+        _wildcardRules = wildcardRules.toArray(new WildcardRule[wildcardRules.size()]);
+    }
+
+    /**
+     * Find the longest rule that matches <path>.
+     *
+     * @param path decoded path (plus query), which should start with '/'
+     * @return true if the best matching rule is an allow rule, or no rule matches.
+     */
+    public boolean isAllowed(String path) {
+        int bestLength = -1;
+        boolean bestAllow = true;
+
+        TrieNode node = _root;
+        if (node._rule != NO_RULE) {
+            bestLength = 0;
+            bestAllow = node._rule == ALLOW_RULE;
+        }
+
+        int pathLength = path.length();
+        for (int i = 0; i < pathLength; i++) {
+            node = node.getChild(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+
+            if (node._rule != NO_RULE) {
+                bestLength = i + 1;
+                bestAllow = node._rule == ALLOW_RULE;
+            }
+        }
+
+        // Wildcard rules are sorted longest first, so we can stop as soon as we get
+        // to one that couldn't beat what we've already got.
+        for (WildcardRule rule : _wildcardRules) {
+            if (rule._length < bestLength) {
+                break;
+            } else if ((rule._length == bestLength) && (bestAllow || !rule._allow)) {
+                continue;
+            } else if (rule.matches(path)) {
+                bestLength = rule._length;
+                bestAllow = rule._allow;
+            }
+        }
+
+        return bestAllow;
+    }
+
+    private static String[] splitOnWildcards(String pattern) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int wildcardPos;
+        while ((wildcardPos = pattern.indexOf('*', start)) != -1) {
+            // Skip empty segments from runs of '*', except for the leading one
+            // (which means the pattern doesn't have to match at the start).
+            if ((wildcardPos > start) || segments.isEmpty()) {
+                segments.add(pattern.substring(start, wildcardPos));
+            }
+
+            start = wildcardPos + 1;
+        }
+
+        segments.add(pattern.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+}
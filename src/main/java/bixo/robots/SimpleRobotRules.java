@@ -1,8 +1,9 @@
 package bixo.robots;
 
-import java.net.URL;
+import java.io.Serializable;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -10,6 +11,7 @@ import java.util.regex.Pattern;
  * get a set of rules, and a crawl-delay.
  */
 
+@SuppressWarnings("serial")
 public class SimpleRobotRules extends BaseRobotRules {
 
     public enum RobotRulesMode {
@@ -21,7 +23,7 @@ public class SimpleRobotRules extends BaseRobotRules {
     /**
      * Single rule that maps from a path prefix to an allow flag.
      */
-    protected class RobotRule {
+    protected static class RobotRule implements Serializable {
         String _prefix;
         Pattern _pattern;
         boolean _allow;
@@ -43,6 +45,9 @@ public class SimpleRobotRules extends BaseRobotRules {
     private ArrayList<RobotRule> _rules;
     private RobotRulesMode _mode;
     
+    // Compiled version of _rules, created on first use.
+    private transient volatile RobotRulesMatcher _matcher;
+    
     public SimpleRobotRules() {
         this(RobotRulesMode.ALLOW_SOME);
     }
@@ -56,6 +61,7 @@ public class SimpleRobotRules extends BaseRobotRules {
     
     public void clearRules() {
         _rules.clear();
+        _matcher = null;
     }
 
     public void addRule(String prefix, boolean allow) {
@@ -66,10 +72,14 @@ public class SimpleRobotRules extends BaseRobotRules {
         }
 
         _rules.add(new RobotRule(prefix, allow));
+        _matcher = null;
     }
 
-    // TODO KKr - make sure paths are sorted from longest to shortest,
-    // to implement longest match
+    /**
+     * The longest matching rule wins, with allow beating disallow for rules of the
+     * same length. See RobotRulesMatcher for details.
+     */
+    @Override
     public boolean isAllowed(String url) {
         if (_mode == RobotRulesMode.ALLOW_NONE) {
             return false;
@@ -83,34 +93,80 @@ public class SimpleRobotRules extends BaseRobotRules {
                 return true;
             }
 
+            return getMatcher().isAllowed(path);
+        }
+    }
+
+    private RobotRulesMatcher getMatcher() {
+        // If two threads race to compile the rules, they'll both wind up with
+        // equivalent matchers, so we don't need to synchronize.
+        RobotRulesMatcher matcher = _matcher;
+        if (matcher == null) {
+            List<String> patterns = new ArrayList<String>(_rules.size());
+            List<Boolean> allows = new ArrayList<Boolean>(_rules.size());
             for (RobotRule rule : _rules) {
-                if (path.startsWith(rule._prefix)) {
-                    return rule._allow;
+                if (rule._prefix != null) {
+                    patterns.add(rule._prefix);
+                    allows.add(rule._allow);
                 }
             }
-
-            return true;
+            
+            matcher = new RobotRulesMatcher(patterns, allows);
+            _matcher = matcher;
         }
+        
+        return matcher;
     }
-
+    
+    /**
+     * Extract the path and query from <url>. We do this by hand, versus creating a
+     * java.net.URL, since we get called for every URL we fetch.
+     * 
+     * @param url URL to process
+     * @return decoded, lower-cased path plus query, or "/" if there's no path
+     */
     private String getPath(String url) {
-
-        try {
-            String path = new URL(url).getPath();
-            
-            if ((path == null) || (path.equals(""))) {
-                return "/";
-            } else {
-                // We always lower-case the path, as anybody who sets up rules that differ only by case
-                // is insane, but it's more likely that somebody will accidentally put in rules that don't
-                // match their target paths because of case differences.
-                return URLDecoder.decode(path, "UTF-8").toLowerCase();
-            }
-        } catch (Exception e) {
+        int hostStart = url.indexOf("://");
+        if (hostStart == -1) {
             // If the URL is invalid, we don't really care since the fetch
             // will fail, so return the root.
             return "/";
         }
+        
+        hostStart += 3;
+        int urlLength = url.length();
+        int pathStart = hostStart;
+        while ((pathStart < urlLength) && ("/?#".indexOf(url.charAt(pathStart)) == -1)) {
+            pathStart += 1;
+        }
+        
+        int pathEnd = url.indexOf('#', pathStart);
+        if (pathEnd == -1) {
+            pathEnd = urlLength;
+        }
+        
+        if (pathStart == pathEnd) {
+            return "/";
+        }
+        
+        String path = url.substring(pathStart, pathEnd);
+        if (path.charAt(0) == '?') {
+            path = "/" + path;
+        }
+        
+        // Rule paths are decoded when we parse them, so do the same thing here.
+        if ((path.indexOf('%') != -1) || (path.indexOf('+') != -1)) {
+            try {
+                path = URLDecoder.decode(path, "UTF-8");
+            } catch (Exception e) {
+                // Use the raw path if it's not properly encoded.
+            }
+        }
+        
+        // We always lower-case the path, as anybody who sets up rules that differ only by case
+        // is insane, but it's more likely that somebody will accidentally put in rules that don't
+        // match their target paths because of case differences.
+        return path.toLowerCase();
     }
     
     /**
@@ -1,14 +1,12 @@
 package bixo.robots;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
@@ -168,6 +166,9 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         }
     }
     
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    
     private static Map<String, RobotDirective> DIRECTIVE_PREFIX = new HashMap<String, RobotDirective>();
     
     static {
@@ -190,63 +191,92 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         DIRECTIVE_PREFIX.put("crawl delay", RobotDirective.CRAWL_DELAY);
     }
     
-    // separator is either one or more spaces/tabs, or a colon
-    private static final Pattern COLON_DIRECTIVE_DELIMITER = Pattern.compile("[ \t]*:[ \t]*(.*)");
-    private static final Pattern BLANK_DIRECTIVE_DELIMITER = Pattern.compile("[ \t]+(.*)");
+    // Same as DIRECTIVE_PREFIX, but as bytes, for matching directly against the file content.
+    // None of the prefixes is a prefix of another one, so order doesn't matter.
+    private static final byte[][] DIRECTIVE_PREFIX_BYTES = new byte[DIRECTIVE_PREFIX.size()][];
+    private static final RobotDirective[] DIRECTIVE_PREFIX_VALUES = new RobotDirective[DIRECTIVE_PREFIX.size()];
+    
+    static {
+        int index = 0;
+        for (Map.Entry<String, RobotDirective> entry : DIRECTIVE_PREFIX.entrySet()) {
+            DIRECTIVE_PREFIX_BYTES[index] = asciiBytes(entry.getKey());
+            DIRECTIVE_PREFIX_VALUES[index] = entry.getValue();
+            index += 1;
+        }
+    }
+    
+    private static final byte[][] HTML_TAG_NAMES = { asciiBytes("html"), asciiBytes("head"), asciiBytes("body") };
+    private static final byte[] USER_AGENT_FIELD = asciiBytes("user-agent:");
     
-    // match the rest of the directive, up until whitespace or colon
-    private static final Pattern DIRECTIVE_SUFFIX_PATTERN = Pattern.compile("[^: \t]+(.*)");
-
     /**
-     * Figure out directive on line of text from robots.txt file.
-     * We assume the line has been lower-cased
+     * Figure out directive on a line of text from robots.txt file. The directive name
+     * is matched without regard to case, and the data is returned as-is (other than
+     * trimming whitespace).
      * 
-     * @param line
+     * The separator between the directive and the data is either a colon (with optional
+     * spaces/tabs around it), or one or more spaces/tabs.
+     * 
+     * @param line buffer containing the line, with comments and whitespace trimmed
+     * @param start start of line in <line>
+     * @param end end of line in <line>
+     * @param charset encoding of file
      * @return robot command found on line
      */
-    private static RobotToken tokenize(String line) {
-        for (String prefix : DIRECTIVE_PREFIX.keySet()) {
-            int prefixLength = prefix.length();
-            if (line.startsWith(prefix)) {
-                RobotDirective directive = DIRECTIVE_PREFIX.get(prefix);
-                String dataPortion = line.substring(prefixLength);
-
-                if (directive.isPrefix()) {
-                    Matcher m = DIRECTIVE_SUFFIX_PATTERN.matcher(dataPortion);
-                    if (m.matches()) {
-                        dataPortion = m.group(1);
-                    } else {
-                        continue;
-                    }
-                }
-                Matcher m = COLON_DIRECTIVE_DELIMITER.matcher(dataPortion);
-                if (!m.matches()) {
-                    m = BLANK_DIRECTIVE_DELIMITER.matcher(dataPortion);
+    private static RobotToken tokenize(byte[] line, int start, int end, Charset charset) {
+        for (int i = 0; i < DIRECTIVE_PREFIX_BYTES.length; i++) {
+            byte[] prefix = DIRECTIVE_PREFIX_BYTES[i];
+            if (!startsWithIgnoreCase(line, start, end, prefix)) {
+                continue;
+            }
+            
+            RobotDirective directive = DIRECTIVE_PREFIX_VALUES[i];
+            int pos = start + prefix.length;
+            
+            if (directive.isPrefix()) {
+                // Skip the rest of the directive, up until whitespace or colon.
+                int suffixStart = pos;
+                while ((pos < end) && (line[pos] != ':') && !isBlank(line[pos])) {
+                    pos += 1;
                 }
-
-                if (m.matches()) {
-                    return new RobotToken(directive, m.group(1).trim());
+                
+                if (pos == suffixStart) {
+                    continue;
                 }
             }
+            
+            int dataStart = skipBlanks(line, pos, end);
+            if ((dataStart < end) && (line[dataStart] == ':')) {
+                dataStart = skipBlanks(line, dataStart + 1, end);
+            } else if (dataStart == pos) {
+                // No colon and no whitespace after the directive, so it's something else.
+                continue;
+            }
+            
+            while ((dataStart < end) && isWhitespace(line[dataStart])) {
+                dataStart += 1;
+            }
+            
+            return new RobotToken(directive, new String(line, dataStart, end - dataStart, charset));
         }
         
-        Matcher m = COLON_DIRECTIVE_DELIMITER.matcher(line);
-        if (m.matches()) {
-            return new RobotToken(RobotDirective.UNKNOWN, line);
+        String text = new String(line, start, end - start, charset);
+        if (line[start] == ':') {
+            return new RobotToken(RobotDirective.UNKNOWN, text);
         } else {
-            return new RobotToken(RobotDirective.MISSING, line);
+            return new RobotToken(RobotDirective.MISSING, text);
         }
     }
     
-    private static final Pattern SIMPLE_HTML_PATTERN = Pattern.compile("(?is)<(html|head|body)\\s*>");
-    private static final Pattern USER_AGENT_PATTERN = Pattern.compile("(?i)user-agent:");
-
     // Max # of warnings during parse of any one robots.txt file.
     private static final int MAX_WARNINGS = 5;
     
     // Max value for crawl delay we'll use from robots.txt file. If the value is greater
     // than this, we'll skip all pages.
     private static final long MAX_CRAWL_DELAY = 300000;
+    
+    // Max number of bytes of a robots.txt file that we'll parse. Google uses the same limit,
+    // and anything past this is almost always garbage that would just burn CPU.
+    public static final int MAX_PARSE_BYTES = 500 * 1024;
 
     private int _numWarnings;
     
@@ -284,22 +314,30 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
             return new SimpleRobotRules(RobotRulesMode.ALLOW_ALL);
         }
 
-        int bytesLen = content.length;
         int offset = 0;
-        String encoding = "us-ascii";
+        int end = content.length;
+        Charset charset = US_ASCII;
         
         // Check for a UTF-8 BOM at the beginning (EF BB BF)
-        if ((bytesLen >= 3) && (content[0] == (byte)0xEF) && (content[1] == (byte)0xBB) && (content[2] == (byte)0xBF)) {
+        if ((end >= 3) && (content[0] == (byte)0xEF) && (content[1] == (byte)0xBB) && (content[2] == (byte)0xBF)) {
             offset = 3;
-            bytesLen -= 3;
-            encoding = "UTF-8";
+            charset = UTF_8;
         }
         
-        String contentAsStr;
-        try {
-            contentAsStr = new String(content, offset, bytesLen, encoding);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Impossible unsupported encoding exception for " + encoding);
+        // Limit how much work we'll do for huge files, but don't stop in the middle of a line,
+        // unless there's no line break at all (then we parse the first MAX_PARSE_BYTES).
+        if (end - offset > MAX_PARSE_BYTES) {
+            end = offset + MAX_PARSE_BYTES;
+            int lineEnd = end;
+            while ((lineEnd > offset) && (content[lineEnd - 1] != '\n') && (content[lineEnd - 1] != '\r')) {
+                lineEnd -= 1;
+            }
+            
+            if (lineEnd > offset) {
+                end = lineEnd;
+            }
+            
+            reportWarning(String.format("Only parsing first %d bytes of robots.txt file (size %d)", end - offset, content.length), url);
         }
 
         // Decide if we need to do special HTML processing.
@@ -309,8 +347,8 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         // assume somebody messed up and returned back to us a random HTML page instead
         // of a robots.txt file.
         boolean hasHTML = false;
-        if (isHtmlType || SIMPLE_HTML_PATTERN.matcher(contentAsStr).find()) {
-            if (!USER_AGENT_PATTERN.matcher(contentAsStr).find()) {
+        if (isHtmlType || hasHtmlTag(content, offset, end)) {
+            if (indexOfIgnoreCase(content, offset, end, USER_AGENT_FIELD) == -1) {
                 LOGGER.trace("Found non-robots.txt HTML file: " + url);
                 return new SimpleRobotRules(RobotRulesMode.ALLOW_ALL);
             } else {
@@ -325,35 +363,54 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
             }
         }
         
-        // Break on anything that might be used as a line ending. Since tokenizer doesn't
-        // return empty tokens, a \r\n sequence still works since it looks like an empty
-        // string between the \r and \n.
-        StringTokenizer lineParser = new StringTokenizer(contentAsStr, "\n\r\u0085\u2028\u2029");
         ParseState parseState = new ParseState(url, robotName.toLowerCase());
         boolean keepGoing = true;
-        
-        while (keepGoing && lineParser.hasMoreTokens()) {
-            String line = lineParser.nextToken();
+        int lineStart = offset;
+        
+        while (keepGoing && (lineStart < end)) {
+            // Break on anything that might be used as a line ending. Empty lines get skipped,
+            // so a \r\n sequence still works since it looks like an empty line between the
+            // \r and the \n.
+            int lineEnd = lineStart;
+            int separatorLength = 0;
+            while ((lineEnd < end) && ((separatorLength = lineSeparatorLength(content, lineEnd, end, charset)) == 0)) {
+                lineEnd += 1;
+            }
+            
+            byte[] line = content;
+            int start = lineStart;
+            lineStart = lineEnd + separatorLength;
 
             // Get rid of HTML markup, in case some brain-dead webmaster has created an HTML
             // page for robots.txt. We could do more sophisticated processing here to better
             // handle bad HTML, but that's a very tiny percentage of all robots.txt files.
             if (hasHTML) {
-                line = line.replaceAll("<[^>]+>","");
+                line = stripHtmlTags(content, start, lineEnd);
+                start = 0;
+                lineEnd = line.length;
             }
             
             // trim out comments and whitespace
-            int hashPos = line.indexOf("#");
-            if (hashPos >= 0) {
-                line = line.substring(0, hashPos);
+            for (int i = start; i < lineEnd; i++) {
+                if (line[i] == '#') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+            
+            while ((start < lineEnd) && isWhitespace(line[start])) {
+                start += 1;
             }
             
-            line = line.trim().toLowerCase();
-            if (line.length() == 0) {
+            while ((lineEnd > start) && isWhitespace(line[lineEnd - 1])) {
+                lineEnd -= 1;
+            }
+            
+            if (start == lineEnd) {
                 continue;
             }
          
-            RobotToken token = tokenize(line);
+            RobotToken token = tokenize(line, start, lineEnd, charset);
             switch (token.getDirective()) {
                 case USER_AGENT:
                     keepGoing = handleUserAgent(parseState, token);
@@ -380,12 +437,12 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
                     break;
 
                 case UNKNOWN:
-                    reportWarning("Unknown directive in robots.txt file: " + line, url);
+                    reportWarning("Unknown directive in robots.txt file: " + token.getData(), url);
                     parseState.setFinishedAgentFields(true);
                     break;
                     
                 case MISSING:
-                    reportWarning(String.format("Unknown line in robots.txt file (size %d): %s", content.length, line), url);
+                    reportWarning(String.format("Unknown line in robots.txt file (size %d): %s", content.length, token.getData()), url);
                     parseState.setFinishedAgentFields(true);
                     break;
                     
@@ -452,7 +509,7 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         String[] targetNames = state.getTargetName().split(" ");
         
         // TODO KKr - catch case of multiple names, log as non-standard.
-        String[] agentNames = token.getData().split("[ \t,]");
+        String[] agentNames = token.getData().toLowerCase().split("[ \t,]");
         for (String agentName : agentNames) {
             if (agentName.equals("*") && !state.isMatchedWildcard()) {
                 state.setMatchedWildcard(true);
@@ -490,7 +547,7 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         String path = token.getData();
         
         try {
-            path = URLDecoder.decode(path, "UTF-8");
+            path = URLDecoder.decode(path, "UTF-8").toLowerCase();
             
             if (path.length() == 0) {
                 // Disallow: <nothing> => allow all.
@@ -527,6 +584,9 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
              reportWarning("Error parsing robots rules - can't decode path: " + path, state.getUrl());
          }
 
+         // We match against lower-cased paths, see SimpleRobotRules.getPath()
+         path = path.toLowerCase();
+
          if (path.length() == 0) {
              // Allow: <nothing> => allow all.
              state.clearRules();
@@ -605,7 +665,7 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
      */
     private boolean handleHttp(ParseState state, RobotToken token) {
         String urlFragment = token.getData();
-        if (urlFragment.contains("sitemap")) {
+        if (urlFragment.toLowerCase().contains("sitemap")) {
             RobotToken fixedToken = new RobotToken(RobotDirective.SITEMAP, "http:" + token.getData());
             return handleSitemap(state, fixedToken);
         } else {
@@ -614,6 +674,178 @@ public class SimpleRobotRulesParser extends BaseRobotsParser {
         }
     }
     
+    private static byte[] asciiBytes(String s) {
+        return s.getBytes(US_ASCII);
+    }
+    
+    private static boolean isBlank(byte b) {
+        return (b == ' ') || (b == '\t');
+    }
+    
+    /**
+     * @param b byte to check
+     * @return true if <b> would be removed by String.trim()
+     */
+    private static boolean isWhitespace(byte b) {
+        return (b >= 0) && (b <= ' ');
+    }
+    
+    private static boolean isHtmlWhitespace(byte b) {
+        return isBlank(b) || (b == '\n') || (b == '\r') || (b == '\f') || (b == 0x0B);
+    }
+    
+    private static int skipBlanks(byte[] buffer, int pos, int end) {
+        while ((pos < end) && isBlank(buffer[pos])) {
+            pos += 1;
+        }
+        
+        return pos;
+    }
+    
+    private static byte toLowerCase(byte b) {
+        return ((b >= 'A') && (b <= 'Z')) ? (byte)(b + ('a' - 'A')) : b;
+    }
+    
+    /**
+     * @param buffer bytes to check
+     * @param start offset in <buffer>
+     * @param end end of valid data in <buffer>
+     * @param target lower-cased ASCII bytes to look for
+     * @return true if <buffer> has <target> at <start>, ignoring case
+     */
+    private static boolean startsWithIgnoreCase(byte[] buffer, int start, int end, byte[] target) {
+        if (end - start < target.length) {
+            return false;
+        }
+        
+        for (int i = 0; i < target.length; i++) {
+            if (toLowerCase(buffer[start + i]) != target[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static int indexOfIgnoreCase(byte[] buffer, int start, int end, byte[] target) {
+        byte first = target[0];
+        for (int i = start; i <= end - target.length; i++) {
+            if ((toLowerCase(buffer[i]) == first) && startsWithIgnoreCase(buffer, i, end, target)) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Look for <html>, <head> or <body> tags (without attributes).
+     * 
+     * @param buffer bytes to check
+     * @param start offset in <buffer>
+     * @param end end of valid data in <buffer>
+     * @return true if we found an HTML tag
+     */
+    private static boolean hasHtmlTag(byte[] buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != '<') {
+                continue;
+            }
+            
+            for (byte[] tagName : HTML_TAG_NAMES) {
+                if (startsWithIgnoreCase(buffer, i + 1, end, tagName)) {
+                    int pos = i + 1 + tagName.length;
+                    while ((pos < end) && isHtmlWhitespace(buffer[pos])) {
+                        pos += 1;
+                    }
+                    
+                    if ((pos < end) && (buffer[pos] == '>')) {
+                        return true;
+                    }
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Return the length of the line separator at <pos>, or 0 if there isn't one. For
+     * UTF-8 files we also treat NEL, LINE SEPARATOR and PARAGRAPH SEPARATOR as line
+     * separators.
+     * 
+     * @param buffer bytes to check
+     * @param pos offset in <buffer>
+     * @param end end of valid data in <buffer>
+     * @param charset encoding of <buffer>
+     * @return number of bytes in separator
+     */
+    private static int lineSeparatorLength(byte[] buffer, int pos, int end, Charset charset) {
+        byte b = buffer[pos];
+        if ((b == '\n') || (b == '\r')) {
+            return 1;
+        } else if ((b >= 0) || (charset != UTF_8)) {
+            return 0;
+        } else if ((b == (byte)0xC2) && (pos + 1 < end) && (buffer[pos + 1] == (byte)0x85)) {
+            return 2;
+        } else if ((b == (byte)0xE2) && (pos + 2 < end) && (buffer[pos + 1] == (byte)0x80)
+                        && ((buffer[pos + 2] == (byte)0xA8) || (buffer[pos + 2] == (byte)0xA9))) {
+            return 3;
+        } else {
+            return 0;
+        }
+    }
+    
+    /**
+     * Return a copy of the line in <buffer>, with anything that looks like an HTML tag
+     * (a '<', then one or more characters, then a '>') removed.
+     * 
+     * @param buffer bytes containing the line
+     * @param start start of line in <buffer>
+     * @param end end of line in <buffer>
+     * @return line without HTML tags
+     */
+    private static byte[] stripHtmlTags(byte[] buffer, int start, int end) {
+        byte[] result = new byte[end - start];
+        int resultLength = 0;
+        
+        // Find the last '>' once, so that a line full of unclosed '<' chars doesn't mean
+        // scanning to the end of the line for each one.
+        int lastTagEnd = end - 1;
+        while ((lastTagEnd >= start) && (buffer[lastTagEnd] != '>')) {
+            lastTagEnd -= 1;
+        }
+        
+        int pos = start;
+        while (pos < end) {
+            if (pos + 2 > lastTagEnd) {
+                // No tags can end after here, so copy the rest as-is.
+                int length = end - pos;
+                System.arraycopy(buffer, pos, result, resultLength, length);
+                resultLength += length;
+                break;
+            }
+            
+            byte b = buffer[pos];
+            if ((b == '<') && (buffer[pos + 1] != '>')) {
+                // We know there's a '>' at or before lastTagEnd, and we skip everything
+                // that we scan, so this is linear overall.
+                int tagEnd = pos + 2;
+                while (buffer[tagEnd] != '>') {
+                    tagEnd += 1;
+                }
+                
+                pos = tagEnd + 1;
+                continue;
+            }
+            
+            result[resultLength++] = b;
+            pos += 1;
+        }
+        
+        return resultLength == result.length ? result : Arrays.copyOf(result, resultLength);
+    }
+    
     // For testing
     public int getNumWarnings() {
         return _numWarnings;
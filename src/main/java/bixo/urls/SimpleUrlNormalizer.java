@@ -3,18 +3,26 @@ package bixo.urls;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import bixo.utils.StringUtils;
-
+/**
+ * URL normalizer that works directly on the characters of the URL, versus using a chain of
+ * regular expressions, as this gets called for every outlink we extract.
+ *
+ * The results are the same as what we used to get from the regex-based version. That's why
+ * ignored query parameters are removed in separate scans (only the first match from each set of
+ * names), as with the regexes, since removing all of them would change the normalized URLs
+ * and thus break de-duplication against URLs normalized previously.
+ *
+ */
 @SuppressWarnings("serial")
 public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     private static final Logger LOGGER = Logger.getLogger(SimpleUrlNormalizer.class);
-    
+
     // http://en.wikipedia.org/wiki/Percent-encoding - full set of reserved chars is:
     // !    *   '   (   )   ;   :   @   &   =   +   $   ,   /   ?   %   #   [   ]
     // But you only need to encode "reserved purpose" characters, and that sub-set of
@@ -25,113 +33,209 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     private static final String RESERVED_QUERY_CHARS = "%&;=:?#";
 
     private static final String RESERVED_PATH_CHARS = "%/?#";
-    
-    private static final String HEX_CODES = "0123456789abcdefABCDEF";
-    
-    // Match "/xx/../" in the url, where xx consists of chars, different then "/"
-    // (slash) and needs to have at least one char different from "."
-    // Also match a leading "/../" in the URL. Both can be replaced by just "/"
-    private static final Pattern RELATIVE_PATH_PATTERN = Pattern.compile("(/[^/]*[^/.]{1}[^/]*/\\.\\./|^(/\\.\\./)+)");
-    
-    // Match against default pages such as /index.html, etc. 
-    private static final Pattern DEFAULT_PAGE_PATTERN = Pattern.compile("/((?i)index|default)\\.((?i)js[pf]{1}?[afx]?|cgi|cfm|asp[x]?|[psx]?htm[l]?|php[3456]?)(\\?|&|#|$)");
-    
+
+    // Lookup tables for ASCII chars that have to be percent-encoded.
+    private static final boolean[] RESERVED_QUERY_TABLE = makeReservedTable(RESERVED_QUERY_CHARS);
+    private static final boolean[] RESERVED_PATH_TABLE = makeReservedTable(RESERVED_PATH_CHARS);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Value of each hex digit, or -1 if the char isn't a hex digit.
+    private static final int[] HEX_VALUES = makeHexValues();
+
     // Remove things that look like the (invalid) jsession ids prefixing or suffixing the query portion of a URL.
-    private static final Pattern JSESSION_ID_PATTERN = Pattern.compile("(?:;jsessionid=.*?)(\\?|&|#|$)");
-    
+    private static final String JSESSION_ID = ";jsessionid=";
+
     // Remove things that look like session ids from the query portion of a URL.
-    private static final Pattern SESSION_ID_PATTERN = Pattern.compile("(\\?|&)(?:(?i)sid|phpsessid|sessionid|session_id|bv_sessionid|jsessionid|-session|session|session_key)=.*?(&|#|$)");
-    
+    private static final Set<String> SESSION_ID_PARAMETERS = makeSet("sid", "phpsessid", "sessionid", "session_id",
+                    "bv_sessionid", "jsessionid", "-session", "session", "session_key");
+
     // Remove other common unwanted parameters from the query portion of a URL.
-    private static final Pattern OTHER_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)width|format|country|height|src|user|username|uname|return_url|returnurl|sort|sort_by|sortby|sort_direction|sort_key|order_by|orderby|sortorder|collate)=.*?(&|#|$)");
-    
+    private static final Set<String> OTHER_IGNORED_QUERY_PARAMETERS = makeSet("width", "format", "country", "height",
+                    "src", "user", "username", "uname", "return_url", "returnurl", "sort", "sort_by", "sortby",
+                    "sort_direction", "sort_key", "order_by", "orderby", "sortorder", "collate");
+
     // Remove even more common unwanted parameters from the query portion of a URL.
-    private static final Pattern AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)user|usr|user_id|userid|memberid)=.*?(&|#|$)");
-    
+    private static final Set<String> AGGRESSIVE_IGNORED_QUERY_PARAMETERS = makeSet("user", "usr", "user_id", "userid", "memberid");
+
+    // Match against default pages such as /index.html, etc.
+    private static final Set<String> DEFAULT_PAGE_NAMES = makeSet("index", "default");
+    private static final Set<String> DEFAULT_PAGE_EXTENSIONS = makeSet("jsp", "jsf", "jspa", "jspf", "jspx", "jsfa",
+                    "jsff", "jsfx", "cgi", "cfm", "asp", "aspx", "htm", "html", "phtm", "phtml", "shtm", "shtml", "xhtm",
+                    "xhtml", "php", "php3", "php4", "php5", "php6");
+
+    private static final String PARENT_DIR = "/../";
+
     private boolean _treatRefAsQuery;
     private boolean _isAggressive;
-    
+
     public SimpleUrlNormalizer() {
     	this(false, false);
     }
-    
+
     public SimpleUrlNormalizer(boolean treatRefAsQuery) {
         this(treatRefAsQuery, false);
     }
-    
+
     public SimpleUrlNormalizer(boolean treatRefAsQuery, boolean isAggressive) {
         _treatRefAsQuery = treatRefAsQuery;
         _isAggressive = isAggressive;
     }
-    
-    private String encodeCodePoint(int codepoint) {
-        try {
-            int[] codepoints = { codepoint };
-            byte[] bytes = new String(codepoints, 0, 1).getBytes("UTF-8");
-            
-            StringBuilder result = new StringBuilder();
-            for (byte value : bytes) {
-                result.append(String.format("%%%02x", value));
-            }
-            
-            return result.toString();
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("Unexpected exception during URL encoding: " + e);
-            return "";
+
+    private static boolean[] makeReservedTable(String reservedChars) {
+        boolean[] result = new boolean[0x80];
+        for (int i = 0; i < reservedChars.length(); i++) {
+            result[reservedChars.charAt(i)] = true;
         }
 
+        return result;
     }
-    
-    private String encodeUrlComponent(String component, String reservedChars) {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < component.length(); ) {
-            int codePoint = component.codePointAt(i);
-            if (codePoint == 0x0020) {
+
+    private static int[] makeHexValues() {
+        int[] result = new int[0x80];
+        Arrays.fill(result, -1);
+        for (int i = 0; i < 10; i++) {
+            result['0' + i] = i;
+        }
+
+        for (int i = 0; i < 6; i++) {
+            result['a' + i] = 10 + i;
+            result['A' + i] = 10 + i;
+        }
+
+        return result;
+    }
+
+    private static Set<String> makeSet(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    private static int hexValue(char c) {
+        return c < 0x80 ? HEX_VALUES[c] : -1;
+    }
+
+    private static void appendEncodedByte(StringBuilder result, int value) {
+        result.append('%');
+        result.append(HEX_DIGITS[(value >> 4) & 0x0F]);
+        result.append(HEX_DIGITS[value & 0x0F]);
+    }
+
+    private static boolean needsEncoding(char c, boolean[] reservedTable) {
+        return (c <= 0x0020) || (c >= 0x007F) || reservedTable[c];
+    }
+
+    private String encodeUrlComponent(String component, boolean[] reservedTable) {
+        int length = component.length();
+        int i = 0;
+        while ((i < length) && !needsEncoding(component.charAt(i), reservedTable)) {
+            i += 1;
+        }
+
+        if (i == length) {
+            return component;
+        }
+
+        StringBuilder result = new StringBuilder(length + 16);
+        result.append(component, 0, i);
+
+        while (i < length) {
+            char c = component.charAt(i++);
+            if (c == 0x0020) {
                 result.append('+');
-            } else if (codePoint >= 0x007F) {
-                result.append(encodeCodePoint(codePoint));
-            } else if ((codePoint < 0x0020) || (reservedChars.indexOf((char)codePoint) != -1)) {
-                result.append(String.format("%%%02x", codePoint));
+            } else if (c < 0x0020) {
+                appendEncodedByte(result, c);
+            } else if (c < 0x007F) {
+                if (reservedTable[c]) {
+                    appendEncodedByte(result, c);
+                } else {
+                    result.append(c);
+                }
+            } else if (c < 0x0080) {
+                appendEncodedByte(result, c);
+            } else if (c < 0x0800) {
+                appendEncodedByte(result, 0xC0 | (c >> 6));
+                appendEncodedByte(result, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i < length) && Character.isLowSurrogate(component.charAt(i))) {
+                int codePoint = Character.toCodePoint(c, component.charAt(i++));
+                appendEncodedByte(result, 0xF0 | (codePoint >> 18));
+                appendEncodedByte(result, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEncodedByte(result, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEncodedByte(result, 0x80 | (codePoint & 0x3F));
+            } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+                // Java's UTF-8 encoder replaces an unpaired surrogate with '?'
+                appendEncodedByte(result, '?');
             } else {
-                result.append((char)codePoint);
+                appendEncodedByte(result, 0xE0 | (c >> 12));
+                appendEncodedByte(result, 0x80 | ((c >> 6) & 0x3F));
+                appendEncodedByte(result, 0x80 | (c & 0x3F));
             }
-            
-            i += Character.charCount(codePoint);
         }
-        
+
         return result.toString();
     }
-    
+
     public String decodeUrl(String url) {
         // FUTURE - handle unsupported %uHHHH sequences for Unicode code points.
         // FUTURE - detect & handle incorrectly encoded URLs
-        
-        // First, try to catch unescaped '%' characters.
-        int offset = 0;
-        while ((offset = url.indexOf('%', offset)) != -1) {
-            offset += 1;
-            boolean needsEscaping = false;
-            if (offset > (url.length() - 2)) {
-                needsEscaping = true;
-            } else if ((HEX_CODES.indexOf(url.charAt(offset)) == -1) || (HEX_CODES.indexOf(url.charAt(offset + 1)) == -1)) {
-                needsEscaping = true;
-            }
-            
-            if (needsEscaping) {
-                url = url.substring(0, offset) + "25" + url.substring(offset);
-                offset += 1;
-            }
+
+        int length = url.length();
+        int i = 0;
+        char c;
+        while ((i < length) && ((c = url.charAt(i)) != '%') && (c != '+')) {
+            i += 1;
         }
-        
-        try {
-            return URLDecoder.decode(url, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("Unexpected exception during URL decoding: " + e);
+
+        if (i == length) {
             return url;
         }
+
+        StringBuilder result = new StringBuilder(length);
+        result.append(url, 0, i);
+        byte[] bytes = null;
+
+        while (i < length) {
+            c = url.charAt(i);
+            if (c == '+') {
+                result.append(' ');
+                i += 1;
+            } else if (c == '%') {
+                if (bytes == null) {
+                    bytes = new byte[(length - i + 2) / 3 * 3];
+                }
+
+                // Decode a run of escaped bytes together, since a UTF-8 character can be
+                // encoded as several bytes. A '%' that isn't followed by two hex digits is
+                // treated as if it had been escaped (as "%25").
+                int numBytes = 0;
+                while ((i < length) && (url.charAt(i) == '%')) {
+                    int high, low;
+                    if (    ((i + 2) < length)
+                        &&  ((high = hexValue(url.charAt(i + 1))) != -1)
+                        &&  ((low = hexValue(url.charAt(i + 2))) != -1)) {
+                        bytes[numBytes++] = (byte)((high << 4) + low);
+                        i += 3;
+                    } else {
+                        bytes[numBytes++] = '%';
+                        i += 1;
+                    }
+                }
+
+                try {
+                    result.append(new String(bytes, 0, numBytes, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    LOGGER.error("Unexpected exception during URL decoding: " + e);
+                    return url;
+                }
+            } else {
+                result.append(c);
+                i += 1;
+            }
+        }
+
+        return result.toString();
     }
 
-    
+
     public String normalizeHostname(String hostname) {
         String result = hostname.toLowerCase();
         // Convert domain.com => www.domain.com
@@ -140,41 +244,43 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
 //        if (result.equals(paidLevelDomain) && !isIPAddress(paidLevelDomain)) {
 //            result = "www." + paidLevelDomain;
 //        }
-        
+
         if (result.endsWith(".")) {
         	result = result.substring(0, result.length() - 1);
         }
-        
+
         return result;
     }
-    
-    
+
+
     // Now we get to re-encode the path and query portions of the URL, but we have
     // to split up the path as otherwise '/' => %2F.
     public String normalizePath(String path) {
         // First, handle relative paths
-        Matcher matcher = RELATIVE_PATH_PATTERN.matcher(path);
-        while (matcher.find()) {
-            path = path.substring(0, matcher.start()) + "/" + path.substring(matcher.end());
-            matcher = RELATIVE_PATH_PATTERN.matcher(path);
+        if (path.indexOf(PARENT_DIR) != -1) {
+            path = removeParentDirs(path);
         }
-        
+
         // Next, get rid of any default page.
-        matcher = DEFAULT_PAGE_PATTERN.matcher(path);
-        if (matcher.find()) {
-            path = path.substring(0, matcher.start()) + "/" + matcher.group(3) + path.substring(matcher.end());
-        }
-        
-        String[] pathParts = path.split("/");
-        
-        StringBuilder newPath = new StringBuilder();
-        for (String pathPart : pathParts) {
-            if (pathPart.length() > 0) {
+        path = removeDefaultPage(path);
+
+        StringBuilder newPath = new StringBuilder(path.length() + 16);
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+
+            if (end > start) {
                 newPath.append('/');
-                newPath.append(encodeUrlComponent(decodeUrl(pathPart), RESERVED_PATH_CHARS));
+                newPath.append(encodeUrlComponent(decodeUrl(path.substring(start, end)), RESERVED_PATH_TABLE));
             }
+
+            start = end + 1;
         }
-        
+
         if (newPath.length() == 0) {
             return "/";
         }
@@ -183,11 +289,11 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
         if (path.endsWith("/") && (newPath.charAt(newPath.length() - 1) != '/')) {
             newPath.append('/');
         }
-        
+
         return newPath.toString();
     }
 
-    
+
     // For the query portion, handle decoding and then re-encoding the portions
     // between '&' and then '=' characters.
     public String normalizeQuery(String query) {
@@ -195,134 +301,330 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
             return "";
         }
 
-        StringBuilder newQuery = new StringBuilder();
-        String[] queryParts = query.split("&");
-        for (String queryPart : queryParts) {
-            if (queryPart.length() == 0) {
-                // Strip out empty query parts, e.g. q=1&&z=2
-                continue;
+        StringBuilder newQuery = new StringBuilder(query.length() + 16);
+        int length = query.length();
+        int start = 0;
+        while (start < length) {
+            int end = query.indexOf('&', start);
+            if (end == -1) {
+                end = length;
             }
-            
-            String[] keyValues = StringUtils.splitOnChar(queryPart, '=');
-            if (keyValues.length == 1) {
-                newQuery.append(encodeUrlComponent(decodeUrl(keyValues[0]), RESERVED_QUERY_CHARS));
-                if (queryPart.endsWith("=")) {
-                    newQuery.append("=");
+
+            // Strip out empty query parts, e.g. q=1&&z=2
+            if (end > start) {
+                if (newQuery.length() > 0) {
+                    newQuery.append('&');
                 }
-            } else {
-                for (String kvPart : keyValues) {
-                    newQuery.append(encodeUrlComponent(decodeUrl(kvPart), RESERVED_QUERY_CHARS));
+
+                int kvStart = start;
+                while (true) {
+                    int kvEnd = query.indexOf('=', kvStart);
+                    if ((kvEnd == -1) || (kvEnd > end)) {
+                        kvEnd = end;
+                    }
+
+                    newQuery.append(encodeUrlComponent(decodeUrl(query.substring(kvStart, kvEnd)), RESERVED_QUERY_TABLE));
+                    if (kvEnd == end) {
+                        break;
+                    }
+
                     newQuery.append('=');
+                    kvStart = kvEnd + 1;
                 }
-
-                newQuery.setLength(newQuery.length() - 1);
             }
 
-            newQuery.append('&');
+            start = end + 1;
         }
 
-        // Remove last '&'
-        if ((newQuery.length() > 0) && (newQuery.charAt(newQuery.length() - 1) == '&')) {
-            newQuery.setLength(newQuery.length() - 1);
-        }
-        
         return newQuery.toString();
     }
 
     public String normalize(String url) {
         String result = url.trim();
-        
+
         // First see if there is any protocol - if not, append http:// by default.
         if (result.indexOf("://") == -1) {
             // FUTURE - could put some limit on max length of protocol string.
             result = "http://" + result;
         }
-        
+
         // Danger, hack! Some sites have session ids that look like http://domain.com/page.html;jsessionid=xxx,
         // or even http://domain.com/page.html;jsessionid=xxx&q=z. So we always want to try to get rid of
         // session ids first, before doing any other processing.
-        Matcher matcher = JSESSION_ID_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + result.substring(matcher.end());
-        }
-        
-        matcher = SESSION_ID_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
-        }
-        
-        matcher = OTHER_IGNORED_QUERY_PARAMETERS_PATTERN.matcher(result);
-        if (matcher.find()) {
-            result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
-        }
-        
+        result = removeJSessionId(result);
+        result = removeQueryParameter(result, SESSION_ID_PARAMETERS);
+        result = removeQueryParameter(result, OTHER_IGNORED_QUERY_PARAMETERS);
+
         if (_isAggressive) {
-            matcher = AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN.matcher(result);
-            if (matcher.find()) {
-                result = result.substring(0, matcher.start()) + matcher.group(1) + matcher.group(2) + result.substring(matcher.end());
-            }
+            result = removeQueryParameter(result, AGGRESSIVE_IGNORED_QUERY_PARAMETERS);
         }
-        
+
         URL testUrl;
-        
+
         try {
-            String decodedUrl = result.replace("+", "%20");
-            testUrl = new URL(decodedUrl);
-            url = testUrl.toExternalForm();
+            testUrl = new URL(result.indexOf('+') == -1 ? result : result.replace("+", "%20"));
         } catch (MalformedURLException e) {
             // Not a valid URL we know about, so in this case we're just going to
             // return it as-is, other than the stripping we did.
             LOGGER.debug("Malformed URL being returned without further processing: " + result);
             return result;
         }
-        
+
         // Don't do additional special processing for anything other than http/https protocols.
         String protocol = testUrl.getProtocol().toLowerCase();
         if (!protocol.equals("http") && !protocol.equals("https")) {
             return result;
         }
-        
+
         String hostname = normalizeHostname(testUrl.getHost());
-        
+
         int port = testUrl.getPort();
         if (port == testUrl.getDefaultPort()) {
             port = -1;
         }
-        
+
         String path = normalizePath(testUrl.getPath());
-        
+
         // Danger, hack! Some sites (like StumbleUpon) use anchor text as query text, so they
         // have a URL that looks like http://www.stumbleupon.com/toolbar/#url=...
         // Assume that if the first '#' is preceded by a '/', and that '#' is our anchor text,
         // then we want to include it versus stripping it out. But only do this if the caller
         // explicitly wants that behavior, as most sites use .../#<whatever> for dynamic navigation.
-        
+
         // FUTURE KKr - better would be to not require special param, and instead always see if the
         // ref looks like a query, in that there's one or more <key>=<value> pairs separated by '&'.
         String query = testUrl.getQuery();
         String anchor = testUrl.getRef();
-        
-        int pos = url.indexOf("#" + anchor);
-        if (_treatRefAsQuery && (anchor != null) && (query == null) && (pos != -1) && (url.charAt(pos - 1) == '/')) {
+
+        if (_treatRefAsQuery && (anchor != null) && (query == null) && isRefAfterSlash(testUrl, anchor)) {
             anchor = "#" + normalizeQuery(anchor);
             query = "";
         } else {
             anchor = "";
             query = normalizeQuery(query);
-            
+
             if (query.length() > 0) {
                 query = "?" + query;
             }
         }
-        
-        try {
-            testUrl = new URL(protocol, hostname, port, path + query + anchor);
-        } catch (MalformedURLException e) {
-            LOGGER.error("Unexpected exception during normalization: " + e);
-            return result;
+
+        // Build the same string that we'd get from new URL(protocol, hostname, port, file).toExternalForm(),
+        // without parsing it all over again.
+        if ((hostname.indexOf(':') != -1) && !hostname.startsWith("[")) {
+            hostname = "[" + hostname + "]";
         }
-        
-        return testUrl.toExternalForm();
+
+        StringBuilder newUrl = new StringBuilder(result.length() + 16);
+        newUrl.append(protocol);
+        newUrl.append(':');
+
+        if ((hostname.length() > 0) || (port != -1)) {
+            newUrl.append("//");
+            newUrl.append(hostname);
+
+            if (port != -1) {
+                newUrl.append(':');
+                newUrl.append(port);
+            }
+        }
+
+        newUrl.append(path);
+        newUrl.append(query);
+        newUrl.append(anchor);
+        return newUrl.toString();
+    }
+
+    private boolean isRefAfterSlash(URL url, String anchor) {
+        String externalForm = url.toExternalForm();
+        int pos = externalForm.indexOf("#" + anchor);
+        return (pos > 0) && (externalForm.charAt(pos - 1) == '/');
+    }
+
+    /**
+     * Remove the first ";jsessionid=xxx" in <url>, up to the next '?', '&', '#' or the end.
+     */
+    private static String removeJSessionId(String url) {
+        int start = -1;
+        while ((start = url.indexOf(JSESSION_ID, start + 1)) != -1) {
+            int end = findValueEnd(url, start + JSESSION_ID.length(), true);
+            if (end != -1) {
+                return url.substring(0, start) + url.substring(end);
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Remove the first query parameter (starting with '?' or '&') in <url> that has a name in
+     * <names>, up to the next '&', '#' or the end. The leading '?' or '&' is kept.
+     */
+    private static String removeQueryParameter(String url, Set<String> names) {
+        int length = url.length();
+        for (int start = 0; start < length; start++) {
+            char c = url.charAt(start);
+            if ((c != '?') && (c != '&')) {
+                continue;
+            }
+
+            int equalsPos = url.indexOf('=', start + 1);
+            if (equalsPos == -1) {
+                return url;
+            }
+
+            if (names.contains(toLowerCaseAscii(url, start + 1, equalsPos))) {
+                int end = findValueEnd(url, equalsPos + 1, false);
+                if (end != -1) {
+                    return url.substring(0, start + 1) + url.substring(end);
+                }
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Find where a parameter value that starts at <offset> ends, which is at the next '&' or '#'
+     * (or '?', if <stopAtQuery> is true), or the end of <url>.
+     *
+     * @return offset of the end of the value, or -1 if the value contains a line terminator
+     */
+    private static int findValueEnd(String url, int offset, boolean stopAtQuery) {
+        int length = url.length();
+        for (int i = offset; i < length; i++) {
+            char c = url.charAt(i);
+            if ((c == '&') || (c == '#') || (stopAtQuery && (c == '?'))) {
+                return i;
+            } else if (isLineTerminator(c)) {
+                return isAtEnd(url, i) ? i : -1;
+            }
+        }
+
+        return length;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return (c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029');
     }
 
+    /**
+     * Return true if <offset> is at the end of <text>, ignoring a final line terminator.
+     */
+    private static boolean isAtEnd(String text, int offset) {
+        int length = text.length();
+        if (offset == length) {
+            return true;
+        } else if (offset == length - 1) {
+            char c = text.charAt(offset);
+            return isLineTerminator(c) && ((c != '\n') || (offset == 0) || (text.charAt(offset - 1) != '\r'));
+        } else {
+            return (offset == length - 2) && (text.charAt(offset) == '\r') && (text.charAt(offset + 1) == '\n');
+        }
+    }
+
+    /**
+     * Return the lower-cased (ASCII letters only) text between <start> and <end>.
+     */
+    private static String toLowerCaseAscii(String text, int start, int end) {
+        char[] result = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            result[i - start] = ((c >= 'A') && (c <= 'Z')) ? (char)(c + ('a' - 'A')) : c;
+        }
+
+        return new String(result);
+    }
+
+    /**
+     * Remove "/xx/../" in <path>, where xx consists of chars other than "/", and has at least
+     * one char different from "." Also remove leading "/../" in the path. Both are replaced by
+     * just "/", and we keep going until there's nothing left to remove.
+     */
+    private static String removeParentDirs(String path) {
+        while (true) {
+            int start = -1;
+            int end = -1;
+
+            for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+                int next = path.indexOf('/', i + 1);
+                if (next == -1) {
+                    break;
+                }
+
+                if (path.startsWith(PARENT_DIR, next) && !isAllDots(path, i + 1, next)) {
+                    start = i;
+                    end = next + PARENT_DIR.length();
+                    break;
+                } else if ((i == 0) && path.startsWith(PARENT_DIR)) {
+                    start = 0;
+                    end = PARENT_DIR.length();
+                    while (path.startsWith(PARENT_DIR, end)) {
+                        end += PARENT_DIR.length();
+                    }
+
+                    break;
+                }
+            }
+
+            if (start == -1) {
+                return path;
+            }
+
+            path = path.substring(0, start) + "/" + path.substring(end);
+        }
+    }
+
+    private static boolean isAllDots(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) != '.') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the first default page (e.g. "/index.html") in <path>, if it's followed by
+     * '?', '&', '#' or the end of the path.
+     */
+    private static String removeDefaultPage(String path) {
+        int length = path.length();
+        for (int start = path.indexOf('/'); start != -1; start = path.indexOf('/', start + 1)) {
+            int dot = path.indexOf('.', start + 1);
+            if (dot == -1) {
+                return path;
+            }
+
+            if (!DEFAULT_PAGE_NAMES.contains(toLowerCaseAscii(path, start + 1, dot))) {
+                continue;
+            }
+
+            int end = dot + 1;
+            while ((end < length) && isAsciiLetterOrDigit(path.charAt(end))) {
+                end += 1;
+            }
+
+            if (!DEFAULT_PAGE_EXTENSIONS.contains(toLowerCaseAscii(path, dot + 1, end))) {
+                continue;
+            }
+
+            if (end < length) {
+                char c = path.charAt(end);
+                if ((c == '?') || (c == '&') || (c == '#')) {
+                    return path.substring(0, start) + "/" + path.substring(end);
+                }
+            }
+
+            if (isAtEnd(path, end)) {
+                return path.substring(0, start) + "/" + path.substring(end);
+            }
+        }
+
+        return path;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'));
+    }
 }
@@ -1,112 +1,97 @@
 package bixo.utils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.AbstractQueue;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.log4j.Logger;
 
-// FUTURE KKr - worry about multi-threaded access. Could wrap syncronized(_memoryQueue)
-// around most class bodies (also synchronized(_backingStore) for file methods.
-
 /**
  * A queue that writes extra elements to disk, and reads them in as needed.
- * 
- * This implementation is optimized for being filled once (ie by the iterator in a reducer)
- * and then incrementally read. So it wouldn't work very well if reads/writes were happening
- * simultaneously, once anything had spilled to disk.
+ *
+ * Elements are written to a sequence of append-only segment files, using an
+ * IDiskQueueCodec to convert them to bytes. Once a segment has been completely
+ * read, it gets recycled (or deleted). By default Java serialization is used, but
+ * if the elements are datums then a DatumCodec is much faster, and uses less disk space.
+ *
+ * The head of the queue is always in memory. Once we've spilled to disk, new elements
+ * are added to an in-memory tail buffer, and only written to disk when that buffer
+ * fills up. If the disk segments get drained while elements are still in the tail,
+ * they're moved directly to the head. So a queue that's being read & written at the
+ * same time (e.g. by FetchBuffer) doesn't wind up doing disk I/O on every call.
+ *
+ * If a DiskQueueArena is provided, then the queue spills into a region of the arena's
+ * shared file instead of its own temp files, and the arena's memory quota limits how
+ * many elements are kept in memory.
+ *
+ * All public methods are synchronized, so the queue can be shared between threads.
  *
  */
 public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     private static final Logger LOGGER = Logger.getLogger(DiskQueue.class);
 
+    /**
+     * Bounded FIFO queue backed by a circular array, which supports constant time
+     * peek(index) so that callers (e.g. FetchBuffer) can scan the queue.
+     *
+     * @param <E> element stored in queue
+     */
     private static class IndexQueue<E> extends AbstractQueue<E> {
 
-        private int _capacity;
-        private LinkedList<E> _queue;
-        
+        private final E[] _items;
+        private int _takeIndex;
+        private int _putIndex;
+        private int _numItems;
+
+        @SuppressWarnings("unchecked")
         public IndexQueue(int capacity) {
-            _capacity = capacity;
-            _queue = new LinkedList<E>();
+            _items = (E[]) new Object[capacity];
         }
-        
+
         @Override
         public Iterator<E> iterator() {
-            return _queue.iterator();
-        }
+            return new Iterator<E>() {
+                private int _index = 0;
 
-        public int getCapacity() {
-            return _capacity;
-        }
-        
-        @Override
-        public int size() {
-            return _queue.size();
-        }
+                @Override
+                public boolean hasNext() {
+                    return _index < _numItems;
+                }
 
-        @Override
-        public boolean offer(E o) {
-            if (o == null) {
-                throw new NullPointerException();
-            } else if (_queue.size() >= _capacity) {
-                return false;
-            } else {
-                _queue.add(o);
-                return true;
-            }
-        }
+                @Override
+                public E next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
 
-        @Override
-        public E peek() {
-            return peek(0);
-        }
+                    return get(_index++);
+                }
 
-        public E peek(int index) throws IndexOutOfBoundsException {
-            if (index >= _capacity) {
-                throw new IndexOutOfBoundsException("Can't peek past end of memory queue");
-            } else if (index >= _queue.size()) {
-                return null;
-            } else {
-                return _queue.get(index);
-            }
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
-        @Override
-        public E poll() {
-            if (_queue.size() == 0) {
-                return null;
-            } else {
-                return _queue.remove();
-            }
-        }
-        
-        public E remove(int index) throws IndexOutOfBoundsException {
-            return _queue.remove(index);
+        public int getCapacity() {
+            return _items.length;
         }
-        
-        /**
-        private final E[] _items;
-        private transient int _takeIndex;
-        private transient int _putIndex;
-        private int _numItems;
 
-        @SuppressWarnings("unchecked")
-        public IndexQueue(int capacity) {
-            _items = (E[]) new Object[capacity];
-        }
-
-        @Override
-        public Iterator<E> iterator() {
-            throw new UnsupportedOperationException();
+        public boolean isFull() {
+            return _numItems == _items.length;
         }
 
         @Override
@@ -133,38 +118,49 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             return (_numItems == 0) ? null : _items[_takeIndex];
         }
 
-        public E peek(int index) {
-            if (index >= _numItems) {
+        public E peek(int index) throws IndexOutOfBoundsException {
+            if (index >= _items.length) {
+                throw new IndexOutOfBoundsException("Can't peek past end of memory queue");
+            } else if (index >= _numItems) {
                 return null;
             } else {
-                return _items[(index + _takeIndex) % _items.length];
+                return get(index);
             }
         }
-        
+
         public E get(int index) {
             if ((index >= _numItems) || (index < 0)) {
                 throw new IndexOutOfBoundsException("Index passed to get is invalid");
             }
 
-            // Now for the tricky part. We need to pull out the item at <index>, and shift
-            // things to fill in the gap. But there are three cases to consider, based on
-            // the relative ordering of the take, put, and index positions. Note that in
-            // these diagrams, <index> has been adjusted to absolute, versus an offset
-            // relative to <put> (and t = take, p = put, i = index)
-            // [  t..i..p  ] = easy, shift i+1 to p down
-            // [..i..p  t..] = easy, shift i+1 to p down
-            // [..p  t..i..] = hard, shift i+1 to end down, move 0 to end, shift 0 to p down
-            // TODO make it so
-            throw new UnsupportedOperationException();
+            return _items[absIndex(index)];
         }
-        
+
+        public E remove(int index) throws IndexOutOfBoundsException {
+            E result = get(index);
+
+            // Shift everything after <index> down by one, to fill in the gap. We use
+            // absolute positions, and wrap around, so it doesn't matter where the
+            // take and put positions are relative to <index>.
+            int pos = absIndex(index);
+            for (int i = index + 1; i < _numItems; i++) {
+                int nextPos = inc(pos);
+                _items[pos] = _items[nextPos];
+                pos = nextPos;
+            }
+
+            _items[pos] = null;
+            _putIndex = pos;
+            _numItems -= 1;
+            return result;
+        }
+
         @Override
         public E poll() {
             if (_numItems == 0) {
                 return null;
             } else {
-                E x = extract();
-                return x;
+                return extract();
             }
         }
 
@@ -180,7 +176,11 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
             _numItems = 0;
             _putIndex = 0;
-            _takeIndex = 0; 
+            _takeIndex = 0;
+        }
+
+        private int absIndex(int index) {
+            return (index + _takeIndex) % _items.length;
         }
 
         private int inc(int i) {
@@ -200,97 +200,321 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             _takeIndex = inc(_takeIndex);
             --_numItems;
             return x;
-        } 
-        **/
+        }
     }
-    
+
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 16 * 1024 * 1024L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // We use smaller buffers with an arena, since it's typically shared by lots of queues.
+    private static final int ARENA_BUFFER_SIZE = 4 * 1024;
+
+    // Number of drained segment files we'll hang onto for reuse, versus deleting them.
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    /**
+     * One backing store file (or arena region). We only write to the last segment,
+     * and only read from the first segment.
+     */
+    private class Segment {
+        private File _file;
+        private DiskQueueArena.Region _region;
+        private CountingOutputStream _fileOut;
+        private IDiskQueueCodec.ElementWriter<E> _writer;
+        private InputStream _fileIn;
+        private IDiskQueueCodec.ElementReader<E> _reader;
+
+        private int _numWritten;
+        private int _numRead;
+
+        /**
+         * Create a new segment that writes to <file>, truncating it
+         * if it already exists.
+         *
+         * @param file backing store file
+         * @throws IOException
+         */
+        public Segment(File file) throws IOException {
+            _file = file;
+
+            try {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(_file), BUFFER_SIZE);
+                _fileOut = new CountingOutputStream(os);
+                _writer = _codec.openWriter(_fileOut);
+            } catch (IOException e) {
+                close();
+                _file.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Create a new segment that writes to <region>.
+         *
+         * @param region arena region
+         * @throws IOException
+         */
+        public Segment(DiskQueueArena.Region region) throws IOException {
+            _region = region;
+
+            try {
+                OutputStream os = new BufferedOutputStream(_region.getOutputStream(), ARENA_BUFFER_SIZE);
+                _fileOut = new CountingOutputStream(os);
+                _writer = _codec.openWriter(_fileOut);
+            } catch (IOException e) {
+                close();
+                _region.free();
+                throw e;
+            }
+        }
+
+        public File getFile() {
+            return _file;
+        }
+
+        public DiskQueueArena.Region getRegion() {
+            return _region;
+        }
+
+        public void write(E element) throws IOException {
+            _writer.write(element);
+            _numWritten += 1;
+        }
+
+        public E read() throws IOException {
+            // Since we buffer writes, we need to make sure everything has been written before
+            // we start reading.
+            if (_writer != null) {
+                _writer.flush();
+            }
+
+            if (_reader == null) {
+                if (_region != null) {
+                    _fileIn = new BufferedInputStream(_region.getInputStream(), ARENA_BUFFER_SIZE);
+                } else {
+                    _fileIn = new BufferedInputStream(new FileInputStream(_file), BUFFER_SIZE);
+                }
+                
+                _reader = _codec.openReader(_fileIn);
+            }
+
+            E result = _reader.read();
+            _numRead += 1;
+            return result;
+        }
+
+        public boolean isFull() {
+            // Arena regions give back blocks as they're read, so they never need to roll over.
+            return (_region == null) && (_fileOut.getByteCount() >= _maxSegmentSize);
+        }
+
+        /**
+         * We're done writing to this segment, so close down the output side.
+         *
+         * @throws IOException
+         */
+        public void closeWriter() throws IOException {
+            if (_writer != null) {
+                _writer.close();
+                _writer = null;
+            }
+        }
+
+        public int getNumUnread() {
+            return _numWritten - _numRead;
+        }
+
+        /**
+         * Close down all of the streams, but leave the file in place.
+         */
+        public void close() {
+            if (_reader != null) {
+                safeClose(_reader);
+                _reader = null;
+            }
+
+            IoUtils.safeClose(_fileIn);
+            _fileIn = null;
+
+            if (_writer != null) {
+                safeClose(_writer);
+                _writer = null;
+            }
+
+            IoUtils.safeClose(_fileOut);
+            _fileOut = null;
+        }
+
+        /**
+         * Close down all of the streams, and delete the file (or free the region).
+         */
+        public void delete() {
+            close();
+
+            if (_region != null) {
+                _region.free();
+            } else {
+                _file.delete();
+            }
+        }
+    }
+
     // The _memoryQueue represents the head of the queue. It can also be the tail, if
     // nothing has spilled over onto the disk.
     private IndexQueue<E> _memoryQueue;
-    
-    // Number of elements in the backing store file on disk.
+
+    // Once we've spilled to disk, new elements go here, and get written to disk
+    // when this fills up.
+    private IndexQueue<E> _tailQueue;
+
+    private IDiskQueueCodec<E> _codec;
+    private long _maxSegmentSize;
+    private DiskQueueArena _arena;
+
+    // Backing store files, in the order they were written.
+    private LinkedList<Segment> _segments;
+
+    // Drained backing store files that we can reuse.
+    private LinkedList<File> _freeFiles;
+
+    // Number of elements in the backing store files on disk.
     private int _fileElements;
 
-    private ObjectOutputStream _fileOut;
-    private ObjectInputStream _fileIn;
-    
-    // When moving elements from disk to memory, we don't know whether the memory queue
-    // has space until the offer is rejected. So rather than trying to push back an element
-    // into the file, just cache it in _fileInSaved.
-    private E _fileInSaved;
-    private File _backingStore;
-
-    // FUTURE - KKr could have another memory-resident queue for the tail, so that writes
-    // to the file are buffered that way, and we get better performance if the queue is
-    // being used for parallel read/write access, so you frequently wind up crossing the
-    // 'spill' boundary from memory onto disk.
-    //
-    // Another issue with parallel read/write is that the backing store file could grow
-    // unbounded, if elements spill to disk and then the disk is never exhausted when
-    // refilling the memory queue, and you keep adding more elements at the same time.
-    
     /**
      * Construct a disk-backed queue that keeps at most <maxSize> elements in memory.
-     * 
+     *
      * @param maxSize Maximum number of elements to keep in memory.
      */
     public DiskQueue(int maxSize) {
+        this(maxSize, new SerializableCodec<E>());
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory,
+     * and uses <codec> to write elements to disk.
+     *
+     * @param maxSize Maximum number of elements to keep in memory.
+     * @param codec Converter from elements to bytes in backing store.
+     */
+    public DiskQueue(int maxSize, IDiskQueueCodec<E> codec) {
+        this(maxSize, codec, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory,
+     * uses <codec> to write elements to disk, and starts a new backing store file
+     * once the current file has at least <maxSegmentSize> bytes.
+     *
+     * @param maxSize Maximum number of elements to keep in memory.
+     * @param codec Converter from elements to bytes in backing store.
+     * @param maxSegmentSize Target size of each backing store file.
+     */
+    public DiskQueue(int maxSize, IDiskQueueCodec<E> codec, long maxSegmentSize) {
+        this(maxSize, Math.max(1, maxSize / 4), codec, maxSegmentSize);
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory
+     * at the head of the queue, plus at most <tailSize> elements in memory at the tail,
+     * uses <codec> to write elements to disk, and starts a new backing store file
+     * once the current file has at least <maxSegmentSize> bytes.
+     *
+     * @param maxSize Maximum number of elements to keep in memory at the head.
+     * @param tailSize Maximum number of elements to buffer in memory before writing to disk.
+     * @param codec Converter from elements to bytes in backing store.
+     * @param maxSegmentSize Target size of each backing store file.
+     */
+    public DiskQueue(int maxSize, int tailSize, IDiskQueueCodec<E> codec, long maxSegmentSize) {
         if (maxSize < 1) {
             throw new InvalidParameterException("DiskQueue max size must be at least one");
         }
 
+        if (tailSize < 1) {
+            throw new InvalidParameterException("DiskQueue tail size must be at least one");
+        }
+
+        if (maxSegmentSize < 1) {
+            throw new InvalidParameterException("DiskQueue max segment size must be at least one");
+        }
+
         _memoryQueue = new IndexQueue<E>(maxSize);
+        _tailQueue = new IndexQueue<E>(tailSize);
+        _codec = codec;
+        _maxSegmentSize = maxSegmentSize;
+        _segments = new LinkedList<Segment>();
+        _freeFiles = new LinkedList<File>();
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory,
+     * uses <codec> to write elements to disk, and spills into a region of <arena>.
+     * The arena's memory quota can force elements to disk even if there's space in
+     * memory.
+     *
+     * @param maxSize Maximum number of elements to keep in memory.
+     * @param codec Converter from elements to bytes in backing store.
+     * @param arena Shared backing store and memory quota.
+     */
+    public DiskQueue(int maxSize, IDiskQueueCodec<E> codec, DiskQueueArena arena) {
+        this(maxSize, codec);
+
+        _arena = arena;
     }
 
 
     /* (non-Javadoc)
      * @see java.lang.Object#finalize()
-     * 
-     * Close down streams, and toss the temp file.
+     *
+     * Close down streams, and toss the temp files.
      */
     @Override
     protected void finalize() throws Throwable {
-        if (closeFile()) {
+        if (closeFiles()) {
             LOGGER.warn("Disk queue still had open file in finalize");
         }
     }
 
 
     /**
-     * Make sure the file streams are all closed down, the temp file is closed, and the
-     * temp file has been deleted.
-     * 
-     * @return true if we had to close down the file.
+     * Make sure all of the segment file streams are closed down, and the
+     * temp files have been deleted.
+     *
+     * @return true if we had to close down any files.
      */
-    private boolean closeFile() {
-        if (_backingStore == null) {
-            return false;
+    private synchronized boolean closeFiles() {
+        for (File file : _freeFiles) {
+            file.delete();
         }
 
-        IoUtils.safeClose(_fileIn);
-        _fileIn = null;
-        _fileInSaved = null;
+        _freeFiles.clear();
 
-        IoUtils.safeClose(_fileOut);
-        _fileOut = null;
+        if (_segments.isEmpty()) {
+            return false;
+        }
 
-        _fileElements = 0;
+        for (Segment segment : _segments) {
+            segment.delete();
+        }
 
-        _backingStore.delete();
-        _backingStore = null;
+        _segments.clear();
+        _fileElements = 0;
         return true;
     }
 
-    private void openFile() throws IOException {
-        
-        if (_backingStore == null) {
-            _backingStore = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null);
-            _fileOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore)));
-
-            // Flush output file, so there's something written when we open the input stream.
-            _fileOut.flush();
+    private static void safeClose(IDiskQueueCodec.ElementWriter<?> writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOGGER.warn("IOException closing DiskQueue backing store writer", e);
+        }
+    }
 
-            _fileIn = new ObjectInputStream(new FileInputStream(_backingStore));
+    private static void safeClose(IDiskQueueCodec.ElementReader<?> reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOGGER.warn("IOException closing DiskQueue backing store reader", e);
         }
     }
 
@@ -302,118 +526,219 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
 
     @Override
-    public int size() {
-        return _memoryQueue.size() + _fileElements + (_fileInSaved != null ? 1 : 0);
+    public synchronized int size() {
+        return _memoryQueue.size() + _fileElements + _tailQueue.size();
     }
 
 
     @Override
-    public boolean offer(E element) {
+    public synchronized boolean offer(E element) {
         if (element == null) {
             throw new NullPointerException("Element cannot be null for AbstractQueue");
         }
+
+        // If there's anything in the tail or on disk, we have to add to the tail to
+        // preserve ordering. Same thing if the head is full.
+        boolean spilled = !_tailQueue.isEmpty() || !_segments.isEmpty();
+        if (!spilled && !_memoryQueue.isFull() && reserveMemory(false)) {
+            _memoryQueue.offer(element);
+            return true;
+        }
         
-        // If there's anything in the file, or the queue is full, then we have to write to the file.
-        if ((_backingStore != null) || !_memoryQueue.offer(element)) {
-            try {
-                openFile();
-                _fileOut.writeObject(element);
-                _fileElements += 1;
-                
-                // Release memory ref to <element>, since we don't have any back-references from
-                // it to other serialized objects.
-                _fileOut.reset();
-            } catch (IOException e) {
-                LOGGER.error("Error writing to DiskQueue backing store", e);
-                return false;
+        try {
+            if (_tailQueue.isFull()) {
+                writeTail();
             }
+
+            if (reserveMemory(false)) {
+                _tailQueue.offer(element);
+            } else {
+                // We're over the arena's memory quota, so write straight to disk.
+                writeTail();
+                writeToDisk(element);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error writing to DiskQueue backing store", e);
+            return false;
         }
 
         return true;
     }
 
     @Override
-    public E peek() {
+    public synchronized E peek() {
         loadMemoryQueue();
 
         return _memoryQueue.peek();
     }
 
-    public E peek(int index) throws IndexOutOfBoundsException {
+    /**
+     * Return the element at <index> in the in-memory head of the queue, without
+     * removing it.
+     *
+     * @param index offset from head of queue
+     * @return element, or null if there aren't that many elements in memory.
+     * @throws IndexOutOfBoundsException if <index> >= max elements in memory
+     */
+    public synchronized E peek(int index) throws IndexOutOfBoundsException {
         loadMemoryQueue();
 
         return _memoryQueue.peek(index);
     }
 
-    public E remove(int index) {
+    /**
+     * Remove and return the element at <index> in the in-memory head of the queue.
+     *
+     * @param index offset from head of queue
+     * @return element
+     * @throws IndexOutOfBoundsException if there's no such element in memory.
+     */
+    public synchronized E remove(int index) throws IndexOutOfBoundsException {
         loadMemoryQueue();
 
-        return _memoryQueue.remove(index);
+        E result = _memoryQueue.remove(index);
+        releaseMemory(1);
+        return result;
     }
-    
+
     @Override
-    public E poll() {
+    public synchronized E poll() {
         loadMemoryQueue();
 
-        return _memoryQueue.poll();
+        E result = _memoryQueue.poll();
+        if (result != null) {
+            releaseMemory(1);
+        }
+        
+        return result;
     }
 
     /* (non-Javadoc)
      * @see java.util.AbstractQueue#clear()
-     * 
+     *
      * Implement faster clear (so AbstractQueue doesn't call poll() repeatedly)
      */
     @Override
-    public void clear() {
+    public synchronized void clear() {
+        releaseMemory(_memoryQueue.size() + _tailQueue.size());
         _memoryQueue.clear();
-        _fileInSaved = null;
-        closeFile();
+        _tailQueue.clear();
+        closeFiles();
     }
-    
-    @SuppressWarnings("unchecked")
-    private void loadMemoryQueue() {
-        // use the memory queue as our buffer, so only load it up when it's empty
-        if (!_memoryQueue.isEmpty()) {
-            return;
+
+    /**
+     * Write everything in the tail queue to the last segment file, creating
+     * a new segment if needed.
+     *
+     * @throws IOException
+     */
+    private void writeTail() throws IOException {
+        E element;
+        while ((element = _tailQueue.peek()) != null) {
+            writeToDisk(element);
+            _tailQueue.poll();
+            releaseMemory(1);
         }
+    }
 
-        // See if we have one saved element from the previous read request
-        if (_fileInSaved != null) {
-            if (!_memoryQueue.offer(_fileInSaved)) {
-                throw new RuntimeException("Unexpected error - can't offer to an empty queue");
+    private void writeToDisk(E element) throws IOException {
+        Segment segment = _segments.peekLast();
+        if ((segment == null) || segment.isFull()) {
+            if (segment != null) {
+                segment.closeWriter();
             }
 
-            _fileInSaved = null;
+            if (_arena != null) {
+                segment = new Segment(_arena.allocateRegion());
+            } else {
+                segment = new Segment(getFreeFile());
+            }
+            
+            _segments.add(segment);
         }
 
-        // Now see if we have anything on disk
-        if (_backingStore != null) {
-            try {
-                // Since we buffer writes, we need to make sure everything has been written before
-                // we start reading.
-                _fileOut.flush();
+        segment.write(element);
+        _fileElements += 1;
+    }
+    
+    private boolean reserveMemory(boolean force) {
+        return (_arena == null) || _arena.reserveMemory(force);
+    }
+    
+    private void releaseMemory(int numElements) {
+        if ((_arena != null) && (numElements > 0)) {
+            _arena.releaseMemory(numElements);
+        }
+    }
 
-                while (_fileElements > 0) {
-                    E nextFileElement = (E)_fileIn.readObject();
-                    _fileElements -= 1;
+    private File getFreeFile() throws IOException {
+        if (_freeFiles.isEmpty()) {
+            return File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null);
+        } else {
+            return _freeFiles.removeFirst();
+        }
+    }
+
+    /**
+     * We're done with <segment>, so either save the file for reuse or delete it.
+     *
+     * @param segment drained segment
+     */
+    private void recycle(Segment segment) {
+        if (segment.getRegion() != null) {
+            segment.delete();
+            return;
+        }
+        
+        segment.close();
+
+        if (_freeFiles.size() < MAX_FREE_SEGMENTS) {
+            _freeFiles.add(segment.getFile());
+        } else {
+            segment.getFile().delete();
+        }
+    }
+
+    private void loadMemoryQueue() {
+        // use the memory queue as our buffer, so only load it up when it's empty
+        if (!_memoryQueue.isEmpty()) {
+            return;
+        }
 
-                    if (!_memoryQueue.offer(nextFileElement)) {
-                        _fileInSaved = nextFileElement;
+        // Now see if we have anything on disk
+        try {
+            while (!_memoryQueue.isFull() && !_segments.isEmpty()) {
+                Segment segment = _segments.getFirst();
+                if (segment.getNumUnread() > 0) {
+                    // We always need to load at least one element, even if we're over quota.
+                    if (!reserveMemory(_memoryQueue.isEmpty())) {
                         return;
                     }
+                    
+                    E nextFileElement = segment.read();
+                    _fileElements -= 1;
+                    _memoryQueue.offer(nextFileElement);
+                } else {
+                    // Nothing left in the segment, so we can reuse it.
+                    _segments.removeFirst();
+                    recycle(segment);
                 }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error reading from DiskQueue backing store", e);
+            return;
+        }
 
-                // Nothing left in the file, so close/delete it.
-                closeFile();
+        // If we've drained the disk, then we can move elements straight from the tail.
+        if (_segments.isEmpty()) {
+            E element;
+            while (!_memoryQueue.isFull() && ((element = _tailQueue.poll()) != null)) {
+                _memoryQueue.offer(element);
+            }
 
-                // FUTURE KKr - file queue is empty, so could reset length of file, read/write offsets
-                // to start from zero instead of closing file (but for current use case of fill once, drain
-                // once this works just fine)
-            } catch (IOException e) {
-                LOGGER.error("Error reading from DiskQueue backing store", e);
-                return;
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException("Unexpected error - can't find class for object in backing store");
+            // If we're completely drained, then don't hang onto free files.
+            if (_tailQueue.isEmpty()) {
+                closeFiles();
             }
         }
     }
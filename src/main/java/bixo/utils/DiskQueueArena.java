@@ -0,0 +1,377 @@
+package bixo.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.InvalidParameterException;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shared backing store and memory quota for a set of DiskQueues.
+ *
+ * Rather than each DiskQueue creating its own temp files, all queues that use the same
+ * arena spill into a single file, which is carved up into fixed-size blocks. Each queue
+ * gets a Region, which is an append-only chain of blocks. As blocks are read they're
+ * returned to the arena, and reused by other queues. So we only use one file handle,
+ * and the file only grows to the max number of blocks in use at any one time.
+ *
+ * The arena also tracks the total number of elements that its queues are holding in
+ * memory. Once this reaches the quota, queues will spill new elements to disk even if
+ * they have space in memory.
+ *
+ * The file is accessed via RandomAccessFile rather than a FileChannel, since a thread that
+ * gets interrupted during FileChannel I/O closes the channel, which would break every queue
+ * using the arena.
+ *
+ */
+public class DiskQueueArena {
+    private static final Logger LOGGER = Logger.getLogger(DiskQueueArena.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * An append-only sequence of bytes, stored in a chain of arena blocks. There's one
+     * writer and one reader, and the reader can only read what's been written so far.
+     *
+     * A region isn't thread-safe, as it's only used by one DiskQueue (which handles
+     * synchronization).
+     */
+    public class Region {
+        private LinkedList<Integer> _blocks;
+
+        // Logical offset of the first block in _blocks.
+        private long _baseOffset;
+        private long _writeOffset;
+        private long _readOffset;
+        private boolean _freed;
+
+        private Region() {
+            _blocks = new LinkedList<Integer>();
+            _baseOffset = 0;
+            _writeOffset = 0;
+            _readOffset = 0;
+            _freed = false;
+        }
+
+        public long getLength() {
+            return _writeOffset - _readOffset;
+        }
+
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte)b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writeBytes(b, off, len);
+                }
+            };
+        }
+
+        public InputStream getInputStream() {
+            return new InputStream() {
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int n = read(b, 0, 1);
+                    return (n == -1) ? -1 : (b[0] & 0xFF);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return readBytes(b, off, len);
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return (int)Math.min(Integer.MAX_VALUE, getLength());
+                }
+            };
+        }
+
+        /**
+         * Return all of our blocks to the arena. The region can't be used after this.
+         */
+        public void free() {
+            if (!_freed) {
+                _freed = true;
+
+                for (Integer block : _blocks) {
+                    freeBlock(block);
+                }
+
+                _blocks.clear();
+                releaseRegion();
+            }
+        }
+
+        private void writeBytes(byte[] b, int off, int len) throws IOException {
+            if (_freed) {
+                throw new IOException("Region has been freed");
+            }
+
+            while (len > 0) {
+                int blockIndex = (int)((_writeOffset - _baseOffset) / _blockSize);
+                if (blockIndex == _blocks.size()) {
+                    _blocks.add(allocateBlock());
+                }
+
+                int blockOffset = (int)(_writeOffset % _blockSize);
+                int numBytes = Math.min(len, _blockSize - blockOffset);
+                long filePos = ((long)_blocks.get(blockIndex) * _blockSize) + blockOffset;
+                writeFile(filePos, b, off, numBytes);
+
+                _writeOffset += numBytes;
+                off += numBytes;
+                len -= numBytes;
+                addBytesWritten(numBytes);
+            }
+        }
+
+        private int readBytes(byte[] b, int off, int len) throws IOException {
+            if (_freed) {
+                throw new IOException("Region has been freed");
+            }
+
+            if (len == 0) {
+                return 0;
+            } else if (_readOffset == _writeOffset) {
+                return -1;
+            }
+
+            int blockOffset = (int)(_readOffset % _blockSize);
+            int numBytes = (int)Math.min(Math.min(len, _blockSize - blockOffset), _writeOffset - _readOffset);
+            long filePos = ((long)_blocks.getFirst() * _blockSize) + blockOffset;
+            readFile(filePos, b, off, numBytes);
+
+            _readOffset += numBytes;
+
+            // If we've read everything in the first block, give it back to the arena.
+            if ((_readOffset - _baseOffset) >= _blockSize) {
+                freeBlock(_blocks.removeFirst());
+                _baseOffset += _blockSize;
+            }
+
+            return numBytes;
+        }
+    }
+
+    private int _blockSize;
+    private long _maxMemoryElements;
+    private File _file;
+    private RandomAccessFile _raf;
+    private boolean _closePending;
+
+    private LinkedList<Integer> _freeBlocks;
+    private int _numBlocks;
+    private int _blocksInUse;
+    private int _peakBlocksInUse;
+    private int _numRegions;
+
+    private long _memoryElements;
+    private long _peakMemoryElements;
+    private long _memoryDenied;
+    private long _bytesWritten;
+
+    /**
+     * Create an arena that lets its queues hold at most <maxMemoryElements> elements
+     * in memory (in total), and spills to a temp file using the default block size.
+     *
+     * @param maxMemoryElements Memory quota for all queues using this arena.
+     */
+    public DiskQueueArena(long maxMemoryElements) {
+        this(maxMemoryElements, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DiskQueueArena(long maxMemoryElements, int blockSize) {
+        if (maxMemoryElements < 1) {
+            throw new InvalidParameterException("DiskQueueArena max memory elements must be at least one");
+        }
+
+        if (blockSize < 1) {
+            throw new InvalidParameterException("DiskQueueArena block size must be at least one");
+        }
+
+        _maxMemoryElements = maxMemoryElements;
+        _blockSize = blockSize;
+        _freeBlocks = new LinkedList<Integer>();
+    }
+
+    /**
+     * Reserve memory for one element. If <force> is true then we'll
+     * go over the quota, otherwise we'll only reserve space if we're
+     * under the quota.
+     *
+     * @param force true if we must reserve space.
+     * @return true if space was reserved.
+     */
+    public synchronized boolean reserveMemory(boolean force) {
+        if (!force && (_memoryElements >= _maxMemoryElements)) {
+            _memoryDenied += 1;
+            return false;
+        }
+
+        _memoryElements += 1;
+        _peakMemoryElements = Math.max(_peakMemoryElements, _memoryElements);
+        return true;
+    }
+
+    public synchronized void releaseMemory(int numElements) {
+        _memoryElements -= numElements;
+    }
+
+    /**
+     * Create a new region for a queue to spill into.
+     *
+     * @return new empty region
+     * @throws IOException
+     */
+    public synchronized Region allocateRegion() throws IOException {
+        if (_raf == null) {
+            _file = File.createTempFile(DiskQueueArena.class.getSimpleName() + "-", null);
+            _raf = new RandomAccessFile(_file, "rw");
+        }
+
+        _numRegions += 1;
+        return new Region();
+    }
+
+    /**
+     * Close down the arena file and delete it. If some queues are still using the
+     * arena (e.g. threads that didn't terminate are still processing them), then the
+     * file is closed once the last region has been freed.
+     */
+    public synchronized void close() {
+        if (_numRegions > 0) {
+            LOGGER.warn(String.format("Delaying close of arena with %d regions still in use", _numRegions));
+            _closePending = true;
+        } else {
+            closeFile();
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        closeFile();
+    }
+
+    private synchronized void closeFile() {
+        if (_raf != null) {
+            try {
+                _raf.close();
+            } catch (IOException e) {
+                LOGGER.warn("IOException closing arena file", e);
+            }
+
+            _file.delete();
+            _raf = null;
+            _file = null;
+        }
+
+        _freeBlocks.clear();
+        _numBlocks = 0;
+        _closePending = false;
+    }
+
+    public int getBlockSize() {
+        return _blockSize;
+    }
+
+    public synchronized int getNumRegions() {
+        return _numRegions;
+    }
+
+    public synchronized int getBlocksInUse() {
+        return _blocksInUse;
+    }
+
+    public synchronized int getPeakBlocksInUse() {
+        return _peakBlocksInUse;
+    }
+
+    public synchronized long getMemoryElements() {
+        return _memoryElements;
+    }
+
+    public synchronized long getPeakMemoryElements() {
+        return _peakMemoryElements;
+    }
+
+    /**
+     * @return number of times we forced an element to disk because we were over the memory quota.
+     */
+    public synchronized long getMemoryDenied() {
+        return _memoryDenied;
+    }
+
+    public synchronized long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    private synchronized int allocateBlock() {
+        _blocksInUse += 1;
+        _peakBlocksInUse = Math.max(_peakBlocksInUse, _blocksInUse);
+
+        if (_freeBlocks.isEmpty()) {
+            return _numBlocks++;
+        } else {
+            return _freeBlocks.removeFirst();
+        }
+    }
+
+    private synchronized void freeBlock(int block) {
+        _blocksInUse -= 1;
+        _freeBlocks.add(block);
+    }
+
+    private synchronized void releaseRegion() {
+        _numRegions -= 1;
+
+        if (_numRegions > 0) {
+            return;
+        } else if (_closePending) {
+            closeFile();
+        } else if (_raf != null) {
+            // Nothing is using the arena, so we can shrink the file back down.
+            try {
+                _raf.setLength(0);
+                _freeBlocks.clear();
+                _numBlocks = 0;
+            } catch (IOException e) {
+                LOGGER.warn("IOException truncating arena file", e);
+            }
+        }
+    }
+
+    // Positioned I/O has to be done with our lock held, since all regions share the file pointer.
+    private synchronized void writeFile(long filePos, byte[] b, int off, int len) throws IOException {
+        if (_raf == null) {
+            throw new IOException("Arena has been closed");
+        }
+
+        _raf.seek(filePos);
+        _raf.write(b, off, len);
+    }
+
+    private synchronized void readFile(long filePos, byte[] b, int off, int len) throws IOException {
+        if (_raf == null) {
+            throw new IOException("Arena has been closed");
+        }
+
+        _raf.seek(filePos);
+        _raf.readFully(b, off, len);
+    }
+
+    private synchronized void addBytesWritten(int numBytes) {
+        _bytesWritten += numBytes;
+    }
+}
@@ -1,6 +1,5 @@
 package bixo.utils;
 
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -8,6 +7,9 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.regex.Pattern;
 
+import bixo.dns.BaseHostResolver;
+import bixo.dns.SimpleHostResolver;
+
 public class DomainInfo {
 
     private static final String TESTING_DOMAIN_PREFIX = "bixo-test-domain-";
@@ -25,6 +27,10 @@ public class DomainInfo {
     private String _hostAddress;
 
     public DomainInfo(String protocolAndDomain) throws UnknownHostException, MalformedURLException, URISyntaxException {
+        this(protocolAndDomain, new SimpleHostResolver());
+    }
+    
+    public DomainInfo(String protocolAndDomain, BaseHostResolver resolver) throws UnknownHostException, MalformedURLException, URISyntaxException {
         _protocolAndDomain = protocolAndDomain;
         URL url = new URL(protocolAndDomain);
 
@@ -36,7 +42,7 @@ public class DomainInfo {
         if (TESTING_DOMAIN_PATTERN.matcher(_domain).matches()) {
             _hostAddress = _domain;
         } else {
-            _hostAddress = InetAddress.getByName(_domain).getHostAddress();
+            _hostAddress = resolver.resolve(_domain);
         }
     }
 
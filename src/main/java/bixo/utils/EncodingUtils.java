@@ -20,6 +20,8 @@ package bixo.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -33,6 +35,68 @@ public class EncodingUtils {
     private static final int EXPECTED_DEFLATE_COMPRESSION_RATIO= 5;
     private static final int BUF_SIZE= 4096;
 
+    /**
+     * Return true if <contentEncoding> (from the Content-Encoding response header) is one
+     * that we can decode with getDecodingStream().
+     * 
+     * @param contentEncoding header value, or null
+     * @return true if content needs to be decoded
+     */
+    public static boolean isSupportedEncoding(String contentEncoding) {
+        return "gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding) || "deflate".equals(contentEncoding);
+    }
+    
+    /**
+     * Wrap <in> with a stream that decodes the content as it's read, so that we never have to
+     * buffer up the entire compressed response. If <contentEncoding> isn't supported (or is null)
+     * then <in> is returned unchanged.
+     * 
+     * Since HTTP "deflate" is used by servers for both raw deflate data and zlib-wrapped
+     * data (see the notes in EncodingUtilsTest), we check for a zlib header to figure out
+     * which one we've got.
+     * 
+     * @param in stream of (possibly) encoded content
+     * @param contentEncoding value of the Content-Encoding header, or null
+     * @return stream of decoded content
+     * @throws IOException if the gzip header can't be read
+     */
+    public static InputStream getDecodingStream(InputStream in, String contentEncoding) throws IOException {
+        if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+            return new GZIPInputStream(in, BUF_SIZE);
+        } else if ("deflate".equals(contentEncoding)) {
+            PushbackInputStream pushbackIn = new PushbackInputStream(in, 2);
+            byte[] header = new byte[2];
+            int headerLength = 0;
+            int bytesRead;
+            while ((headerLength < header.length) && ((bytesRead = pushbackIn.read(header, headerLength, header.length - headerLength)) != -1)) {
+                headerLength += bytesRead;
+            }
+            
+            pushbackIn.unread(header, 0, headerLength);
+            boolean nowrap = (headerLength < 2) || !isZlibHeader(header[0] & 0xFF, header[1] & 0xFF);
+            
+            // Since we're providing the Inflater, we have to release its native resources.
+            return new InflaterInputStream(pushbackIn, new Inflater(nowrap), BUF_SIZE) {
+                
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        } else {
+            return in;
+        }
+    }
+    
+    private static boolean isZlibHeader(int cmf, int flg) {
+        // Compression method must be deflate, and the check bits must be valid (RFC 1950).
+        return ((cmf & 0x0F) == 8) && ((((cmf << 8) | flg) % 31) == 0);
+    }
+
     public static byte[] processGzipEncoded(byte[] compressed) throws IOException {
         return processGzipEncoded(compressed, Integer.MAX_VALUE);
     }
@@ -33,6 +33,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.List;
 
 /**
  *
@@ -57,10 +58,8 @@ public class GMetric2 {
 
     public static void send(InetAddress address, int port, String name, String value, String type, String units, int slope, int tmax, int dmax) {
         try {
-            DatagramSocket socket = new DatagramSocket();
             byte[] buf = write(name, value, type, units, slope, tmax, dmax);
-            DatagramPacket p = new DatagramPacket(buf, buf.length, address, port);
-            socket.send(p);
+            send(address, port, buf);
         } catch (IOException e) {
             // who cares
         }
@@ -69,10 +68,8 @@ public class GMetric2 {
     public static void send(InetAddress address, int port, String name, double dvalue, String units, int slope, int tmax, int dmax) {
         try {
             String value = Double.toString(dvalue);
-            DatagramSocket socket = new DatagramSocket();
             byte[] buf = write(name, value, VALUE_DOUBLE, units, slope, tmax, dmax);
-            DatagramPacket p = new DatagramPacket(buf, buf.length, address, port);
-            socket.send(p);
+            send(address, port, buf);
         } catch (IOException e) {
             // who cares
         }
@@ -81,15 +78,39 @@ public class GMetric2 {
     public static void send(InetAddress address, int port, String name, int dvalue, String units, int slope, int tmax, int dmax) {
         try {
             String value = Integer.toString(dvalue);
-            DatagramSocket socket = new DatagramSocket();
             byte[] buf = write(name, value, VALUE_INT, units, slope, tmax, dmax);
-            DatagramPacket p = new DatagramPacket(buf, buf.length, address, port);
-            socket.send(p);
+            send(address, port, buf);
         } catch (IOException e) {
             // who cares
         }
     }
 
+    /**
+     * Send metrics (created by write()) using <socket>, so that callers who send lots of
+     * metrics can reuse the same socket, versus opening a new one for each metric.
+     * 
+     * @param socket open socket
+     * @param address Ganglia server address
+     * @param port Ganglia server port
+     * @param metrics one or more metrics
+     * @throws IOException
+     */
+    public static void send(DatagramSocket socket, InetAddress address, int port, List<byte[]> metrics) throws IOException {
+        for (byte[] buf : metrics) {
+            socket.send(new DatagramPacket(buf, buf.length, address, port));
+        }
+    }
+
+    private static void send(InetAddress address, int port, byte[] buf) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        
+        try {
+            socket.send(new DatagramPacket(buf, buf.length, address, port));
+        } finally {
+            socket.close();
+        }
+    }
+
     /*
      * EVERYTHING BELOW HERE YOU DON"T NEED TO USE
      */
@@ -45,6 +45,17 @@ public class GroupingKey {
         }
     }
     
+    /**
+     * Return true if <key> is a regular <server>-<crawl delay> key, versus a special key
+     * or a key that only contains the server (IP address).
+     * 
+     * @param key grouping key to check
+     * @return true if we can extract a crawl delay from <key>
+     */
+    public static boolean hasCrawlDelay(String key) {
+        return !isSpecialKey(key) && GROUPING_KEY_PATTERN.matcher(key).matches();
+    }
+    
     public static String getDomainFromKey(String key) {
         Matcher m = GROUPING_KEY_PATTERN.matcher(key);
         if (!m.matches()) {
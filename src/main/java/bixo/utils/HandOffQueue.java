@@ -0,0 +1,96 @@
+package bixo.utils;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+
+/**
+ * A queue used to hand off elements from one producer thread to a consumer thread, while
+ * the producer is still generating them.
+ *
+ * The consumer's poll() call blocks until an element is available, or the producer has
+ * called close(), so a null result means that all elements have been consumed. Memory
+ * use is whatever the wrapped queue uses - e.g. a DiskQueue will spill elements to disk
+ * if the consumer falls behind, so the producer never has to wait.
+ *
+ * @param <E> element stored in queue
+ */
+public class HandOffQueue<E> extends AbstractQueue<E> {
+
+    private Queue<E> _queue;
+    private boolean _closed;
+
+    public HandOffQueue(Queue<E> queue) {
+        _queue = queue;
+        _closed = false;
+    }
+
+    /**
+     * Signal that no more elements will be added to the queue.
+     */
+    public synchronized void close() {
+        _closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return _closed;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        throw new UnsupportedOperationException("Iterator not supported for HandOffQueue");
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#size()
+     *
+     * Number of elements currently in the queue. Until the queue has been closed,
+     * more elements could still show up.
+     */
+    @Override
+    public synchronized int size() {
+        return _queue.size();
+    }
+
+    @Override
+    public synchronized boolean offer(E element) {
+        if (_closed) {
+            throw new IllegalStateException("Can't add to a closed HandOffQueue");
+        }
+
+        boolean result = _queue.offer(element);
+        notifyAll();
+        return result;
+    }
+
+    @Override
+    public synchronized E peek() {
+        return _queue.peek();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#poll()
+     *
+     * Wait for the next element, or for the queue to be closed. If we get
+     * interrupted then we return whatever is in the queue (which might be null).
+     */
+    @Override
+    public synchronized E poll() {
+        while (!_closed && _queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return _queue.poll();
+    }
+
+    @Override
+    public synchronized void clear() {
+        _queue.clear();
+    }
+}
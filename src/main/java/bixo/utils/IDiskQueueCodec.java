@@ -0,0 +1,40 @@
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts elements of a DiskQueue to/from the bytes that get written to the
+ * queue's backing store segment files.
+ *
+ * @param <E> type of element stored in the queue
+ */
+public interface IDiskQueueCodec<E> {
+
+    public interface ElementWriter<E> {
+        
+        public void write(E element) throws IOException;
+        
+        /**
+         * Make sure everything written so far has been pushed to the output stream
+         * that was passed to openWriter(), and flush that stream.
+         * 
+         * @throws IOException
+         */
+        public void flush() throws IOException;
+        
+        public void close() throws IOException;
+    }
+    
+    public interface ElementReader<E> {
+        
+        public E read() throws IOException;
+        
+        public void close() throws IOException;
+    }
+    
+    public ElementWriter<E> openWriter(OutputStream out) throws IOException;
+    
+    public ElementReader<E> openReader(InputStream in) throws IOException;
+}
@@ -0,0 +1,153 @@
+package bixo.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latency values (in microseconds), which can be updated by many threads
+ * at once and merged with other histograms.
+ *
+ * Values less than 64us are counted exactly. Bigger values go into buckets where each
+ * power of two is split into 32 sub-buckets, so percentiles are accurate to within about
+ * 3%, no matter how big the value. Everything at or above MAX_TRACKABLE_VALUE (about
+ * 19 hours) gets counted in the last bucket.
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_VALUE_BITS = 36;
+    public static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private static final int NUM_BUCKETS = getBucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray _buckets;
+    private final AtomicLong _count;
+    private final AtomicLong _total;
+    private final AtomicLong _max;
+
+    public LatencyHistogram() {
+        _buckets = new AtomicLongArray(NUM_BUCKETS);
+        _count = new AtomicLong();
+        _total = new AtomicLong();
+        _max = new AtomicLong();
+    }
+
+    /**
+     * Add a latency value to the histogram.
+     *
+     * @param micros latency in microseconds. Negative values are treated as zero.
+     */
+    public void record(long micros) {
+        long value = Math.min(MAX_TRACKABLE_VALUE, Math.max(0, micros));
+        _buckets.getAndIncrement(getBucketIndex(value));
+        _count.getAndIncrement();
+        _total.getAndAdd(value);
+        updateMax(value);
+    }
+
+    /**
+     * Add the time since <startNanos> (a System.nanoTime() value) to the histogram.
+     *
+     * @param startNanos when the timed operation started
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000L);
+    }
+
+    /**
+     * Add all of the values in <histogram> to this histogram.
+     *
+     * @param histogram histogram to merge in (which can still be getting updated)
+     */
+    public void merge(LatencyHistogram histogram) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long bucketCount = histogram._buckets.get(i);
+            if (bucketCount > 0) {
+                _buckets.getAndAdd(i, bucketCount);
+                _count.getAndAdd(bucketCount);
+            }
+        }
+
+        _total.getAndAdd(histogram._total.get());
+        updateMax(histogram._max.get());
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public long getMean() {
+        long count = _count.get();
+        return (count == 0 ? 0 : _total.get() / count);
+    }
+
+    /**
+     * Return the value (in microseconds) that <percentile> percent of all recorded
+     * values are less than or equal to. This is the upper end of the bucket that holds
+     * the value, but never more than the biggest value we've seen.
+     *
+     * @param percentile 0.0 to 100.0 (e.g. 99.9 for p999)
+     * @return latency in microseconds, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long)Math.ceil((Math.min(100.0, Math.max(0.0, percentile)) / 100.0) * count);
+        target = Math.max(1, target);
+
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += _buckets.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketMaxValue(i), _max.get());
+            }
+        }
+
+        return _max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, p50=%s, p99=%s, p999=%s, max=%s", getCount(),
+                        formatMicros(getPercentile(50.0)), formatMicros(getPercentile(99.0)),
+                        formatMicros(getPercentile(99.9)), formatMicros(getMax()));
+    }
+
+    public static String formatMicros(long micros) {
+        return String.format("%.3fms", micros / 1000.0);
+    }
+
+    private void updateMax(long value) {
+        long max;
+        while ((value > (max = _max.get())) && !_max.compareAndSet(max, value)) {
+            // Somebody else changed the max, so try again.
+        }
+    }
+
+    private static int getBucketIndex(long value) {
+        int shift = getShift(value);
+        return (shift * SUB_BUCKET_COUNT) + (int)(value >> shift);
+    }
+
+    private static int getShift(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        return Math.max(0, highestBit - SUB_BUCKET_BITS);
+    }
+
+    private static long getBucketMaxValue(int index) {
+        // The first 2 * SUB_BUCKET_COUNT buckets each hold a single value.
+        int shift = Math.max(0, (index / SUB_BUCKET_COUNT) - 1);
+        long subBucket = index - (shift * SUB_BUCKET_COUNT);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
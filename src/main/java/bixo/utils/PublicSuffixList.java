@@ -0,0 +1,293 @@
+package bixo.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.IDN;
+
+/**
+ * Rules from a public suffix list (see http://publicsuffix.org), used to find the PLD
+ * (paid-level domain) of a hostname, e.g. domain.co.uk for www.domain.co.uk
+ *
+ * Rules are stored in a trie, with one node per label, starting from the TLD. So we can
+ * check a hostname by walking its labels from the end, without splitting it up or
+ * creating any new strings (other than the result).
+ *
+ */
+public class PublicSuffixList {
+
+    // Bundled copy of https://publicsuffix.org/list/public_suffix_list.dat
+    private static final String DEFAULT_LIST_FILENAME = "public_suffix_list.dat";
+
+    private static final int INITIAL_CHILDREN_SIZE = 4;
+
+    private static class Node {
+        // Open addressing hash table of child labels, with a power of two size.
+        private String[] _labels;
+        private Node[] _children;
+        private int _numChildren;
+
+        private boolean _isRule;
+        private boolean _isException;
+        private boolean _hasWildcard;
+
+        public Node getChild(String hostname, int start, int end) {
+            if (_labels == null) {
+                return null;
+            }
+
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = (31 * hash) + toLowerCase(hostname.charAt(i));
+            }
+
+            int mask = _labels.length - 1;
+            int length = end - start;
+            for (int index = mix(hash) & mask; _labels[index] != null; index = (index + 1) & mask) {
+                if (labelMatches(_labels[index], hostname, start, length)) {
+                    return _children[index];
+                }
+            }
+
+            return null;
+        }
+
+        public Node addChild(String label) {
+            Node result = getChild(label, 0, label.length());
+            if (result != null) {
+                return result;
+            }
+
+            // Keep the table at most half full, so probe sequences stay short.
+            if ((_labels == null) || ((_numChildren + 1) * 2 > _labels.length)) {
+                resize();
+            }
+
+            result = new Node();
+            put(label, result);
+            _numChildren += 1;
+            return result;
+        }
+
+        private void resize() {
+            String[] oldLabels = _labels;
+            Node[] oldChildren = _children;
+
+            int newSize = (oldLabels == null) ? INITIAL_CHILDREN_SIZE : oldLabels.length * 2;
+            _labels = new String[newSize];
+            _children = new Node[newSize];
+
+            if (oldLabels != null) {
+                for (int i = 0; i < oldLabels.length; i++) {
+                    if (oldLabels[i] != null) {
+                        put(oldLabels[i], oldChildren[i]);
+                    }
+                }
+            }
+        }
+
+        private void put(String label, Node child) {
+            int mask = _labels.length - 1;
+            int index = mix(label.hashCode()) & mask;
+            while (_labels[index] != null) {
+                index = (index + 1) & mask;
+            }
+
+            _labels[index] = label;
+            _children[index] = child;
+        }
+
+        private static boolean labelMatches(String label, String hostname, int start, int length) {
+            if (label.length() != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (label.charAt(i) != toLowerCase(hostname.charAt(start + i))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private static class DefaultListHolder {
+        private static final PublicSuffixList DEFAULT_LIST = loadDefaultList();
+    }
+
+    private Node _root;
+    private int _numRules;
+
+    /**
+     * Load rules from <in>, which uses the public suffix list format (one rule per line, with
+     * "*." for wildcards, "!" for exceptions and "//" for comments). The stream is closed when
+     * we're done.
+     *
+     * @param in stream of UTF-8 text
+     * @throws IOException
+     */
+    public PublicSuffixList(InputStream in) throws IOException {
+        _root = new Node();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("//")) {
+                    continue;
+                }
+
+                // Only the first word on a line is the rule.
+                int endOfRule = 0;
+                while ((endOfRule < line.length()) && !Character.isWhitespace(line.charAt(endOfRule))) {
+                    endOfRule += 1;
+                }
+
+                String rule = toLowerCase(line.substring(0, endOfRule));
+                addRule(rule);
+
+                // Hostnames can have internationalized labels in either form.
+                try {
+                    String asciiRule = IDN.toASCII(rule);
+                    if (!asciiRule.equals(rule)) {
+                        addRule(toLowerCase(asciiRule));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Ignore rules that can't be converted.
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the rules from the public suffix list that's bundled with Bixo.
+     */
+    public static PublicSuffixList getDefault() {
+        return DefaultListHolder.DEFAULT_LIST;
+    }
+
+    private static PublicSuffixList loadDefaultList() {
+        InputStream in = PublicSuffixList.class.getResourceAsStream(DEFAULT_LIST_FILENAME);
+        if (in == null) {
+            throw new IllegalStateException("Can't find public suffix list " + DEFAULT_LIST_FILENAME);
+        }
+
+        try {
+            return new PublicSuffixList(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't load public suffix list " + DEFAULT_LIST_FILENAME, e);
+        }
+    }
+
+    public int getNumRules() {
+        return _numRules;
+    }
+
+    private void addRule(String rule) {
+        boolean isException = rule.startsWith("!");
+        if (isException) {
+            rule = rule.substring(1);
+        }
+
+        Node node = _root;
+        int end = rule.length();
+        while (end > 0) {
+            int start = rule.lastIndexOf('.', end - 1) + 1;
+            if ((start == 0) && (end == 1) && (rule.charAt(0) == '*')) {
+                node._hasWildcard = true;
+                _numRules += 1;
+                return;
+            }
+
+            node = node.addChild(rule.substring(start, end));
+            end = start - 1;
+        }
+
+        if (isException) {
+            node._isException = true;
+        } else {
+            node._isRule = true;
+        }
+
+        _numRules += 1;
+    }
+
+    /**
+     * Extract the PLD (paid-level domain) from <hostname>, which is the public suffix plus
+     * the label before it. If the hostname doesn't end with a known public suffix, or is
+     * itself a public suffix, then the hostname is returned.
+     *
+     * @param hostname - hostname from URL, e.g. www.domain.com.it
+     * @return - PLD, e.g. domain.com.it
+     */
+    public String getPLD(String hostname) {
+        // Ignore the final '.' of a fully qualified hostname.
+        int end = hostname.length();
+        if ((end > 0) && (hostname.charAt(end - 1) == '.')) {
+            end -= 1;
+        }
+
+        // Find where the longest matching rule starts, walking the labels backwards.
+        // An exception rule means the suffix is the part after the exception's first label.
+        int suffixStart = -1;
+        Node node = _root;
+        int labelEnd = end;
+        while (true) {
+            int labelStart = hostname.lastIndexOf('.', labelEnd - 1) + 1;
+            if (node._hasWildcard) {
+                suffixStart = labelStart;
+            }
+
+            node = node.getChild(hostname, labelStart, labelEnd);
+            if (node == null) {
+                break;
+            } else if (node._isException) {
+                suffixStart = labelEnd + 1;
+                break;
+            } else if (node._isRule) {
+                suffixStart = labelStart;
+            }
+
+            if (labelStart == 0) {
+                break;
+            }
+
+            labelEnd = labelStart - 1;
+        }
+
+        // No rules match (e.g. an IP address), or the hostname is a public suffix.
+        if (suffixStart <= 0) {
+            return hostname;
+        }
+
+        int pldStart = hostname.lastIndexOf('.', suffixStart - 2) + 1;
+        if (pldStart == 0) {
+            return hostname;
+        } else {
+            return hostname.substring(pldStart, end);
+        }
+    }
+
+    private static char toLowerCase(char c) {
+        return ((c >= 'A') && (c <= 'Z')) ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static String toLowerCase(String s) {
+        char[] result = new char[s.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toLowerCase(s.charAt(i));
+        }
+
+        return new String(result);
+    }
+}
@@ -0,0 +1,68 @@
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * DiskQueue codec that uses standard Java serialization. This works for any
+ * Serializable element, but it's slow and bloated compared to something like
+ * the DatumCodec.
+ *
+ * @param <E> type of element stored in the queue
+ */
+public class SerializableCodec<E extends Serializable> implements IDiskQueueCodec<E> {
+
+    @Override
+    public ElementWriter<E> openWriter(OutputStream out) throws IOException {
+        final ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        
+        return new ElementWriter<E>() {
+
+            @Override
+            public void write(E element) throws IOException {
+                objectOut.writeObject(element);
+                
+                // Release memory ref to <element>, since we don't have any back-references from
+                // it to other serialized objects.
+                objectOut.reset();
+            }
+
+            @Override
+            public void flush() throws IOException {
+                objectOut.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                objectOut.close();
+            }
+        };
+    }
+
+    @Override
+    public ElementReader<E> openReader(InputStream in) throws IOException {
+        final ObjectInputStream objectIn = new ObjectInputStream(in);
+        
+        return new ElementReader<E>() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E read() throws IOException {
+                try {
+                    return (E)objectIn.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new RuntimeException("Unexpected error - can't find class for object in backing store");
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                objectIn.close();
+            }
+        };
+    }
+}
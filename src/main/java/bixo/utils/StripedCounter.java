@@ -0,0 +1,71 @@
+package bixo.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A 64-bit counter that can be updated by lots of threads at the same time, without them
+ * all fighting over one memory location.
+ *
+ * The count is split across a number of stripes, and each thread updates the stripe picked
+ * by its thread id. Each stripe sits in its own cache line, so threads that use different
+ * stripes don't slow each other down. Getting the value means summing all of the stripes,
+ * so this is only a good idea for counters that get updated much more often than read.
+ *
+ */
+public class StripedCounter {
+
+    // Number of longs per stripe, so that each stripe has its own 64 byte cache line.
+    private static final int STRIPE_SPACING = 8;
+
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray _stripes;
+    private final int _stripeMask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param targetStripes number of stripes we want, which gets rounded up to a power of two
+     *        (but no more than MAX_STRIPES).
+     */
+    public StripedCounter(int targetStripes) {
+        int numStripes = 1;
+        while ((numStripes < targetStripes) && (numStripes < MAX_STRIPES)) {
+            numStripes *= 2;
+        }
+
+        _stripeMask = numStripes - 1;
+        _stripes = new AtomicLongArray(numStripes * STRIPE_SPACING);
+    }
+
+    public void add(long amount) {
+        int stripe = (int)(Thread.currentThread().getId() & _stripeMask);
+        _stripes.getAndAdd(stripe * STRIPE_SPACING, amount);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Return the current count. If other threads are updating the counter at the same
+     * time, this might not include their updates.
+     *
+     * @return sum of all stripes
+     */
+    public long sum() {
+        long result = 0;
+        for (int i = 0; i < _stripes.length(); i += STRIPE_SPACING) {
+            result += _stripes.get(i);
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
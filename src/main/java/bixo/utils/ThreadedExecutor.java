@@ -1,22 +1,44 @@
 package bixo.utils;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 /**
  * A wrapper for ThreadPoolExecutor that implements a specific behavior we need in Bixo.
  * When execute() is called, it succeeds unless all of the threads are busy and the
  * specified timeout is exceeded (no threads finish up in that amount of time).
  *
+ * How tasks get to threads depends on the ExecutorMode. In all modes we keep track of
+ * how often (and how long) execute() had to wait, so callers can see if they're being
+ * throttled by the executor.
+ *
  */
 public class ThreadedExecutor {
+    private static final Logger LOGGER = Logger.getLogger(ThreadedExecutor.class);
     
     public static final long MAX_POLL_TIME = 1000L;
     
+    // Stack size for THREAD_PER_TASK threads. These are typically just waiting on a
+    // fetch, so they don't need the default (which can be 1MB or more).
+    public static final long DEFAULT_TASK_STACK_SIZE = 256 * 1024L;
+    
+    public enum ExecutorMode {
+        HANDOFF,            // Fixed pool of threads, tasks handed off directly to an idle thread.
+        THREAD_PER_TASK,    // Thread (with small stack) created for each task if none are idle, reaped when idle.
+        QUEUED              // Fixed pool of threads, with a bounded queue of waiting tasks.
+    }
+    
     /**
      * Always wait for some time when offer() is called. This gives any
      * active threads that much time to complete, before a RejectedExectionException
@@ -33,32 +55,184 @@ public class ThreadedExecutor {
 
         @Override
         public boolean offer(E element) {
+            // Only track the wait if we actually had to wait for a thread.
+            if (super.offer(element)) {
+                return true;
+            }
+            
+            long startTime = System.currentTimeMillis();
+            
             try {
                 return offer(element, _requestTimeout, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 return false;
+            } finally {
+                recordWait(System.currentTimeMillis() - startTime);
             }
         }
     }
 
+    /**
+     * Handler for when the pool couldn't immediately take a task. If <waitForSpace>
+     * is true, we'll wait for up to the request timeout for space in the pool's queue
+     * (or an idle thread, for a SynchronousQueue), otherwise we reject right away.
+     */
+    private class MyRejectionHandler implements RejectedExecutionHandler {
+        
+        private boolean _waitForSpace;
+        
+        public MyRejectionHandler(boolean waitForSpace) {
+            _waitForSpace = waitForSpace;
+        }
+        
+        @Override
+        public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+            if (_waitForSpace && !executor.isShutdown()) {
+                long startTime = System.currentTimeMillis();
+                
+                try {
+                    if (executor.getQueue().offer(command, _requestTimeout, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    recordWait(System.currentTimeMillis() - startTime);
+                }
+            }
+            
+            _numRejected.incrementAndGet();
+            throw new RejectedExecutionException("Task rejected by " + _mode + " executor");
+        }
+    }
+    
+    /**
+     * Create daemon threads with a specific stack size.
+     */
+    private static class MyThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+        
+        private long _stackSize;
+        private String _namePrefix;
+        private AtomicInteger _threadNumber;
+        
+        public MyThreadFactory(long stackSize) {
+            _stackSize = stackSize;
+            _namePrefix = "ThreadedExecutor-" + POOL_NUMBER.getAndIncrement() + "-thread-";
+            _threadNumber = new AtomicInteger(1);
+        }
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(null, r, _namePrefix + _threadNumber.getAndIncrement(), _stackSize);
+            result.setDaemon(true);
+            return result;
+        }
+    }
 
+    /**
+     * Wrapper that tracks how long threads spend running tasks, so we can tell how
+     * busy the pool was.
+     */
+    private class TimedTask implements Runnable {
+        private Runnable _command;
+        
+        public TimedTask(Runnable command) {
+            _command = command;
+        }
+        
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            
+            try {
+                _command.run();
+            } finally {
+                _totalBusyTime.addAndGet(System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+    
+    private ExecutorMode _mode;
+    private int _maxThreads;
     private long _requestTimeout;
     private ThreadPoolExecutor _pool;
     
+    private AtomicInteger _numWaits;
+    private AtomicLong _totalWaitTime;
+    private AtomicInteger _numRejected;
+    private AtomicInteger _peakQueueSize;
+    private AtomicLong _totalBusyTime;
+    private long _startTime;
+    private long _endTime;
+    
     public ThreadedExecutor(int maxThreads, long requestTimeout) {
+        this(ExecutorMode.HANDOFF, maxThreads, requestTimeout);
+    }
+    
+    public ThreadedExecutor(ExecutorMode mode, int maxThreads, long requestTimeout) {
+        this(mode, maxThreads, maxThreads, requestTimeout);
+    }
+    
+    /**
+     * Create an executor that runs at most <maxThreads> tasks at the same time, and will
+     * wait up to <requestTimeout> milliseconds in execute() for a thread (or queue space)
+     * to free up.
+     * 
+     * @param mode how tasks are handed off to threads
+     * @param maxThreads max number of tasks that can be running
+     * @param maxQueueSize max number of tasks waiting for a thread (only used for QUEUED mode)
+     * @param requestTimeout max time to wait in execute()
+     */
+    public ThreadedExecutor(ExecutorMode mode, int maxThreads, int maxQueueSize, long requestTimeout) {
+        _mode = mode;
+        _maxThreads = maxThreads;
         _requestTimeout = requestTimeout;
         
-        // With the "always offer with a timeout" queue, the maximumPoolSize should always
-        // be set to the same as the corePoolSize, as otherwise things get very inefficient
-        // since each execute() call will will delay by <timeout> even if we could add more
-        // threads. And since these two values are the same, the keepAliveTime value has
-        // little meaning (especially since we no longer incorrectly set allowCoreThreadTimeOut to true,
-        // as if that's true then the timeout value still does apply). It's only the max latency
-        // between when a task is accepted by this executor, and when a thread starts working
-        // on it.
-        BlockingQueue<Runnable> queue = new MyBlockingQueue<Runnable>();
-        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue);
+        _numWaits = new AtomicInteger();
+        _totalWaitTime = new AtomicLong();
+        _numRejected = new AtomicInteger();
+        _peakQueueSize = new AtomicInteger();
+        _totalBusyTime = new AtomicLong();
+        _startTime = System.currentTimeMillis();
+        _endTime = 0;
+        
+        switch (mode) {
+            case HANDOFF:
+                // With the "always offer with a timeout" queue, the maximumPoolSize should always
+                // be set to the same as the corePoolSize, as otherwise things get very inefficient
+                // since each execute() call will will delay by <timeout> even if we could add more
+                // threads. And since these two values are the same, the keepAliveTime value has
+                // little meaning (especially since we no longer incorrectly set allowCoreThreadTimeOut to true,
+                // as if that's true then the timeout value still does apply). It's only the max latency
+                // between when a task is accepted by this executor, and when a thread starts working
+                // on it.
+                BlockingQueue<Runnable> queue = new MyBlockingQueue<Runnable>();
+                _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue);
+                _pool.setRejectedExecutionHandler(new MyRejectionHandler(false));
+                break;
+                
+            case THREAD_PER_TASK:
+                // Hand off to an idle thread if there is one, otherwise the pool creates a new
+                // thread (up to maxThreads). Only once we're at maxThreads does the rejection handler
+                // wait for a thread to become idle. Threads that stay idle are reaped.
+                _pool = new ThreadPoolExecutor(0, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS,
+                                new SynchronousQueue<Runnable>(), new MyThreadFactory(DEFAULT_TASK_STACK_SIZE),
+                                new MyRejectionHandler(true));
+                break;
+                
+            case QUEUED:
+                // Tasks wait in the queue if all threads are busy, and execute() only blocks
+                // (applying back pressure to the caller) once the queue is full.
+                _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS,
+                                new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueueSize)));
+                _pool.setRejectedExecutionHandler(new MyRejectionHandler(true));
+                break;
+                
+            default:
+                throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
     }
     
     /**
@@ -68,9 +242,22 @@ public class ThreadedExecutor {
      * @throws RejectedExecutionException
      */
     public void execute(Runnable command) throws RejectedExecutionException {
-        _pool.execute(command);
+        _pool.execute(new TimedTask(command));
+        
+        if (_mode == ExecutorMode.QUEUED) {
+            int queueSize = _pool.getQueue().size();
+            int peakQueueSize;
+            while (queueSize > (peakQueueSize = _peakQueueSize.get())) {
+                if (_peakQueueSize.compareAndSet(peakQueueSize, queueSize)) {
+                    break;
+                }
+            }
+        }
     }
     
+    public ExecutorMode getMode() {
+        return _mode;
+    }
     
     /**
      * Return number of active threads
@@ -81,6 +268,70 @@ public class ThreadedExecutor {
         return _pool.getActiveCount();
     }
     
+    /**
+     * @return largest number of threads that have been in the pool at the same time.
+     */
+    public int getPeakThreadCount() {
+        return _pool.getLargestPoolSize();
+    }
+    
+    /**
+     * @return number of tasks waiting for a thread.
+     */
+    public int getQueueSize() {
+        return _pool.getQueue().size();
+    }
+    
+    public int getPeakQueueSize() {
+        return _peakQueueSize.get();
+    }
+    
+    /**
+     * @return number of execute() calls that had to wait for a thread (or queue space).
+     */
+    public int getNumWaits() {
+        return _numWaits.get();
+    }
+    
+    /**
+     * @return total milliseconds spent waiting in execute().
+     */
+    public long getTotalWaitTime() {
+        return _totalWaitTime.get();
+    }
+    
+    /**
+     * @return number of execute() calls that threw a RejectedExecutionException.
+     */
+    public int getNumRejected() {
+        return _numRejected.get();
+    }
+    
+    /**
+     * @return total milliseconds that threads spent running tasks.
+     */
+    public long getTotalBusyTime() {
+        return _totalBusyTime.get();
+    }
+    
+    /**
+     * Return the thread time we had available, which is max threads times how long
+     * the executor has been running (until terminate() was called). The difference between
+     * this and getTotalBusyTime() is how long threads were idle, or could have been created
+     * but weren't needed.
+     * 
+     * @return total thread-milliseconds available for running tasks.
+     */
+    public long getTotalThreadTime() {
+        long endTime = (_endTime == 0 ? System.currentTimeMillis() : _endTime);
+        return _maxThreads * (endTime - _startTime);
+    }
+    
+    private void recordWait(long waitTime) {
+        _numWaits.incrementAndGet();
+        _totalWaitTime.addAndGet(waitTime);
+    }
+    
     /**
      * Terminate the thread pool.
      * 
@@ -91,17 +342,38 @@ public class ThreadedExecutor {
         
         // First just wait for threads to terminate naturally.
         _pool.shutdown();
-        if (_pool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
+        boolean terminated = _pool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS);
+        _endTime = System.currentTimeMillis();
+        if (terminated) {
             return true;
         }
         
         // We need to do a hard shutdown
         List<Runnable> remainingTasks = _pool.shutdownNow();
         if (remainingTasks.size() != 0) {
-            // Houston, we have a problem. Since ThreadedExecutor isn't multi-threaded, we should
-            // never hit the one edge case where this _might_ be true (execute was called, waiting
-            // for a thread to terminate, and then this terminate was called).
-            throw new RuntimeException("There should never be any tasks in the queue");
+            if (_mode != ExecutorMode.QUEUED) {
+                // Houston, we have a problem. Since ThreadedExecutor isn't multi-threaded, we should
+                // never hit the one edge case where this _might_ be true (execute was called, waiting
+                // for a thread to terminate, and then this terminate was called).
+                throw new RuntimeException("There should never be any tasks in the queue");
+            }
+            
+            // Tasks that were still in the queue never got started. Run them in this thread
+            // with the interrupted flag set, same as running tasks after shutdownNow(), so that
+            // they get a chance to clean up (e.g. FetchTask skips all of its URLs).
+            LOGGER.warn(String.format("Interrupting %d queued tasks", remainingTasks.size()));
+            for (Runnable task : remainingTasks) {
+                Thread.currentThread().interrupt();
+                
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.error("Exception while interrupting queued task", t);
+                }
+            }
+            
+            // Clear the interrupted flag that we set.
+            Thread.interrupted();
         }
         
         return false;
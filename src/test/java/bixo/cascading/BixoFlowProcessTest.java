@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import bixo.cascading.BixoFlowProcess.LoggingLevels;
 import bixo.hadoop.FetchCounters;
+import bixo.utils.LatencyHistogram;
 
 public class BixoFlowProcessTest {
     
@@ -27,6 +28,31 @@ public class BixoFlowProcessTest {
         assertEquals(-2, process.getCounter(TestCounter.COUNTER_B));
     }
     
+    @Test
+    public void testLongCounter() {
+        BixoFlowProcess process = new BixoFlowProcess();
+        
+        // e.g. bytes fetched on a big job.
+        final long fiveTerabytes = 5L * 1024 * 1024 * 1024 * 1024;
+        process.increment(TestCounter.COUNTER_A, fiveTerabytes);
+        process.increment(TestCounter.COUNTER_A, Integer.MAX_VALUE);
+        assertEquals(fiveTerabytes + Integer.MAX_VALUE, process.getCounter(TestCounter.COUNTER_A));
+    }
+    
+    @Test
+    public void testLatencies() {
+        BixoFlowProcess process = new BixoFlowProcess();
+        assertNull(process.getLatencies(TestCounter.COUNTER_A));
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        process.addLatencies(TestCounter.COUNTER_A, histogram);
+        process.addLatencies(TestCounter.COUNTER_A, histogram);
+        
+        assertEquals(2, process.getLatencies(TestCounter.COUNTER_A).getCount());
+        assertEquals(1, histogram.getCount());
+    }
+    
     @Test
     public void testHadoopCounter() {
         
@@ -0,0 +1,163 @@
+package bixo.cascading;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bixo.hadoop.FetchCounters;
+
+@SuppressWarnings("unchecked")
+public class GangliaFlowReporterTest {
+
+    private DatagramSocket _listener;
+    private GangliaFlowReporter _reporter;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        _listener = new DatagramSocket(0, localhost);
+        _listener.setSoTimeout(2000);
+        _reporter = new GangliaFlowReporter(localhost, _listener.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _reporter.close();
+        _listener.close();
+    }
+
+    @Test
+    public void testCounterSnapshots() throws Exception {
+        Map<Enum, Long> counts = new HashMap<Enum, Long>();
+        counts.put(FetchCounters.URLS_FETCHED, 100L);
+        counts.put(FetchCounters.FETCHED_BYTES, 1000L);
+        counts.put(FetchCounters.DOMAINS_PROCESSING, 5L);
+
+        // First snapshot only has values, since we don't have a rate yet.
+        _reporter.reportCounters(counts, 10000);
+        Map<String, String> metrics = receive(3);
+        assertEquals("100", metrics.get("bixo.URLS_FETCHED"));
+        assertEquals("1000", metrics.get("bixo.FETCHED_BYTES"));
+        assertEquals("5", metrics.get("bixo.DOMAINS_PROCESSING"));
+
+        counts.put(FetchCounters.URLS_FETCHED, 300L);
+        counts.put(FetchCounters.FETCHED_BYTES, 5000L);
+        counts.put(FetchCounters.DOMAINS_PROCESSING, 2L);
+
+        _reporter.reportCounters(counts, 12000);
+        metrics = receive(5);
+        assertEquals("300", metrics.get("bixo.URLS_FETCHED"));
+        assertEquals("2", metrics.get("bixo.DOMAINS_PROCESSING"));
+        assertEquals(100.0, Double.parseDouble(metrics.get("bixo.URLS_FETCHED_per_sec")), 0.001);
+        assertEquals(2000.0, Double.parseDouble(metrics.get("bixo.FETCHED_BYTES_per_sec")), 0.001);
+        assertNull(metrics.get("bixo.DOMAINS_PROCESSING_per_sec"));
+
+        assertNoMorePackets();
+    }
+
+    @Test
+    public void testSocketIsReused() throws Exception {
+        Set<Integer> sourcePorts = new HashSet<Integer>();
+        Map<Enum, Long> counts = new HashMap<Enum, Long>();
+
+        for (int i = 0; i < 10; i++) {
+            counts.put(FetchCounters.URLS_FETCHED, (long)i);
+            _reporter.reportCounters(counts, 1000 * (i + 1));
+
+            DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+            _listener.receive(packet);
+            sourcePorts.add(packet.getPort());
+
+            if (i > 0) {
+                _listener.receive(packet);
+                sourcePorts.add(packet.getPort());
+            }
+        }
+
+        assertEquals(1, sourcePorts.size());
+    }
+
+    @Test
+    public void testSnapshotThread() throws Exception {
+        BixoFlowProcess process = new BixoFlowProcess();
+        process.increment(FetchCounters.URLS_FETCHED, 10);
+
+        _reporter.startCounterSnapshots(process, 50);
+        Map<String, String> metrics = receive(1);
+        assertEquals("10", metrics.get("bixo.URLS_FETCHED"));
+
+        // Closing sends one last snapshot.
+        process.increment(FetchCounters.URLS_FETCHED, 10);
+        _reporter.close();
+
+        String lastValue = null;
+        _listener.setSoTimeout(200);
+        try {
+            while (true) {
+                // Skip the rate metrics, which come after the values.
+                metrics = receive(1);
+                if (metrics.containsKey("bixo.URLS_FETCHED")) {
+                    lastValue = metrics.get("bixo.URLS_FETCHED");
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Expected, once we've read everything
+        }
+
+        assertEquals("20", lastValue);
+    }
+
+    private void assertNoMorePackets() throws IOException {
+        _listener.setSoTimeout(100);
+
+        try {
+            receive(1);
+            fail("Got unexpected metric");
+        } catch (SocketTimeoutException e) {
+            // Valid
+        }
+    }
+
+    private Map<String, String> receive(int numMetrics) throws IOException {
+        Map<String, String> result = new HashMap<String, String>();
+        byte[] buffer = new byte[1024];
+
+        for (int i = 0; i < numMetrics; i++) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            _listener.receive(packet);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 0, packet.getLength()));
+            assertEquals(0, in.readInt());
+            readXDRString(in); // type
+            String name = readXDRString(in);
+            String value = readXDRString(in);
+            result.put(name, value);
+        }
+
+        return result;
+    }
+
+    private static String readXDRString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        // Strings are padded to a multiple of four bytes.
+        in.skipBytes((4 - (length % 4)) % 4);
+        return new String(bytes, "US-ASCII");
+    }
+}
@@ -0,0 +1,167 @@
+package bixo.cascading;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import bixo.hadoop.CollectorCounters;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+public class TupleCollectorThreadTest {
+
+    private static class ListCollector extends TupleEntryCollector {
+        protected List<Tuple> _tuples = new ArrayList<Tuple>();
+        protected Thread _lastThread;
+
+        @Override
+        protected void collect(Tuple tuple) {
+            _tuples.add(tuple);
+            _lastThread = Thread.currentThread();
+        }
+    }
+
+    private static class SlowCollector extends ListCollector {
+        private CountDownLatch _latch;
+        private long _delay;
+
+        public SlowCollector(CountDownLatch latch, long delay) {
+            _latch = latch;
+            _delay = delay;
+        }
+
+        @Override
+        protected void collect(Tuple tuple) {
+            try {
+                if (_latch != null) {
+                    _latch.await();
+                }
+
+                Thread.sleep(_delay);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+
+            super.collect(tuple);
+        }
+    }
+
+    @Test
+    public void testNothingLostAfterTerminate() throws Exception {
+        final int numThreads = 10;
+        final int tuplesPerThread = 10000;
+
+        BixoFlowProcess process = new BixoFlowProcess();
+        final TupleCollectorThread collectorThread = new TupleCollectorThread(process);
+        collectorThread.start();
+
+        ListCollector listCollector = new ListCollector();
+        final TupleEntryCollector collector = collectorThread.getCollector(listCollector);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadId = i;
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < tuplesPerThread; j++) {
+                        collector.add(new Tuple(threadId, j));
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertTrue(collectorThread.terminate(10000));
+
+        assertEquals(numThreads * tuplesPerThread, listCollector._tuples.size());
+        assertNotSame(Thread.currentThread(), listCollector._lastThread);
+
+        // Tuples from each thread should be in order.
+        int[] nextIndex = new int[numThreads];
+        for (Tuple tuple : listCollector._tuples) {
+            int threadId = tuple.getInteger(0);
+            assertEquals(nextIndex[threadId], tuple.getInteger(1));
+            nextIndex[threadId] += 1;
+        }
+
+        assertEquals(numThreads * tuplesPerThread, process.getCounter(CollectorCounters.TUPLES_WRITTEN));
+        assertEquals(0, process.getCounter(CollectorCounters.TUPLES_LOST));
+        assertTrue(process.getCounter(CollectorCounters.PEAK_QUEUE_DEPTH) > 0);
+        assertEquals(0, collectorThread.getQueueDepth());
+        
+        // Once we've terminated, nothing else gets written.
+        assertFalse(collectorThread.add(listCollector, new Tuple(-1, -1)));
+        assertEquals(numThreads * tuplesPerThread, listCollector._tuples.size());
+    }
+
+    @Test
+    public void testAddBlocksWhenQueueIsFull() throws Exception {
+        BixoFlowProcess process = new BixoFlowProcess();
+        final TupleCollectorThread collectorThread = new TupleCollectorThread(process, 10);
+        collectorThread.start();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        final SlowCollector slowCollector = new SlowCollector(latch, 0);
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    collectorThread.add(slowCollector, new Tuple(i));
+                }
+            }
+        };
+
+        producer.start();
+        producer.join(500);
+
+        // The writer is stuck on the first tuple, so the producer is waiting for space.
+        assertTrue(producer.isAlive());
+        assertEquals(10, collectorThread.getQueueDepth());
+
+        latch.countDown();
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+
+        assertTrue(collectorThread.terminate(10000));
+        assertEquals(100, slowCollector._tuples.size());
+        assertEquals(10, process.getCounter(CollectorCounters.PEAK_QUEUE_DEPTH));
+        assertEquals(0, process.getCounter(CollectorCounters.TUPLES_LOST));
+    }
+
+    @Test
+    public void testTerminateFinishesWritingWhenWriterIsSlow() throws Exception {
+        BixoFlowProcess process = new BixoFlowProcess();
+        TupleCollectorThread collectorThread = new TupleCollectorThread(process);
+        collectorThread.start();
+
+        SlowCollector slowCollector = new SlowCollector(null, 20);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(collectorThread.add(slowCollector, new Tuple(i)));
+        }
+
+        // The writer can't get through all of the tuples in time, so we take over, but
+        // everything still gets written, and in order, before terminate() returns.
+        assertFalse(collectorThread.terminate(100));
+        assertEquals(50, slowCollector._tuples.size());
+        assertSame(Thread.currentThread(), slowCollector._lastThread);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, slowCollector._tuples.get(i).getInteger(0));
+        }
+
+        assertEquals(50, process.getCounter(CollectorCounters.TUPLES_WRITTEN));
+        assertEquals(0, collectorThread.getQueueDepth());
+    }
+}
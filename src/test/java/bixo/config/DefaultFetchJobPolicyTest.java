@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import bixo.config.BaseFetchJobPolicy.FetchSetInfo;
 import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
 
 public class DefaultFetchJobPolicyTest {
 
@@ -69,6 +70,31 @@ public class DefaultFetchJobPolicyTest {
         assertTrue(setInfo.isSkipping());
     }
     
+    @Test
+    public void testMixedCrawlDelays() throws Exception {
+        final int maxUrlsPerSet = 3;
+        final int maxUrlsPerServer = 100;
+        final long defaultCrawlDelay = 5000;
+        
+        BaseFetchJobPolicy policy = new DefaultFetchJobPolicy(maxUrlsPerSet, maxUrlsPerServer, defaultCrawlDelay);
+        
+        // Group is just the IP address, so each URL's key has the delay for its virtual host.
+        policy.startFetchSet("192.168.1.1", defaultCrawlDelay);
+        
+        assertNull(policy.nextFetchSet(new ScoredUrlDatum("http://domain1.com/", "192.168.1.1-1000", UrlStatus.UNFETCHED)));
+        assertNull(policy.nextFetchSet(new ScoredUrlDatum("http://domain2.com/", "192.168.1.1-unset", UrlStatus.UNFETCHED)));
+        FetchSetInfo setInfo = policy.nextFetchSet(new ScoredUrlDatum("http://domain3.com/", "192.168.1.1-20000", UrlStatus.UNFETCHED));
+        assertNotNull(setInfo);
+        assertEquals(3, setInfo.getUrls().size());
+        assertEquals(1000 + defaultCrawlDelay + 20000, setInfo.getFetchDelay());
+        
+        // Delay is reset for each new set.
+        assertNull(policy.nextFetchSet(new ScoredUrlDatum("http://domain1.com/page", "192.168.1.1-1000", UrlStatus.UNFETCHED)));
+        setInfo = policy.endFetchSet();
+        assertNotNull(setInfo);
+        assertEquals(1000, setInfo.getFetchDelay());
+    }
+    
     @Test
     public void testSortKey() throws Exception {
         final int maxUrlsPerSet = 1;
@@ -0,0 +1,188 @@
+package bixo.dns;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+
+    @SuppressWarnings("serial")
+    private static class StubHostResolver extends BaseHostResolver {
+        private Map<String, String> _addresses = new HashMap<String, String>();
+        private int _numLookups = 0;
+        
+        public void addHost(String hostname, String address) {
+            _addresses.put(hostname, address);
+        }
+        
+        public int getNumLookups() {
+            return _numLookups;
+        }
+        
+        @Override
+        public String resolve(String hostname) throws UnknownHostException {
+            _numLookups += 1;
+            
+            String address = _addresses.get(hostname);
+            if (address == null) {
+                throw new UnknownHostException(hostname);
+            }
+            
+            return address;
+        }
+    }
+    
+    @Test
+    public void testPositiveCaching() throws Exception {
+        StubHostResolver stub = new StubHostResolver();
+        stub.addHost("www.domain.com", "10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(stub);
+        
+        assertEquals("10.0.0.1", resolver.resolve("www.domain.com"));
+        assertEquals("10.0.0.1", resolver.resolve("WWW.Domain.com"));
+        assertEquals(1, stub.getNumLookups());
+        assertEquals(1, resolver.getNumMisses());
+        assertEquals(1, resolver.getNumHits());
+    }
+    
+    @Test
+    public void testNegativeCaching() throws Exception {
+        StubHostResolver stub = new StubHostResolver();
+        CachingHostResolver resolver = new CachingHostResolver(stub);
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.domain.com");
+                fail("Exception not thrown");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+        }
+        
+        assertEquals(1, stub.getNumLookups());
+        assertEquals(1, resolver.getNumNegativeHits());
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        StubHostResolver stub = new StubHostResolver();
+        stub.addHost("www.domain.com", "10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(stub, 1, 0);
+        
+        resolver.resolve("www.domain.com");
+        Thread.sleep(10);
+        resolver.resolve("www.domain.com");
+        assertEquals(2, stub.getNumLookups());
+        
+        // With no negative TTL, we don't remember unknown hosts.
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.domain.com");
+                fail("Exception not thrown");
+            } catch (UnknownHostException e) {
+                // Valid
+            }
+        }
+        
+        assertEquals(4, stub.getNumLookups());
+    }
+    
+    @Test
+    public void testSavingAndLoading() throws Exception {
+        StubHostResolver stub = new StubHostResolver();
+        stub.addHost("www.domain.com", "10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(stub);
+        
+        resolver.resolve("www.domain.com");
+        try {
+            resolver.resolve("unknown.domain.com");
+            fail("Exception not thrown");
+        } catch (UnknownHostException e) {
+            // Valid
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, resolver.writeCache(out));
+        
+        // A new resolver with the loaded cache shouldn't need to do any lookups.
+        StubHostResolver newStub = new StubHostResolver();
+        CachingHostResolver newResolver = new CachingHostResolver(newStub);
+        assertEquals(2, newResolver.readCache(new ByteArrayInputStream(out.toByteArray())));
+        
+        assertEquals("10.0.0.1", newResolver.resolve("www.domain.com"));
+        try {
+            newResolver.resolve("unknown.domain.com");
+            fail("Exception not thrown");
+        } catch (UnknownHostException e) {
+            // Valid
+        }
+        
+        assertEquals(0, newStub.getNumLookups());
+    }
+    
+    @Test
+    public void testLoadingSkipsExpiredEntries() throws Exception {
+        String cache = "old.domain.com\t10.0.0.1\t1000\n"
+            + "invalid entry\n"
+            + "new.domain.com\t10.0.0.2\t" + Long.MAX_VALUE + "\n";
+        
+        CachingHostResolver resolver = new CachingHostResolver(new StubHostResolver());
+        assertEquals(1, resolver.readCache(new ByteArrayInputStream(cache.getBytes("UTF-8"))));
+        assertEquals("10.0.0.2", resolver.resolve("new.domain.com"));
+    }
+    
+    @Test
+    public void testOnlySavingOwnedEntries() throws Exception {
+        String cache = "other.domain.com\t10.0.0.1\t" + Long.MAX_VALUE + "\n";
+        
+        StubHostResolver stub = new StubHostResolver();
+        stub.addHost("www.domain.com", "10.0.0.2");
+        CachingHostResolver resolver = new CachingHostResolver(stub);
+        assertEquals(1, resolver.readCache(new ByteArrayInputStream(cache.getBytes("UTF-8")), false));
+        assertEquals("10.0.0.1", resolver.resolve("other.domain.com"));
+        assertEquals(0, resolver.writeCache(new ByteArrayOutputStream()));
+        
+        resolver.resolve("www.domain.com");
+        assertEquals(1, resolver.writeCache(new ByteArrayOutputStream()));
+    }
+    
+    @Test
+    public void testSavedCacheDoesNotGrow() throws Exception {
+        File cacheDir = new File("build/test/CachingHostResolverTest/testSavedCacheDoesNotGrow");
+        FileUtils.deleteDirectory(cacheDir);
+        
+        StubHostResolver stub = new StubHostResolver();
+        stub.addHost("www.domain0.com", "10.0.0.1");
+        stub.addHost("www.domain1.com", "10.0.0.2");
+        
+        // Each loop, every task loads all of the files, resolves its own host, and saves.
+        for (int loop = 0; loop < 3; loop++) {
+            for (int partition = 0; partition < 2; partition++) {
+                JobConf conf = new JobConf();
+                conf.setInt("mapred.task.partition", partition);
+                
+                CachingHostResolver resolver = new CachingHostResolver(stub);
+                resolver.setCacheDir(cacheDir.getAbsolutePath());
+                resolver.loadCache(conf);
+                resolver.resolve("www.domain" + partition + ".com");
+                assertEquals(1, resolver.saveCache(conf));
+            }
+        }
+        
+        JobConf conf = new JobConf();
+        conf.setInt("mapred.task.partition", 2);
+        CachingHostResolver resolver = new CachingHostResolver(stub);
+        resolver.setCacheDir(cacheDir.getAbsolutePath());
+        assertEquals(2, resolver.loadCache(conf));
+        assertEquals(2, stub.getNumLookups());
+    }
+}
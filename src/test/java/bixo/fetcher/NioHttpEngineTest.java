@@ -0,0 +1,319 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NioHttpEngineTest {
+
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+    private static final byte[] KEEP_ALIVE_REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    /**
+     * Server that accepts connections, and then either sends back a fixed response or
+     * (if the response is null) never says anything.
+     */
+    private static class FixedServer extends Thread {
+        private ServerSocket _serverSocket;
+        private byte[] _response;
+        private List<Socket> _sockets = new ArrayList<Socket>();
+
+        public FixedServer(String response) throws IOException {
+            _serverSocket = new ServerSocket(0);
+            _response = (response == null) ? null : response.getBytes("ISO-8859-1");
+            setDaemon(true);
+            start();
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", _serverSocket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = _serverSocket.accept();
+                    _sockets.add(socket);
+
+                    if (_response != null) {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(_response);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // Server was closed
+            }
+        }
+
+        public void close() throws IOException {
+            _serverSocket.close();
+            for (Socket socket : _sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Server that sends back a small page for each request, keeping the connection
+     * open for up to <maxRequestsPerConnection> requests. For the next request on the
+     * connection, it just closes the connection without sending a response.
+     */
+    private static class KeepAliveServer extends Thread {
+        private static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 5\r\n\r\nHello";
+
+        private ServerSocket _serverSocket;
+        private int _maxRequestsPerConnection;
+        private volatile int _numConnections = 0;
+        private List<Socket> _sockets = new ArrayList<Socket>();
+
+        public KeepAliveServer(int maxRequestsPerConnection) throws IOException {
+            _serverSocket = new ServerSocket(0);
+            _maxRequestsPerConnection = maxRequestsPerConnection;
+            setDaemon(true);
+            start();
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", _serverSocket.getLocalPort());
+        }
+
+        public int getNumConnections() {
+            return _numConnections;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = _serverSocket.accept();
+                    _numConnections += 1;
+                    synchronized (_sockets) {
+                        _sockets.add(socket);
+                    }
+
+                    Thread handler = new Thread() {
+
+                        @Override
+                        public void run() {
+                            handleConnection(socket);
+                        }
+                    };
+
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Server was closed
+            }
+        }
+
+        private void handleConnection(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                for (int i = 0; readRequest(in); i++) {
+                    if (i == _maxRequestsPerConnection) {
+                        break;
+                    }
+
+                    out.write(RESPONSE.getBytes("ISO-8859-1"));
+                    out.flush();
+                }
+
+                socket.close();
+            } catch (IOException e) {
+                // Connection was closed
+            }
+        }
+
+        /**
+         * @return false if the connection was closed before we got a request.
+         */
+        private boolean readRequest(InputStream in) throws IOException {
+            int matched = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if ((b == '\r' && (matched % 2 == 0)) || (b == '\n' && (matched % 2 == 1))) {
+                    matched += 1;
+                    if (matched == 4) {
+                        return true;
+                    }
+                } else {
+                    matched = 0;
+                }
+            }
+
+            return false;
+        }
+
+        public void close() throws IOException {
+            _serverSocket.close();
+            synchronized (_sockets) {
+                for (Socket socket : _sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static NioHttpRequest makeRequest(InetSocketAddress address) {
+        return new NioHttpRequest("http://localhost/", address, REQUEST, 0, 30 * 1000, 30 * 1000);
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        FixedServer server = new FixedServer(null);
+        NioHttpEngine engine = new NioHttpEngine(1);
+
+        try {
+            NioHttpRequest request = makeRequest(server.getAddress());
+            engine.execute(request);
+
+            long startTime = System.currentTimeMillis();
+            Exception failure = request.waitForCompletion(200);
+            assertTrue(failure instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - startTime < 5000);
+
+            // The I/O thread cleans up the cancelled request.
+            long endTime = System.currentTimeMillis() + 5000;
+            while ((engine.getNumRequests() > 0) && (System.currentTimeMillis() < endTime)) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, engine.getNumRequests());
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testDeadIoThreadFailsRequests() throws Exception {
+        FixedServer server = new FixedServer("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\nHello");
+        NioHttpEngine engine = new NioHttpEngine(1);
+
+        try {
+            // Kill the I/O thread with an Error, which it doesn't catch.
+            NioHttpRequest request = new NioHttpRequest("http://localhost/", server.getAddress(), REQUEST, 0, 30 * 1000, 30 * 1000) {
+
+                @Override
+                protected int getTargetLength(String contentType) throws Exception {
+                    throw new Error("Killing the I/O thread");
+                }
+            };
+
+            engine.execute(request);
+            assertTrue(request.waitForCompletion(5000) instanceof IOException);
+
+            // Later requests fail right away, versus waiting for a dead thread.
+            request = makeRequest(server.getAddress());
+            engine.execute(request);
+
+            long startTime = System.currentTimeMillis();
+            Exception failure = request.waitForCompletion(5000);
+            assertTrue(failure instanceof IOException);
+            assertFalse(failure instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - startTime < 1000);
+            assertEquals(0, engine.getNumRequests());
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        KeepAliveServer server = new KeepAliveServer(Integer.MAX_VALUE);
+        NioHttpEngine engine = new NioHttpEngine(1, 10, 30 * 1000);
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                NioHttpRequest request = new NioHttpRequest("http://localhost/", server.getAddress(), "localhost", KEEP_ALIVE_REQUEST, 0, 30 * 1000, 30 * 1000);
+                request.setKeepAlive(true);
+                engine.execute(request);
+
+                assertNull(request.waitForCompletion(5000));
+                assertEquals("Hello", new String(request.getContent(), "ISO-8859-1"));
+            }
+
+            assertEquals(1, server.getNumConnections());
+            assertEquals(1, engine.getNumConnectionsOpened());
+            assertEquals(2, engine.getNumConnectionsReused());
+            assertEquals(1, engine.getNumIdleConnections());
+
+            // A request that doesn't want keep-alive still uses the idle connection, but then
+            // the connection is closed once it's done.
+            NioHttpRequest request = new NioHttpRequest("http://localhost/", server.getAddress(), "localhost", REQUEST, 0, 30 * 1000, 30 * 1000);
+            engine.execute(request);
+            assertNull(request.waitForCompletion(5000));
+            assertEquals(1, server.getNumConnections());
+            assertEquals(3, engine.getNumConnectionsReused());
+            assertEquals(0, engine.getNumIdleConnections());
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRetryWhenIdleConnectionWasClosed() throws Exception {
+        // The server closes the connection when it gets a second request on it, which is
+        // what happens when it times out an idle connection just as we reuse it.
+        KeepAliveServer server = new KeepAliveServer(1);
+        NioHttpEngine engine = new NioHttpEngine(1, 10, 30 * 1000);
+
+        try {
+            for (int i = 0; i < 2; i++) {
+                NioHttpRequest request = new NioHttpRequest("http://localhost/", server.getAddress(), "localhost", KEEP_ALIVE_REQUEST, 0, 30 * 1000, 30 * 1000);
+                request.setKeepAlive(true);
+                engine.execute(request);
+
+                assertNull(request.waitForCompletion(5000));
+                assertEquals("Hello", new String(request.getContent(), "ISO-8859-1"));
+            }
+
+            assertEquals(2, server.getNumConnections());
+            assertEquals(2, engine.getNumConnectionsOpened());
+            assertEquals(1, engine.getNumConnectionsReused());
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionTimeout() throws Exception {
+        KeepAliveServer server = new KeepAliveServer(Integer.MAX_VALUE);
+        NioHttpEngine engine = new NioHttpEngine(1, 10, 200);
+
+        try {
+            NioHttpRequest request = new NioHttpRequest("http://localhost/", server.getAddress(), "localhost", KEEP_ALIVE_REQUEST, 0, 30 * 1000, 30 * 1000);
+            request.setKeepAlive(true);
+            engine.execute(request);
+            assertNull(request.waitForCompletion(5000));
+            assertEquals(1, engine.getNumIdleConnections());
+
+            long endTime = System.currentTimeMillis() + 5000;
+            while ((engine.getNumIdleConnections() > 0) && (System.currentTimeMillis() < endTime)) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, engine.getNumIdleConnections());
+        } finally {
+            engine.close();
+            server.close();
+        }
+    }
+}
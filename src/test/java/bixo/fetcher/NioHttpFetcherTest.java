@@ -0,0 +1,360 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.*;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+import org.mortbay.http.HttpServer;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.dns.BaseHostResolver;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.fetcher.simulation.SimulationWebServer;
+import bixo.utils.ConfigUtils;
+
+public class NioHttpFetcherTest extends SimulationWebServer {
+
+    @Test
+    public final void testConnectionRefused() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8088/simple-page.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testSimpleFetch() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals(url, result.getBaseUrl());
+        assertEquals(url, result.getFetchedUrl());
+        assertEquals("text/html", result.getHeaders().getFirst(HttpHeaderNames.CONTENT_TYPE));
+        assertEquals("127.0.0.1", result.getHostAddress());
+        assertTrue(result.getContentLength() > 0);
+    }
+
+    @Test
+    public final void testSameContentAsSimpleHttpFetcher() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        String url = "http://localhost:8089/karlie.html";
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxContentSize(1000);
+        FetchedDatum simpleResult = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT).get(new ScoredUrlDatum(url));
+        FetchedDatum nioResult = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT).get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals(simpleResult.getContentLength(), nioResult.getContentLength());
+        byte[] bytes1 = simpleResult.getContentBytes();
+        byte[] bytes2 = nioResult.getContentBytes();
+        for (int i = 0; i < simpleResult.getContentLength(); i++) {
+            assertEquals(bytes1[i], bytes2[i]);
+        }
+    }
+
+    @Test
+    public final void testLargeContent() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        HttpServer server = startServer(new RandomResponseHandler(policy.getMaxContentSize() * 2), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals("Content size should be truncated", policy.getMaxContentSize(), result.getContentLength());
+    }
+
+    @Test
+    public final void testSlowServerTermination() throws Exception {
+        // 20K bytes over 2 seconds is 10K bytes/sec.
+        HttpServer server = startServer(new RandomResponseHandler(20000, 2 * 1000L), 8089);
+
+        // Set up for a minimum response rate of 20000 bytes/second.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(20000);
+
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.SLOW_RESPONSE_RATE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testNotTerminatingSlowServers() throws Exception {
+        // Return 1K bytes at 2K bytes/second - would normally trigger an
+        // error.
+        HttpServer server = startServer(new RandomResponseHandler(1000, 500), 8089);
+
+        // Set up for no minimum response rate.
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals(1000, result.getContentLength());
+    }
+
+    @Test
+    public final void testRequestTimeout() throws Exception {
+        // 20K bytes over 2 seconds, with no min response rate, so only the request timeout stops it.
+        HttpServer server = startServer(new RandomResponseHandler(20000, 2 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+        policy.setRequestTimeout(500);
+
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    @Test
+    public final void testHostResolver() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setHostResolver(new BaseHostResolver() {
+
+            @Override
+            public String resolve(String hostname) throws UnknownHostException {
+                if (hostname.equals("bixo-test-host")) {
+                    return "127.0.0.1";
+                } else {
+                    throw new UnknownHostException(hostname);
+                }
+            }
+        });
+
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://bixo-test-host:8089/simple-page.html"));
+            assertEquals("127.0.0.1", result.getHostAddress());
+            assertTrue(result.getContentLength() > 0);
+
+            try {
+                fetcher.get(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+                fail("Exception not thrown");
+            } catch (IOFetchException e) {
+                assertTrue(e.getCause() instanceof UnknownHostException);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testHttpError() throws Exception {
+        HttpServer server = startServer(new FixedStatusResponseHandler(HttpStatus.SC_NOT_FOUND), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/missing.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (HttpFetchException e) {
+            assertEquals(HttpStatus.SC_NOT_FOUND, e.getHttpStatus());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testTempRedirectHandling() throws Exception {
+        HttpServer server = startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+        ScoredUrlDatum scoredUrl = new ScoredUrlDatum(url);
+        scoredUrl.setPayloadValue("payload-field-1", 1);
+        FetchedDatum result = fetcher.get(scoredUrl);
+        server.stop();
+
+        assertEquals("Redirected URL", "http://localhost:8089/redirect", result.getFetchedUrl());
+        assertNull(result.getNewBaseUrl());
+        assertEquals(1, result.getNumRedirects());
+        assertEquals(1, result.getPayloadValue("payload-field-1"));
+        assertEquals("redirected content", new String(result.getContentBytes(), 0, result.getContentLength()));
+    }
+
+    @Test
+    public final void testRedirectPolicy() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRedirectMode(RedirectMode.FOLLOW_NONE);
+        HttpServer server = startServer(new RedirectResponseHandler("/base", "http://localhost:8089/redirect"), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("Redirected URL", "http://localhost:8089/redirect", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED, e.getReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMimeTypeFiltering() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/html");
+        policy.setValidMimeTypes(validMimeTypes);
+
+        HttpServer server = startServer(new StringResponseHandler("text/xml", "<test/>"), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Fetch should have failed");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testAsyncFetch() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        assertTrue(fetcher.isAsync());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Object> results = new ArrayList<Object>();
+        IFetchCallback callback = new IFetchCallback() {
+
+            @Override
+            public void fetched(FetchedDatum result) {
+                results.add(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(BaseFetchException e) {
+                results.add(e);
+                latch.countDown();
+            }
+        };
+
+        try {
+            fetcher.getAsync(new ScoredUrlDatum("http://localhost:8089/simple-page.html"), true, callback);
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(1, results.size());
+            assertTrue(((FetchedDatum)results.get(0)).getContentLength() > 0);
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testKeepAlive() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url), false);
+            fetcher.get(new ScoredUrlDatum(url), false);
+            fetcher.get(new ScoredUrlDatum(url), true);
+            assertEquals(1, fetcher.getNumConnectionsOpened());
+            assertEquals(2, fetcher.getNumConnectionsReused());
+
+            // Once the fetcher has been closed, it can still be used.
+            fetcher.close();
+            assertTrue(fetcher.get(new ScoredUrlDatum(url)).getContentLength() > 0);
+        } finally {
+            fetcher.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testManyConcurrentFetches() throws Exception {
+        final int numFetches = 50;
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        final BaseFetcher fetcher = new NioHttpFetcher(numFetches, ConfigUtils.BIXO_TEST_AGENT);
+        final String url = "http://localhost:8089/simple-page.html";
+        final int expectedLength = fetcher.get(new ScoredUrlDatum(url)).getContentLength();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numFetches; i++) {
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+                        assertEquals(expectedLength, result.getContentLength());
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        server.stop();
+        assertTrue("Errors: " + errors, errors.isEmpty());
+    }
+}
@@ -1,8 +1,11 @@
 package bixo.fetcher;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -20,8 +23,11 @@ import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.RedirectMode;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlDatum;
+import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
@@ -98,6 +104,21 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    @SuppressWarnings("serial")
+    private class HostResponseHandler extends AbstractHttpHandler {
+        
+        @Override
+        public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+            String content = request.getHost() + pathInContext;
+            
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
     @SuppressWarnings("serial")
     private class MimeTypeResponseHandler extends AbstractHttpHandler {
         
@@ -120,6 +141,52 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    @SuppressWarnings("serial")
+    private class GzipResponseHandler extends AbstractHttpHandler {
+        
+        private byte[] _compressed;
+        
+        public GzipResponseHandler(byte[] content) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(content);
+            out.close();
+            _compressed = bytes.toByteArray();
+        }
+
+        @Override
+        public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.addField(HttpHeaderNames.CONTENT_ENCODING, "gzip");
+            response.setContentLength(_compressed.length);
+            response.getOutputStream().write(_compressed);
+        }
+    }
+
+    private class ConditionalResponseHandler extends AbstractHttpHandler {
+        
+        private static final String ETAG = "\"v1\"";
+        private static final String LAST_MODIFIED = "Sat, 01 Jan 2011 00:00:00 GMT";
+        
+        @Override
+        public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+            if (ETAG.equals(request.getField(HttpHeaderNames.IF_NONE_MATCH))
+                || LAST_MODIFIED.equals(request.getField(HttpHeaderNames.IF_MODIFIED_SINCE))) {
+                response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+                return;
+            }
+            
+            byte[] content = "unchanged content".getBytes("UTF-8");
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.addField(HttpHeaderNames.ETAG, ETAG);
+            response.addField(HttpHeaderNames.LAST_MODIFIED, LAST_MODIFIED);
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+        }
+    }
+
     @Test
     public final void testConnectionTimeout() throws Exception {
         HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
@@ -230,6 +297,114 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
 
         server.stop();
     }
+
+    @Test
+    public final void testConnectionReuse() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        // Second request should reuse the kept-alive connection, but it also tells the
+        // server to close the connection, so the third request needs a new one.
+        fetcher.get(new ScoredUrlDatum(url), false);
+        fetcher.get(new ScoredUrlDatum(url), true);
+        fetcher.get(new ScoredUrlDatum(url), false);
+        server.stop();
+
+        assertEquals(2, fetcher.getNumConnectionsOpened());
+        assertEquals(1, fetcher.getNumConnectionsReused());
+    }
+
+    @Test
+    public final void testConditionalFetch() throws Exception {
+        HttpServer server = startServer(new ConditionalResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.txt";
+        
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        assertTrue(result.getContentLength() > 0);
+        String etag = result.getHeaders().getFirst(HttpHeaderNames.ETAG);
+        String lastModified = result.getHeaders().getFirst(HttpHeaderNames.LAST_MODIFIED);
+        
+        // With either value from the previous fetch, we should get back a 304 w/no content.
+        ScoredUrlDatum etagDatum = new ScoredUrlDatum(url);
+        etagDatum.setPayloadValue(UrlDatum.ETAG_PAYLOAD_KEY, etag);
+        ScoredUrlDatum lastModifiedDatum = new ScoredUrlDatum(url);
+        lastModifiedDatum.setPayloadValue(UrlDatum.LAST_MODIFIED_PAYLOAD_KEY, lastModified);
+        
+        try {
+            for (ScoredUrlDatum datum : new ScoredUrlDatum[] { etagDatum, lastModifiedDatum }) {
+                try {
+                    fetcher.get(datum);
+                    fail("Exception not thrown");
+                } catch (HttpFetchException e) {
+                    assertEquals(HttpStatus.SC_NOT_MODIFIED, e.getHttpStatus());
+                    assertEquals(UrlStatus.NOT_MODIFIED, e.mapToUrlStatus());
+                }
+            }
+        } finally {
+            server.stop();
+        }
+        
+        // The connection isn't aborted for a 304, so it's still good for the next request.
+        assertEquals(1, fetcher.getNumConnectionsOpened());
+    }
+
+    @Test
+    public final void testGzipContentLimit() throws Exception {
+        byte[] content = new byte[100 * 1000];
+        Arrays.fill(content, (byte)'x');
+        HttpServer server = startServer(new GzipResponseHandler(content), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxContentSize(10000);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.txt";
+        
+        // The compressed size is way under the limit, but the max content size applies to
+        // what we get after decoding.
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        assertEquals(10000, result.getContentLength());
+        assertTrue(result.isTruncated());
+        
+        policy.setMaxContentSize(content.length);
+        fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals(content.length, result.getContentLength());
+        assertFalse(result.isTruncated());
+    }
+    
+    @Test
+    public final void testContentBufferAllocation() throws Exception {
+        byte[] content = new byte[100 * 1000];
+        Arrays.fill(content, (byte)'x');
+        HttpServer server = startServer(new GzipResponseHandler(content), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxContentSize(content.length);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/test.txt";
+
+        // We don't know the decoded length up front, so the first fetch might need to set up
+        // this thread's read buffer. After that, all we allocate is the returned content.
+        fetcher.get(new ScoredUrlDatum(url));
+        long allocated = fetcher.getNumContentBytesAllocated();
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+        
+        assertEquals(content.length, result.getContentLength());
+        assertEquals(content.length, fetcher.getNumContentBytesAllocated() - allocated);
+        
+        // With a Content-Length, we read directly into the returned content.
+        server = startServer(new ResourcesResponseHandler(), 8089);
+        fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        server.stop();
+        
+        assertEquals(result.getContentLength(), fetcher.getNumContentBytesAllocated());
+    }
     
     @Test
     public final void testLargeHtml() throws Exception {
@@ -415,4 +590,19 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         assertEquals("127.0.0.1", hostAddress);
     }
     
+    @Test
+    public final void testProxy() throws Exception {
+        HttpServer server = startServer(new HostResponseHandler(), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setProxy("localhost", 8089);
+        
+        // The proxy gets the request, so the host doesn't have to exist.
+        String url = "http://www.unknown-bixo-host.com/page.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+        
+        String contentStr = new String(result.getContentBytes(), 0, result.getContentLength());
+        assertEquals("www.unknown-bixo-host.com/page.html", contentStr);
+    }
+    
 }
@@ -0,0 +1,123 @@
+package bixo.operations;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import bixo.cascading.DatumCodec;
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+
+public class FetchSetQueueTest {
+
+    private static class FakeReadyTimes implements FetchSetQueue.IReadyTimes {
+        private Map<String, Long> _readyTimes = new HashMap<String, Long>();
+
+        public void setReadyTime(String ref, long readyTime) {
+            _readyTimes.put(ref, readyTime);
+        }
+
+        @Override
+        public long getReadyTime(String ref) {
+            Long result = _readyTimes.get(ref);
+            return (result == null) ? 0 : result;
+        }
+    }
+
+    private static FetchSetDatum makeSet(String ref, int index) {
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://" + ref + "/page-" + index + ".html"));
+        return new FetchSetDatum(urls, index, 0, ref.hashCode(), ref);
+    }
+
+    private static FetchSetQueue makeQueue(FakeReadyTimes readyTimes, int maxElementsInMemory) {
+        return new FetchSetQueue(new DatumCodec<FetchSetDatum>(FetchSetDatum.class), readyTimes, maxElementsInMemory);
+    }
+
+    @Test
+    public void testReadySetBehindSpilledSets() throws Exception {
+        FakeReadyTimes readyTimes = new FakeReadyTimes();
+        readyTimes.setReadyTime("blocked.com", Long.MAX_VALUE);
+        FetchSetQueue queue = makeQueue(readyTimes, 10);
+
+        // Far more sets for the blocked server than we can keep in memory.
+        for (int i = 0; i < 1000; i++) {
+            queue.add(makeSet("blocked.com", i));
+        }
+
+        queue.add(makeSet("ready.com", 0));
+        assertEquals(1001, queue.size());
+
+        FetchSetDatum datum = queue.removeFirstReady();
+        assertNotNull(datum);
+        assertEquals("ready.com", datum.getGroupingRef());
+
+        assertNull(queue.removeFirstReady());
+        assertEquals(Long.MAX_VALUE, queue.getNextReadyTime());
+
+        // Once the blocked server is ready, we get its sets back in order.
+        readyTimes.setReadyTime("blocked.com", 0);
+        for (int i = 0; i < 1000; i++) {
+            datum = queue.removeFirstReady();
+            assertEquals("blocked.com", datum.getGroupingRef());
+            assertEquals(i, datum.getFetchTime());
+        }
+
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testLongestReadyRefFirst() throws Exception {
+        FakeReadyTimes readyTimes = new FakeReadyTimes();
+        long now = System.currentTimeMillis();
+        readyTimes.setReadyTime("recent.com", now - 1000);
+        readyTimes.setReadyTime("oldest.com", now - 5000);
+        readyTimes.setReadyTime("future.com", now + 100000);
+        FetchSetQueue queue = makeQueue(readyTimes, 100);
+
+        queue.add(makeSet("future.com", 0));
+        queue.add(makeSet("recent.com", 0));
+        queue.add(makeSet("oldest.com", 0));
+        queue.add(makeSet("oldest.com", 1));
+
+        FetchSetDatum datum = queue.removeFirstReady();
+        assertEquals("oldest.com", datum.getGroupingRef());
+        assertEquals(0, datum.getFetchTime());
+        assertEquals(now + 100000, queue.getNextReadyTime());
+
+        // Once we've fetched from a server it's not ready for a while.
+        readyTimes.setReadyTime("oldest.com", Long.MAX_VALUE);
+        assertEquals("recent.com", queue.removeFirstReady().getGroupingRef());
+        assertNull(queue.removeFirstReady());
+        assertEquals(2, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testPollingEverything() throws Exception {
+        FakeReadyTimes readyTimes = new FakeReadyTimes();
+        readyTimes.setReadyTime("blocked1.com", Long.MAX_VALUE);
+        readyTimes.setReadyTime("blocked2.com", Long.MAX_VALUE);
+        FetchSetQueue queue = makeQueue(readyTimes, 10);
+
+        for (int i = 0; i < 50; i++) {
+            queue.add(makeSet("blocked1.com", i));
+            queue.add(makeSet("blocked2.com", i));
+        }
+
+        int numPolled = 0;
+        while (queue.poll() != null) {
+            numPolled += 1;
+        }
+
+        assertEquals(100, numPolled);
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+}
@@ -0,0 +1,152 @@
+package bixo.operations;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import bixo.cascading.BixoFlowProcess;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.ThreadedExecutor;
+
+public class RobotsBatcherTest {
+
+    private static class FakeRobotsTask extends ProcessRobotsTask {
+        private String _domain;
+        private List<String> _log;
+        private CountDownLatch _latch;
+
+        public FakeRobotsTask(String domain, List<String> log, CountDownLatch latch) {
+            super(domain, null, null, null, null, null, null, null, null);
+
+            _domain = domain;
+            _log = log;
+            _latch = latch;
+        }
+
+        @Override
+        public void run() {
+            _log.add("start " + _domain);
+
+            try {
+                if (_latch != null) {
+                    _latch.await();
+                }
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+
+            _log.add("end " + _domain);
+        }
+
+        @Override
+        public void defer() {
+            _log.add("defer " + _domain);
+        }
+    }
+
+    @Test
+    public void testSameServerIsSerialized() throws Exception {
+        ThreadedExecutor executor = new ThreadedExecutor(10, 1000);
+        BixoFlowProcess process = new BixoFlowProcess();
+        RobotsBatcher batcher = new RobotsBatcher(executor, process);
+
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        batcher.execute("192.168.1.1", new FakeRobotsTask("http://domain1.com", log, latch));
+        batcher.execute("192.168.1.1", new FakeRobotsTask("http://domain2.com", log, null));
+        batcher.execute("192.168.1.2", new FakeRobotsTask("http://domain3.com", log, null));
+
+        assertEquals(1, process.getCounter(FetchCounters.DOMAINS_BATCHED));
+
+        // domain3 is on a different server, so it doesn't have to wait for domain1.
+        while (batcher.getNumPending() > 2) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(log.contains("end http://domain3.com"));
+        assertFalse(log.contains("start http://domain2.com"));
+
+        latch.countDown();
+        assertTrue(batcher.waitForIdle(1000));
+        assertEquals(0, batcher.getNumPending());
+
+        assertTrue(log.indexOf("end http://domain1.com") < log.indexOf("start http://domain2.com"));
+        assertTrue(executor.terminate(1000));
+    }
+
+    @Test
+    public void testAbortPending() throws Exception {
+        ThreadedExecutor executor = new ThreadedExecutor(10, 1000);
+        RobotsBatcher batcher = new RobotsBatcher(executor, new BixoFlowProcess());
+
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        batcher.execute("192.168.1.1", new FakeRobotsTask("http://domain1.com", log, latch));
+        batcher.execute("192.168.1.1", new FakeRobotsTask("http://domain2.com", log, null));
+
+        assertFalse(batcher.waitForIdle(100));
+        assertEquals(1, batcher.abortPending());
+        assertTrue(log.contains("defer http://domain2.com"));
+
+        latch.countDown();
+        assertTrue(batcher.waitForIdle(1000));
+        assertFalse(log.contains("start http://domain2.com"));
+        assertTrue(executor.terminate(1000));
+    }
+
+    @Test
+    public void testManyDomainsOnOneServer() throws Exception {
+        ThreadedExecutor executor = new ThreadedExecutor(20, 1000);
+        BixoFlowProcess process = new BixoFlowProcess();
+        RobotsBatcher batcher = new RobotsBatcher(executor, process, 3, 5);
+
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        for (int i = 0; i < 20; i++) {
+            batcher.execute("192.168.1.1", new FakeRobotsTask("http://domain" + i + ".com", log, latch));
+        }
+
+        // Three threads for the server, five tasks waiting for them, and the rest running
+        // on their own threads, so nothing gets deferred.
+        assertEquals(20, batcher.getNumPending());
+        assertEquals(5, process.getCounter(FetchCounters.DOMAINS_BATCHED));
+        assertEquals(12, process.getCounter(FetchCounters.DOMAINS_UNBATCHED));
+
+        long endTime = System.currentTimeMillis() + 1000;
+        while ((countEntries(log, "start ") < 15) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(15, countEntries(log, "start "));
+        for (int i = 3; i < 8; i++) {
+            assertFalse(log.contains("start http://domain" + i + ".com"));
+        }
+
+        latch.countDown();
+        assertTrue(batcher.waitForIdle(1000));
+        assertEquals(20, countEntries(log, "end "));
+        assertEquals(0, countEntries(log, "defer "));
+        assertTrue(executor.terminate(1000));
+    }
+
+    private static int countEntries(List<String> log, String prefix) {
+        int result = 0;
+        synchronized (log) {
+            for (String entry : log) {
+                if (entry.startsWith(prefix)) {
+                    result += 1;
+                }
+            }
+        }
+
+        return result;
+    }
+}
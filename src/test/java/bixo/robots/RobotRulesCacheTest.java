@@ -0,0 +1,135 @@
+package bixo.robots;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import bixo.robots.SimpleRobotRules.RobotRulesMode;
+
+public class RobotRulesCacheTest {
+
+    private static BaseRobotRules createRobotRules(String robotsTxt) {
+        SimpleRobotRulesParser robotParser = new SimpleRobotRulesParser();
+        return robotParser.parseContent("http://domain.com", robotsTxt.getBytes(), "text/plain", "Any-darn-crawler");
+    }
+
+    @Test
+    public void testGetAndPut() {
+        RobotRulesCache cache = new RobotRulesCache();
+        assertNull(cache.get("http://domain.com"));
+
+        BaseRobotRules rules = createRobotRules("User-agent: *\nDisallow: /foo\n");
+        cache.put("http://domain.com", rules);
+        assertSame(rules, cache.get("http://domain.com"));
+        assertNull(cache.get("http://other-domain.com"));
+
+        assertEquals(1, cache.getNumHits());
+        assertEquals(2, cache.getNumMisses());
+    }
+
+    @Test
+    public void testDeferredRulesUseShorterTtl() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(RobotRulesCache.DEFAULT_TTL, 0);
+
+        BaseRobotRules deferred = new SimpleRobotRules(RobotRulesMode.ALLOW_NONE);
+        deferred.setDeferVisits(true);
+        cache.put("http://domain.com", deferred);
+        assertNull("Deferred rules shouldn't be cached", cache.get("http://domain.com"));
+
+        cache = new RobotRulesCache(RobotRulesCache.DEFAULT_TTL, 10);
+        cache.put("http://domain.com", deferred);
+        cache.put("http://other-domain.com", new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+        Thread.sleep(50);
+        assertNull("Deferred rules should have expired", cache.get("http://domain.com"));
+        assertNotNull(cache.get("http://other-domain.com"));
+    }
+
+    @Test
+    public void testReadWriteCache() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache();
+        cache.put("http://domain.com", createRobotRules("User-agent: *\nDisallow: /foo\n"));
+        cache.put("http://other-domain.com", new SimpleRobotRules(RobotRulesMode.ALLOW_NONE));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, cache.writeCache(out));
+
+        RobotRulesCache newCache = new RobotRulesCache();
+        assertEquals(2, newCache.readCache(new ByteArrayInputStream(out.toByteArray())));
+
+        BaseRobotRules rules = newCache.get("http://domain.com");
+        assertNotNull(rules);
+        assertFalse(rules.isAllowed("http://domain.com/foo/bar.html"));
+        assertTrue(rules.isAllowed("http://domain.com/bar.html"));
+
+        rules = newCache.get("http://other-domain.com");
+        assertNotNull(rules);
+        assertFalse(rules.isAllowed("http://other-domain.com/bar.html"));
+    }
+
+    @Test
+    public void testExpiredEntriesNotWritten() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(10, 10);
+        cache.put("http://domain.com", new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+        Thread.sleep(50);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, cache.writeCache(out));
+
+        RobotRulesCache newCache = new RobotRulesCache();
+        assertEquals(0, newCache.readCache(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(0, newCache.getCacheSize());
+    }
+
+    @Test
+    public void testOnlyOwnedEntriesWritten() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache();
+        cache.put("http://domain.com", new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writeCache(out);
+
+        RobotRulesCache newCache = new RobotRulesCache();
+        assertEquals(1, newCache.readCache(new ByteArrayInputStream(out.toByteArray()), false));
+        assertNotNull(newCache.get("http://domain.com"));
+        assertEquals(0, newCache.writeCache(new ByteArrayOutputStream()));
+
+        newCache.put("http://other-domain.com", new SimpleRobotRules(RobotRulesMode.ALLOW_NONE));
+        assertEquals(1, newCache.writeCache(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testSavedCacheDoesNotGrow() throws Exception {
+        File cacheDir = new File("build/test/RobotRulesCacheTest/testSavedCacheDoesNotGrow");
+        FileUtils.deleteDirectory(cacheDir);
+
+        // Each loop, every task loads all of the files, fetches rules for its own domain, and saves.
+        for (int loop = 0; loop < 3; loop++) {
+            for (int partition = 0; partition < 2; partition++) {
+                JobConf conf = new JobConf();
+                conf.setInt("mapred.task.partition", partition);
+
+                RobotRulesCache cache = new RobotRulesCache();
+                cache.setCacheDir(cacheDir.getAbsolutePath());
+                cache.loadCache(conf);
+
+                String key = "http://domain" + partition + ".com";
+                if (cache.get(key) == null) {
+                    cache.put(key, new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+                }
+
+                assertEquals(1, cache.saveCache(conf));
+            }
+        }
+
+        JobConf conf = new JobConf();
+        conf.setInt("mapred.task.partition", 2);
+        RobotRulesCache cache = new RobotRulesCache();
+        cache.setCacheDir(cacheDir.getAbsolutePath());
+        assertEquals(2, cache.loadCache(conf));
+    }
+}
@@ -0,0 +1,77 @@
+package bixo.robots;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RobotRulesMatcherTest {
+
+    private static RobotRulesMatcher makeMatcher(String... rules) {
+        List<String> patterns = new ArrayList<String>();
+        List<Boolean> allows = new ArrayList<Boolean>();
+        for (String rule : rules) {
+            allows.add(rule.startsWith("allow:"));
+            patterns.add(rule.substring(rule.indexOf(':') + 1));
+        }
+        
+        return new RobotRulesMatcher(patterns, allows);
+    }
+    
+    @Test
+    public void testNoRules() {
+        RobotRulesMatcher matcher = makeMatcher();
+        assertTrue(matcher.isAllowed("/"));
+        assertTrue(matcher.isAllowed("/anypage.html"));
+    }
+    
+    @Test
+    public void testPrefixRules() {
+        RobotRulesMatcher matcher = makeMatcher("disallow:/org/plans.html", "allow:/org/", "disallow:/");
+        assertFalse(matcher.isAllowed("/"));
+        assertTrue(matcher.isAllowed("/org/about.html"));
+        assertFalse(matcher.isAllowed("/org/plans.html"));
+        assertFalse(matcher.isAllowed("/orgo.gif"));
+    }
+    
+    @Test
+    public void testAllowWinsTies() {
+        RobotRulesMatcher matcher = makeMatcher("disallow:/page", "allow:/page");
+        assertTrue(matcher.isAllowed("/page.html"));
+        
+        matcher = makeMatcher("disallow:/*.html", "allow:/pa*tml");
+        assertTrue(matcher.isAllowed("/page.html"));
+    }
+    
+    @Test
+    public void testWildcards() {
+        RobotRulesMatcher matcher = makeMatcher("disallow:/*/private/*.gif$", "disallow:*session=");
+        assertFalse(matcher.isAllowed("/a/b/private/c/logo.gif"));
+        assertTrue(matcher.isAllowed("/a/b/private/c/logo.gif?x=1"));
+        assertTrue(matcher.isAllowed("/private/logo.gif"));
+        assertFalse(matcher.isAllowed("/index.html?session=abc"));
+        assertTrue(matcher.isAllowed("/index.html"));
+    }
+    
+    @Test
+    public void testTrailingWildcard() {
+        RobotRulesMatcher matcher = makeMatcher("disallow:/foo*", "disallow:/bar**$", "disallow:/baz$");
+        assertFalse(matcher.isAllowed("/foo"));
+        assertFalse(matcher.isAllowed("/foobar.html"));
+        assertFalse(matcher.isAllowed("/bar/index.html"));
+        assertFalse(matcher.isAllowed("/baz"));
+        assertTrue(matcher.isAllowed("/baz/index.html"));
+    }
+    
+    @Test
+    public void testLongerWildcardBeatsPrefix() {
+        RobotRulesMatcher matcher = makeMatcher("allow:/shop/", "disallow:/shop/*?sort=");
+        assertTrue(matcher.isAllowed("/shop/shoes"));
+        assertFalse(matcher.isAllowed("/shop/shoes?sort=price"));
+        
+        matcher = makeMatcher("disallow:/shop/", "allow:/*.js");
+        assertFalse(matcher.isAllowed("/shop/main.js"));
+    }
+}
@@ -5,7 +5,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.Arrays;
@@ -37,8 +39,7 @@ public class SimpleRobotRulesParserTest {
         assertTrue(rules.isAllowed("http://www.domain.com/anypage.html"));
     }
     
-    // TODO - reenable this test when wildcards (the '*' in the disallow) are supported.
-    // @Test
+    @Test
     public void testQueryParamInDisallow() throws Exception {
         final String simpleRobotsTxt = "User-agent: *" + CRLF
         + "Disallow: /index.cfm?fuseaction=sitesearch.results*";
@@ -47,6 +48,36 @@ public class SimpleRobotRulesParserTest {
         assertFalse(rules.isAllowed("http://searchservice.domain.com/index.cfm?fuseaction=sitesearch.results&type=People&qry=california&pg=2"));
     }
     
+    @Test
+    public void testLongestMatch() throws MalformedURLException {
+        // Rule order shouldn't matter - the longest matching rule wins.
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /" + CRLF
+        + "Allow: /images/" + CRLF
+        + "Disallow: /images/private/";
+
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/index.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/images/logo.gif"));
+        assertFalse(rules.isAllowed("http://www.domain.com/images/private/logo.gif"));
+    }
+    
+    @Test
+    public void testWildcardsInRules() throws MalformedURLException {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /*.php$" + CRLF
+        + "Disallow: /*/print/" + CRLF
+        + "Allow: /public/*.php$";
+
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/index.php"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.php?page=2"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.phpx"));
+        assertTrue(rules.isAllowed("http://www.domain.com/public/index.php"));
+        assertFalse(rules.isAllowed("http://www.domain.com/news/print/story.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/news/story.html"));
+    }
+    
     @Test
     public void testCommentedOutLines() throws MalformedURLException {
         final String simpleRobotsTxt =  "#user-agent: testAgent" + LF
@@ -702,6 +733,91 @@ public class SimpleRobotRulesParserTest {
         assertFalse("many-user-agents", rules.isAllowed("http://domain.com/bot-trap/"));
     }
     
+    @Test
+    public void testSitemapCaseIsPreserved() throws Exception {
+        BaseRobotRules rules = createRobotRules("bot1", readFile("/robots/mixed-case-robots.txt"));
+        assertEquals("http://www.Domain.com/SiteMap.xml", rules.getSitemaps().get(0));
+    }
+    
+    @Test
+    public void testHugeRobotsFile() throws Exception {
+        // Valid rules, followed by megabytes of garbage, followed by a rule that we
+        // never get to because it's past the max parse size.
+        StringBuilder robotsTxt = new StringBuilder("User-agent: *" + LF + "Disallow: /private/" + LF);
+        while (robotsTxt.length() < SimpleRobotRulesParser.MAX_PARSE_BYTES * 4) {
+            robotsTxt.append("<<<garbage:garbage ### garbage>>> garbage garbage garbage garbage" + LF);
+        }
+        robotsTxt.append("Disallow: /");
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", robotsTxt.toString().getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/private/index.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.html"));
+    }
+    
+    @Test
+    public void testHugeRobotsFileWithoutLineBreaks() throws Exception {
+        // Everything is on one line, so we should parse what we can versus ignoring it all.
+        StringBuilder robotsTxt = new StringBuilder("Sitemap: http://www.domain.com/sitemap.xml");
+        while (robotsTxt.length() < SimpleRobotRulesParser.MAX_PARSE_BYTES * 2) {
+            robotsTxt.append("          ");
+        }
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", robotsTxt.toString().getBytes());
+        assertEquals(1, rules.getSitemaps().size());
+        assertEquals("http://www.domain.com/sitemap.xml", rules.getSitemaps().get(0));
+    }
+    
+    @Test(timeout = 10000)
+    public void testHtmlLineWithUnclosedTags() throws Exception {
+        // A long line full of '<' without a matching '>' shouldn't take forever to strip.
+        StringBuilder robotsTxt = new StringBuilder("User-agent: *" + LF);
+        while (robotsTxt.length() < SimpleRobotRulesParser.MAX_PARSE_BYTES / 2) {
+            robotsTxt.append("<<<<<<<<<<");
+        }
+        
+        robotsTxt.append(LF + "Disallow: /private/<br>" + LF);
+        
+        SimpleRobotRulesParser robotParser = new SimpleRobotRulesParser();
+        BaseRobotRules rules = robotParser.parseContent(FAKE_ROBOTS_URL, robotsTxt.toString().getBytes(), "text/html", "Any-darn-crawler");
+        assertFalse(rules.isAllowed("http://www.domain.com/private/index.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/index.html"));
+    }
+    
+    @Test
+    public void testRegressionCorpus() throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(SimpleRobotRulesParserTest.class.getResourceAsStream("/robots/corpus-expected.txt"), "UTF-8"));
+        String curFile = null;
+        String curAgent = null;
+        BaseRobotRules rules = null;
+        int numChecked = 0;
+        
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            
+            String[] fields = line.split("\t");
+            if (!fields[0].equals(curFile) || !fields[1].equals(curAgent)) {
+                curFile = fields[0];
+                curAgent = fields[1];
+                rules = createRobotRules(curAgent, readFile("/robots/" + curFile));
+            }
+            
+            String context = curFile + " for " + curAgent + ": " + fields[2];
+            if (fields[2].equals("crawl-delay")) {
+                assertEquals(context, Long.parseLong(fields[3]), rules.getCrawlDelay());
+            } else {
+                assertEquals(context, Boolean.parseBoolean(fields[3]), rules.isAllowed("http://domain.com" + fields[2]));
+            }
+            
+            numChecked += 1;
+        }
+        
+        reader.close();
+        assertTrue(numChecked > 0);
+    }
+    
     private byte[] readFile(String filename) throws Exception {
         byte[] bigBuffer = new byte[100000];
         InputStream is = SimpleRobotRulesParserTest.class.getResourceAsStream(filename);
@@ -1,5 +1,11 @@
 package bixo.urls;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -387,4 +393,48 @@ public class SimpleUrlNormalizerTest {
         normalizeTest("http://www.domain.com", "http://www.domain.com/", "Add trailing slash");
         normalizeTest("www.pondliner.com", "http://www.pondliner.com/", "Add trailing slash even if no protocol");
     }
+    
+    @Test
+    public void testSameResultsAsRegexNormalizer() throws Exception {
+        List<String> urls = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(SimpleUrlNormalizerTest.class.getResourceAsStream("/sample-urls.txt"), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            urls.add(line);
+        }
+        
+        reader.close();
+        
+        // Mess up the sample URLs with the kinds of things that the normalizer handles.
+        final String[] suffixes = {
+            ";jsessionid=ABC123", ";jsessionid=x?q=1", "?sid=1", "?PHPSESSID=x&q=2", "?q=1&session_key=y#frag",
+            "?q=1&Sort=desc&user=bob", "?usr=1&memberid=2", "?user_id=1", "?q=a+b&&z=%zz", "#url=http%3A%2F%2Fa.com",
+            "/#q=1&r=2", "/../", "/./x/../y/../../z", "/index.html", "/Default.ASPX?x=1", "/index.jspx#top",
+            "/index.php7", "/default.shtml&a", "/%e2%82%ac/%C3%A9", "/caf\u00e9/\u20ac?k=\u00fc", "/\ud83d\ude00?q=\ud83d",
+            "?q=%", "?q=%4", "?a=%%41", "/a%2fb/", "?a==b=&c=", ":8080", ".:81", "?sid=1\u2028", "?x=1&sid=2\r\n", "\u0085",
+            "?width=10#q", "?q=\u007f\u0001"
+        };
+        
+        Random rand = new Random(1L);
+        int numUrls = urls.size();
+        for (int i = 0; i < numUrls; i++) {
+            String url = urls.get(i);
+            for (int j = 0; j < 3; j++) {
+                String suffix = suffixes[rand.nextInt(suffixes.length)];
+                String mutated = rand.nextBoolean() ? url + suffix : url.replaceFirst("/", "/" + suffix.substring(1));
+                urls.add(rand.nextBoolean() ? mutated : mutated.toUpperCase());
+            }
+        }
+        
+        for (boolean treatRefAsQuery : new boolean[] { false, true }) {
+            for (boolean isAggressive : new boolean[] { false, true }) {
+                SimpleUrlNormalizer normalizer = new SimpleUrlNormalizer(treatRefAsQuery, isAggressive);
+                RegexUrlNormalizer oldNormalizer = new RegexUrlNormalizer(treatRefAsQuery, isAggressive);
+                
+                for (String url : urls) {
+                    Assert.assertEquals(url, oldNormalizer.normalize(url), normalizer.normalize(url));
+                }
+            }
+        }
+    }
 }
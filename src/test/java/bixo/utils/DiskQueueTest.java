@@ -6,10 +6,14 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
 
+import bixo.cascading.DatumCodec;
 import bixo.datum.ContentBytes;
 import bixo.datum.FetchedDatum;
 import bixo.datum.HttpHeaders;
@@ -149,8 +153,214 @@ public class DiskQueueTest {
     @Test
     public void testGettingBackWhatWasWritten() {
         final int numElements = 100;
-        DiskQueue<FetchedDatum> queue = new DiskQueue<FetchedDatum>(numElements/10);
+        checkGettingBackWhatWasWritten(new DiskQueue<FetchedDatum>(numElements/10), numElements);
+    }
+    
+    @Test
+    public void testGettingBackWhatWasWrittenWithDatumCodec() {
+        final int numElements = 100;
+        DatumCodec<FetchedDatum> codec = new DatumCodec<FetchedDatum>(FetchedDatum.class);
+        checkGettingBackWhatWasWritten(new DiskQueue<FetchedDatum>(numElements/10, codec), numElements);
+        
+        // Use tiny segments, so that we're constantly creating new files.
+        checkGettingBackWhatWasWritten(new DiskQueue<FetchedDatum>(numElements/10, codec, 100), numElements);
+    }
+    
+    @Test
+    public void testMultipleSegments() {
+        // Force a new segment file for every element that spills to disk.
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new SerializableCodec<Integer>(), 1);
+        int readIndex = 0;
+        int writeIndex = 0;
+        
+        Random rand = new Random(137);
+        
+        for (int i = 0; i < 1000; i++) {
+            if ((readIndex < writeIndex) && (rand.nextInt(10) < 4)) {
+                assertEquals(readIndex, queue.remove().intValue());
+                readIndex += 1;
+            } else {
+                assertTrue(queue.offer(new Integer(writeIndex)));
+                writeIndex += 1;
+            }
+            
+            assertEquals(writeIndex - readIndex, queue.size());
+        }
+        
+        while (readIndex < writeIndex) {
+            assertEquals(readIndex, queue.remove().intValue());
+            readIndex += 1;
+        }
+        
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testRemovingByIndex() {
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(5, 2, new SerializableCodec<Integer>(), 1);
+        LinkedList<Integer> expected = new LinkedList<Integer>();
+        
+        Random rand = new Random(137);
+        
+        for (int i = 0; i < 10000; i++) {
+            int action = rand.nextInt(3);
+            if (action == 0) {
+                assertTrue(queue.offer(new Integer(i)));
+                expected.add(i);
+            } else if (expected.isEmpty()) {
+                assertNull(queue.poll());
+            } else if (action == 1) {
+                assertEquals(expected.removeFirst(), queue.poll());
+            } else {
+                int numInMemory = 0;
+                while ((numInMemory < 5) && (queue.peek(numInMemory) != null)) {
+                    numInMemory += 1;
+                }
+                
+                int index = rand.nextInt(numInMemory);
+                assertEquals(expected.remove(index), queue.remove(index));
+            }
+            
+            assertEquals(expected.size(), queue.size());
+        }
+    }
+    
+    @Test
+    public void testSharedArena() {
+        final int numQueues = 10;
+        DiskQueueArena arena = new DiskQueueArena(20, 100);
+        
+        List<DiskQueue<Integer>> queues = new ArrayList<DiskQueue<Integer>>();
+        List<LinkedList<Integer>> expected = new ArrayList<LinkedList<Integer>>();
+        for (int i = 0; i < numQueues; i++) {
+            queues.add(new DiskQueue<Integer>(10, new SerializableCodec<Integer>(), arena));
+            expected.add(new LinkedList<Integer>());
+        }
+        
+        Random rand = new Random(137);
+        
+        for (int i = 0; i < 10000; i++) {
+            int queueIndex = rand.nextInt(numQueues);
+            DiskQueue<Integer> queue = queues.get(queueIndex);
+            LinkedList<Integer> values = expected.get(queueIndex);
+            
+            if (rand.nextInt(10) < 4) {
+                assertEquals(values.poll(), queue.poll());
+            } else {
+                assertTrue(queue.offer(new Integer(i)));
+                values.add(i);
+            }
+            
+            assertEquals(values.size(), queue.size());
+            
+            // Each queue can go one over the quota, since it has to be able to load one element.
+            assertTrue(arena.getMemoryElements() <= 20 + numQueues);
+        }
+        
+        assertTrue(arena.getMemoryDenied() > 0);
+        assertTrue(arena.getBytesWritten() > 0);
+        
+        for (int i = 0; i < numQueues; i++) {
+            DiskQueue<Integer> queue = queues.get(i);
+            for (Integer value : expected.get(i)) {
+                assertEquals(value, queue.remove());
+            }
+            
+            assertNull(queue.poll());
+        }
+        
+        // Everything should have been given back to the arena.
+        assertEquals(0, arena.getMemoryElements());
+        assertEquals(0, arena.getBlocksInUse());
+        assertEquals(0, arena.getNumRegions());
+        arena.close();
+    }
+    
+    @Test
+    public void testInterruptedThreadDoesNotBreakArena() throws Exception {
+        DiskQueueArena arena = new DiskQueueArena(1, 100);
+        DiskQueue<Integer> interruptedQueue = new DiskQueue<Integer>(10, new SerializableCodec<Integer>(), arena);
+        DiskQueue<Integer> otherQueue = new DiskQueue<Integer>(10, new SerializableCodec<Integer>(), arena);
+        
+        // Spill to the arena from a thread that's been interrupted, as happens to robots
+        // threads when the executor does a hard shutdown.
+        Thread.currentThread().interrupt();
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(interruptedQueue.offer(new Integer(i)));
+            }
+            
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, interruptedQueue.remove().intValue());
+            }
+        } finally {
+            Thread.interrupted();
+        }
+        
+        // Other queues using the arena should still work.
+        for (int i = 0; i < 100; i++) {
+            assertTrue(otherQueue.offer(new Integer(i)));
+        }
+        
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, otherQueue.remove().intValue());
+        }
+        
+        arena.close();
+    }
+    
+    @Test
+    public void testClosingArenaWithRegionsInUse() throws Exception {
+        DiskQueueArena arena = new DiskQueueArena(1, 100);
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(10, new SerializableCodec<Integer>(), arena);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(new Integer(i)));
+        }
+        
+        assertTrue(arena.getNumRegions() > 0);
+        
+        // A thread that's still using the queue can keep going until it's drained.
+        arena.close();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, queue.remove().intValue());
+        }
+        
+        assertNull(queue.poll());
+        assertEquals(0, arena.getNumRegions());
+        assertEquals(0, arena.getBlocksInUse());
+    }
+    
+    @Test
+    public void testConcurrentReadAndWrite() throws Exception {
+        final int numElements = 100000;
+        final DiskQueue<Integer> queue = new DiskQueue<Integer>(10);
+        
+        Thread writer = new Thread() {
+            
+            @Override
+            public void run() {
+                for (int i = 0; i < numElements; i++) {
+                    queue.offer(new Integer(i));
+                }
+            }
+        };
+        
+        writer.start();
+        
+        int readIndex = 0;
+        while (readIndex < numElements) {
+            Integer value = queue.poll();
+            if (value != null) {
+                assertEquals(readIndex, value.intValue());
+                readIndex += 1;
+            }
+        }
         
+        writer.join();
+        assertNull(queue.poll());
+    }
+    
+    private void checkGettingBackWhatWasWritten(DiskQueue<FetchedDatum> queue, int numElements) {
         FetchedDatum datums[] = new FetchedDatum[numElements];
         for (int i = 0; i < numElements; i++) {
             String baseUrl = "http://domain-" + i + "+.com/index.html";
@@ -1,10 +1,13 @@
 package bixo.utils;
 
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import bixo.dns.BaseHostResolver;
+
 
 public class DomainInfoTest {
 
@@ -24,4 +27,20 @@ public class DomainInfoTest {
         DomainInfo di = new DomainInfo("http://" + domain);
         assertEquals(di.getDomain(), di.getHostAddress());
     }
+    
+    @SuppressWarnings("serial")
+    @Test
+    public void testUsingResolver() throws Exception {
+        BaseHostResolver resolver = new BaseHostResolver() {
+            
+            @Override
+            public String resolve(String hostname) throws UnknownHostException {
+                return "10.0.0.1";
+            }
+        };
+        
+        DomainInfo di = new DomainInfo("http://www.domain.com", resolver);
+        assertEquals("www.domain.com", di.getDomain());
+        assertEquals("10.0.0.1", di.getHostAddress());
+    }
 }
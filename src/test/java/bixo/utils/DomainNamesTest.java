@@ -67,27 +67,30 @@ public class DomainNamesTest extends TestCase {
         
         assertEquals("xxx.co.uk", DomainNames.getPLD("xxx.co.uk"));
         assertEquals("xxx.co.uk", DomainNames.getPLD("www.xxx.co.uk"));
-        assertEquals("xxx.ne.uk", DomainNames.getPLD("www.xxx.ne.uk"));
+        assertEquals("xxx.org.uk", DomainNames.getPLD("www.xxx.org.uk"));
+        
+        // But only the ones that the registry actually uses.
+        assertEquals("ne.uk", DomainNames.getPLD("www.xxx.ne.uk"));
     }
     
-    // Some country codes have no 2nd-level TLDs (even the standard global TLDs)
-    // so you could conceivably register even a global TLD within them.
+    // Some country codes allow registration directly within the country code,
+    // as well as within a few 2nd-level TLDs.
     public final void testAlwaysTLDs() {
         assertEquals("ch.to", DomainNames.getPLD("xxx.ch.to"));
         assertEquals("ch.to", DomainNames.getPLD("www.xxx.ch.to"));
         assertEquals("ne.to", DomainNames.getPLD("www.xxx.ne.to"));
         assertEquals("co.to", DomainNames.getPLD("www.xxx.co.to"));
-        assertEquals("com.to", DomainNames.getPLD("www.xxx.com.to"));
+        assertEquals("xxx.com.to", DomainNames.getPLD("www.xxx.com.to"));
     }
 
-    // Some country codes are completely subdivided into 2nd-level TLDs,
-    // so they'll never register a domain that isn't within one.
+    // Some country codes are subdivided into 2nd-level TLDs, which don't
+    // match the standard global TLDs.
     public final void testNeverTLDs() {
-        assertEquals("xxx.ch.cr", DomainNames.getPLD("xxx.ch.cr"));
-        assertEquals("xxx.ch.cr", DomainNames.getPLD("www.xxx.ch.cr"));
+        assertEquals("xxx.co.cr", DomainNames.getPLD("xxx.co.cr"));
         assertEquals("xxx.co.cr", DomainNames.getPLD("www.xxx.co.cr"));
-        assertEquals("xxx.com.cr", DomainNames.getPLD("www.xxx.com.cr"));
-        assertEquals("xxx.ibm.cr", DomainNames.getPLD("xxx.ibm.cr"));
+        assertEquals("xxx.fi.cr", DomainNames.getPLD("www.xxx.fi.cr"));
+        assertEquals("ch.cr", DomainNames.getPLD("www.xxx.ch.cr"));
+        assertEquals("com.cr", DomainNames.getPLD("www.xxx.com.cr"));
     }
 
     // In Germany you can have xxx.de.com
@@ -96,10 +99,26 @@ public class DomainNamesTest extends TestCase {
         assertEquals("xxx.de.com", DomainNames.getPLD("www.xxx.de.com"));
     }
 
-    // Typical international domains look like xxx.com.it
+    // Typical international domains look like xxx.com.mx
+    public final void testMexicanDomains() {
+        assertEquals("xxx.com.mx", DomainNames.getPLD("xxx.com.mx"));
+        assertEquals("xxx.com.mx", DomainNames.getPLD("www.xxx.com.mx"));
+    }
+
+    // Italy has regional TLDs, but domains are registered directly within .it
     public final void testItalianDomains() {
-        assertEquals("xxx.com.it", DomainNames.getPLD("xxx.com.it"));
-        assertEquals("xxx.com.it", DomainNames.getPLD("www.xxx.com.it"));
+        assertEquals("xxx.sicilia.it", DomainNames.getPLD("www.xxx.sicilia.it"));
+        assertEquals("xxx.gov.it", DomainNames.getPLD("www.xxx.gov.it"));
+        assertEquals("com.it", DomainNames.getPLD("www.xxx.com.it"));
+    }
+    
+    public final void testUnknownTLDs() {
+        assertEquals("www.xxx.zzz", DomainNames.getPLD("www.xxx.zzz"));
+        assertEquals("localhost", DomainNames.getPLD("localhost"));
+    }
+    
+    public final void testMixedCase() {
+        assertEquals("XXX.Co.UK", DomainNames.getPLD("WWW.XXX.Co.UK"));
     }
     
     public final void testSafeGetHost() {
@@ -116,7 +135,7 @@ public class DomainNamesTest extends TestCase {
         assertEquals("subdomain.domain.com", DomainNames.getSuperDomain("subsubdomain.subdomain.domain.com"));
         assertNull(DomainNames.getSuperDomain("domain.com"));
         assertEquals("xxx.de.com", DomainNames.getSuperDomain("www.xxx.de.com"));
-        assertNull(DomainNames.getSuperDomain("xxx.com.it"));
+        assertNull(DomainNames.getSuperDomain("xxx.co.uk"));
     }
     
     public final void testIsUrlWithinDomain() {
@@ -1,6 +1,10 @@
 package bixo.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -54,4 +58,54 @@ public class EncodingUtilsTest {
 //        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
 //                        new String(uncompressed, "us-ascii"));
     }
+    
+    @Test
+    public void testGzipStream() throws Exception {
+        InputStream is = EncodingUtils.getDecodingStream(EncodingUtilsTest.class.getResourceAsStream("/compressed.gz"), "gzip");
+        
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
+                        new String(readAll(is), "us-ascii"));
+    }
+    
+    @Test
+    public void testZlibDeflateStream() throws Exception {
+        // compressed.zip (see testDeflate) has a zlib header, which is what most servers send for "deflate"
+        InputStream is = EncodingUtils.getDecodingStream(EncodingUtilsTest.class.getResourceAsStream("/compressed.zip"), "deflate");
+        
+        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.\n",
+                        new String(readAll(is), "us-ascii"));
+    }
+    
+    @Test
+    public void testRawDeflateStream() throws Exception {
+        String text = "Now is the time for all good men to come to the aid of their country.";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        out.write(text.getBytes("us-ascii"));
+        out.close();
+        
+        InputStream is = EncodingUtils.getDecodingStream(new ByteArrayInputStream(bytes.toByteArray()), "deflate");
+        Assert.assertEquals(text, new String(readAll(is), "us-ascii"));
+    }
+    
+    @Test
+    public void testUnsupportedEncodingStream() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        Assert.assertFalse(EncodingUtils.isSupportedEncoding(null));
+        Assert.assertFalse(EncodingUtils.isSupportedEncoding("identity"));
+        Assert.assertSame(in, EncodingUtils.getDecodingStream(in, null));
+        Assert.assertSame(in, EncodingUtils.getDecodingStream(in, "identity"));
+    }
+    
+    private static byte[] readAll(InputStream is) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        
+        is.close();
+        return out.toByteArray();
+    }
 }
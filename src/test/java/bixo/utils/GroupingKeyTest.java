@@ -1,6 +1,8 @@
 package bixo.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
@@ -32,6 +34,15 @@ public class GroupingKeyTest {
         assertEquals("domain-name.com", GroupingKey.getDomainFromKey("domain-name.com-unset"));
     }
     
+    @Test
+    public void testHasCrawlDelay() {
+        assertTrue(GroupingKey.hasCrawlDelay("192.168.1.1-unset"));
+        assertTrue(GroupingKey.hasCrawlDelay("192.168.1.1-30000"));
+        assertFalse(GroupingKey.hasCrawlDelay("192.168.1.1"));
+        assertFalse(GroupingKey.hasCrawlDelay(""));
+        assertFalse(GroupingKey.hasCrawlDelay(GroupingKey.BLOCKED_GROUPING_KEY));
+    }
+    
     @Test
     public void testInvalidKey() {
         try {
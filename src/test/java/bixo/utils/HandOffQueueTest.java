@@ -0,0 +1,69 @@
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HandOffQueueTest {
+
+    @Test
+    public void testPollAfterClose() {
+        HandOffQueue<String> queue = new HandOffQueue<String>(new LinkedList<String>());
+        queue.add("one");
+        queue.add("two");
+        queue.close();
+
+        assertEquals(2, queue.size());
+        assertEquals("one", queue.poll());
+        assertEquals("two", queue.poll());
+        assertNull(queue.poll());
+
+        try {
+            queue.add("three");
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {
+            // Valid
+        }
+    }
+
+    @Test
+    public void testConsumerWaitsForProducer() throws Exception {
+        final HandOffQueue<String> queue = new HandOffQueue<String>(new DiskQueue<String>(1));
+        final List<String> consumed = new ArrayList<String>();
+
+        Thread consumer = new Thread() {
+
+            @Override
+            public void run() {
+                String element;
+                while ((element = queue.poll()) != null) {
+                    consumed.add(element);
+                }
+            }
+        };
+
+        consumer.start();
+
+        // The consumer should be blocked waiting for elements.
+        Thread.sleep(50);
+        assertTrue(consumer.isAlive());
+
+        final int numElements = 1000;
+        for (int i = 0; i < numElements; i++) {
+            queue.add("element-" + i);
+        }
+
+        queue.close();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+
+        assertEquals(numElements, consumed.size());
+        for (int i = 0; i < numElements; i++) {
+            assertEquals("element-" + i, consumed.get(i));
+        }
+    }
+}
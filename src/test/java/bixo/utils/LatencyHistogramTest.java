@@ -0,0 +1,87 @@
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50.0));
+        assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(50, histogram.getCount());
+        assertEquals(25, histogram.getPercentile(50.0));
+        assertEquals(50, histogram.getPercentile(99.0));
+        assertEquals(50, histogram.getMax());
+        assertEquals(25, histogram.getMean());
+    }
+
+    @Test
+    public void testPercentileAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i * 10L);
+        }
+
+        assertWithinPercent(500000, histogram.getPercentile(50.0), 3.2);
+        assertWithinPercent(990000, histogram.getPercentile(99.0), 3.2);
+        assertWithinPercent(999000, histogram.getPercentile(99.9), 3.2);
+        assertEquals(1000000, histogram.getPercentile(100.0));
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-10);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50.0));
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getPercentile(100.0));
+    }
+
+    @Test
+    public void testMerge() {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 990; i++) {
+            fast.record(1000);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            slow.record(5000000);
+        }
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(fast);
+        merged.merge(slow);
+
+        assertEquals(1000, merged.getCount());
+        assertEquals(5000000, merged.getMax());
+        assertWithinPercent(1000, merged.getPercentile(50.0), 3.2);
+        assertWithinPercent(1000, merged.getPercentile(99.0), 3.2);
+        assertWithinPercent(5000000, merged.getPercentile(99.9), 3.2);
+
+        // Merging doesn't change the source histograms.
+        assertEquals(990, fast.getCount());
+        assertEquals(10, slow.getCount());
+    }
+
+    private static void assertWithinPercent(long expected, long actual, double percent) {
+        double delta = Math.abs(actual - expected) * 100.0 / expected;
+        assertTrue(String.format("Expected %d, got %d", expected, actual), delta <= percent);
+    }
+}
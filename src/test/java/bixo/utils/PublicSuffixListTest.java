@@ -0,0 +1,89 @@
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class PublicSuffixListTest {
+
+    private static PublicSuffixList makeList(String... rules) throws Exception {
+        StringBuilder list = new StringBuilder("// Test rules\n\n");
+        for (String rule : rules) {
+            list.append(rule);
+            list.append('\n');
+        }
+
+        return new PublicSuffixList(new ByteArrayInputStream(list.toString().getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testSimpleRules() throws Exception {
+        PublicSuffixList list = makeList("com", "uk", "co.uk");
+        assertEquals(3, list.getNumRules());
+
+        assertEquals("domain.com", list.getPLD("domain.com"));
+        assertEquals("domain.com", list.getPLD("www.sub.domain.com"));
+        assertEquals("domain.uk", list.getPLD("www.domain.uk"));
+        assertEquals("domain.co.uk", list.getPLD("www.domain.co.uk"));
+    }
+
+    @Test
+    public void testNoMatchingRule() throws Exception {
+        PublicSuffixList list = makeList("com");
+
+        assertEquals("www.domain.org", list.getPLD("www.domain.org"));
+        assertEquals("1.2.3.4", list.getPLD("1.2.3.4"));
+        assertEquals("localhost", list.getPLD("localhost"));
+        assertEquals("", list.getPLD(""));
+    }
+
+    @Test
+    public void testHostnameIsSuffix() throws Exception {
+        PublicSuffixList list = makeList("uk", "co.uk");
+
+        assertEquals("uk", list.getPLD("uk"));
+        assertEquals("co.uk", list.getPLD("co.uk"));
+    }
+
+    @Test
+    public void testWildcardAndExceptionRules() throws Exception {
+        PublicSuffixList list = makeList("*.ck", "!www.ck", "jp", "*.kawasaki.jp", "!city.kawasaki.jp");
+
+        assertEquals("domain.co.ck", list.getPLD("www.domain.co.ck"));
+        assertEquals("www.ck", list.getPLD("www.ck"));
+        assertEquals("www.ck", list.getPLD("sub.www.ck"));
+
+        assertEquals("domain.foo.kawasaki.jp", list.getPLD("www.domain.foo.kawasaki.jp"));
+        assertEquals("city.kawasaki.jp", list.getPLD("www.city.kawasaki.jp"));
+        assertEquals("www.kawasaki.jp", list.getPLD("www.kawasaki.jp"));
+        assertEquals("kawasaki.jp", list.getPLD("kawasaki.jp"));
+    }
+
+    @Test
+    public void testCaseAndTrailingDot() throws Exception {
+        PublicSuffixList list = makeList("com", "CO.UK");
+
+        assertEquals("Domain.CO.uk", list.getPLD("WWW.Domain.CO.uk"));
+        assertEquals("domain.com", list.getPLD("www.domain.com."));
+        assertEquals("domain.com.", list.getPLD("domain.com."));
+    }
+
+    @Test
+    public void testInternationalRules() throws Exception {
+        PublicSuffixList list = makeList("\u4e2d\u56fd");
+
+        assertEquals("domain.\u4e2d\u56fd", list.getPLD("www.domain.\u4e2d\u56fd"));
+        assertEquals("domain.xn--fiqs8s", list.getPLD("www.domain.xn--fiqs8s"));
+    }
+
+    @Test
+    public void testDefaultList() throws Exception {
+        PublicSuffixList list = PublicSuffixList.getDefault();
+        assertTrue(list.getNumRules() > 0);
+
+        assertEquals("domain.co.uk", list.getPLD("www.domain.co.uk"));
+        assertEquals("domain.blogspot.com", list.getPLD("www.domain.blogspot.com"));
+    }
+}
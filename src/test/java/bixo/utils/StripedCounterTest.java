@@ -0,0 +1,59 @@
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+    @Test
+    public void testSingleThread() {
+        StripedCounter counter = new StripedCounter();
+        assertEquals(0, counter.sum());
+
+        counter.increment();
+        counter.add(10);
+        counter.add(-3);
+        assertEquals(8, counter.sum());
+    }
+
+    @Test
+    public void testNoOverflow() {
+        StripedCounter counter = new StripedCounter(1);
+        counter.add(Integer.MAX_VALUE);
+        counter.add(Integer.MAX_VALUE);
+        assertEquals(2L * Integer.MAX_VALUE, counter.sum());
+    }
+
+    @Test
+    public void testManyThreads() throws Exception {
+        final int numThreads = 20;
+        final int incrementsPerThread = 100000;
+        final StripedCounter counter = new StripedCounter();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < incrementsPerThread; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals((long)numThreads * incrementsPerThread, counter.sum());
+    }
+}
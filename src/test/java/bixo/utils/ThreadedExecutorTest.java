@@ -1,11 +1,15 @@
 package bixo.utils;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 
+import bixo.utils.ThreadedExecutor.ExecutorMode;
+
 
 public class ThreadedExecutorTest {
 
@@ -153,4 +157,132 @@ public class ThreadedExecutorTest {
             Assert.fail("Termination was interrupted");
         }
     }
+    
+    @Test
+    public void testThreadPerTask() throws Exception {
+        final int numTasks = 500;
+        final CountDownLatch started = new CountDownLatch(numTasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        ThreadedExecutor executor = new ThreadedExecutor(ExecutorMode.THREAD_PER_TASK, numTasks, 100);
+        
+        for (int i = 0; i < numTasks; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        // All of the tasks should be running at the same time, without execute() ever waiting.
+        started.await();
+        Assert.assertEquals(numTasks, executor.getActiveCount());
+        Assert.assertEquals(0, executor.getNumWaits());
+        
+        release.countDown();
+        Assert.assertTrue(executor.terminate(1000));
+    }
+    
+    @Test
+    public void testQueuedBackPressure() throws Exception {
+        final long timeoutInMS = 20;
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        ThreadedExecutor executor = new ThreadedExecutor(ExecutorMode.QUEUED, 1, 2, timeoutInMS);
+        
+        Runnable cmd = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Terminate the run
+                }
+            }
+        };
+
+        // One task running, two queued, so none of these should have to wait.
+        for (int i = 0; i < 3; i++) {
+            executor.execute(cmd);
+        }
+        
+        Assert.assertEquals(0, executor.getNumWaits());
+        Assert.assertEquals(2, executor.getPeakQueueSize());
+        
+        try {
+            executor.execute(cmd);
+            Assert.fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        Assert.assertEquals(1, executor.getNumWaits());
+        Assert.assertTrue(executor.getTotalWaitTime() >= timeoutInMS - 1);
+        Assert.assertEquals(1, executor.getNumRejected());
+        
+        release.countDown();
+        Assert.assertTrue(executor.terminate(1000));
+    }
+    
+    @Test
+    public void testQueuedHardTermination() throws Exception {
+        final AtomicInteger numInterrupted = new AtomicInteger();
+        
+        ThreadedExecutor executor = new ThreadedExecutor(ExecutorMode.QUEUED, 1, 10, 100);
+        
+        Runnable cmd = new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(10 * 1000L);
+                } catch (InterruptedException e) {
+                    numInterrupted.incrementAndGet();
+                }
+            }
+        };
+        
+        for (int i = 0; i < 5; i++) {
+            executor.execute(cmd);
+        }
+        
+        // The four queued tasks get run (interrupted) by terminate, and the running
+        // task gets interrupted by the hard shutdown.
+        Assert.assertFalse(executor.terminate(50));
+        Assert.assertTrue(numInterrupted.get() >= 4);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+    
+    @Test
+    public void testBusyTime() throws Exception {
+        ThreadedExecutor executor = new ThreadedExecutor(2, 1000);
+
+        for (int i = 0; i < 4; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+
+        Assert.assertTrue(executor.terminate(1000));
+        
+        // Four tasks at 50ms each, run two at a time.
+        long busyTime = executor.getTotalBusyTime();
+        Assert.assertTrue("Busy time: " + busyTime, busyTime >= 190);
+        
+        long threadTime = executor.getTotalThreadTime();
+        Assert.assertTrue("Thread time: " + threadTime, threadTime >= busyTime);
+        
+        // Thread time stops growing once we've been terminated.
+        Thread.sleep(50);
+        Assert.assertEquals(threadTime, executor.getTotalThreadTime());
+    }
 }